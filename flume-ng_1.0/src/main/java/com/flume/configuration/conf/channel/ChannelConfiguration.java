@@ -21,9 +21,9 @@ public class ChannelConfiguration extends ComponentConfiguration {
 		OTHER(null), MEMORY("org.apache.flume.conf.channel.MemoryChannelConfiguration"),
 
 		/**
-		 * File channel
+		 * File channel, only basic validation
 		 */
-		FILE("org.apache.flume.conf.channel.FileChannelConfiguration"),
+		FILE(null),
 
 		/**
 		 * JDBC channel provided by org.apache.flume.channel.jdbc.JdbcChannel
@@ -31,9 +31,34 @@ public class ChannelConfiguration extends ComponentConfiguration {
 		JDBC("org.apache.flume.conf.channel.JdbcChannelConfiguration"),
 
 		/**
-		 * Spillable Memory channel
+		 * Spillable Memory channel, only basic validation
 		 */
-		SPILLABLEMEMORY("org.apache.flume.conf.channel.SpillableMemoryChannelConfiguration");
+		SPILLABLEMEMORY(null),
+
+		/**
+		 * Off-heap memory channel, only basic validation
+		 */
+		OFFHEAPMEMORY(null),
+
+		/**
+		 * Key-partitioned memory channel
+		 */
+		PARTITIONED("com.flume.configuration.conf.channel.PartitionedChannelConfiguration"),
+
+		/**
+		 * Priority lane memory channel, only basic validation
+		 */
+		PRIORITY(null),
+
+		/**
+		 * Compressing memory channel, only basic validation
+		 */
+		COMPRESSINGMEMORY(null),
+
+		/**
+		 * Deduplicating memory channel, only basic validation
+		 */
+		DEDUPLICATINGMEMORY(null);
 
 		private String channelConfigurationType;
 
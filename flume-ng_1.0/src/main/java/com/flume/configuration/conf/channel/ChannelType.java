@@ -19,14 +19,14 @@ public enum ChannelType {
 	 * 
 	 * @see FileChannel
 	 */
-	FILE("org.apache.flume.channel.file.FileChannel"),
+	FILE("com.flume.core.channel.file.FileChannel"),
 
 	/**
 	 * Memory channel
 	 *
 	 * @see MemoryChannel
 	 */
-	MEMORY("org.apache.flume.channel.MemoryChannel"),
+	MEMORY("com.flume.core.channel.MemoryChannel"),
 
 	/**
 	 * JDBC channel provided by org.apache.flume.channel.jdbc.JdbcChannel
@@ -38,7 +38,42 @@ public enum ChannelType {
 	 *
 	 * @see SpillableMemoryChannel
 	 */
-	SPILLABLEMEMORY("org.apache.flume.channel.SpillableMemoryChannel");
+	SPILLABLEMEMORY("com.flume.core.channel.SpillableMemoryChannel"),
+
+	/**
+	 * Off-heap memory channel
+	 *
+	 * @see OffHeapMemoryChannel
+	 */
+	OFFHEAPMEMORY("com.flume.core.channel.OffHeapMemoryChannel"),
+
+	/**
+	 * Key-partitioned memory channel
+	 *
+	 * @see PartitionedChannel
+	 */
+	PARTITIONED("com.flume.core.channel.PartitionedChannel"),
+
+	/**
+	 * Priority lane memory channel
+	 *
+	 * @see PriorityChannel
+	 */
+	PRIORITY("com.flume.core.channel.PriorityChannel"),
+
+	/**
+	 * Memory channel storing large bodies compressed
+	 *
+	 * @see CompressingMemoryChannel
+	 */
+	COMPRESSINGMEMORY("com.flume.core.channel.CompressingMemoryChannel"),
+
+	/**
+	 * Memory channel dropping duplicate events
+	 *
+	 * @see DeduplicatingMemoryChannel
+	 */
+	DEDUPLICATINGMEMORY("com.flume.core.channel.DeduplicatingMemoryChannel");
 
 	private final String channelClassName;
 
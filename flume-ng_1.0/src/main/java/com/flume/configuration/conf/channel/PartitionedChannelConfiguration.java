@@ -0,0 +1,65 @@
+package com.flume.configuration.conf.channel;
+
+import com.flume.configuration.Context;
+import com.flume.configuration.conf.ConfigurationException;
+import com.flume.configuration.conf.FlumeConfigurationError;
+import com.flume.configuration.conf.FlumeConfigurationError.ErrorOrWarning;
+import com.flume.configuration.conf.FlumeConfigurationErrorType;
+
+/**
+ * 分区Channel的配置校验：partitionHeader必须配置，partitions必须为正整数
+ *
+ * @Description
+ *
+ */
+public class PartitionedChannelConfiguration extends ChannelConfiguration {
+
+	/**
+	 * The header whose value selects the partition of an event.
+	 */
+	public static final String CONFIG_PARTITION_HEADER = "partitionHeader";
+
+	/**
+	 * The number of partitions (sub-queues).
+	 */
+	public static final String CONFIG_PARTITIONS = "partitions";
+	public static final int DEFAULT_PARTITIONS = 4;
+
+	private String partitionHeader;
+	private int partitions = DEFAULT_PARTITIONS;
+
+	public PartitionedChannelConfiguration(String componentName) {
+		super(componentName);
+	}
+
+	@Override
+	public void configure(Context context) throws ConfigurationException {
+		super.configure(context);
+
+		this.partitionHeader = context.getString(CONFIG_PARTITION_HEADER);
+		if (this.partitionHeader == null || this.partitionHeader.isEmpty()) {
+			this.errors.add(new FlumeConfigurationError(this.componentName, CONFIG_PARTITION_HEADER,
+					FlumeConfigurationErrorType.PROPERTY_VALUE_NULL, ErrorOrWarning.ERROR));
+			throw new ConfigurationException("No partitionHeader set for " + this.getComponentName());
+		}
+
+		try {
+			this.partitions = context.getInteger(CONFIG_PARTITIONS, DEFAULT_PARTITIONS);
+		} catch (NumberFormatException e) {
+			this.partitions = -1;
+		}
+		if (this.partitions <= 0) {
+			this.errors.add(new FlumeConfigurationError(this.componentName, CONFIG_PARTITIONS,
+					FlumeConfigurationErrorType.CONFIG_ERROR, ErrorOrWarning.ERROR));
+			throw new ConfigurationException("partitions must be a positive integer for " + this.getComponentName());
+		}
+	}
+
+	public String getPartitionHeader() {
+		return this.partitionHeader;
+	}
+
+	public int getPartitions() {
+		return this.partitions;
+	}
+}
@@ -1,5 +1,8 @@
 package com.flume.core;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.flume.core.annotations.InterfaceAudience;
 import com.flume.core.annotations.InterfaceStability;
 
@@ -79,6 +82,130 @@ public interface Channel extends LifecycleAware, NamedComponent {
 	 */
 	public Event take() throws ChannelException;
 
+	/**
+	 * <p>
+	 * Puts all given events into the channel, in order.(将一批Event放入到Channel中)
+	 * The default implementation calls {@link #put(Event)} for each event;
+	 * channels should override it to check their preconditions once per
+	 * batch instead of once per event.
+	 * </p>
+	 * <p>
+	 * <strong>Note</strong>: This method must be invoked within an active
+	 * {@link Transaction} boundary. Failure to do so can lead to
+	 * unpredictable results.
+	 * </p>
+	 *
+	 * @param events
+	 *            the events to transport.
+	 * @throws ChannelException
+	 *             in case this operation fails. Some of the events may have
+	 *             been put already, the transaction must be rolled back.
+	 */
+	public default void putAll(List<Event> events) throws ChannelException {
+		for (Event event : events) {
+			this.put(event);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Puts the given event into the channel unless it is known not to fit.
+	 * (不抛异常的put：确定放不下时返回false) Unlike {@link #put(Event)} a full
+	 * channel or transaction is reported by the return value, so a caller
+	 * under backpressure can roll back without an exception being built. A
+	 * {@code true} result does not guarantee that the commit succeeds, as
+	 * other transactions may take the space first. The default
+	 * implementation checks {@link #remainingCapacity()} and then calls
+	 * {@link #put(Event)}.
+	 * </p>
+	 * <p>
+	 * <strong>Note</strong>: This method must be invoked within an active
+	 * {@link Transaction} boundary. Failure to do so can lead to
+	 * unpredictable results.
+	 * </p>
+	 *
+	 * @param event
+	 *            the event to transport.
+	 * @return false if the event was not put because there is no room for it
+	 * @throws ChannelException
+	 *             in case this operation fails for another reason.
+	 */
+	public default boolean tryPut(Event event) throws ChannelException {
+		if (this.remainingCapacity() < 1) {
+			return false;
+		}
+		this.put(event);
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Returns an estimate of the number of events that can currently be
+	 * committed to the channel.(Channel当前剩余容量的估计值) The value is a
+	 * snapshot and may change as soon as it is returned. Channels that do not
+	 * track their capacity return {@link Integer#MAX_VALUE}, which is also the
+	 * default.
+	 * </p>
+	 *
+	 * @return the remaining capacity in events, never negative
+	 */
+	public default int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * <p>
+	 * Takes up to <code>max</code> events from the channel and appends them
+	 * to <code>into</code>.(从Channel中最多取出max个Event) Like {@link #take()} it
+	 * may wait for the first event; it returns fewer than <code>max</code>
+	 * events when no more are available. The default implementation calls
+	 * {@link #take()} until it returns {@code null}.
+	 * </p>
+	 * <p>
+	 * <strong>Note</strong>: This method must be invoked within an active
+	 * {@link Transaction} boundary. Failure to do so can lead to
+	 * unpredictable results.
+	 * </p>
+	 *
+	 * @param max
+	 *            the maximum number of events to take.
+	 * @param into
+	 *            the list the taken events are appended to.
+	 * @return the number of events taken, 0 if none were available.
+	 * @throws ChannelException
+	 *             in case this operation fails.
+	 */
+	public default int take(int max, List<Event> into) throws ChannelException {
+		int taken = 0;
+		while (taken < max) {
+			Event event = this.take();
+			if (event == null) {
+				break;
+			}
+			into.add(event);
+			taken++;
+		}
+		return taken;
+	}
+
+	/**
+	 * <p>
+	 * Returns what the channel currently holds without taking a transaction
+	 * or moving any event.(不开启事务、不移动Event，查看Channel中的内容) Meant for
+	 * operators looking at a stuck channel; implementations must not block
+	 * puts and takes for it. The default knows nothing about the channel.
+	 * </p>
+	 *
+	 * @param sampleSize
+	 *            the largest number of head events to copy into the result,
+	 *            at most {@link ChannelInspection#MAX_SAMPLE_SIZE} are copied
+	 * @return a best-effort snapshot of the channel
+	 */
+	public default ChannelInspection inspect(int sampleSize) {
+		return new ChannelInspection(ChannelInspection.UNKNOWN, ChannelInspection.UNKNOWN, ChannelInspection.UNKNOWN,
+				Collections.<Event> emptyList());
+	}
+
 	/**
 	 * @return the transaction instance associated with this channel.
 	 */
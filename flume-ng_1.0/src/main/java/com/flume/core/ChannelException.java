@@ -34,4 +34,17 @@ public class ChannelException extends RuntimeException {
 	public ChannelException(String message, Throwable ex) {
 		super(message, ex);
 	}
+
+	/**
+	 * @param message
+	 *            the exception message
+	 * @param ex
+	 *            the causal exception
+	 * @param writableStackTrace
+	 *            false for a stackless exception that may be preallocated and
+	 *            thrown repeatedly; suppression is then disabled as well
+	 */
+	protected ChannelException(String message, Throwable ex, boolean writableStackTrace) {
+		super(message, ex, writableStackTrace, writableStackTrace);
+	}
 }
@@ -19,4 +19,19 @@ public class ChannelFullException extends ChannelException {
 	public ChannelFullException(String message, Throwable ex) {
 		super(message, ex);
 	}
+
+	/**
+	 * <p>
+	 * Creates an exception without stack trace. Channels signal backpressure
+	 * on every rejected commit, so they preallocate one such instance and
+	 * throw it repeatedly instead of paying for a stack walk each time.
+	 * </p>
+	 *
+	 * @param message
+	 * @param writableStackTrace
+	 *            false to skip filling in the stack trace
+	 */
+	public ChannelFullException(String message, boolean writableStackTrace) {
+		super(message, null, writableStackTrace);
+	}
 }
@@ -0,0 +1,96 @@
+package com.flume.core;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.sdk.Event;
+
+/**
+ * <p>
+ * A read-only view of what a channel holds, returned by
+ * {@link Channel#inspect(int)}: the queue depth in events and bytes, the age
+ * of the event at the head and copies of the first events. It is taken
+ * without a transaction and without moving any event, so the values are a
+ * best-effort snapshot that may already be stale when returned. Values the
+ * channel cannot tell cheaply are {@link #UNKNOWN}.
+ * </p>
+ *
+ * @Description Channel内容的只读快照：深度（条数和字节数）、队首Event的停留时间和队首若干Event的副本
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public final class ChannelInspection {
+
+	public static final long UNKNOWN = -1L;
+
+	/**
+	 * The most head events a channel copies into an inspection, whatever
+	 * sample size is asked for.
+	 */
+	public static final int MAX_SAMPLE_SIZE = 1024;
+
+	private final long eventCount;
+	private final long byteCount;
+	private final long headAge;
+	private final List<Event> headEvents;
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param eventCount
+	 *            the number of events in the channel, or {@link #UNKNOWN}
+	 * @param byteCount
+	 *            the bytes held by the channel, or {@link #UNKNOWN}
+	 * @param headAge
+	 *            milliseconds the head event has been waiting, or
+	 *            {@link #UNKNOWN}
+	 * @param headEvents
+	 *            copies of the events at the head, in the order they would be
+	 *            taken
+	 */
+	public ChannelInspection(long eventCount, long byteCount, long headAge, List<Event> headEvents) {
+		this.eventCount = eventCount;
+		this.byteCount = byteCount;
+		this.headAge = headAge;
+		this.headEvents = Collections.unmodifiableList(headEvents);
+	}
+
+	/**
+	 * @return the number of events in the channel, including those taken by
+	 *         open transactions, or {@link #UNKNOWN}
+	 */
+	public long getEventCount() {
+		return this.eventCount;
+	}
+
+	/**
+	 * @return the bytes held by the channel, or {@link #UNKNOWN}
+	 */
+	public long getByteCount() {
+		return this.byteCount;
+	}
+
+	/**
+	 * @return milliseconds the head event has been in the channel, 0 if the
+	 *         channel is empty, or {@link #UNKNOWN}
+	 */
+	public long getHeadAge() {
+		return this.headAge;
+	}
+
+	/**
+	 * @return copies of the events at the head of the channel
+	 */
+	public List<Event> getHeadEvents() {
+		return this.headEvents;
+	}
+
+	@Override
+	public String toString() {
+		return "ChannelInspection { events: " + this.eventCount + ", bytes: " + this.byteCount + ", headAge: "
+				+ this.headAge + ", sampled: " + this.headEvents.size() + " }";
+	}
+}
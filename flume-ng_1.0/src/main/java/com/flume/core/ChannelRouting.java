@@ -0,0 +1,160 @@
+package com.flume.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.sdk.Event;
+
+/**
+ * <p>
+ * The events of one batch grouped by the channels they go to, filled by
+ * {@link ChannelSelector#route(List, ChannelRouting)}. A selector either
+ * adds events to a channel one at a time, or routes a whole list to a
+ * channel, which is kept without copying. The per-channel lists of added
+ * events are kept across {@link #clear()}, so an instance that is reused
+ * for every batch does not allocate once it has seen its channels.
+ * </p>
+ * <p>
+ * Channels appear in the order they were first routed to. Not thread safe.
+ * Lists routed whole must not change until the routing is cleared.
+ * </p>
+ *
+ * @Description 一批Event按目标Channel分组的结果，按Channel复用的列表在clear后保留，重复使用时不再分配
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public final class ChannelRouting {
+
+	private final Map<Channel, List<Event>> required = new LinkedHashMap<>();
+	private final Map<Channel, List<Event>> optional = new LinkedHashMap<>();
+	/**
+	 * 每个Channel可复用的列表，required和optional各一份
+	 */
+	private final Map<Channel, ArrayList<Event>> requiredBuckets = new HashMap<>();
+	private final Map<Channel, ArrayList<Event>> optionalBuckets = new HashMap<>();
+
+	/**
+	 * Adds an event for a channel it must be written to.
+	 *
+	 * @param channel
+	 * @param event
+	 */
+	public void addRequired(Channel channel, Event event) {
+		add(this.required, this.requiredBuckets, channel, event);
+	}
+
+	/**
+	 * Adds an event for a channel it may be written to.
+	 *
+	 * @param channel
+	 * @param event
+	 */
+	public void addOptional(Channel channel, Event event) {
+		add(this.optional, this.optionalBuckets, channel, event);
+	}
+
+	/**
+	 * Routes the whole list to a channel it must be written to.
+	 *
+	 * @param channel
+	 * @param events
+	 *            the events, not copied
+	 */
+	public void routeRequired(Channel channel, List<Event> events) {
+		route(this.required, this.requiredBuckets, channel, events);
+	}
+
+	/**
+	 * Routes the whole list to a channel it may be written to.
+	 *
+	 * @param channel
+	 * @param events
+	 *            the events, not copied
+	 */
+	public void routeOptional(Channel channel, List<Event> events) {
+		route(this.optional, this.optionalBuckets, channel, events);
+	}
+
+	/**
+	 * @return the required channels with their events, none empty
+	 */
+	public Map<Channel, List<Event>> getRequired() {
+		return this.required;
+	}
+
+	/**
+	 * @return the optional channels with their events, none empty
+	 */
+	public Map<Channel, List<Event>> getOptional() {
+		return this.optional;
+	}
+
+	/**
+	 * Forgets the routed events, keeping the lists for the next batch.
+	 */
+	public void clear() {
+		clear(this.required, this.requiredBuckets);
+		clear(this.optional, this.optionalBuckets);
+	}
+
+	private static void add(Map<Channel, List<Event>> routed, Map<Channel, ArrayList<Event>> buckets,
+			Channel channel, Event event) {
+		List<Event> events = routed.get(channel);
+		if (events == null) {
+			events = bucket(buckets, channel);
+			routed.put(channel, events);
+		} else if (events != buckets.get(channel)) {
+			// 此前整批路由的列表不属于本对象，先复制再追加
+			ArrayList<Event> bucket = bucket(buckets, channel);
+			bucket.addAll(events);
+			routed.put(channel, bucket);
+			events = bucket;
+		}
+		events.add(event);
+	}
+
+	private static void route(Map<Channel, List<Event>> routed, Map<Channel, ArrayList<Event>> buckets,
+			Channel channel, List<Event> events) {
+		if (events.isEmpty()) {
+			return;
+		}
+		List<Event> current = routed.get(channel);
+		if (current == null) {
+			routed.put(channel, events);
+		} else {
+			ArrayList<Event> bucket = bucket(buckets, channel);
+			if (current != bucket) {
+				bucket.addAll(current);
+				routed.put(channel, bucket);
+			}
+			bucket.addAll(events);
+		}
+	}
+
+	private static ArrayList<Event> bucket(Map<Channel, ArrayList<Event>> buckets, Channel channel) {
+		ArrayList<Event> bucket = buckets.get(channel);
+		if (bucket == null) {
+			bucket = new ArrayList<>();
+			buckets.put(channel, bucket);
+		}
+		return bucket;
+	}
+
+	private static void clear(Map<Channel, List<Event>> routed, Map<Channel, ArrayList<Event>> buckets) {
+		if (routed.isEmpty()) {
+			return;
+		}
+		for (Channel channel : routed.keySet()) {
+			ArrayList<Event> bucket = buckets.get(channel);
+			if (bucket != null) {
+				bucket.clear();
+			}
+		}
+		routed.clear();
+	}
+}
@@ -46,6 +46,37 @@ public interface ChannelSelector extends NamedComponent, Configurable {
 	 */
 	public List<Channel> getOptionalChannels(Event event);
 
+	/**
+	 * <p>
+	 * Routes a whole batch in one pass, filling the routing with the
+	 * required and optional channels of each event. The default
+	 * implementation asks {@link #getRequiredChannels(Event)} and
+	 * {@link #getOptionalChannels(Event)} for every event; selectors that
+	 * route whole batches at once should override it.
+	 * </p>
+	 * <p>
+	 * 一次遍历整批Event，把每个Event加入其required和optional channel的列表
+	 * </p>
+	 *
+	 * @param events
+	 *            the batch
+	 * @param routing
+	 *            an empty routing to fill
+	 */
+	public default void route(List<Event> events, ChannelRouting routing) {
+		for (int i = 0, n = events.size(); i < n; i++) {
+			Event event = events.get(i);
+			List<Channel> required = this.getRequiredChannels(event);
+			for (int j = 0, m = required.size(); j < m; j++) {
+				routing.addRequired(required.get(j), event);
+			}
+			List<Channel> optional = this.getOptionalChannels(event);
+			for (int j = 0, m = optional.size(); j < m; j++) {
+				routing.addOptional(optional.get(j), event);
+			}
+		}
+	}
+
 	/**
 	 * @return the list of all channels that this selector is configured to work
 	 *         with.
@@ -69,6 +69,41 @@ public interface Transaction {
 	 */
 	void commit();
 
+	/**
+	 * <p>
+	 * The first phase of a two-phase commit. Acquires everything the commit
+	 * needs, such as channel capacity, and fails with the exception the
+	 * commit would have thrown if that is not possible. After it returns the
+	 * transaction accepts no more puts or takes, and {@linkplain #commit()}
+	 * does not fail for lack of capacity, so that a caller can prepare the
+	 * transactions of several channels and commit them only if all of them
+	 * prepared. {@linkplain #rollback()} releases what was acquired.
+	 * </p>
+	 * <p>
+	 * 两阶段提交的第一阶段：预留提交所需的容量，之后commit不会因容量不足失败
+	 * </p>
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the channel cannot commit in two phases, see
+	 *             {@link #supportsPrepare()}
+	 */
+	public default void prepare() {
+		throw new UnsupportedOperationException(this.getClass().getName() + " cannot commit in two phases");
+	}
+
+	/**
+	 * <p>
+	 * Tells whether {@linkplain #prepare()} is implemented, so that a caller
+	 * does not have to try it and catch the exception.(是否支持两阶段提交) The
+	 * default is false.
+	 * </p>
+	 *
+	 * @return true if the transaction can commit in two phases
+	 */
+	public default boolean supportsPrepare() {
+		return false;
+	}
+
 	/**
 	 * Indicates that the transaction can must be aborted. It is required that a
 	 * transaction be in progress when this method is invoked.
@@ -89,4 +124,40 @@ public interface Transaction {
 	 * </p>
 	 */
 	void close();
+
+	/**
+	 * <p>
+	 * Releases the transaction from the calling thread so that another thread
+	 * can continue it after {@linkplain #attach()}, e.g. to commit a batch
+	 * from the completion callback of an asynchronous write. Until then no
+	 * thread may use the transaction. The calling thread gets a new
+	 * transaction from its next <code>getTransaction</code>, so it can keep
+	 * several batches in flight.
+	 * </p>
+	 * <p>
+	 * 把事务从当前线程交出，由另一个线程attach后继续提交或回滚
+	 * </p>
+	 *
+	 * @throws UnsupportedOperationException
+	 *             if the channel's transactions are bound to one thread
+	 */
+	public default void detach() {
+		throw new UnsupportedOperationException(this.getClass().getName() + " cannot be handed off between threads");
+	}
+
+	/**
+	 * <p>
+	 * Makes the calling thread the owner of a transaction released by
+	 * {@linkplain #detach()}. Exactly one thread can attach a detached
+	 * transaction; it then uses the transaction as if it had begun it.
+	 * </p>
+	 *
+	 * @throws IllegalStateException
+	 *             if the transaction is not detached
+	 * @throws UnsupportedOperationException
+	 *             if the channel's transactions are bound to one thread
+	 */
+	public default void attach() {
+		throw new UnsupportedOperationException(this.getClass().getName() + " cannot be handed off between threads");
+	}
 }
@@ -1,13 +1,29 @@
 package com.flume.core.channel;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
 import com.flume.core.ChannelException;
+import com.flume.core.ChannelInspection;
 import com.flume.core.Transaction;
 import com.flume.core.annotations.InterfaceAudience;
 import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.ChannelCounter;
 import com.flume.sdk.Event;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * <p>
@@ -15,6 +31,24 @@ import com.google.common.base.Preconditions;
  * thread-local semantics of the {@link Transaction} class, which is required to
  * extend {@link BasicTransactionSemantics}.
  * </p>
+ * <p>
+ * Channels annotated with {@link Recyclable} keep one transaction per thread
+ * for their lifetime: once it is closed, <code>getTransaction</code> resets
+ * and hands out the same object again instead of creating a new one.
+ * </p>
+ * <p>
+ * Every such channel supports an optional time-to-live, see
+ * {@link EventExpiry}: subclasses pass their context to
+ * <code>super.configure</code>, expired events are dropped at take time, and
+ * channels that implement {@link #purgeExpired(EventExpiry, long)} are also
+ * swept in the background while running.
+ * </p>
+ * <p>
+ * The transactions handed out are watched by a {@link TransactionMonitor}:
+ * the age and size of the oldest open transaction are reported through the
+ * channel's counter, and transactions of dead threads, or open for longer
+ * than <code>transactionTimeout</code>, are rolled back.
+ * </p>
  * 
  * @Description
  * @author Administrator
@@ -25,6 +59,13 @@ import com.google.common.base.Preconditions;
 @InterfaceStability.Stable
 public abstract class BasicChannelSemantics extends AbstractChannel {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(BasicChannelSemantics.class);
+
+	/**
+	 * TimestampInterceptor写入的时间戳header
+	 */
+	private static final String TIMESTAMP_HEADER = "timestamp";
+
 	/**
 	 * 每个线程都包括了一个唯一的Transaction对象，保证了事务的隔离性
 	 */
@@ -32,6 +73,33 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
 
 	private boolean initialized = false;
 
+	/**
+	 * 标注了@Recyclable的Channel，每个线程的事务关闭后重置复用，不再每次新建
+	 */
+	private final boolean recyclable = this.getClass().isAnnotationPresent(Recyclable.class);
+
+	/**
+	 * Event的过期策略，null表示不过期
+	 */
+	private volatile EventExpiry expiry;
+	private ScheduledExecutorService expirySweeper;
+
+	private final TransactionMonitor transactionMonitor = new TransactionMonitor();
+	private ScheduledFuture<?> transactionCheck;
+
+	/**
+	 * <p>
+	 * Reads the time-to-live settings of {@link EventExpiry} and the
+	 * transaction timeout of {@link TransactionMonitor}. Subclasses overriding
+	 * this method must call it.
+	 * </p>
+	 */
+	@Override
+	public void configure(Context context) {
+		this.expiry = EventExpiry.fromContext(context);
+		this.transactionMonitor.configure(context);
+	}
+
 	/**
 	 * <p>
 	 * Called upon first getTransaction() request, while synchronized on this
@@ -57,6 +125,103 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
 	 */
 	protected abstract BasicTransactionSemantics createTransaction();
 
+	/**
+	 * @return the counter this channel reports its metrics through, or null
+	 */
+	protected ChannelCounter getChannelCounter() {
+		return null;
+	}
+
+	/**
+	 * <p>
+	 * Called periodically by the background sweeper to remove expired events
+	 * from the head of the channel without going through a transaction. The
+	 * default implementation removes nothing, leaving expiry to take time.
+	 * </p>
+	 *
+	 * @param expiry
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return the number of events removed
+	 */
+	protected int purgeExpired(EventExpiry expiry, long now) {
+		return 0;
+	}
+
+	/**
+	 * @return the time-to-live policy of this channel, or null
+	 */
+	protected EventExpiry getExpiry() {
+		return this.expiry;
+	}
+
+	/**
+	 * <p>
+	 * Reports the channel size last published to the channel's counter.
+	 * Channels that can look at their head without locking override this.
+	 * </p>
+	 */
+	@Override
+	public ChannelInspection inspect(int sampleSize) {
+		ChannelCounter counter = this.getChannelCounter();
+		return new ChannelInspection(counter == null ? ChannelInspection.UNKNOWN : counter.getChannelSize(),
+				ChannelInspection.UNKNOWN, ChannelInspection.UNKNOWN, Collections.<Event> emptyList());
+	}
+
+	/**
+	 * <p>
+	 * The age of an event for {@link #inspect(int)}, from the enqueue time
+	 * stamped by {@link EventExpiry} when the channel has a ttl, or else from
+	 * the <code>timestamp</code> header.
+	 * </p>
+	 *
+	 * @param event
+	 *            the head event, or null if the channel is empty
+	 * @param now
+	 * @return the age in milliseconds, 0 for no event, or
+	 *         {@link ChannelInspection#UNKNOWN}
+	 */
+	protected static long ageOf(Event event, long now) {
+		if (event == null) {
+			return 0L;
+		}
+		Map<String, String> headers = event.getHeaders();
+		if (headers == null) {
+			return ChannelInspection.UNKNOWN;
+		}
+		String time = headers.get(EventExpiry.ENQUEUE_TIME_HEADER);
+		if (time == null) {
+			time = headers.get(TIMESTAMP_HEADER);
+		}
+		if (time == null) {
+			return ChannelInspection.UNKNOWN;
+		}
+		try {
+			return Math.max(0L, now - Long.parseLong(time));
+		} catch (NumberFormatException e) {
+			return ChannelInspection.UNKNOWN;
+		}
+	}
+
+	/**
+	 * 查看用的Event副本，header另行复制，调用者修改副本不会影响Channel中的Event
+	 */
+	protected static Event inspectionCopy(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		return EventBuilder.withBody(event.getBody(),
+				headers == null ? new HashMap<String, String>() : new HashMap<String, String>(headers));
+	}
+
+	/**
+	 * Runs one check of the {@link TransactionMonitor} now instead of waiting
+	 * for the next scheduled one.
+	 *
+	 * @return the number of transactions rolled back
+	 */
+	int checkTransactions() {
+		return this.transactionMonitor.check(this.getName(), System.currentTimeMillis(), this.getChannelCounter());
+	}
+
 	/**
 	 * <p>
 	 * Ensures that a transaction exists for this thread and then delegates the
@@ -90,6 +255,48 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
 		return transaction.take();  
 	}
 
+	/**
+	 * <p>
+	 * Looks up the thread's {@link BasicTransactionSemantics} once and
+	 * delegates the whole batch to it.
+	 * </p>
+	 * 首先得到线程对应的transaction，整批交给transaction处理
+	 */
+	@Override
+	public void putAll(List<Event> events) throws ChannelException {
+		BasicTransactionSemantics transaction = this.currentTransaction.get();
+		Preconditions.checkState(transaction != null, "No transaction exists for this thread");
+		transaction.putAll(events);
+	}
+
+	/**
+	 * <p>
+	 * Ensures that a transaction exists for this thread and then delegates the
+	 * <code>tryPut</code> to it.
+	 * </p>
+	 * 首先得到线程对应的transaction，由transaction判断能否放下并put
+	 */
+	@Override
+	public boolean tryPut(Event event) throws ChannelException {
+		BasicTransactionSemantics transaction = this.currentTransaction.get();
+		Preconditions.checkState(transaction != null, "No transaction exists for this thread");
+		return transaction.tryPut(event);
+	}
+
+	/**
+	 * <p>
+	 * Looks up the thread's {@link BasicTransactionSemantics} once and
+	 * delegates the whole batch to it.
+	 * </p>
+	 * 首先得到线程对应的transaction，整批交给transaction处理
+	 */
+	@Override
+	public int take(int max, List<Event> into) throws ChannelException {
+		BasicTransactionSemantics transaction = this.currentTransaction.get();
+		Preconditions.checkState(transaction != null, "No transaction exists for this thread");
+		return transaction.take(max, into);
+	}
+
 	/**
 	 * <p>
 	 * Initializes the channel if it is not already, then checks to see if there
@@ -116,12 +323,114 @@ public abstract class BasicChannelSemantics extends AbstractChannel {
 		}
 
 		BasicTransactionSemantics transaction = this.currentTransaction.get();
-		if (transaction == null || transaction.getState().equals(BasicTransactionSemantics.State.CLOSED)) {
-			// 当此线程的transaction为null或状态为Closed时，重新建立一个新事务（具体的建立方法由Channel的具体实现类来定义），并将这个事务存入ThreadLocal中
+		if (transaction == null || (transaction.getState() == BasicTransactionSemantics.State.CLOSED
+				&& !(this.recyclable && transaction.recycle()))) {
+			// 当此线程的transaction为null，或状态为Closed且无法复用时，重新建立一个新事务（具体的建立方法由Channel的具体实现类来定义），并将这个事务存入ThreadLocal中
+			BasicTransactionSemantics previous = transaction;
 			transaction = this.createTransaction();
 			this.currentTransaction.set(transaction);
+			this.transactionMonitor.replace(previous, transaction);
+		}
+		if (transaction.getState() == BasicTransactionSemantics.State.NEW) {
+			transaction.guarded = this.transactionMonitor.getTimeout() > 0;
 		}
+		transaction.expiry = this.expiry;
+		transaction.expiryCounter = this.getChannelCounter();
+		transaction.channel = this;
 		return transaction;
 	}
 
+	/**
+	 * 事务被当前线程交出：不再是当前线程的事务，下次getTransaction新建一个
+	 */
+	void unbind(BasicTransactionSemantics transaction) {
+		if (this.currentTransaction.get() == transaction) {
+			this.currentTransaction.remove();
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException
+	 *             if the calling thread has another unclosed transaction
+	 */
+	void checkCanBind(BasicTransactionSemantics transaction) {
+		BasicTransactionSemantics current = this.currentTransaction.get();
+		if (current != null && current != transaction
+				&& current.getState() != BasicTransactionSemantics.State.CLOSED) {
+			throw new IllegalStateException("attach() called from a thread that has an unclosed transaction on channel "
+					+ this.getName());
+		}
+	}
+
+	/**
+	 * 当前线程attach了一个交出的事务，它取代线程原有的已关闭事务
+	 */
+	void bind(BasicTransactionSemantics transaction) {
+		BasicTransactionSemantics previous = this.currentTransaction.get();
+		if (previous != transaction) {
+			this.currentTransaction.set(transaction);
+			if (previous != null) {
+				this.transactionMonitor.replace(previous, transaction);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		final EventExpiry expiry = this.expiry;
+		if (expiry != null && expiry.getSweepInterval() > 0) {
+			this.expirySweeper = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("Channel-ExpirySweeper-" + this.getName()).build());
+			this.expirySweeper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int purged = purgeExpired(expiry, System.currentTimeMillis());
+						ChannelCounter counter = getChannelCounter();
+						if (purged > 0 && counter != null) {
+							counter.addToEventExpiredCount(purged);
+						}
+					} catch (Throwable t) {
+						LOGGER.error("Error while removing expired events of channel " + getName(), t);
+					}
+				}
+			}, expiry.getSweepInterval(), expiry.getSweepInterval(), TimeUnit.MILLISECONDS);
+		}
+		long interval = this.transactionMonitor.getInterval();
+		if (interval > 0) {
+			this.transactionCheck = TransactionMonitor.scheduler().scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						transactionMonitor.check(getName(), System.currentTimeMillis(), getChannelCounter());
+					} catch (Throwable t) {
+						LOGGER.error("Error while checking the transactions of channel " + getName(), t);
+					}
+				}
+			}, interval, interval, TimeUnit.MILLISECONDS);
+		}
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (this.transactionCheck != null) {
+			this.transactionCheck.cancel(false);
+			this.transactionCheck = null;
+		}
+		if (this.expirySweeper != null) {
+			this.expirySweeper.shutdown();
+			try {
+				if (!this.expirySweeper.awaitTermination(10, TimeUnit.SECONDS)) {
+					this.expirySweeper.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				this.expirySweeper.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			this.expirySweeper = null;
+		}
+		super.stop();
+	}
+
 }
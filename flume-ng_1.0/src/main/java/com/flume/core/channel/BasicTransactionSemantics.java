@@ -1,7 +1,12 @@
 package com.flume.core.channel;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import com.flume.core.ChannelException;
 import com.flume.core.Transaction;
+import com.flume.core.instrumentation.ChannelCounter;
 import com.flume.sdk.Event;
 import com.google.common.base.Preconditions;
 
@@ -11,7 +16,9 @@ import com.google.common.base.Preconditions;
  * concert with {@link BasicChannelSemantics} to simplify creation of robust
  * {@link Channel} implementations. This class ensures that each transaction
  * implementation method is called only while the transaction is in the correct
- * state for that method, and only by the thread that created the transaction.
+ * state for that method, and only by the thread that created the transaction,
+ * or the thread it was handed to with {@link #detach()} and
+ * {@link #attach()}.
  * Nested calls to <code>begin()</code> and <code>close()</code> are supported
  * as long as they are balanced.
  * </p>
@@ -21,7 +28,27 @@ import com.google.common.base.Preconditions;
  * rest assured that those methods are called only after transaction state
  * preconditions have been properly met. <code>doBegin</code> and
  * <code>doClose</code> may also be implemented if there is work to be done at
- * those points.
+ * those points. <code>doPutAll</code> and the batch <code>doTake</code> fall
+ * back to the single event methods and may be overridden with native batch
+ * implementations. Channels that can commit in two phases implement
+ * <code>doPrepare</code>; <code>doCommit</code> and <code>doRollback</code>
+ * are then called in the OPEN or the PREPARED state.
+ * </p>
+ * <p>
+ * When the channel has an {@link EventExpiry}, the channel stores stamped
+ * copies of the events put, so the caller's events are not changed, and
+ * expired events are dropped from the results of <code>take</code>. Taken
+ * events are returned without the stamp. Dropped events remain taken by the transaction, so they
+ * leave the channel on commit and come back on rollback like any other take.
+ * If a transaction fills up with expired events, <code>take</code> returns
+ * nothing so that the caller commits them away.
+ * </p>
+ * <p>
+ * Every transaction records when it was begun and how many events and body
+ * bytes it has put and taken, for the {@link TransactionMonitor} of its
+ * channel. When the channel has a transaction timeout, each call from the
+ * owning thread briefly marks the transaction busy so that the monitor can
+ * roll it back in between without racing the owner.
  * </p>
  * <p>
  * All InterruptedException exceptions thrown from the implementations of the
@@ -57,8 +84,58 @@ import com.google.common.base.Preconditions;
  *
  */
 public abstract class BasicTransactionSemantics implements Transaction {
-	private State state;
-	private long initialThreadId;
+
+	/**
+	 * activity的取值：空闲、所属线程正在调用、监控线程正在检查、已被监控线程回滚
+	 */
+	private static final int IDLE = 0;
+	private static final int BUSY = 1;
+	private static final int CLAIMED = 2;
+	private static final int ABANDONED = 3;
+
+	/**
+	 * initialThreadId的取值：事务已交出，尚无线程attach
+	 */
+	private static final long DETACHED = -1L;
+
+	private volatile State state;
+	/**
+	 * volatile：交出事务的线程在之前的所有写入，对attach的线程可见
+	 */
+	private volatile long initialThreadId;
+	/**
+	 * 所属线程，交出后为null
+	 */
+	private volatile Thread owner;
+
+	/**
+	 * begin的时间（毫秒），未打开时为0，由监控线程读取
+	 */
+	private volatile long openedAt = 0L;
+	/**
+	 * 本事务put和take的Event数及body字节数，只由所属线程写入，监控读到的可能稍旧
+	 */
+	private long heldEvents;
+	private long heldBytes;
+	/**
+	 * 由BasicChannelSemantics在交出新事务时设置，Channel配置了事务超时时为true
+	 */
+	boolean guarded;
+	private final AtomicInteger activity = new AtomicInteger(IDLE);
+
+	/**
+	 * 由BasicChannelSemantics在交出事务时设置，null表示不过期
+	 */
+	EventExpiry expiry;
+	ChannelCounter expiryCounter;
+	/**
+	 * 交出事务的Channel，交接时更新它的线程绑定
+	 */
+	BasicChannelSemantics channel;
+	/**
+	 * 本事务take时丢弃的过期Event数量，commit后计入监控
+	 */
+	private int expired;
 
 	protected void doBegin() throws InterruptedException {
 	}
@@ -67,6 +144,78 @@ public abstract class BasicTransactionSemantics implements Transaction {
 
 	protected abstract Event doTake() throws InterruptedException;
 
+	/**
+	 * <p>
+	 * Puts a batch of events. The default implementation calls
+	 * <code>doPut</code> for each event.
+	 * </p>
+	 *
+	 * @param events
+	 *            non-null events
+	 * @throws InterruptedException
+	 */
+	protected void doPutAll(List<Event> events) throws InterruptedException {
+		for (Event event : events) {
+			this.doPut(event);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Puts the event unless it is known not to fit in the transaction or the
+	 * channel. Must not throw for a full channel. The default implementation
+	 * calls <code>doPut</code>.
+	 * </p>
+	 *
+	 * @param event
+	 *            a non-null event
+	 * @return false if the event was not put
+	 * @throws InterruptedException
+	 */
+	protected boolean doTryPut(Event event) throws InterruptedException {
+		this.doPut(event);
+		return true;
+	}
+
+	/**
+	 * <p>
+	 * Takes up to <code>max</code> events into <code>into</code>. The default
+	 * implementation calls <code>doTake</code> until it returns null, so it
+	 * may wait once more after the last event; implementations should only
+	 * wait for the first event.
+	 * </p>
+	 *
+	 * @param max
+	 * @param into
+	 * @return the number of events taken
+	 * @throws InterruptedException
+	 */
+	protected int doTake(int max, List<Event> into) throws InterruptedException {
+		int taken = 0;
+		while (taken < max) {
+			Event event = this.doTake();
+			if (event == null) {
+				break;
+			}
+			into.add(event);
+			taken++;
+		}
+		return taken;
+	}
+
+	/**
+	 * <p>
+	 * Reserves what the commit needs, see {@link Transaction#prepare()}. The
+	 * default implementation does not support two-phase commit; subclasses
+	 * that implement it also override {@link #supportsPrepare()}.
+	 * </p>
+	 *
+	 * @throws InterruptedException
+	 */
+	protected void doPrepare() throws InterruptedException {
+		throw new UnsupportedOperationException(this.getClass().getName() + " cannot commit in two phases");
+	}
+
 	protected abstract void doCommit() throws InterruptedException;
 
 	protected abstract void doRollback() throws InterruptedException;
@@ -74,6 +223,22 @@ public abstract class BasicTransactionSemantics implements Transaction {
 	protected void doClose() {
 	}
 
+	/**
+	 * <p>
+	 * Called when the closed transaction is about to be reused by a channel
+	 * annotated with {@link com.flume.core.annotations.Recyclable}. The
+	 * implementation must drop all state of the previous transaction, and
+	 * return false if the transaction cannot serve the channel any more, e.g.
+	 * because the channel has been reconfigured; a new transaction is created
+	 * then. The default implementation does not support reuse.
+	 * </p>
+	 *
+	 * @return true if the transaction may be reused
+	 */
+	protected boolean doReset() {
+		return false;
+	}
+
 	/**
 	 * 
 	 * 构造函数
@@ -82,6 +247,87 @@ public abstract class BasicTransactionSemantics implements Transaction {
 		// TODO 初始化当前类属性
 		this.state = State.NEW;
 		this.initialThreadId = Thread.currentThread().getId();
+		this.owner = Thread.currentThread();
+	}
+
+	/**
+	 * 所属线程进入一次调用；事务已被监控线程回滚时返回false
+	 */
+	private boolean enter() {
+		if (!this.guarded) {
+			return true;
+		}
+		for (;;) {
+			int current = this.activity.get();
+			if (current == IDLE) {
+				if (this.activity.compareAndSet(IDLE, BUSY)) {
+					return true;
+				}
+			} else if (current == ABANDONED) {
+				return false;
+			} else {
+				// 监控线程正在检查或回滚，很快结束
+				Thread.yield();
+			}
+		}
+	}
+
+	private void exit() {
+		if (this.guarded) {
+			this.activity.lazySet(IDLE);
+		}
+	}
+
+	private void enterOrFail(String operation) {
+		if (!this.enter()) {
+			throw new ChannelException(operation + "() called on a transaction that was rolled back because it was"
+					+ " open for longer than the transaction timeout");
+		}
+	}
+
+	private void hold(Event event) {
+		this.heldEvents++;
+		byte[] body = event.getBody();
+		if (body != null) {
+			this.heldBytes += body.length;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Rolls the transaction back on behalf of its owner, unless the owner is
+	 * inside a call or the transaction has been completed or begun again
+	 * since it was seen open at <code>openedAt</code>. Called by the
+	 * {@link TransactionMonitor}.
+	 * </p>
+	 * <p>
+	 * Prepared and detached transactions are never rolled back here: their
+	 * owner is committing several channels together, and rolling back one of
+	 * them behind its back would leave the events in the others only.
+	 * </p>
+	 *
+	 * @param openedAt
+	 * @return true if the transaction was rolled back
+	 */
+	final boolean abandon(long openedAt) {
+		if (!this.activity.compareAndSet(IDLE, CLAIMED)) {
+			return false;
+		}
+		if (this.state != State.OPEN || this.initialThreadId == DETACHED || this.openedAt != openedAt) {
+			this.activity.set(IDLE);
+			return false;
+		}
+		try {
+			this.doRollback();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.state = State.COMPLETED;
+			this.openedAt = 0L;
+			this.activity.set(ABANDONED);
+		}
+		return true;
 	}
 
 	/**
@@ -96,15 +342,60 @@ public abstract class BasicTransactionSemantics implements Transaction {
 	protected void put(Event event) {
 		Preconditions.checkState(Thread.currentThread().getId() == this.initialThreadId,
 				"put() called from different thread than getTransaction()!");
-		Preconditions.checkState(this.state.equals(State.OPEN), "put() called when transaction is %s!", state);
-		Preconditions.checkArgument(event != null, "put() called with null event!");
-
+		this.enterOrFail("put");
 		try {
+			Preconditions.checkState(this.state.equals(State.OPEN), "put() called when transaction is %s!", state);
+			Preconditions.checkArgument(event != null, "put() called with null event!");
+
+			EventExpiry expiry = this.expiry;
+			if (expiry != null) {
+				event = expiry.stamp(event, System.currentTimeMillis());
+			}
 			this.doPut(event);
+			this.hold(event);
 		} catch (InterruptedException e) {
 			// TODO: handle exception
 			Thread.currentThread().interrupt();
 			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
+		}
+	}
+
+	/**
+	 * <p>
+	 * The method to which {@link BasicChannelSemantics} delegates calls to
+	 * <code>tryPut</code>.
+	 * </p>
+	 *
+	 * @param event
+	 * @return false if the event was not put because there is no room for it
+	 */
+	protected boolean tryPut(Event event) {
+		if (Thread.currentThread().getId() != this.initialThreadId) {
+			throw new IllegalStateException("tryPut() called from different thread than getTransaction()!");
+		}
+		this.enterOrFail("tryPut");
+		try {
+			if (this.state != State.OPEN) {
+				throw new IllegalStateException("tryPut() called when transaction is " + this.state + "!");
+			}
+			Preconditions.checkArgument(event != null, "tryPut() called with null event!");
+
+			EventExpiry expiry = this.expiry;
+			if (expiry != null) {
+				event = expiry.stamp(event, System.currentTimeMillis());
+			}
+			if (!this.doTryPut(event)) {
+				return false;
+			}
+			this.hold(event);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
 		}
 	}
 
@@ -120,17 +411,177 @@ public abstract class BasicTransactionSemantics implements Transaction {
 	protected Event take() {
 		Preconditions.checkState(Thread.currentThread().getId() == this.initialThreadId,
 				"take() called from different thread than getTransaction()!");
-		Preconditions.checkState(state.equals(State.OPEN), "take() called when transaction is %s!", state);
-
+		this.enterOrFail("take");
 		try {
-			return this.doTake();
+			Preconditions.checkState(state.equals(State.OPEN), "take() called when transaction is %s!", state);
+
+			Event event = this.doTake();
+			EventExpiry expiry = this.expiry;
+			if (expiry != null) {
+				int dropped = 0;
+				long now = System.currentTimeMillis();
+				try {
+					while (event != null && expiry.isExpired(event, now)) {
+						dropped++;
+						event = this.doTake();
+					}
+				} catch (ChannelException e) {
+					if (dropped == 0) {
+						throw e;
+					}
+					// 事务已被过期Event占满，返回null让调用者提交丢弃
+					event = null;
+				} finally {
+					this.expired += dropped;
+				}
+			}
+			if (event != null) {
+				this.hold(event);
+				// ttl关闭前存入的Event也可能带有入队时间
+				event = EventExpiry.unstamp(event);
+			}
+			return event;
 		} catch (InterruptedException e) {
 			// TODO: handle exception
 			Thread.currentThread().interrupt();
 			return null;
+		} finally {
+			this.exit();
+		}
+	}
+
+	/**
+	 * <p>
+	 * The method to which {@link BasicChannelSemantics} delegates calls to
+	 * <code>putAll</code>. The thread and state are checked once for the
+	 * whole batch.
+	 * </p>
+	 *
+	 * @param events
+	 */
+	protected void putAll(List<Event> events) {
+		if (Thread.currentThread().getId() != this.initialThreadId) {
+			throw new IllegalStateException("putAll() called from different thread than getTransaction()!");
+		}
+		this.enterOrFail("putAll");
+		try {
+			if (this.state != State.OPEN) {
+				throw new IllegalStateException("putAll() called when transaction is " + this.state + "!");
+			}
+			Preconditions.checkArgument(events != null, "putAll() called with null events!");
+			for (int i = 0, n = events.size(); i < n; i++) {
+				if (events.get(i) == null) {
+					throw new IllegalArgumentException("putAll() called with null event!");
+				}
+			}
+
+			EventExpiry expiry = this.expiry;
+			if (expiry != null) {
+				long now = System.currentTimeMillis();
+				List<Event> stamped = new ArrayList<>(events.size());
+				for (int i = 0, n = events.size(); i < n; i++) {
+					stamped.add(expiry.stamp(events.get(i), now));
+				}
+				events = stamped;
+			}
+
+			this.doPutAll(events);
+			for (int i = 0, n = events.size(); i < n; i++) {
+				this.hold(events.get(i));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
 		}
 	}
 
+	/**
+	 * <p>
+	 * The method to which {@link BasicChannelSemantics} delegates calls to
+	 * <code>take(int, List)</code>. The thread and state are checked once for
+	 * the whole batch.
+	 * </p>
+	 *
+	 * @param max
+	 * @param into
+	 * @return the number of events taken
+	 */
+	protected int take(int max, List<Event> into) {
+		if (Thread.currentThread().getId() != this.initialThreadId) {
+			throw new IllegalStateException("take() called from different thread than getTransaction()!");
+		}
+		this.enterOrFail("take");
+		int before = into == null ? 0 : into.size();
+		try {
+			if (this.state != State.OPEN) {
+				throw new IllegalStateException("take() called when transaction is " + this.state + "!");
+			}
+			Preconditions.checkArgument(into != null, "take() called with null list!");
+			if (max <= 0) {
+				return 0;
+			}
+
+			EventExpiry expiry = this.expiry;
+			if (expiry == null) {
+				return this.doTake(max, into);
+			}
+			// 整批丢弃过期Event，只要还在丢弃就继续取，直到取到未过期的或事务被占满
+			int droppedTotal = 0;
+			for (;;) {
+				try {
+					this.doTake(max, into);
+				} catch (ChannelException e) {
+					if (droppedTotal == 0) {
+						throw e;
+					}
+					return 0;
+				}
+				int dropped = this.dropExpired(expiry, into, before);
+				this.expired += dropped;
+				droppedTotal += dropped;
+				if (into.size() > before || dropped == 0) {
+					return into.size() - before;
+				}
+			}
+		} catch (InterruptedException e) {
+			// 与take()一样恢复中断状态，已取出的Event仍留在into中
+			Thread.currentThread().interrupt();
+			return into.size() - before;
+		} finally {
+			if (into != null) {
+				for (int i = before, n = into.size(); i < n; i++) {
+					Event event = into.get(i);
+					this.hold(event);
+					into.set(i, EventExpiry.unstamp(event));
+				}
+			}
+			this.exit();
+		}
+	}
+
+	/**
+	 * 从into的start位置起移除过期Event，保持其余Event的顺序
+	 *
+	 * @return the number of events removed
+	 */
+	private int dropExpired(EventExpiry expiry, List<Event> into, int start) {
+		long now = System.currentTimeMillis();
+		int kept = start;
+		int size = into.size();
+		for (int i = start; i < size; i++) {
+			Event event = into.get(i);
+			if (!expiry.isExpired(event, now)) {
+				into.set(kept++, event);
+			}
+		}
+		for (int i = size - 1; i >= kept; i--) {
+			into.remove(i);
+		}
+		return size - kept;
+	}
+
 	@Override
 	public void begin() {
 		// TODO Auto-generated method stub
@@ -145,7 +596,30 @@ public abstract class BasicTransactionSemantics implements Transaction {
 			Thread.currentThread().interrupt();
 			throw new ChannelException(e.toString(), e);
 		}
+		this.expired = 0;
+		this.heldEvents = 0L;
+		this.heldBytes = 0L;
+		this.activity.set(IDLE);
 		this.state = State.OPEN;
+		this.openedAt = System.currentTimeMillis();
+	}
+
+	@Override
+	public void prepare() {
+		Preconditions.checkState(Thread.currentThread().getId() == this.initialThreadId,
+				"prepare() called from different thread than getTransaction()!");
+		this.enterOrFail("prepare");
+		try {
+			Preconditions.checkState(this.state == State.OPEN, "prepare() called when transaction is %s!",
+					this.state);
+			this.doPrepare();
+			this.state = State.PREPARED;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
+		}
 	}
 
 	@Override
@@ -153,16 +627,23 @@ public abstract class BasicTransactionSemantics implements Transaction {
 		// TODO Auto-generated method stub
 		Preconditions.checkState(Thread.currentThread().getId() == initialThreadId,
 				"commit() called from different thread than getTransaction()!");
-		Preconditions.checkState(state.equals(State.OPEN), "commit() called when transaction is %s!", state);
-
+		this.enterOrFail("commit");
 		try {
+			Preconditions.checkState(state.equals(State.OPEN) || state.equals(State.PREPARED),
+					"commit() called when transaction is %s!", state);
 			this.doCommit();
+			this.state = State.COMPLETED;
+			this.openedAt = 0L;
 		} catch (InterruptedException e) {
 			// TODO: handle exception
 			Thread.currentThread().interrupt();
 			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
+		}
+		if (this.expired > 0 && this.expiryCounter != null) {
+			this.expiryCounter.addToEventExpiredCount(this.expired);
 		}
-		this.state = State.COMPLETED;
 	}
 
 	@Override
@@ -170,16 +651,23 @@ public abstract class BasicTransactionSemantics implements Transaction {
 		// TODO Auto-generated method stub
 		Preconditions.checkState(Thread.currentThread().getId() == initialThreadId,
 				"rollback() called from different thread than getTransaction()!");
-		Preconditions.checkState(state.equals(State.OPEN), "rollback() called when transaction is %s!", state);
-
-		this.state = State.COMPLETED;
-
+		if (!this.enter()) {
+			// 已被监控线程回滚
+			return;
+		}
 		try {
+			Preconditions.checkState(state.equals(State.OPEN) || state.equals(State.PREPARED),
+					"rollback() called when transaction is %s!", state);
+
+			this.state = State.COMPLETED;
+			this.openedAt = 0L;
 			this.doRollback();
 		} catch (InterruptedException e) {
 			// TODO: handle exception
 			Thread.currentThread().interrupt();
 			throw new ChannelException(e.toString(), e);
+		} finally {
+			this.exit();
 		}
 	}
 
@@ -195,6 +683,81 @@ public abstract class BasicTransactionSemantics implements Transaction {
 		this.doClose();
 	}
 
+	/**
+	 * <p>
+	 * Releases the transaction from the calling thread, which must own it.
+	 * The channel forgets it as the thread's transaction, so that the
+	 * thread's next <code>getTransaction</code> hands out a new one.
+	 * </p>
+	 */
+	@Override
+	public void detach() {
+		// 与监控线程的回滚互斥，交出之后的事务不再被回滚；已被回滚的事务照常交出，由接手的线程收到异常
+		boolean entered = this.enter();
+		try {
+			synchronized (this) {
+				Preconditions.checkState(Thread.currentThread().getId() == this.initialThreadId,
+						"detach() called from different thread than the owner of the transaction!");
+				Preconditions.checkState(this.state != State.CLOSED, "detach() called when transaction is %s!",
+						this.state);
+				this.owner = null;
+				this.initialThreadId = DETACHED;
+			}
+		} finally {
+			if (entered) {
+				this.exit();
+			}
+		}
+		if (this.channel != null) {
+			this.channel.unbind(this);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Takes over a detached transaction. It also becomes the calling
+	 * thread's transaction of the channel, so <code>put</code> and
+	 * <code>take</code> on the channel reach it; the thread must not have
+	 * another unclosed transaction on the same channel.
+	 * </p>
+	 */
+	@Override
+	public void attach() {
+		BasicChannelSemantics channel = this.channel;
+		if (channel != null) {
+			channel.checkCanBind(this);
+		}
+		synchronized (this) {
+			Preconditions.checkState(this.initialThreadId == DETACHED,
+					"attach() called on a transaction that is not detached, it is owned by thread %s",
+					this.initialThreadId);
+			this.initialThreadId = Thread.currentThread().getId();
+			this.owner = Thread.currentThread();
+		}
+		if (channel != null) {
+			channel.bind(this);
+		}
+	}
+
+	/**
+	 * Returns a closed transaction to the NEW state so the owning thread can
+	 * begin it again.
+	 *
+	 * @return false if the transaction cannot be reused
+	 */
+	final boolean recycle() {
+		if (this.state != State.CLOSED) {
+			throw new IllegalStateException("recycle() called when transaction is " + this.state + "!");
+		}
+		if (!this.doReset()) {
+			return false;
+		}
+		this.state = State.NEW;
+		this.initialThreadId = Thread.currentThread().getId();
+		this.owner = Thread.currentThread();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		// TODO Auto-generated method stub
@@ -229,7 +792,7 @@ public abstract class BasicTransactionSemantics implements Transaction {
 	 *
 	 */
 	protected static enum State {
-		NEW, OPEN, COMPLETED, CLOSED
+		NEW, OPEN, PREPARED, COMPLETED, CLOSED
 	}
 
 	/******************************** Get/Set方法 **************************************/
@@ -241,4 +804,34 @@ public abstract class BasicTransactionSemantics implements Transaction {
 	public State getState() {
 		return this.state;
 	}
+
+	/**
+	 * @return the thread the transaction belongs to
+	 */
+	Thread getOwner() {
+		return this.owner;
+	}
+
+	/**
+	 * @return the time the open transaction was begun in milliseconds, 0 if
+	 *         it is not open
+	 */
+	long getOpenedAt() {
+		return this.openedAt;
+	}
+
+	/**
+	 * @return the number of events put and taken by the open transaction
+	 */
+	long getHeldEvents() {
+		return this.heldEvents;
+	}
+
+	/**
+	 * @return the body bytes of the events put and taken by the open
+	 *         transaction
+	 */
+	long getHeldBytes() {
+		return this.heldBytes;
+	}
 }
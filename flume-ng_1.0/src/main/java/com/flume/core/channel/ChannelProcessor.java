@@ -1,9 +1,23 @@
 package com.flume.core.channel;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,16 +25,23 @@ import org.slf4j.LoggerFactory;
 import com.flume.configuration.Context;
 import com.flume.core.Channel;
 import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.ChannelRouting;
 import com.flume.core.ChannelSelector;
 import com.flume.core.Transaction;
 import com.flume.core.conf.Configurable;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.ChannelProcessorCounter;
 import com.flume.core.interceptor.Interceptor;
 import com.flume.core.interceptor.InterceptorBuilderFactory;
 import com.flume.core.interceptor.InterceptorChain;
 import com.flume.sdk.Event;
 import com.flume.sdk.FlumeException;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * 进行日志流的过滤和Channel的选择及调度
@@ -38,13 +59,116 @@ import com.google.common.collect.Lists;
  * 每个ChannelProcessor暴露操作将event推送如channel，如果在向required的channel写问event的时候出现任何错误都会抛出ChannelException
  * <p>
  * 每个ChannelProcessor实例都是通过ChannelSelector实例来进行配置，配置哪些channel是required，哪些channel是optional
+ * <p>
+ * When a batch goes to more than one required channel, the events reach
+ * them in two phases: each channel gets them in a transaction that is
+ * {@linkplain Transaction#prepare() prepared}, and only when all of them are
+ * prepared are they committed. A failing channel rolls back every required
+ * channel, so a retried batch is not duplicated into the channels that had
+ * accepted it. A single required channel is simply committed. Channels
+ * whose transactions do not {@linkplain Transaction#supportsPrepare()
+ * support} prepare are committed before the others, which keeps the write
+ * atomic as long as there is at most one of them. The prepared transactions
+ * are then committed together; they cannot fail for lack of capacity, so
+ * only an error such as a failed disk write can leave a batch in some of
+ * the required channels.
+ * <p>
+ * By default the required channels are written one after another. With
+ * <code>requiredChannelThreads</code> set, they are written on a pool of
+ * that many threads, the calling thread writing to the first channel
+ * itself. A pool thread prepares its transaction, waits for the calling
+ * thread to decide, and commits or rolls it back itself, so transactions
+ * stay with the thread that owns them and are reused by channels annotated
+ * with {@link com.flume.core.annotations.Recyclable}. The caller then waits
+ * for the slowest channel instead of the sum of all of them in both phases.
+ * Durable channels such as {@link com.flume.core.channel.file.FileChannel}
+ * force their log once when preparing and once more for the commit marker,
+ * and both flushes overlap across channels. A write no pool thread has
+ * started by the time the caller needs it is run on the calling thread. The
+ * exception thrown is the one of the first failing channel in selector
+ * order, as on the sequential path. Each pool thread gets its own copy of
+ * the events' headers, as channels may add headers on put.
+ * <p>
+ * Optional channels are written on the calling thread after the required
+ * ones, unless <code>optionalChannelQueueSize</code> is set. Each optional
+ * channel then gets a bounded hand-off queue drained by a background thread
+ * of its own, so a slow optional channel adds no latency to the source and
+ * does not hold up the other optional channels. When a queue is full the
+ * drop policy decides which events are lost: <code>newest</code> drops the
+ * events being handed off, <code>oldest</code> makes room by dropping the
+ * longest queued ones. Dropped events and events the optional channel
+ * refused are counted in a {@link ChannelProcessorCounter}.
+ * <p>
+ * Read parameters from context
+ * <li>requiredChannelThreads = type int, threads writing a batch to the
+ * required channels in parallel, 0 (the default) for sequential writes.
+ * <li>optionalChannelQueueSize = type int, events queued for each optional
+ * channel, 0 (the default) for writes on the calling thread.
+ * <li>optionalChannelDropPolicy = newest or oldest (default newest).
+ * <li>optionalChannelBatchSize = type int, the most events a background
+ * thread puts in one transaction (default 100).
+ * <li>failFastWhenFull = type boolean, fail a write at once with a
+ * {@link ChannelFullException} when the channel's
+ * {@linkplain Channel#remainingCapacity() remaining capacity} shows that the
+ * events do not fit, instead of waiting up to the channel's keep-alive for
+ * room at commit (default false).
  */
 public class ChannelProcessor implements Configurable {
 
 	private static final Logger LOG = LoggerFactory.getLogger(ChannelProcessor.class);
 
+	/**
+	 * optional channel后台线程等待Event的间隔，以及close时等待其写完的时间，单位：毫秒
+	 */
+	private static final long OPTIONAL_POLL_MILLIS = 500L;
+	private static final long OPTIONAL_STOP_MILLIS = 5000L;
+
 	private final ChannelSelector selector;
 	private final InterceptorChain interceptorChain;
+	/**
+	 * 每个Channel预先分配一个不带堆栈的ChannelFullException，容量不足时重复抛出
+	 */
+	private final ConcurrentMap<Channel, ChannelFullException> channelFullExceptions = new ConcurrentHashMap<>();
+	/**
+	 * 并行写入required channel的线程池，null表示依次写入
+	 */
+	private volatile ExecutorService fanoutExecutor;
+
+	/**
+	 * @Description optional channel交接队列已满时的丢弃策略
+	 */
+	public enum OptionalDropPolicy {
+		/**
+		 * 丢弃正在交接的Event
+		 */
+		NEWEST,
+		/**
+		 * 丢弃队列中等待最久的Event
+		 */
+		OLDEST
+	}
+
+	private volatile int optionalQueueSize = 0;
+	private volatile OptionalDropPolicy optionalDropPolicy = OptionalDropPolicy.NEWEST;
+	private volatile int optionalBatchSize = 100;
+	/**
+	 * 容量明显不足时直接失败，不等待Channel的keep-alive
+	 */
+	private volatile boolean failFastWhenFull = false;
+	/**
+	 * 每个optional channel的交接队列及后台线程，第一次写入时创建
+	 */
+	private final ConcurrentMap<Channel, OptionalDelivery> optionalDeliveries = new ConcurrentHashMap<>();
+	private volatile ChannelProcessorCounter counter;
+	/**
+	 * 每个调用线程复用的分组结果，processEventBatch返回前清空
+	 */
+	private final ThreadLocal<ChannelRouting> routing = new ThreadLocal<ChannelRouting>() {
+		@Override
+		protected ChannelRouting initialValue() {
+			return new ChannelRouting();
+		}
+	};
 
 	/**
 	 * 构造函数
@@ -69,12 +193,83 @@ public class ChannelProcessor implements Configurable {
 	 */
 	public void close() {
 		this.interceptorChain.close();
+		ExecutorService executor = this.fanoutExecutor;
+		this.fanoutExecutor = null;
+		if (executor != null) {
+			executor.shutdown();
+		}
+
+		this.optionalQueueSize = 0;
+		List<OptionalDelivery> deliveries = new ArrayList<>(this.optionalDeliveries.values());
+		this.optionalDeliveries.clear();
+		for (OptionalDelivery delivery : deliveries) {
+			delivery.stop();
+		}
+		for (OptionalDelivery delivery : deliveries) {
+			delivery.awaitStopped();
+		}
+		ChannelProcessorCounter counter = this.counter;
+		if (counter != null) {
+			counter.stop();
+		}
 	}
 
 	@Override
 	public void configure(Context context) {
 		// TODO Auto-generated method stub
 		this.configureInterceptors(context);
+
+		int threads = context.getInteger("requiredChannelThreads", 0);
+		Preconditions.checkArgument(threads >= 0, "requiredChannelThreads must not be negative");
+		ExecutorService previous = this.fanoutExecutor;
+		if (threads > 0) {
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactoryBuilder().setNameFormat("ChannelProcessor-FanOut-%d").setDaemon(true).build());
+			executor.allowCoreThreadTimeOut(true);
+			this.fanoutExecutor = executor;
+		} else {
+			this.fanoutExecutor = null;
+		}
+		if (previous != null) {
+			previous.shutdown();
+		}
+
+		int queueSize = context.getInteger("optionalChannelQueueSize", 0);
+		Preconditions.checkArgument(queueSize >= 0, "optionalChannelQueueSize must not be negative");
+		int batchSize = context.getInteger("optionalChannelBatchSize", 100);
+		Preconditions.checkArgument(batchSize > 0, "optionalChannelBatchSize must be positive");
+		String policyName = context.getString("optionalChannelDropPolicy", OptionalDropPolicy.NEWEST.name());
+		OptionalDropPolicy policy;
+		try {
+			policy = OptionalDropPolicy.valueOf(policyName.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown optionalChannelDropPolicy " + policyName, e);
+		}
+
+		if (queueSize > 0 && this.counter == null) {
+			List<String> names = new ArrayList<>();
+			for (Channel channel : this.selector.getAllChannels()) {
+				names.add(channel.getName());
+			}
+			ChannelProcessorCounter counter = new ChannelProcessorCounter(
+					"ChannelProcessor-" + Joiner.on('-').join(names));
+			counter.start();
+			this.counter = counter;
+		}
+		this.optionalDropPolicy = policy;
+		this.optionalBatchSize = batchSize;
+		this.failFastWhenFull = context.getBoolean("failFastWhenFull", false);
+		if (queueSize != this.optionalQueueSize) {
+			// 队列大小变化后重新创建交接队列，旧的后台线程写完已排队的Event后退出
+			this.optionalQueueSize = queueSize;
+			for (Channel channel : new ArrayList<>(this.optionalDeliveries.keySet())) {
+				OptionalDelivery delivery = this.optionalDeliveries.remove(channel);
+				if (delivery != null) {
+					delivery.stop();
+				}
+			}
+		}
 	}
 
 	/**
@@ -124,19 +319,55 @@ public class ChannelProcessor implements Configurable {
 		this.interceptorChain.setInterceptors(interceptors);
 	}
 
+	/**
+	 * @param channel
+	 * @return the preallocated, stackless exception reporting that the
+	 *         channel has no room
+	 */
+	private ChannelFullException channelFull(Channel channel) {
+		ChannelFullException exception = this.channelFullExceptions.get(channel);
+		if (exception == null) {
+			exception = new ChannelFullException("Channel " + channel.getName()
+					+ " is full, sinks are likely not keeping up with sources", false);
+			ChannelFullException existing = this.channelFullExceptions.putIfAbsent(channel, exception);
+			if (existing != null) {
+				exception = existing;
+			}
+		}
+		return exception;
+	}
+
+	/**
+	 * 在已开始的事务中写入Event；配置了failFastWhenFull时，放不下就直接抛出预先分配的异常，否则由commit等待容量
+	 */
+	private void putEvents(Channel channel, List<Event> events) {
+		if (this.failFastWhenFull) {
+			if (events.size() == 1) {
+				if (!channel.tryPut(events.get(0))) {
+					throw this.channelFull(channel);
+				}
+				return;
+			}
+			if (channel.remainingCapacity() < events.size()) {
+				throw this.channelFull(channel);
+			}
+		}
+		channel.putAll(events);
+	}
+
 	/**
 	 * 针对的List<Event>
 	 * <p>
-	 * Attempts to {@linkplain Channel#put(Event) put} the given events into
+	 * Attempts to {@linkplain Channel#putAll(List) put} the given events into
 	 * each configured channel. If any {@code required} channel throws a
 	 * {@link ChannelException}, that exception will be propagated(传播).
 	 * <p>
 	 * 当将event推入到每一个配置好的channel时，如果有任何一个required的channel抛出了ChannelException异常，则这个异常会传播
 	 * <p>
 	 * <p>
-	 * Note that if multiple channels are configured, some {@link Transaction}s
-	 * may have already been committed while others may be rolled back in the
-	 * case of an exception.
+	 * The required channels either all commit or all roll back, unless more
+	 * than one of them cannot {@linkplain Transaction#prepare() prepare}.
+	 * Optional channels are written afterwards, each on its own.
 	 *
 	 * @param events
 	 *            A list of events to put into the configured channels.
@@ -150,62 +381,52 @@ public class ChannelProcessor implements Configurable {
 		// 将event经过拦截器进行过滤
 		events = this.interceptorChain.intercept(events);
 
-		// required channels
-		Map<Channel, List<Event>> reqChannelQueue = new LinkedHashMap<>();
-		// optional channels
-		Map<Channel, List<Event>> optChannelQueue = new LinkedHashMap<>();
+		// 按Channel分组，每个线程复用自己的分组列表
+		ChannelRouting routing = this.routing.get();
+		try {
+			this.selector.route(events, routing);
 
-		//
-		for (Event event : events) {
-			List<Channel> reqChannels = this.selector.getRequiredChannels(event);
+			// Process required channels
+			// 使用到自定义事务处理，将每个required channel需要推送的event进行推送
+			this.putOnRequired(routing.getRequired());
 
-			for (Channel ch : reqChannels) {
-				List<Event> eventQueue = reqChannelQueue.get(ch);
-				if (eventQueue == null) {
-					eventQueue = new ArrayList<>();
-					reqChannelQueue.put(ch, eventQueue);
-				}
-				eventQueue.add(event);
-			}
-
-			List<Channel> optChannels = this.selector.getOptionalChannels(event);
+			// Process optional channels
+			// 使用到自定义事务处理，将每个optional channel需要推送的event进行推送
+			this.putOnOptional(routing.getOptional());
+		} finally {
+			routing.clear();
+		}
+	}
 
-			for (Channel ch : optChannels) {
-				List<Event> eventQueue = optChannelQueue.get(ch);
-				if (eventQueue == null) {
-					eventQueue = new ArrayList<>();
-					optChannelQueue.put(ch, eventQueue);
-				}
-				eventQueue.add(event);
+	/**
+	 * 写入optional channel：交给后台线程，或在调用线程中逐个channel写入，失败只记录日志
+	 */
+	private void putOnOptional(Map<Channel, List<Event>> optChannelQueue) {
+		if (this.optionalQueueSize > 0) {
+			for (Map.Entry<Channel, List<Event>> entry : optChannelQueue.entrySet()) {
+				this.handOffToOptional(entry.getKey(), entry.getValue());
 			}
+			return;
 		}
-
-		// Process required channels
-		// 使用到自定义事务处理，将reqChannelQueue中的每个channel需要推送的event进行推送
-		for (Channel reqChannel : reqChannelQueue.keySet()) {
-			Transaction tx = reqChannel.getTransaction();
+		for (Channel optChannel : optChannelQueue.keySet()) {
+			Transaction tx = optChannel.getTransaction();
 			Preconditions.checkNotNull(tx, "Transaction object must not be null");
 
 			try {
 				tx.begin();
 
-				List<Event> batchEvents = reqChannelQueue.get(reqChannel);
+				List<Event> batchEvents = optChannelQueue.get(optChannel);
 
-				for (Event event : batchEvents) {
-					reqChannel.put(event);
-				}
+				this.putEvents(optChannel, batchEvents);
 
 				tx.commit();
 			} catch (Throwable t) {
+				// TODO: handle exception
 				tx.rollback();
+				LOG.error("Unable to put batch on optional channel: " + optChannel, t);
 
 				if (t instanceof Error) {
-					LOG.error("Error while writing to required channel: " + reqChannel, t);
 					throw (Error) t;
-				} else if (t instanceof ChannelException) {
-					throw (ChannelException) t;
-				} else {
-					throw new ChannelException("Unable to put batch on required " + "channel: " + reqChannel, t);
 				}
 			} finally {
 				if (tx != null) {
@@ -213,30 +434,519 @@ public class ChannelProcessor implements Configurable {
 				}
 			}
 		}
+	}
 
-		// Process optional channels
-		// 使用到自定义事务处理，将optChannelQueue中的每个channel需要推送的event进行推送
-		for (Channel optChannel : optChannelQueue.keySet()) {
-			Transaction tx = optChannel.getTransaction();
-			Preconditions.checkNotNull(tx, "Transaction object must not be null");
+	/**
+	 * 一个required channel上已写入、等待第二阶段提交的事务
+	 */
+	private static final class PendingCommit {
+
+		private final Channel channel;
+		private final Transaction tx;
+		/**
+		 * prepare成功，提交不会因容量不足而失败
+		 */
+		private boolean prepared = false;
+		/**
+		 * 事务属于线程池中写入它的线程，由该线程按调用线程的决定提交或回滚；null表示属于调用线程
+		 */
+		private RequiredWrite writer = null;
+
+		private PendingCommit(Channel channel, Transaction tx) {
+			this.channel = channel;
+			this.tx = tx;
+		}
+
+		/**
+		 * 让线程池中的线程开始提交，不等待其结束
+		 */
+		private void startCommit() {
+			if (this.writer != null) {
+				this.writer.decide(true);
+			}
+		}
 
+		/**
+		 * 提交并关闭事务，提交失败时事务已回滚并关闭
+		 *
+		 * @return null, or the failure of the commit
+		 */
+		private Throwable commit() {
+			if (this.writer != null) {
+				this.writer.decide(true);
+				return this.writer.awaitCompleted();
+			}
+			return this.commitOwned();
+		}
+
+		/**
+		 * 在事务所属的线程中提交并关闭
+		 */
+		private Throwable commitOwned() {
 			try {
-				tx.begin();
+				this.tx.commit();
+			} catch (Throwable t) {
+				this.rollbackOwned();
+				return t;
+			}
+			this.tx.close();
+			return null;
+		}
 
-				List<Event> batchEvents = optChannelQueue.get(optChannel);
+		/**
+		 * 回滚并关闭事务，回滚失败只记录日志
+		 */
+		private void rollback() {
+			if (this.writer == null) {
+				this.rollbackOwned();
+				return;
+			}
+			this.writer.decide(false);
+			Throwable failure = this.writer.awaitCompleted();
+			if (failure != null) {
+				LOG.warn("Unable to roll back transaction on required channel: " + this.channel, failure);
+			}
+		}
 
-				for (Event event : batchEvents) {
-					optChannel.put(event);
+		/**
+		 * 在事务所属的线程中回滚并关闭
+		 */
+		private void rollbackOwned() {
+			try {
+				this.tx.rollback();
+				this.tx.close();
+			} catch (Throwable t) {
+				LOG.warn("Unable to roll back transaction on required channel: " + this.channel, t);
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * Writes the events to their required channels in two phases. First
+	 * every channel gets the events in a transaction that is then prepared,
+	 * so it holds the capacity for them. If any channel fails, all of the
+	 * transactions are rolled back and the failure of the first failing
+	 * channel in selector order is thrown. Otherwise they are all committed.
+	 * A batch for a single required channel skips the prepare, so a durable
+	 * channel forces its log once per batch rather than twice.
+	 * </p>
+	 * <p>
+	 * Channels whose transactions cannot be prepared are committed first in
+	 * the second phase, so that the others can still be rolled back if such
+	 * a commit fails. With at most one of them the write stays atomic.
+	 * </p>
+	 */
+	private void putOnRequired(Map<Channel, List<Event>> reqChannelQueue) {
+		if (reqChannelQueue.isEmpty()) {
+			return;
+		}
+		ExecutorService executor = this.fanoutExecutor;
+		List<PendingCommit> pending;
+		if (executor == null || reqChannelQueue.size() < 2) {
+			pending = new ArrayList<>(reqChannelQueue.size());
+			// 只有一个required channel时没有需要保持原子的其它channel，直接提交
+			boolean twoPhase = reqChannelQueue.size() > 1;
+			boolean prepared = false;
+			try {
+				for (Map.Entry<Channel, List<Event>> entry : reqChannelQueue.entrySet()) {
+					pending.add(this.prepareOnRequired(entry.getKey(), entry.getValue(), twoPhase));
 				}
+				prepared = true;
+			} finally {
+				if (!prepared) {
+					abort(pending, 0);
+				}
+			}
+		} else {
+			pending = this.prepareOnRequiredInParallel(executor, reqChannelQueue);
+		}
+		this.commitPending(pending);
+	}
 
-				tx.commit();
+	/**
+	 * 第一阶段：在一个事务内把Event写入一个required channel，twoPhase且支持时prepare，失败时回滚并抛出
+	 */
+	private PendingCommit prepareOnRequired(Channel reqChannel, List<Event> events, boolean twoPhase) {
+		Transaction tx = reqChannel.getTransaction();
+		Preconditions.checkNotNull(tx, "Transaction object must not be null");
+
+		try {
+			tx.begin();
+
+			this.putEvents(reqChannel, events);
+
+			PendingCommit pending = new PendingCommit(reqChannel, tx);
+			// 不支持两阶段提交的事务在第二阶段中最先提交
+			if (twoPhase && tx.supportsPrepare()) {
+				tx.prepare();
+				pending.prepared = true;
+			}
+			return pending;
+		} catch (Throwable t) {
+			tx.rollback();
+			tx.close();
+			throw propagate(reqChannel, t);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Runs the first phase for all required channels at once: the first
+	 * channel on the calling thread, the others on the fan-out pool, whose
+	 * threads keep their transactions for the second phase. Waits for all of
+	 * them, even when interrupted, since their transactions must be completed
+	 * either way.
+	 * </p>
+	 */
+	private List<PendingCommit> prepareOnRequiredInParallel(ExecutorService executor,
+			Map<Channel, List<Event>> reqChannelQueue) {
+		Iterator<Map.Entry<Channel, List<Event>>> entries = reqChannelQueue.entrySet().iterator();
+		Map.Entry<Channel, List<Event>> first = entries.next();
+
+		List<RequiredWrite> writes = new ArrayList<>(reqChannelQueue.size() - 1);
+		while (entries.hasNext()) {
+			Map.Entry<Channel, List<Event>> entry = entries.next();
+			RequiredWrite write = new RequiredWrite(entry.getKey(), copyHeaders(entry.getValue()));
+			try {
+				executor.execute(write);
+			} catch (RejectedExecutionException e) {
+				// 线程池已在重新配置或关闭时停止，由调用线程写入
+			}
+			writes.add(write);
+		}
+
+		List<PendingCommit> pending = new ArrayList<>(reqChannelQueue.size());
+		Throwable failure = null;
+		try {
+			pending.add(this.prepareOnRequired(first.getKey(), first.getValue(), true));
+		} catch (Throwable t) {
+			failure = t;
+		}
+
+		for (RequiredWrite write : writes) {
+			PendingCommit result = write.awaitPrepared();
+			if (result != null) {
+				pending.add(result);
+			} else if (failure == null) {
+				failure = write.failure;
+			}
+		}
+
+		if (failure != null) {
+			abort(pending, 0);
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			} else if (failure instanceof ChannelException) {
+				throw (ChannelException) failure;
+			}
+			throw new ChannelException("Unable to put events on required channels", failure);
+		}
+		return pending;
+	}
+
+	/**
+	 * <p>
+	 * Writes the events to one required channel on a thread of the fan-out
+	 * pool. The thread prepares the transaction, waits for the decision of
+	 * the calling thread and then commits or rolls back itself, so the
+	 * transaction stays with the thread that owns it. A write that no pool
+	 * thread has started when the calling thread needs it is run by the
+	 * calling thread, so a batch is not held up by pool threads that all wait
+	 * for decisions.
+	 * </p>
+	 */
+	private final class RequiredWrite implements Runnable {
+
+		private final Channel channel;
+		private final List<Event> events;
+		/**
+		 * 线程池线程或调用线程先抢到的一方执行第一阶段
+		 */
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		private final CountDownLatch prepared = new CountDownLatch(1);
+		private final CountDownLatch decided = new CountDownLatch(1);
+		private final CountDownLatch completed = new CountDownLatch(1);
+		private volatile boolean commit = false;
+		/**
+		 * 第一阶段的结果，失败时为null
+		 */
+		private volatile PendingCommit pending;
+		private volatile Throwable failure;
+
+		private RequiredWrite(Channel channel, List<Event> events) {
+			this.channel = channel;
+			this.events = events;
+		}
+
+		@Override
+		public void run() {
+			if (!this.claimed.compareAndSet(false, true)) {
+				return;
+			}
+			PendingCommit pending;
+			try {
+				pending = prepareOnRequired(this.channel, this.events, true);
 			} catch (Throwable t) {
-				// TODO: handle exception
-				tx.rollback();
-				LOG.error("Unable to put batch on optional channel: " + optChannel, t);
+				this.failure = t;
+				this.completed.countDown();
+				this.prepared.countDown();
+				return;
+			}
+			pending.writer = this;
+			this.pending = pending;
+			this.prepared.countDown();
 
-				if (t instanceof Error) {
-					throw (Error) t;
+			Uninterruptibles.awaitUninterruptibly(this.decided);
+			if (this.commit) {
+				this.failure = pending.commitOwned();
+			} else {
+				pending.rollbackOwned();
+			}
+			this.completed.countDown();
+		}
+
+		/**
+		 * 调用线程等待第一阶段结束；尚无线程池线程开始时由调用线程执行，事务属于调用线程
+		 *
+		 * @return the prepared write, or null if it failed with {@link #failure}
+		 */
+		private PendingCommit awaitPrepared() {
+			if (this.claimed.compareAndSet(false, true)) {
+				try {
+					return prepareOnRequired(this.channel, this.events, true);
+				} catch (Throwable t) {
+					this.failure = t;
+					return null;
+				}
+			}
+			Uninterruptibles.awaitUninterruptibly(this.prepared);
+			return this.pending;
+		}
+
+		private void decide(boolean commit) {
+			if (this.decided.getCount() > 0) {
+				this.commit = commit;
+				this.decided.countDown();
+			}
+		}
+
+		/**
+		 * @return null, or the failure of the commit or rollback
+		 */
+		private Throwable awaitCompleted() {
+			Uninterruptibles.awaitUninterruptibly(this.completed);
+			return this.failure;
+		}
+	}
+
+	/**
+	 * <p>
+	 * The second phase. Transactions that are not prepared are committed
+	 * first, one after another, and a failure rolls back all that remain.
+	 * Prepared transactions cannot fail for lack of capacity and are
+	 * committed at the same time, each on the thread that owns it; if one of
+	 * them fails for another reason, such as an I/O error, the others may
+	 * have committed already.
+	 * </p>
+	 */
+	private void commitPending(List<PendingCommit> pending) {
+		List<PendingCommit> ordered = new ArrayList<>(pending.size());
+		for (PendingCommit commit : pending) {
+			if (!commit.prepared) {
+				ordered.add(commit);
+			}
+		}
+		int unprepared = ordered.size();
+		for (PendingCommit commit : pending) {
+			if (commit.prepared) {
+				ordered.add(commit);
+			}
+		}
+
+		for (int i = 0; i < unprepared; i++) {
+			PendingCommit commit = ordered.get(i);
+			Throwable failure = commit.commit();
+			if (failure != null) {
+				if (i > 0) {
+					LOG.warn("Commit on required channel " + commit.channel + " failed after " + i
+							+ " other required channels committed the same events");
+				}
+				abort(ordered, i + 1);
+				throw propagate(commit.channel, failure);
+			}
+		}
+
+		for (int i = unprepared; i < ordered.size(); i++) {
+			ordered.get(i).startCommit();
+		}
+		Throwable failure = null;
+		PendingCommit failed = null;
+		int committed = unprepared;
+		for (int i = unprepared; i < ordered.size(); i++) {
+			PendingCommit commit = ordered.get(i);
+			Throwable t = commit.commit();
+			if (t == null) {
+				committed++;
+			} else if (failure == null) {
+				failure = t;
+				failed = commit;
+			}
+		}
+		if (failure != null) {
+			if (committed > 0) {
+				LOG.warn("Commit on required channel " + failed.channel + " failed after " + committed
+						+ " other required channels committed the same events");
+			}
+			throw propagate(failed.channel, failure);
+		}
+	}
+
+	/**
+	 * 回滚并关闭pending中从from开始的事务，回滚失败只记录日志
+	 */
+	private static void abort(List<PendingCommit> pending, int from) {
+		for (int i = from; i < pending.size(); i++) {
+			pending.get(i).rollback();
+		}
+	}
+
+	/**
+	 * 与依次写入时的处理一致：Error和ChannelException原样抛出，其它异常包装为ChannelException
+	 */
+	private static ChannelException propagate(Channel reqChannel, Throwable t) {
+		if (t instanceof Error) {
+			LOG.error("Error while writing to required channel: " + reqChannel, t);
+			throw (Error) t;
+		} else if (t instanceof ChannelException) {
+			return (ChannelException) t;
+		}
+		return new ChannelException("Unable to put events on required channel: " + reqChannel, t);
+	}
+
+	/**
+	 * 把Event交给optional channel的后台线程，交接队列满时按丢弃策略丢弃，不会阻塞
+	 */
+	private void handOffToOptional(Channel optChannel, List<Event> events) {
+		OptionalDelivery delivery = this.optionalDeliveries.get(optChannel);
+		if (delivery == null) {
+			delivery = new OptionalDelivery(optChannel, this.optionalQueueSize);
+			OptionalDelivery existing = this.optionalDeliveries.putIfAbsent(optChannel, delivery);
+			if (existing != null) {
+				delivery = existing;
+			} else {
+				delivery.thread.start();
+				if (this.optionalQueueSize == 0) {
+					// 与close并发，不再保留新建的后台线程
+					this.optionalDeliveries.remove(optChannel, delivery);
+					delivery.stop();
+				}
+			}
+		}
+		delivery.offer(copyHeaders(events), this.optionalDropPolicy);
+	}
+
+	/**
+	 * <p>
+	 * The hand-off queue of one optional channel and the thread draining it.
+	 * The thread puts up to <code>optionalChannelBatchSize</code> queued
+	 * events per transaction. Events the channel refuses are logged and
+	 * lost, as on the synchronous path. After {@link #stop()} the thread
+	 * writes what is still queued and exits.
+	 * </p>
+	 */
+	private final class OptionalDelivery implements Runnable {
+
+		private final Channel channel;
+		private final BlockingQueue<Event> queue;
+		private final Thread thread;
+		private volatile boolean stopped = false;
+		/**
+		 * 正在丢弃Event，只在开始丢弃时记录一次日志
+		 */
+		private volatile boolean dropping = false;
+
+		private OptionalDelivery(Channel channel, int capacity) {
+			this.channel = channel;
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.thread = new Thread(this, "ChannelProcessor-Optional-" + channel.getName());
+			this.thread.setDaemon(true);
+		}
+
+		private void offer(List<Event> events, OptionalDropPolicy policy) {
+			int queued = 0;
+			int dropped = 0;
+			for (int i = 0, n = events.size(); i < n; i++) {
+				Event event = events.get(i);
+				if (this.queue.offer(event)) {
+					queued++;
+				} else if (policy == OptionalDropPolicy.NEWEST) {
+					dropped++;
+				} else {
+					// 后台线程同时在取，腾出位置前可能已经放得下
+					do {
+						if (this.queue.poll() != null) {
+							queued--;
+							dropped++;
+						}
+					} while (!this.queue.offer(event));
+					queued++;
+				}
+			}
+
+			ChannelProcessorCounter counter = ChannelProcessor.this.counter;
+			counter.addToOptionalQueueSize(queued);
+			if (dropped > 0) {
+				counter.addToOptionalEventDroppedCount(dropped);
+				if (!this.dropping) {
+					this.dropping = true;
+					LOG.warn("Hand-off queue of optional channel " + this.channel + " is full, dropping the "
+							+ policy.name().toLowerCase() + " events");
+				}
+			} else if (this.dropping) {
+				this.dropping = false;
+			}
+		}
+
+		@Override
+		public void run() {
+			List<Event> batch = new ArrayList<>();
+			while (!this.stopped || !this.queue.isEmpty()) {
+				try {
+					Event first = this.queue.poll(OPTIONAL_POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				this.queue.drainTo(batch, optionalBatchSize - 1);
+				ChannelProcessor.this.counter.addToOptionalQueueSize(-batch.size());
+				this.deliver(batch);
+				batch.clear();
+			}
+		}
+
+		private void deliver(List<Event> batch) {
+			ChannelProcessorCounter counter = ChannelProcessor.this.counter;
+			Transaction tx = null;
+			try {
+				tx = this.channel.getTransaction();
+				tx.begin();
+				this.channel.putAll(batch);
+				tx.commit();
+				counter.addToOptionalEventDeliveredCount(batch.size());
+			} catch (Throwable t) {
+				counter.addToOptionalEventFailedCount(batch.size());
+				LOG.error("Unable to put batch on optional channel: " + this.channel, t);
+				if (tx != null) {
+					try {
+						tx.rollback();
+					} catch (Throwable rollbackFailure) {
+						LOG.warn("Unable to roll back transaction on optional channel: " + this.channel,
+								rollbackFailure);
+					}
 				}
 			} finally {
 				if (tx != null) {
@@ -244,6 +954,35 @@ public class ChannelProcessor implements Configurable {
 				}
 			}
 		}
+
+		private void stop() {
+			this.stopped = true;
+		}
+
+		private void awaitStopped() {
+			try {
+				this.thread.join(OPTIONAL_STOP_MILLIS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.thread.isAlive()) {
+				LOG.warn("Optional channel " + this.channel + " still has " + this.queue.size()
+						+ " events to write after " + OPTIONAL_STOP_MILLIS + " ms, leaving them to the background thread");
+			}
+		}
+	}
+
+	/**
+	 * @return the events with their own header maps, sharing the bodies
+	 */
+	private static List<Event> copyHeaders(List<Event> events) {
+		List<Event> copies = new ArrayList<>(events.size());
+		for (Event event : events) {
+			Map<String, String> headers = event.getHeaders();
+			copies.add(EventBuilder.withBody(event.getBody(),
+					headers == null ? new HashMap<String, String>() : new HashMap<String, String>(headers)));
+		}
+		return copies;
 	}
 
 	/**
@@ -254,9 +993,9 @@ public class ChannelProcessor implements Configurable {
 	 * {@link ChannelException}, that exception will be propagated.
 	 * <p>
 	 * <p>
-	 * Note that if multiple channels are configured, some {@link Transaction}s
-	 * may have already been committed while others may be rolled back in the
-	 * case of an exception.
+	 * The required channels either all commit or all roll back, unless more
+	 * than one of them cannot {@linkplain Transaction#prepare() prepare}.
+	 * Optional channels are written afterwards, each on its own.
 	 *
 	 * @param event
 	 *            The event to put into the configured channels.
@@ -272,43 +1011,28 @@ public class ChannelProcessor implements Configurable {
 
 		// Process required channels
 		List<Channel> reqChannels = this.selector.getRequiredChannels(event);
-
+		Map<Channel, List<Event>> reqChannelQueue = new LinkedHashMap<>();
+		List<Event> single = Collections.singletonList(event);
 		for (Channel reqChannel : reqChannels) {
-			Transaction tx = reqChannel.getTransaction();
-			Preconditions.checkNotNull(tx, "Transaction object must not be null");
-			try {
-				tx.begin();
-
-				reqChannel.put(event);
-
-				tx.commit();
-			} catch (Throwable t) {
-				tx.rollback();
-				if (t instanceof Error) {
-					LOG.error("Error while writing to required channel: " + reqChannel, t);
-					throw (Error) t;
-				} else if (t instanceof ChannelException) {
-					throw (ChannelException) t;
-				} else {
-					throw new ChannelException("Unable to put event on required " + "channel: " + reqChannel, t);
-				}
-			} finally {
-				// TODO: handle finally clause
-				if (tx != null) {
-					tx.close();
-				}
-			}
+			reqChannelQueue.put(reqChannel, single);
 		}
+		this.putOnRequired(reqChannelQueue);
 
 		// Process optional channels
 		List<Channel> optionalChannels = selector.getOptionalChannels(event);
+		if (this.optionalQueueSize > 0) {
+			for (Channel optChannel : optionalChannels) {
+				this.handOffToOptional(optChannel, single);
+			}
+			return;
+		}
 		for (Channel optChannel : optionalChannels) {
 			Transaction tx = null;
 			try {
 				tx = optChannel.getTransaction();
 				tx.begin();
 
-				optChannel.put(event);
+				this.putEvents(optChannel, single);
 
 				tx.commit();
 			} catch (Throwable t) {
@@ -329,4 +1053,12 @@ public class ChannelProcessor implements Configurable {
 	public ChannelSelector getSelector() {
 		return selector;
 	}
+
+	/**
+	 * @return the counter of the optional channel hand-off, null if optional
+	 *         channels have always been written on the calling thread
+	 */
+	public ChannelProcessorCounter getCounter() {
+		return this.counter;
+	}
 }
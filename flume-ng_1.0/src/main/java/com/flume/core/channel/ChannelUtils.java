@@ -3,6 +3,7 @@ package com.flume.core.channel;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executors;
 
@@ -44,6 +45,11 @@ public class ChannelUtils {
 	 */
 	private static final Logger LOG = LoggerFactory.getLogger(ChannelUtils.class);
 
+	/**
+	 * 每个header条目（Map.Entry和key、value两个String对象）的固定开销，单位：字节
+	 */
+	private static final int HEADER_ENTRY_OVERHEAD = 96;
+
 	/**
 	 * <p>
 	 * A convenience method for transactions that don't require a return value.
@@ -226,4 +232,47 @@ public class ChannelUtils {
 		});
 	}
 
+	/**
+	 * <p>
+	 * Estimates how many bytes of heap an event occupies: its body plus, for
+	 * every header, the characters of key and value (two bytes each) and a
+	 * fixed per-entry overhead for the map entry and the two strings.
+	 * </p>
+	 * 估算Event在堆上占用的字节数，header按实际内容计算，而不是按固定百分比估算
+	 *
+	 * @param event
+	 * @return the estimated size in bytes
+	 */
+	public static long estimateEventSize(Event event) {
+		long size = estimateHeaderSize(event.getHeaders());
+		byte[] body = event.getBody();
+		if (body != null) {
+			size += body.length;
+		}
+		return size;
+	}
+
+	/**
+	 * 估算header在堆上占用的字节数
+	 *
+	 * @see #estimateEventSize(Event)
+	 * @param headers
+	 * @return the estimated size in bytes
+	 */
+	public static long estimateHeaderSize(Map<String, String> headers) {
+		long size = 0L;
+		if (headers != null) {
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				size += HEADER_ENTRY_OVERHEAD;
+				if (header.getKey() != null) {
+					size += 2L * header.getKey().length();
+				}
+				if (header.getValue() != null) {
+					size += 2L * header.getValue().length();
+				}
+			}
+		}
+		return size;
+	}
+
 }
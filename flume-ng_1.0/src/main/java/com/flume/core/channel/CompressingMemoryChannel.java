@@ -0,0 +1,290 @@
+package com.flume.core.channel;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.flume.configuration.Context;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.core.instrumentation.CompressingChannelCounter;
+import com.flume.sdk.Event;
+import com.flume.sdk.FlumeException;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A {@link MemoryChannel} that keeps large event bodies deflated. On commit
+ * every body of at least <code>compressionThreshold</code> bytes is
+ * compressed with a JDK {@link Deflater}; bodies that do not shrink are kept
+ * as they are. <code>byteCapacity</code> is charged with the compressed
+ * size, so the same heap holds correspondingly more backlog.
+ * </p>
+ * <p>
+ * A take hands out an event whose body is only inflated when
+ * <code>getBody()</code> is first called, so events that are dropped or only
+ * routed by their headers are never decompressed.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>compressionThreshold = type int, the smallest body in bytes that is
+ * compressed (default 1024).
+ * <li>compressionLevel = type int, the {@link Deflater} level from 1 (fastest,
+ * the default) to 9 (smallest).
+ * </p>
+ *
+ * @Description 在内存中压缩存放较大body的MemoryChannel，sink读取body时才解压
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class CompressingMemoryChannel extends MemoryChannel {
+
+	private static final int defaultCompressionThreshold = 1024;
+	private static final int defaultCompressionLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * 每个线程复用一个Deflater/Inflater和压缩缓冲区，避免每个Event都分配本地内存
+	 */
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(defaultCompressionLevel);
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	private static final ThreadLocal<byte[]> BUFFER = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[64 * 1024];
+		}
+	};
+
+	private volatile int compressionThreshold;
+	private volatile int compressionLevel;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		int threshold = context.getInteger("compressionThreshold", defaultCompressionThreshold);
+		Preconditions.checkArgument(threshold >= 0, "compressionThreshold must not be negative");
+		int level = context.getInteger("compressionLevel", defaultCompressionLevel);
+		Preconditions.checkArgument(level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION,
+				"compressionLevel must be between 1 and 9");
+		this.compressionThreshold = threshold;
+		this.compressionLevel = level;
+	}
+
+	@Override
+	protected ChannelCounter createChannelCounter(String name) {
+		return new CompressingChannelCounter(name);
+	}
+
+	/**
+	 * 压缩后的body计入byteCapacity
+	 */
+	@Override
+	protected long estimateEventSize(Event event) {
+		if (event instanceof CompressedEvent) {
+			return ChannelUtils.estimateHeaderSize(event.getHeaders()) + ((CompressedEvent) event).compressed.length;
+		}
+		return super.estimateEventSize(event);
+	}
+
+	@Override
+	protected int onPreparePuts(Event[] events, int count) {
+		int threshold = this.compressionThreshold;
+		Deflater deflater = DEFLATER.get();
+		deflater.setLevel(this.compressionLevel);
+
+		long start = System.nanoTime();
+		int compressedEvents = 0;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		for (int i = 0; i < count; i++) {
+			Event event = events[i];
+			byte[] body = event.getBody();
+			if (body == null || body.length < threshold || event instanceof CompressedEvent) {
+				continue;
+			}
+			byte[] compressed = deflate(deflater, body);
+			if (compressed != null) {
+				events[i] = new CompressedEvent(event.getHeaders(), compressed, body.length);
+				compressedEvents++;
+				bytesIn += body.length;
+				bytesOut += compressed.length;
+			}
+		}
+		if (compressedEvents == 0) {
+			return -1;
+		}
+		CompressingChannelCounter counter = (CompressingChannelCounter) this.getChannelCounter();
+		counter.addCompression(compressedEvents, bytesIn, bytesOut, System.nanoTime() - start);
+		return count;
+	}
+
+	@Override
+	protected Event onTake(Event stored) {
+		if (stored instanceof CompressedEvent) {
+			return new InflatingEvent((CompressedEvent) stored,
+					(CompressingChannelCounter) this.getChannelCounter());
+		}
+		return stored;
+	}
+
+	/**
+	 * @param deflater
+	 * @param body
+	 * @return the deflated body, or null if it would not be smaller
+	 */
+	private static byte[] deflate(Deflater deflater, byte[] body) {
+		byte[] buffer = BUFFER.get();
+		if (buffer.length < body.length) {
+			buffer = new byte[body.length];
+			BUFFER.set(buffer);
+		}
+		deflater.reset();
+		deflater.setInput(body);
+		deflater.finish();
+		int length = 0;
+		// 输出不比原body短就放弃压缩
+		while (!deflater.finished() && length < body.length - 1) {
+			length += deflater.deflate(buffer, length, body.length - 1 - length);
+		}
+		if (!deflater.finished()) {
+			return null;
+		}
+		return Arrays.copyOf(buffer, length);
+	}
+
+	private static byte[] inflate(byte[] compressed, int length) {
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(compressed);
+		byte[] body = new byte[length];
+		try {
+			int read = 0;
+			while (read < length) {
+				int n = inflater.inflate(body, read, length - read);
+				if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				read += n;
+			}
+			if (read != length) {
+				throw new FlumeException("Compressed event body is truncated: " + read + " of " + length + " bytes");
+			}
+		} catch (DataFormatException e) {
+			throw new FlumeException("Compressed event body is corrupt", e);
+		}
+		return body;
+	}
+
+	/**
+	 * <p>
+	 * The stored form of an event whose body is deflated. Never cached: every
+	 * <code>getBody()</code> inflates a fresh copy.
+	 * </p>
+	 */
+	static final class CompressedEvent implements Event {
+
+		private Map<String, String> headers;
+		private final byte[] compressed;
+		private final int length;
+
+		CompressedEvent(Map<String, String> headers, byte[] compressed, int length) {
+			this.headers = headers;
+			this.compressed = compressed;
+			this.length = length;
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			return this.headers;
+		}
+
+		@Override
+		public void setHeaders(Map<String, String> headers) {
+			this.headers = headers;
+		}
+
+		@Override
+		public byte[] getBody() {
+			return inflate(this.compressed, this.length);
+		}
+
+		@Override
+		public void setBody(byte[] body) {
+			throw new UnsupportedOperationException("The body of a compressed event is immutable");
+		}
+
+		@Override
+		public String toString() {
+			return "[CompressedEvent headers = " + this.headers + ", body.length = " + this.length
+					+ ", compressed.length = " + this.compressed.length + " ]";
+		}
+	}
+
+	/**
+	 * <p>
+	 * The event handed to takers. The body is inflated on the first
+	 * <code>getBody()</code> and kept from then on.
+	 * </p>
+	 */
+	static final class InflatingEvent implements Event {
+
+		private Map<String, String> headers;
+		private CompressedEvent stored;
+		private byte[] body;
+		private final CompressingChannelCounter counter;
+
+		InflatingEvent(CompressedEvent stored, CompressingChannelCounter counter) {
+			this.headers = stored.headers;
+			this.stored = stored;
+			this.counter = counter;
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			return this.headers;
+		}
+
+		@Override
+		public void setHeaders(Map<String, String> headers) {
+			this.headers = headers;
+		}
+
+		@Override
+		public byte[] getBody() {
+			if (this.stored != null) {
+				long start = System.nanoTime();
+				this.body = inflate(this.stored.compressed, this.stored.length);
+				this.stored = null;
+				this.counter.addToDecompressionTime(System.nanoTime() - start);
+			}
+			return this.body;
+		}
+
+		@Override
+		public void setBody(byte[] body) {
+			this.body = body;
+			this.stored = null;
+		}
+
+		@Override
+		public String toString() {
+			return "[Event headers = " + this.headers + ", body.length = "
+					+ (this.stored != null ? this.stored.length : this.body == null ? 0 : this.body.length) + " ]";
+		}
+	}
+}
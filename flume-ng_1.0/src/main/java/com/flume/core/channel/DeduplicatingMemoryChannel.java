@@ -0,0 +1,234 @@
+package com.flume.core.channel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.core.instrumentation.DedupChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * <p>
+ * A {@link MemoryChannel} that drops events it has already stored within a
+ * sliding window. The fingerprint of an event is a 64-bit murmur3 hash of its
+ * body and the values of the <code>dedupHeaders</code> headers. On commit
+ * every put whose fingerprint was stored in the last
+ * <code>dedupWindow</code> milliseconds, or among the last
+ * <code>dedupMaxEntries</code> events, is dropped without error; the rest
+ * of the transaction commits as usual. This catches the batches a source
+ * resends after an EventDeliveryException.
+ * </p>
+ * <p>
+ * Fingerprints are remembered in a {@link FingerprintTable} of fixed size,
+ * so memory stays bounded whatever the traffic. Fingerprints of a commit
+ * that fails are forgotten again, so the retry of a failed batch is stored.
+ * A put is only dropped for an event that has been committed: while the
+ * transaction holding a fingerprint is still committing, a concurrent put
+ * of the same event is kept, so it cannot be lost if that transaction then
+ * fails. If both commit, the event is stored twice.
+ * Two different events share a fingerprint with a probability of about
+ * <code>dedupMaxEntries / 2^64</code>.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>dedupHeaders = the comma separated headers hashed along with the body
+ * (default none).
+ * <li>dedupWindow = type long, milliseconds a fingerprint is remembered, 0
+ * for no time limit (default 300000).
+ * <li>dedupMaxEntries = type int, the largest number of fingerprints
+ * remembered (default 100000).
+ * </p>
+ *
+ * @Description 在滑动窗口内丢弃重复Event的MemoryChannel，用定长指纹表判断是否重复
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class DeduplicatingMemoryChannel extends MemoryChannel {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicatingMemoryChannel.class);
+
+	private static final long defaultDedupWindow = 300000L;
+	private static final int defaultDedupMaxEntries = 100000;
+
+	private static final HashFunction HASH = Hashing.murmur3_128();
+
+	private volatile String[] dedupHeaders = new String[0];
+	private volatile FingerprintTable fingerprints;
+	private long dedupWindow;
+	private int dedupMaxEntries;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		String headers = context.getString("dedupHeaders", "").trim();
+		this.dedupHeaders = headers.isEmpty() ? new String[0] : headers.split("\\s*,\\s*");
+
+		long window = context.getLong("dedupWindow", defaultDedupWindow);
+		Preconditions.checkArgument(window >= 0, "dedupWindow must not be negative");
+		int maxEntries = context.getInteger("dedupMaxEntries", defaultDedupMaxEntries);
+		Preconditions.checkArgument(maxEntries > 0, "dedupMaxEntries must be positive");
+
+		if (this.fingerprints == null || window != this.dedupWindow || maxEntries != this.dedupMaxEntries) {
+			if (this.fingerprints != null) {
+				LOGGER.info("Channel {}: dedup window changed, previously seen events are forgotten", this.getName());
+			}
+			this.fingerprints = new FingerprintTable(maxEntries, window);
+			this.dedupWindow = window;
+			this.dedupMaxEntries = maxEntries;
+		}
+	}
+
+	@Override
+	protected ChannelCounter createChannelCounter(String name) {
+		return new DedupChannelCounter(name);
+	}
+
+	/**
+	 * @param event
+	 * @return the fingerprint of the body and the dedup headers
+	 */
+	private long fingerprint(Event event, String[] headerNames) {
+		Hasher hasher = HASH.newHasher();
+		byte[] body = event.getBody();
+		if (body != null) {
+			hasher.putInt(body.length).putBytes(body);
+		}
+		Map<String, String> headers = event.getHeaders();
+		for (String name : headerNames) {
+			String value = headers == null ? null : headers.get(name);
+			if (value == null) {
+				hasher.putInt(-1);
+			} else {
+				hasher.putInt(value.length()).putString(value, StandardCharsets.UTF_8);
+			}
+		}
+		return hasher.hash().asLong();
+	}
+
+	/**
+	 * 在指纹表的锁内判断并登记整批Event，同一批内的重复也会被丢弃；指纹尚未提交时保留Event。
+	 * 保留的Event换成带指纹的形式，提交或撤销时不再重新计算hash
+	 */
+	@Override
+	protected int onPreparePuts(Event[] events, int count) {
+		String[] headerNames = this.dedupHeaders;
+		long[] hashes = new long[count];
+		for (int i = 0; i < count; i++) {
+			hashes[i] = this.fingerprint(events[i], headerNames);
+		}
+
+		FingerprintTable table = this.fingerprints;
+		long now = System.currentTimeMillis();
+		int kept = 0;
+		int size;
+		synchronized (table) {
+			for (int i = 0; i < count; i++) {
+				int result = table.add(hashes[i], now);
+				if (result == FingerprintTable.JOINED && contains(hashes, kept, hashes[i])) {
+					// 同一批内的重复，撤销刚才的计数
+					table.abort(hashes[i]);
+					result = FingerprintTable.DUPLICATE;
+				}
+				if (result != FingerprintTable.DUPLICATE) {
+					hashes[kept] = hashes[i];
+					events[kept++] = new FingerprintedEvent(events[i], hashes[i]);
+				}
+			}
+			size = table.size();
+		}
+
+		DedupChannelCounter counter = (DedupChannelCounter) this.getChannelCounter();
+		counter.setFingerprintCount(size);
+		if (kept < count) {
+			counter.addToDuplicateEventCount(count - kept);
+		}
+		return kept;
+	}
+
+	/**
+	 * 提交失败的Event没有存入Channel，忘掉没有其他put持有的指纹，重试时不会被当作重复
+	 */
+	@Override
+	protected void onAbortPuts(Event[] events, int count) {
+		FingerprintTable table = this.fingerprints;
+		synchronized (table) {
+			for (int i = 0; i < count; i++) {
+				table.abort(((FingerprintedEvent) events[i]).fingerprint);
+			}
+		}
+	}
+
+	/**
+	 * 提交成功，之后相同的Event才被当作重复丢弃；发布的是原来的Event
+	 */
+	@Override
+	protected void onPublishPuts(Event[] events, int count) {
+		FingerprintTable table = this.fingerprints;
+		synchronized (table) {
+			for (int i = 0; i < count; i++) {
+				FingerprintedEvent event = (FingerprintedEvent) events[i];
+				table.commit(event.fingerprint);
+				events[i] = event.event;
+			}
+		}
+	}
+
+	private static boolean contains(long[] hashes, int count, long hash) {
+		for (int i = 0; i < count; i++) {
+			if (hashes[i] == hash) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * <p>
+	 * A put between prepare and publish, carrying the fingerprint computed at
+	 * prepare so the body is hashed once per transaction.
+	 * </p>
+	 */
+	static final class FingerprintedEvent implements Event {
+
+		private final Event event;
+		private final long fingerprint;
+
+		FingerprintedEvent(Event event, long fingerprint) {
+			this.event = event;
+			this.fingerprint = fingerprint;
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			return this.event.getHeaders();
+		}
+
+		@Override
+		public void setHeaders(Map<String, String> headers) {
+			this.event.setHeaders(headers);
+		}
+
+		@Override
+		public byte[] getBody() {
+			return this.event.getBody();
+		}
+
+		@Override
+		public void setBody(byte[] body) {
+			this.event.setBody(body);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.flume.core.channel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flume.configuration.Context;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * The time-to-live policy of a channel built on {@link BasicChannelSemantics}.
+ * Every event put into the channel is stored as a copy stamped with its
+ * enqueue time in the {@link #ENQUEUE_TIME_HEADER} header; the event of the
+ * caller, which may go to other channels as well, is left as it is, and the
+ * header is removed again from the events handed to takers. An event is expired once its age
+ * exceeds <code>ttl</code>; the age is taken from
+ * <code>ttlTimestampHeader</code>, e.g. the <code>timestamp</code> header of
+ * {@code TimestampInterceptor}, when it is configured and present, and from
+ * the enqueue time otherwise.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>ttl = type long, milliseconds an event may stay in the channel; 0 (the
+ * default) disables expiry.
+ * <li>ttlTimestampHeader = the header holding the event time in
+ * milliseconds (optional).
+ * <li>ttlSweepInterval = type long, milliseconds between runs of the
+ * background sweeper, 0 disables it (default 10000).
+ * </p>
+ *
+ * @Description Channel中Event的过期策略：按入队时间或指定的时间戳header判断是否超过TTL
+ */
+public final class EventExpiry {
+
+	public static final String CONFIG_TTL = "ttl";
+	public static final String CONFIG_TIMESTAMP_HEADER = "ttlTimestampHeader";
+	public static final String CONFIG_SWEEP_INTERVAL = "ttlSweepInterval";
+
+	/**
+	 * The header the enqueue time of an event is recorded in.
+	 */
+	public static final String ENQUEUE_TIME_HEADER = "flume.channel.enqueueTime";
+
+	private static final long defaultSweepInterval = 10000L;
+
+	private final long ttl;
+	private final String timestampHeader;
+	private final long sweepInterval;
+
+	private EventExpiry(long ttl, String timestampHeader, long sweepInterval) {
+		this.ttl = ttl;
+		this.timestampHeader = timestampHeader;
+		this.sweepInterval = sweepInterval;
+	}
+
+	/**
+	 * @param context
+	 * @return the policy configured in <code>context</code>, or null if
+	 *         expiry is disabled
+	 */
+	public static EventExpiry fromContext(Context context) {
+		long ttl = context.getLong(CONFIG_TTL, 0L);
+		Preconditions.checkArgument(ttl >= 0, "ttl must not be negative");
+		if (ttl == 0) {
+			return null;
+		}
+		long sweepInterval = context.getLong(CONFIG_SWEEP_INTERVAL, defaultSweepInterval);
+		Preconditions.checkArgument(sweepInterval >= 0, "ttlSweepInterval must not be negative");
+		String timestampHeader = context.getString(CONFIG_TIMESTAMP_HEADER);
+		if (timestampHeader != null && timestampHeader.isEmpty()) {
+			timestampHeader = null;
+		}
+		return new EventExpiry(ttl, timestampHeader, sweepInterval);
+	}
+
+	/**
+	 * Records the current time as the enqueue time of the event.
+	 *
+	 * @param event
+	 * @param now
+	 * @return a copy of the event with its own headers, holding the stamp
+	 */
+	public Event stamp(Event event, long now) {
+		Map<String, String> headers = event.getHeaders();
+		Map<String, String> stamped = headers == null ? new HashMap<String, String>(4)
+				: new HashMap<String, String>(headers);
+		stamped.put(ENQUEUE_TIME_HEADER, Long.toString(now));
+		Event copy = EventBuilder.withBody(event.getBody(), null);
+		copy.setHeaders(stamped);
+		return copy;
+	}
+
+	/**
+	 * 去掉入队时间header，交给take的调用者
+	 *
+	 * @param event
+	 * @return the event itself if it has no stamp, or else a copy without it,
+	 *         so the stored event keeps its stamp in case of a rollback
+	 */
+	public static Event unstamp(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		if (headers == null || !headers.containsKey(ENQUEUE_TIME_HEADER)) {
+			return event;
+		}
+		Map<String, String> plain = new HashMap<String, String>(headers);
+		plain.remove(ENQUEUE_TIME_HEADER);
+		Event copy = EventBuilder.withBody(event.getBody(), null);
+		copy.setHeaders(plain);
+		return copy;
+	}
+
+	/**
+	 * @param event
+	 * @param now
+	 * @return true if the event has outlived the ttl; events without a
+	 *         readable time never expire
+	 */
+	public boolean isExpired(Event event, long now) {
+		Map<String, String> headers = event.getHeaders();
+		if (headers == null) {
+			return false;
+		}
+		String time = null;
+		if (this.timestampHeader != null) {
+			time = headers.get(this.timestampHeader);
+		}
+		if (time == null) {
+			time = headers.get(ENQUEUE_TIME_HEADER);
+		}
+		if (time == null) {
+			return false;
+		}
+		try {
+			return now - Long.parseLong(time) > this.ttl;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return the ttl in milliseconds
+	 */
+	public long getTtl() {
+		return this.ttl;
+	}
+
+	/**
+	 * @return milliseconds between sweeps, 0 if there is no background sweep
+	 */
+	public long getSweepInterval() {
+		return this.sweepInterval;
+	}
+}
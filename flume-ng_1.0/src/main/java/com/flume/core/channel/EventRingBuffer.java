@@ -0,0 +1,188 @@
+package com.flume.core.channel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A preallocated, bounded, multi-producer/multi-consumer ring of
+ * {@link Event}s. Every slot carries a sequence number that tells producers
+ * and consumers whose turn it is to touch the slot, so neither side needs a
+ * lock and no node is allocated per event.
+ * </p>
+ * <p>
+ * Producers claim a whole batch of consecutive positions with a single atomic
+ * add on the tail and then publish each slot by advancing its sequence.
+ * Consumers claim one position at a time with a CAS on the head.
+ * </p>
+ * <p>
+ * The ring does not check capacity on {@link #publish(Event[], int, int)}:
+ * callers must have reserved room beforehand (see {@link MemoryChannel}),
+ * which keeps the hot path down to one atomic operation per batch.
+ * </p>
+ *
+ * @Description 基于序号槽位的无锁环形队列，MemoryChannel用它来替代LinkedBlockingDeque
+ */
+final class EventRingBuffer {
+
+	private final int length;
+	private final int mask;
+
+	/**
+	 * 存放Event的槽位
+	 */
+	private final AtomicReferenceArray<Event> slots;
+	/**
+	 * 每个槽位的序号：等于pos表示可写，等于pos+1表示可读
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * 下一个出队位置
+	 */
+	private final AtomicLong head = new AtomicLong(0L);
+	/**
+	 * 下一个入队位置
+	 */
+	private final AtomicLong tail = new AtomicLong(0L);
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param capacity
+	 *            the minimum number of slots, rounded up to a power of two
+	 */
+	EventRingBuffer(int capacity) {
+		Preconditions.checkArgument(capacity > 0, "Ring capacity must be positive: %s", capacity);
+		Preconditions.checkArgument(capacity <= (1 << 30), "Ring capacity is too large: %s", capacity);
+
+		this.length = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.length - 1;
+		this.slots = new AtomicReferenceArray<>(this.length);
+		this.sequences = new AtomicLongArray(this.length);
+		for (int i = 0; i < this.length; i++) {
+			this.sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Appends <code>count</code> events starting at <code>offset</code> as one
+	 * contiguous run. The caller must guarantee the ring has room for them.
+	 * </p>
+	 *
+	 * @param events
+	 * @param offset
+	 * @param count
+	 */
+	void publish(Event[] events, int offset, int count) {
+		if (count <= 0) {
+			return;
+		}
+		long start = this.tail.getAndAdd(count);
+		for (int i = 0; i < count; i++) {
+			long pos = start + i;
+			int index = (int) (pos & this.mask);
+			// 上一圈的消费者已经领走了此槽位，但可能还未归还序号，短暂自旋即可
+			while (this.sequences.get(index) != pos) {
+				Thread.yield();
+			}
+			this.slots.lazySet(index, events[offset + i]);
+			this.sequences.lazySet(index, pos + 1);
+		}
+	}
+
+	/**
+	 * Removes and returns the event at the head of the ring, or
+	 * <code>null</code> if no published event is available.
+	 *
+	 * @return
+	 */
+	Event poll() {
+		long pos = this.head.get();
+		for (;;) {
+			int index = (int) (pos & this.mask);
+			long diff = this.sequences.get(index) - (pos + 1);
+			if (diff == 0) {
+				if (this.head.compareAndSet(pos, pos + 1)) {
+					Event event = this.slots.get(index);
+					this.slots.lazySet(index, null);
+					this.sequences.lazySet(index, pos + this.length);
+					return event;
+				}
+			} else if (diff < 0) {
+				// 槽位尚未发布，队列为空
+				return null;
+			}
+			pos = this.head.get();
+		}
+	}
+
+	/**
+	 * Returns the event at the head of the ring without removing it, or
+	 * <code>null</code> if no published event is available. A concurrent
+	 * consumer may take the returned event at any time.
+	 *
+	 * @return
+	 */
+	Event peek() {
+		long pos = this.head.get();
+		int index = (int) (pos & this.mask);
+		if (this.sequences.get(index) != pos + 1) {
+			return null;
+		}
+		return this.slots.get(index);
+	}
+
+	/**
+	 * <p>
+	 * Copies up to <code>max</code> published events from the head into
+	 * <code>into</code> without removing them. The copy stops at the first
+	 * slot that is not published or has been taken meanwhile, so it never
+	 * waits and never writes to the ring.
+	 * </p>
+	 *
+	 * @param into
+	 * @param max
+	 * @return the number of events copied
+	 */
+	int peek(Event[] into, int max) {
+		long pos = this.head.get();
+		int count = 0;
+		while (count < max) {
+			int index = (int) (pos & this.mask);
+			if (this.sequences.get(index) != pos + 1) {
+				break;
+			}
+			Event event = this.slots.get(index);
+			// 读取槽位期间被消费者领走时，序号已经变化
+			if (event == null || this.sequences.get(index) != pos + 1) {
+				break;
+			}
+			into[count++] = event;
+			pos++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return an estimate of the number of events claimed into the ring and
+	 *         not yet taken out of it
+	 */
+	int size() {
+		long size = this.tail.get() - this.head.get();
+		return (int) Math.max(0L, Math.min(size, this.length));
+	}
+
+	/**
+	 * @return the number of preallocated slots
+	 */
+	int length() {
+		return this.length;
+	}
+}
@@ -0,0 +1,247 @@
+package com.flume.core.channel;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A bounded set of 64-bit fingerprints that forgets entries once they fall
+ * out of a sliding window, either because more than <code>maxEntries</code>
+ * newer fingerprints have been added or because they are older than
+ * <code>windowMillis</code>.
+ * </p>
+ * <p>
+ * Fingerprints are kept in insertion order in a ring of primitive arrays and
+ * indexed by an open-addressing table with linear probing, so the whole
+ * structure is a handful of preallocated arrays (about 45 bytes per entry)
+ * and no object is allocated per fingerprint.
+ * </p>
+ * <p>
+ * An entry is pending until a put holding it {@linkplain #commit(long)
+ * commits}. Only a committed entry makes later puts duplicates: a put whose
+ * fingerprint is pending joins the entry instead, because the put holding it
+ * may still be aborted. Every put holding a pending entry is counted, and
+ * {@link #abort(long)} forgets the entry only when none of them is left and
+ * none has committed, so a concurrent put that matched it is never dropped
+ * on behalf of a put that is then aborted.
+ * </p>
+ * <p>
+ * Not thread safe, the channel synchronizes on the table.
+ * </p>
+ *
+ * @Description 滑动窗口内的定长指纹集合：环形数组记录插入顺序，开放寻址哈希表做索引
+ */
+final class FingerprintTable {
+
+	/**
+	 * 0表示空槽位，真实的指纹0映射为1
+	 */
+	private static final long EMPTY = 0L;
+
+	/**
+	 * {@link #add(long, long)}的结果
+	 */
+	static final int ADDED = 0;
+	static final int JOINED = 1;
+	static final int DUPLICATE = 2;
+
+	private final long windowMillis;
+
+	/**
+	 * 按插入顺序排列的指纹和插入时间，被移除的条目指纹为EMPTY
+	 */
+	private final long[] ringFingerprints;
+	private final long[] ringTimes;
+	/**
+	 * 持有该指纹且尚未提交或回滚的put数量，以及是否已有put提交
+	 */
+	private final int[] ringPending;
+	private final boolean[] ringCommitted;
+	private int ringHead = 0;
+	private int ringSize = 0;
+
+	/**
+	 * 开放寻址索引：指纹及其在环中的位置
+	 */
+	private final long[] keys;
+	private final int[] positions;
+	private final int mask;
+	private int size = 0;
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param maxEntries
+	 *            the largest number of fingerprints remembered
+	 * @param windowMillis
+	 *            how long a fingerprint is remembered, 0 for no time limit
+	 */
+	FingerprintTable(int maxEntries, long windowMillis) {
+		Preconditions.checkArgument(maxEntries > 0, "maxEntries must be positive");
+		Preconditions.checkArgument(maxEntries <= (1 << 28), "maxEntries is too large: %s", maxEntries);
+		this.windowMillis = windowMillis;
+		this.ringFingerprints = new long[maxEntries];
+		this.ringTimes = new long[maxEntries];
+		this.ringPending = new int[maxEntries];
+		this.ringCommitted = new boolean[maxEntries];
+		// 装载因子不超过1/2
+		int capacity = Integer.highestOneBit(maxEntries) << 2;
+		this.keys = new long[capacity];
+		this.positions = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * @return the number of fingerprints currently remembered
+	 */
+	int size() {
+		return this.size;
+	}
+
+	/**
+	 * Adds the fingerprint of a put about to be committed, unless a committed
+	 * put holds it within the window.
+	 *
+	 * @param fingerprint
+	 * @param now
+	 * @return {@link #ADDED} if the fingerprint was not in the window,
+	 *         {@link #JOINED} if only uncommitted puts hold it, in which case
+	 *         this put is counted as holding it as well, or {@link #DUPLICATE}
+	 *         if a put holding it has committed
+	 */
+	int add(long fingerprint, long now) {
+		long key = fingerprint == EMPTY ? 1L : fingerprint;
+		this.expire(now);
+		int slot = this.indexOf(key);
+		if (slot >= 0) {
+			int position = this.positions[slot];
+			if (this.ringCommitted[position]) {
+				return DUPLICATE;
+			}
+			this.ringPending[position]++;
+			return JOINED;
+		}
+		if (this.ringSize == this.ringFingerprints.length) {
+			this.evictOldest();
+		}
+		int position = (this.ringHead + this.ringSize) % this.ringFingerprints.length;
+		this.ringFingerprints[position] = key;
+		this.ringTimes[position] = now;
+		this.ringPending[position] = 1;
+		this.ringCommitted[position] = false;
+		this.ringSize++;
+		this.insert(key, position);
+		return ADDED;
+	}
+
+	/**
+	 * A put that added or joined the fingerprint has been stored; from now on
+	 * puts of it are duplicates.
+	 *
+	 * @param fingerprint
+	 */
+	void commit(long fingerprint) {
+		long key = fingerprint == EMPTY ? 1L : fingerprint;
+		int slot = this.indexOf(key);
+		if (slot >= 0) {
+			int position = this.positions[slot];
+			this.ringCommitted[position] = true;
+			if (this.ringPending[position] > 0) {
+				this.ringPending[position]--;
+			}
+		}
+	}
+
+	/**
+	 * A put that added or joined the fingerprint will not be stored. The
+	 * fingerprint is forgotten unless another put holding it is still
+	 * uncommitted or has committed.
+	 *
+	 * @param fingerprint
+	 */
+	void abort(long fingerprint) {
+		long key = fingerprint == EMPTY ? 1L : fingerprint;
+		int slot = this.indexOf(key);
+		if (slot < 0) {
+			// 已被移出窗口
+			return;
+		}
+		int position = this.positions[slot];
+		if (this.ringPending[position] > 0) {
+			this.ringPending[position]--;
+		}
+		if (this.ringPending[position] == 0 && !this.ringCommitted[position]) {
+			this.ringFingerprints[position] = EMPTY;
+			this.delete(slot);
+		}
+	}
+
+	private void expire(long now) {
+		if (this.windowMillis <= 0) {
+			return;
+		}
+		long cutoff = now - this.windowMillis;
+		while (this.ringSize > 0 && this.ringTimes[this.ringHead] < cutoff) {
+			this.evictOldest();
+		}
+	}
+
+	private void evictOldest() {
+		long key = this.ringFingerprints[this.ringHead];
+		if (key != EMPTY) {
+			this.delete(this.indexOf(key));
+			this.ringFingerprints[this.ringHead] = EMPTY;
+		}
+		this.ringHead = (this.ringHead + 1) % this.ringFingerprints.length;
+		this.ringSize--;
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private int indexOf(long key) {
+		int slot = mix(key) & this.mask;
+		for (;;) {
+			long current = this.keys[slot];
+			if (current == EMPTY) {
+				return -1;
+			}
+			if (current == key) {
+				return slot;
+			}
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	private void insert(long key, int position) {
+		int slot = mix(key) & this.mask;
+		while (this.keys[slot] != EMPTY) {
+			slot = (slot + 1) & this.mask;
+		}
+		this.keys[slot] = key;
+		this.positions[slot] = position;
+		this.size++;
+	}
+
+	/**
+	 * 线性探测的删除：把后面同一探测链上的条目前移，不留墓碑
+	 */
+	private void delete(int slot) {
+		int hole = slot;
+		int next = (hole + 1) & this.mask;
+		while (this.keys[next] != EMPTY) {
+			int home = mix(this.keys[next]) & this.mask;
+			// home不在(hole, next]之间时，条目可以前移填补空洞
+			if (((next - home) & this.mask) >= ((next - hole) & this.mask)) {
+				this.keys[hole] = this.keys[next];
+				this.positions[hole] = this.positions[next];
+				hole = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys[hole] = EMPTY;
+		this.size--;
+	}
+}
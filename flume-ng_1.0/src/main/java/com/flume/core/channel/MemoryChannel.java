@@ -1,14 +1,39 @@
 package com.flume.core.channel;
 
-import java.util.concurrent.LinkedBlockingDeque;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.ChannelInspection;
 import com.flume.core.annotations.InterfaceAudience;
 import com.flume.core.annotations.InterfaceStability;
 import com.flume.core.annotations.Recyclable;
+import com.flume.core.event.EventCodec;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.core.lifecycle.LifecycleState;
 import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
 
 /**
  * <p>
@@ -19,7 +44,19 @@ import com.flume.sdk.Event;
  * Additionally, MemoryChannel should be used when a channel is required for
  * unit testing purposes.
  * </p>
- * 
+ * <p>
+ * Events are stored in a preallocated {@link EventRingBuffer}. A transaction
+ * buffers its puts and takes in private arrays; on commit the whole put batch
+ * is claimed into the ring with a single atomic operation and the capacity
+ * freed by the takes is returned with another, so sources and sinks never
+ * share a lock.
+ * </p>
+ * <p>
+ * Transactions can be {@linkplain com.flume.core.Transaction#prepare()
+ * prepared}: the capacity for the puts is reserved then, and the commit only
+ * publishes the batch.
+ * </p>
+ *
  * @Description
  * @author Administrator
  * @date 2017年8月8日 下午8:37:11
@@ -51,38 +88,1225 @@ public class MemoryChannel extends BasicChannelSemantics {
 	 */
 	private static final Long defaultByteCapacity = (long) (Runtime.getRuntime().maxMemory() * .80);
 	/*
-	 * byteCapacityBufferPercentage：用来确定byteCapacity的一个百分比参数，
-	 * 即我们定义的字节容量和实际事件容量的百分比，因为我们定义的字节容量主要考虑Event body，而忽略Event
-	 * header，因此需要减去Event header部分的内存占用，可以认为该参数定义了Event
-	 * header占了实际字节容量的百分比，默认20%；定义Channle中Event所占的百分比，需要考虑在Header中的数据。
+	 * byteCapacityBufferPercentage：用来确定byteCapacity的一个百分比参数。
+	 * 现在put时已经按实际内容计算了Event header和body的大小（见ChannelUtils.estimateEventSize），
+	 * 该参数只用来给对象头等估算不到的开销预留余量，默认20%。
 	 */private static final Integer defaultByteCapacityBufferPercentage = 20;
 	/**
 	 * 定义了操作Channel Queue的等待超时事件，默认3s,增加和删除一个Event的超时时间（单位：秒）
 	 */
 	private static final Integer defaultKeepAlive = 3;
-	
+
 	/**
-	 * 
+	 * 快照文件的魔数("FMCS")和读写缓冲区大小
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x464D4353;
+	private static final int SNAPSHOT_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * commit时容量不足抛出的异常，预先分配且不带堆栈，持续背压时不再反复构造异常
+	 */
+	private static final ChannelFullException QUEUE_FULL = new ChannelFullException(
+			"Space for commit to queue couldn't be acquired."
+					+ " Sinks are likely not keeping up with sources, or the buffer size is too tight",
+			false);
+
+	/**
+	 *
 	 * @Description
 	 * @author Administrator
 	 * @date   2017年8月8日 下午9:04:23
 	 *
 	 */
-	private class MemoryTransaction extends BasicTransactionSemantics{
+	private class MemoryTransaction extends BasicTransactionSemantics {
 		/**
-		 * 阻塞双端队列，从channel中取event先放入takeList，输送到sink，commit成功，从channel queue中删除
+		 * 从channel中取出的event先放入takeList，输送到sink，commit成功后才释放其占用的channel容量
 		 */
-		private LinkedBlockingDeque<Event> takeList;
+		private final Event[] takeList;
 		/**
-		 * 从source 会先放至putList，然后commit传送到channel queue队列
+		 * 从source 会先放至putList，然后commit时整批发布到channel的环形队列
 		 */
-		private LinkedBlockingDeque<Event> putList;
+		private final Event[] putList;
 		/**
 		 * ChannelCounter类定义了监控指标数据的一些属性方法
 		 */
 		private final ChannelCounter channelCounter;
+		private int putCount = 0;
+		private int takeCount = 0;
+		/**
+		 * 本事务put/take的Event所占的字节槽位数（每个槽位byteCapacitySlotSize字节）
+		 */
 		private int putByteCounter = 0;
 		private int takeByteCounter = 0;
+		/**
+		 * prepare已为putList预留了容量，commit时直接发布，rollback时归还
+		 */
+		private boolean prepared = false;
+
+		/**
+		 *
+		 * 构造函数
+		 *
+		 * @param transCapacity
+		 * @param counter
+		 */
+		public MemoryTransaction(int transCapacity, ChannelCounter counter) {
+			this.putList = new Event[transCapacity];
+			this.takeList = new Event[transCapacity];
+			this.channelCounter = counter;
+		}
+
+		@Override
+		protected void doPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			int eventByteSize = estimateEventSlots(event);
+
+			if (this.putCount == this.putList.length) {
+				throw new ChannelException("Put queue for MemoryTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			this.putList[this.putCount++] = event;
+			this.putByteCounter += eventByteSize;
+		}
+
+		/**
+		 * 按commit时的容量估算能否放下：本事务的take在commit时归还容量
+		 */
+		@Override
+		protected boolean doTryPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			if (this.putCount == this.putList.length || this.putCount - this.takeCount >= queueRemaining.get()) {
+				return false;
+			}
+			int eventByteSize = estimateEventSlots(event);
+			if (this.putByteCounter + eventByteSize > bytesRemaining.available() + this.takeByteCounter) {
+				return false;
+			}
+			this.putList[this.putCount++] = event;
+			this.putByteCounter += eventByteSize;
+			return true;
+		}
+
+		/**
+		 * 整批放入putList，事务容量只检查一次
+		 */
+		@Override
+		protected void doPutAll(List<Event> events) throws InterruptedException {
+			int count = events.size();
+			this.channelCounter.addToEventPutAttemptCount(count);
+
+			if (this.putCount + count > this.putList.length) {
+				throw new ChannelException("Put queue for MemoryTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			for (int i = 0; i < count; i++) {
+				Event event = events.get(i);
+				this.putList[this.putCount++] = event;
+				this.putByteCounter += estimateEventSlots(event);
+			}
+		}
+
+		@Override
+		protected Event doTake() throws InterruptedException {
+			this.channelCounter.incrementEventTakeAttemptCount();
+
+			if (this.takeCount == this.takeList.length) {
+				throw new ChannelException("Take list for MemoryTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+
+			Event event = this.awaitEvent();
+			if (event == null) {
+				return null;
+			}
+
+			this.takeList[this.takeCount++] = event;
+			this.takeByteCounter += estimateEventSlots(event);
+			return onTake(event);
+		}
+
+		/**
+		 * 只为第一个Event等待keep-alive，之后只取已经可用的Event
+		 */
+		@Override
+		protected int doTake(int max, List<Event> into) throws InterruptedException {
+			if (this.takeCount == this.takeList.length) {
+				this.channelCounter.incrementEventTakeAttemptCount();
+				throw new ChannelException("Take list for MemoryTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+			int limit = Math.min(max, this.takeList.length - this.takeCount);
+
+			int taken = 0;
+			Event event = this.awaitEvent();
+			while (event != null) {
+				this.takeList[this.takeCount++] = event;
+				this.takeByteCounter += estimateEventSlots(event);
+				into.add(onTake(event));
+				if (++taken == limit) {
+					break;
+				}
+				event = pollEvent();
+			}
+			// 与逐个take的计数一致：每个取到的Event一次，最后一次落空的尝试也算一次
+			this.channelCounter.addToEventTakeAttemptCount(taken < limit ? taken + 1 : taken);
+			return taken;
+		}
+
+		/**
+		 * @return the next event, waiting up to keep-alive seconds, or null
+		 * @throws InterruptedException
+		 */
+		private Event awaitEvent() throws InterruptedException {
+			Event event = pollEvent();
+			if (event == null) {
+				WaitStrategy strategy = notEmpty;
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keepAlive);
+				int attempt = 0;
+				for (;;) {
+					long token = strategy.prepare();
+					event = pollEvent();
+					if (event != null) {
+						break;
+					}
+					if (System.nanoTime() - deadline >= 0) {
+						return null;
+					}
+					strategy.await(token, attempt++, deadline);
+				}
+			}
+			return event;
+		}
+
+		@Override
+		public boolean supportsPrepare() {
+			return true;
+		}
+
+		@Override
+		protected void doPrepare() throws InterruptedException {
+			this.reservePuts();
+			this.prepared = true;
+		}
+
+		/**
+		 * 为putList预留字节容量和Event数量容量，并转换为存储形式；失败时不留下任何预留
+		 */
+		private void reservePuts() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+
+			if (puts > 0) {
+				int kept = onPreparePuts(this.putList, puts);
+				if (kept >= 0) {
+					// 存储形式或数量变了，按新的形式重新计算字节容量
+					Arrays.fill(this.putList, kept, puts, null);
+					puts = kept;
+					this.putCount = kept;
+					int slots = 0;
+					for (int i = 0; i < puts; i++) {
+						slots += estimateEventSlots(this.putList[i]);
+					}
+					this.putByteCounter = slots;
+				}
+			}
+			int remainingChange = takes - puts;
+
+			boolean reserved = false;
+			try {
+				// 先预留字节容量，再预留Event数量容量，任何一步失败都不会留下已预留的字节
+				if (!reserveBytes(this.putByteCounter, true)) {
+					throw QUEUE_FULL;
+				}
+
+				if (remainingChange < 0) {
+					if (!reserve(-remainingChange)) {
+						releaseBytes(this.putByteCounter);
+						throw QUEUE_FULL;
+					}
+				}
+
+				if (puts > 0) {
+					try {
+						onCommitPuts(this.putList, puts);
+					} catch (RuntimeException e) {
+						if (remainingChange < 0) {
+							queueRemaining.addAndGet(-remainingChange);
+						}
+						releaseBytes(this.putByteCounter);
+						throw e;
+					}
+				}
+				reserved = true;
+			} finally {
+				if (!reserved && puts > 0) {
+					onAbortPuts(this.putList, puts);
+				}
+			}
+		}
+
+		@Override
+		protected void doCommit() throws InterruptedException {
+			if (!this.prepared) {
+				this.reservePuts();
+			}
+			this.prepared = false;
+			int puts = this.putCount;
+			int takes = this.takeCount;
+			int remainingChange = takes - puts;
+
+			if (puts > 0) {
+				onPublishPuts(this.putList, puts);
+				queue.publish(this.putList, 0, puts);
+				notEmpty.signalAll();
+			}
+			if (remainingChange > 0) {
+				queueRemaining.addAndGet(remainingChange);
+			}
+			if (takes > 0) {
+				onCommitTakes(this.takeList, takes);
+				releaseBytes(this.takeByteCounter);
+			}
+			this.clear();
+
+			if (puts > 0) {
+				this.channelCounter.addToEventPutSuccessCount(puts);
+			}
+			if (takes > 0) {
+				this.channelCounter.addToEventTakeSuccessCount(takes);
+			}
+
+			this.channelCounter.setChannelSize(size());
+		}
+
+		@Override
+		protected void doRollback() throws InterruptedException {
+			if (this.prepared) {
+				// 归还prepare预留的容量
+				this.prepared = false;
+				int remainingChange = this.takeCount - this.putCount;
+				if (remainingChange < 0) {
+					queueRemaining.addAndGet(-remainingChange);
+				}
+				releaseBytes(this.putByteCounter);
+				if (this.putCount > 0) {
+					onAbortPuts(this.putList, this.putCount);
+				}
+			}
+
+			// 将取出的Event按原顺序放回队首，保证回滚后的Event优先被重新消费
+			int takes = this.takeCount;
+			for (int i = takes - 1; i >= 0; i--) {
+				redelivered.addFirst(this.takeList[i]);
+			}
+			redeliveredSize.addAndGet(takes);
+			if (takes > 0) {
+				notEmpty.signalAll();
+			}
+			this.clear();
+
+			this.channelCounter.setChannelSize(size());
+		}
+
+		/**
+		 * 事务容量或计数器变化（重新配置）后不能复用
+		 */
+		@Override
+		protected boolean doReset() {
+			if (this.putList.length != transCapacity || this.channelCounter != MemoryChannel.this.channelCounter) {
+				return false;
+			}
+			this.clear();
+			return true;
+		}
+
+		/**
+		 * 清空putList和takeList，释放对Event的引用
+		 */
+		private void clear() {
+			Arrays.fill(this.putList, 0, this.putCount, null);
+			Arrays.fill(this.takeList, 0, this.takeCount, null);
+			this.putCount = 0;
+			this.takeCount = 0;
+			this.putByteCounter = 0;
+			this.takeByteCounter = 0;
+			this.prepared = false;
+		}
+	}
+
+	/**
+	 * 对queue的替换（扩容）加锁，put/take的热路径不需要这把锁
+	 */
+	private final Object queueLock = new Object();
+
+	private volatile EventRingBuffer queue;
+	/**
+	 * 回滚的Event放回此队列，take时优先从这里取，只有回滚时才会产生分配
+	 */
+	private final ConcurrentLinkedDeque<Event> redelivered = new ConcurrentLinkedDeque<>();
+	private final AtomicInteger redeliveredSize = new AtomicInteger(0);
+
+	/**
+	 * channel剩余的容量，put的commit时预留，take的commit时归还
+	 */
+	private final AtomicInteger queueRemaining = new AtomicInteger(0);
+
+	/**
+	 * channel剩余的字节容量（以槽位计），分段计数，避免所有事务争抢同一个Semaphore
+	 */
+	private volatile StripedPermits bytesRemaining;
+
+	/**
+	 * take等待Event、commit等待容量时分别使用的等待策略
+	 */
+	private volatile WaitStrategy notEmpty;
+	private volatile WaitStrategy notFull;
+	private String waitStrategyName;
+
+	/**
+	 * 运行期间向Agent内存预算登记的额度，未启动时为null
+	 */
+	private MemoryGovernor governor;
+	private volatile MemoryGovernor.Lease lease;
+	private Context leaseContext;
+
+	/**
+	 * stop时写入、start时读回的快照文件，null表示不做快照
+	 */
+	private File snapshotFile;
+
+	private volatile int capacity = 0;
+	private volatile Integer transCapacity;
+	private volatile int keepAlive;
+	private volatile int byteCapacity;
+	private volatile int lastByteCapacity;
+	private volatile int byteCapacityBufferPercentage;
+
+	private ChannelCounter channelCounter;
+
+	/**
+	 *
+	 * 构造函数
+	 */
+	public MemoryChannel() {
+		super();
+	}
+
+	/**
+	 * Read parameters from context
+	 * <li>capacity = type long that defines the total number of events
+	 * allowed at one time in the queue.
+	 * <li>transactionCapacity = type long that defines the total number of
+	 * events allowed in one transaction.
+	 * <li>keep-alive = type int that defines the number of second to wait for
+	 * a queue permit
+	 * <li>byteCapacity = type long that defines the max number of bytes, body
+	 * and headers included, allowed in the queue.
+	 * <li>byteCapacityBufferPercentage = type int that defines the percent of
+	 * byteCapacity kept free as headroom for object overhead that the size
+	 * estimate does not see.
+	 * <li>waitStrategy = how takers wait for events and committers for
+	 * capacity, see {@link WaitStrategy} (default backoff).
+	 * <li>memoryReservation, memoryBorrowPolicy = the channel's share of the
+	 * agent's memory budget, see {@link MemoryGovernor}. They take effect
+	 * when the channel is started.
+	 * <li>snapshotFile = the file the queued events are written to when the
+	 * channel stops and read back from when it starts (default none). It
+	 * keeps events across a graceful restart, not across a crash.
+	 */
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		Integer capacity = null;
+		try {
+			capacity = context.getInteger("capacity", defaultCapacity);
+		} catch (NumberFormatException e) {
+			capacity = defaultCapacity;
+			LOGGER.warn("Invalid capacity specified, initializing channel to default capacity of {}",
+					defaultCapacity);
+		}
+
+		if (capacity <= 0) {
+			capacity = defaultCapacity;
+			LOGGER.warn("Invalid capacity specified, initializing channel to default capacity of {}",
+					defaultCapacity);
+		}
+
+		try {
+			this.transCapacity = context.getInteger("transactionCapacity", defaultTransCapacity);
+		} catch (NumberFormatException e) {
+			this.transCapacity = defaultTransCapacity;
+			LOGGER.warn("Invalid transation capacity specified, initializing channel to default capacity of {}",
+					defaultTransCapacity);
+		}
+
+		if (this.transCapacity <= 0) {
+			this.transCapacity = defaultTransCapacity;
+			LOGGER.warn("Invalid transation capacity specified, initializing channel to default capacity of {}",
+					defaultTransCapacity);
+		}
+		Preconditions.checkState(this.transCapacity <= capacity,
+				"Transaction Capacity of Memory Channel cannot be higher than the capacity.");
+
+		try {
+			this.keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+		} catch (NumberFormatException e) {
+			this.keepAlive = defaultKeepAlive;
+		}
+
+		try {
+			this.byteCapacityBufferPercentage = context.getInteger("byteCapacityBufferPercentage",
+					defaultByteCapacityBufferPercentage);
+		} catch (NumberFormatException e) {
+			this.byteCapacityBufferPercentage = defaultByteCapacityBufferPercentage;
+		}
+
+		try {
+			this.byteCapacity = (int) ((context.getLong("byteCapacity", defaultByteCapacity).longValue()
+					* (1 - this.byteCapacityBufferPercentage * .01)) / byteCapacitySlotSize);
+			if (this.byteCapacity < 1) {
+				this.byteCapacity = Integer.MAX_VALUE;
+			}
+		} catch (NumberFormatException e) {
+			this.byteCapacity = (int) ((defaultByteCapacity * (1 - this.byteCapacityBufferPercentage * .01))
+					/ byteCapacitySlotSize);
+		}
+
+		this.leaseContext = context;
+
+		String snapshotPath = context.getString("snapshotFile", "").trim();
+		this.snapshotFile = snapshotPath.isEmpty() ? null : new File(snapshotPath);
+
+		String waitStrategyName = context.getString(WaitStrategy.WAIT_STRATEGY, WaitStrategy.DEFAULT_WAIT_STRATEGY)
+				.trim();
+		if (!waitStrategyName.equals(this.waitStrategyName)) {
+			WaitStrategy oldNotEmpty = this.notEmpty;
+			WaitStrategy oldNotFull = this.notFull;
+			this.notEmpty = WaitStrategy.create(waitStrategyName);
+			this.notFull = WaitStrategy.create(waitStrategyName);
+			this.waitStrategyName = waitStrategyName;
+			// 唤醒还在旧策略上等待的线程，下次等待时改用新策略
+			if (oldNotEmpty != null) {
+				oldNotEmpty.signalAll();
+				oldNotFull.signalAll();
+			}
+		}
+
+		synchronized (this.queueLock) {
+			if (this.queue == null) {
+				this.queue = new EventRingBuffer(capacity);
+				this.queueRemaining.set(capacity);
+				this.capacity = capacity;
+			} else {
+				try {
+					this.resizeQueue(capacity);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (this.bytesRemaining == null) {
+				this.bytesRemaining = new StripedPermits(this.byteCapacity);
+				this.lastByteCapacity = this.byteCapacity;
+			} else if (this.byteCapacity > this.lastByteCapacity) {
+				this.bytesRemaining.adjust(this.byteCapacity - this.lastByteCapacity);
+				this.lastByteCapacity = this.byteCapacity;
+				this.notFull.signalAll();
+			} else if (this.byteCapacity < this.lastByteCapacity) {
+				try {
+					if (!this.reserveBytes(this.lastByteCapacity - this.byteCapacity, false)) {
+						LOGGER.warn("Couldn't reduce capacity because queue is too full");
+					} else {
+						this.lastByteCapacity = this.byteCapacity;
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		if (this.channelCounter == null) {
+			this.channelCounter = this.createChannelCounter(this.getName());
+		}
+	}
+
+	/**
+	 * <p>
+	 * Changes the capacity of the channel. Shrinking waits up to
+	 * <code>keep-alive</code> seconds for enough events to drain. The ring can
+	 * only be reallocated while the channel is not running; a running channel
+	 * can grow up to the length of its current ring.
+	 * </p>
+	 *
+	 * @param capacity
+	 * @throws InterruptedException
+	 */
+	private void resizeQueue(int capacity) throws InterruptedException {
+		if (capacity == this.capacity) {
+			return;
+		}
+
+		if (capacity < this.capacity) {
+			if (!this.reserve(this.capacity - capacity)) {
+				LOGGER.warn("Couldn't reduce capacity because queue is too full");
+				return;
+			}
+			this.capacity = capacity;
+			return;
+		}
+
+		if (capacity > this.queue.length()) {
+			if (this.getLifecycleState() == LifecycleState.START) {
+				LOGGER.warn("Channel {} is running, its capacity can only grow to {} until it is restarted",
+						this.getName(), this.queue.length());
+				capacity = this.queue.length();
+			} else {
+				EventRingBuffer newQueue = new EventRingBuffer(capacity);
+				Event[] drained = new Event[this.queue.size()];
+				int count = 0;
+				Event event;
+				while (count < drained.length && (event = this.queue.poll()) != null) {
+					drained[count++] = event;
+				}
+				newQueue.publish(drained, 0, count);
+				this.queue = newQueue;
+			}
+		}
+
+		this.queueRemaining.addAndGet(capacity - this.capacity);
+		this.capacity = capacity;
+		this.notFull.signalAll();
+	}
+
+	/**
+	 * <p>
+	 * Waits up to keep-alive for <code>attempt</code> to return a result,
+	 * trying again whenever capacity is released. For subclasses that manage
+	 * a capacity of their own, such as off-heap space; they call
+	 * {@link #signalNotFull()} after releasing some of it.
+	 * </p>
+	 *
+	 * @param attempt
+	 *            returns null while there is no room
+	 * @return the result, or null if there was no room within keep-alive
+	 * @throws InterruptedException
+	 */
+	protected final <T> T awaitCapacity(Supplier<T> attempt) throws InterruptedException {
+		T result = attempt.get();
+		if (result != null) {
+			return result;
+		}
+		WaitStrategy strategy = this.notFull;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.keepAlive);
+		int attempts = 0;
+		for (;;) {
+			long token = strategy.prepare();
+			result = attempt.get();
+			if (result != null) {
+				return result;
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return null;
+			}
+			strategy.await(token, attempts++, deadline);
+		}
 	}
 
+	/**
+	 * 唤醒等待容量的事务，子类释放了自己管理的容量后调用
+	 */
+	protected final void signalNotFull() {
+		this.notFull.signalAll();
+	}
+
+	/**
+	 * 预留permits个容量，若容量不足则在keepAlive时间内等待
+	 *
+	 * @param permits
+	 * @return false if the capacity could not be reserved within keep-alive
+	 * @throws InterruptedException
+	 */
+	private boolean reserve(int permits) throws InterruptedException {
+		WaitStrategy strategy = this.notFull;
+		long deadline = 0L;
+		int attempt = 0;
+		for (;;) {
+			long token = strategy.prepare();
+			int remaining = this.queueRemaining.get();
+			if (remaining >= permits) {
+				if (this.queueRemaining.compareAndSet(remaining, remaining - permits)) {
+					return true;
+				}
+				continue;
+			}
+			if (attempt == 0) {
+				deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.keepAlive);
+			} else if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			strategy.await(token, attempt++, deadline);
+		}
+	}
+
+	/**
+	 * 预留permits个字节槽位，若容量不足则在keepAlive时间内等待
+	 *
+	 * @param permits
+	 * @param governed
+	 *            true if the slots hold events and are charged to the agent's
+	 *            memory budget as well
+	 * @return false if the bytes could not be reserved within keep-alive
+	 * @throws InterruptedException
+	 */
+	private boolean reserveBytes(int permits, boolean governed) throws InterruptedException {
+		if (this.tryAcquireBytes(permits, governed)) {
+			return true;
+		}
+		WaitStrategy strategy = this.notFull;
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.keepAlive);
+		int attempt = 0;
+		for (;;) {
+			long token = strategy.prepare();
+			if (this.tryAcquireBytes(permits, governed)) {
+				return true;
+			}
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			strategy.await(token, attempt++, deadline);
+		}
+	}
+
+	/**
+	 * 先从本Channel的字节容量中取，再向Agent的内存预算申请，后者失败时归还前者
+	 */
+	private boolean tryAcquireBytes(int permits, boolean governed) {
+		StripedPermits bytes = this.bytesRemaining;
+		if (!bytes.tryAcquire(permits)) {
+			return false;
+		}
+		MemoryGovernor.Lease lease = this.lease;
+		if (governed && lease != null && !lease.tryAcquire((long) (permits * byteCapacitySlotSize))) {
+			bytes.release(permits);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 归还事件占用的字节槽位，同时归还Agent内存预算中的对应额度
+	 */
+	private void releaseBytes(int permits) {
+		this.bytesRemaining.release(permits);
+		MemoryGovernor.Lease lease = this.lease;
+		if (lease != null) {
+			lease.release((long) (permits * byteCapacitySlotSize));
+		}
+		this.notFull.signalAll();
+	}
+
+	/**
+	 * @param event
+	 * @return the number of byte capacity slots the event occupies
+	 */
+	private int estimateEventSlots(Event event) {
+		return (int) Math.ceil(this.estimateEventSize(event) / byteCapacitySlotSize);
+	}
+
+	/**
+	 * <p>
+	 * Returns the number of heap bytes an event held by this channel is
+	 * charged against <code>byteCapacity</code>. It is called with the event
+	 * given to <code>put</code> and again with the stored event when it is
+	 * taken, so both must yield the same size.
+	 * </p>
+	 *
+	 * @param event
+	 * @return
+	 */
+	protected long estimateEventSize(Event event) {
+		return ChannelUtils.estimateEventSize(event);
+	}
+
+	/**
+	 * <p>
+	 * Called at the start of commit, before any capacity is reserved.
+	 * Subclasses may replace the events in <code>events[0..count)</code> with
+	 * a smaller form to be stored, or drop events by moving the ones to keep
+	 * to the front. The kept batch is then charged against
+	 * <code>byteCapacity</code> by the size of its new form.
+	 * </p>
+	 *
+	 * @param events
+	 * @param count
+	 * @return the number of events kept in <code>events</code>, or -1 if the
+	 *         batch is unchanged
+	 */
+	protected int onPreparePuts(Event[] events, int count) {
+		return -1;
+	}
+
+	/**
+	 * <p>
+	 * Called when a commit fails after <code>onPreparePuts</code>, or a
+	 * prepared transaction is rolled back, with the prepared events that will
+	 * not be stored. In the latter case they have already been passed to
+	 * <code>onCommitPuts</code>.
+	 * </p>
+	 *
+	 * @param events
+	 * @param count
+	 */
+	protected void onAbortPuts(Event[] events, int count) {
+	}
+
+	/**
+	 * <p>
+	 * Called during commit or prepare, after capacity has been reserved and
+	 * before the batch becomes visible to takers. Subclasses may replace the events in
+	 * <code>events[0..count)</code> with the form they want to store. Throwing
+	 * a {@link ChannelException} aborts the commit and releases the reserved
+	 * capacity.
+	 * </p>
+	 *
+	 * @param events
+	 * @param count
+	 */
+	protected void onCommitPuts(Event[] events, int count) {
+	}
+
+	/**
+	 * <p>
+	 * Called when a commit can no longer fail, just before
+	 * <code>events[0..count)</code>, as returned by <code>onCommitPuts</code>,
+	 * become visible to takers. Subclasses may still replace them with the
+	 * form to publish. Every batch passed to
+	 * <code>onPreparePuts</code> ends in either this or
+	 * <code>onAbortPuts</code>.
+	 * </p>
+	 *
+	 * @param events
+	 * @param count
+	 */
+	protected void onPublishPuts(Event[] events, int count) {
+	}
+
+	/**
+	 * <p>
+	 * Called when a stored event is taken. The stored event stays in the
+	 * transaction's take list for rollback; the returned event is handed to
+	 * the caller of <code>take()</code>.
+	 * </p>
+	 *
+	 * @param stored
+	 * @return
+	 */
+	protected Event onTake(Event stored) {
+		return stored;
+	}
+
+	/**
+	 * <p>
+	 * Called by {@link #inspect(int)} for a stored event that is being
+	 * sampled. Unlike a take, the event may be taken and its take committed
+	 * concurrently, so implementations must not read anything that
+	 * {@link #onCommitTakes(Event[], int)} releases. The default calls
+	 * {@link #onTake(Event)}.
+	 * </p>
+	 *
+	 * @param stored
+	 * @return the event to copy into the sample
+	 */
+	protected Event onInspect(Event stored) {
+		return this.onTake(stored);
+	}
+
+	/**
+	 * <p>
+	 * Called when a transaction that took <code>events[0..count)</code>
+	 * commits, i.e. when those stored events leave the channel for good.
+	 * </p>
+	 *
+	 * @param events
+	 * @param count
+	 */
+	protected void onCommitTakes(Event[] events, int count) {
+	}
+
+	/**
+	 * @param name
+	 * @return the counter this channel reports its metrics through
+	 */
+	protected ChannelCounter createChannelCounter(String name) {
+		return new ChannelCounter(name);
+	}
+
+	@Override
+	protected ChannelCounter getChannelCounter() {
+		return this.channelCounter;
+	}
+
+	/**
+	 * <p>
+	 * Removes expired events from the head of the ring in batches of
+	 * <code>transactionCapacity</code>. Rolled back events are left to take
+	 * time expiry.
+	 * </p>
+	 */
+	@Override
+	protected int purgeExpired(EventExpiry expiry, long now) {
+		EventRingBuffer queue = this.queue;
+		Event[] purged = new Event[this.transCapacity];
+		int total = 0;
+		boolean more = true;
+		while (more) {
+			int count = 0;
+			int slots = 0;
+			while (count < purged.length) {
+				Event head = queue.peek();
+				if (head == null || !expiry.isExpired(head, now)) {
+					more = false;
+					break;
+				}
+				Event event = queue.poll();
+				if (event == null) {
+					more = false;
+					break;
+				}
+				if (event != head && !expiry.isExpired(event, now)) {
+					// 与消费者竞争时取到了未过期的Event，像回滚一样放回队首
+					this.redelivered.addFirst(event);
+					this.redeliveredSize.incrementAndGet();
+					this.notEmpty.signalAll();
+					more = false;
+					break;
+				}
+				purged[count++] = event;
+				slots += this.estimateEventSlots(event);
+			}
+			if (count == 0) {
+				break;
+			}
+			this.queueRemaining.addAndGet(count);
+			this.onCommitTakes(purged, count);
+			this.releaseBytes(slots);
+			Arrays.fill(purged, 0, count, null);
+			total += count;
+		}
+		if (total > 0) {
+			this.channelCounter.setChannelSize(this.size());
+		}
+		return total;
+	}
+
+	/**
+	 * 先取回滚放回的Event，再取环形队列中的Event
+	 *
+	 * @return
+	 */
+	private Event pollEvent() {
+		if (this.redeliveredSize.get() > 0) {
+			Event event = this.redelivered.pollFirst();
+			if (event != null) {
+				this.redeliveredSize.decrementAndGet();
+				return event;
+			}
+		}
+		return this.queue.poll();
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Math.max(0, this.queueRemaining.get());
+	}
+
+	/**
+	 * <p>
+	 * Looks at the rolled back events and the head of the ring without
+	 * taking any lock or claiming any slot, so it never holds up puts and
+	 * takes. The byte count is what is charged against
+	 * <code>byteCapacity</code>, including events taken by open transactions.
+	 * </p>
+	 */
+	@Override
+	public ChannelInspection inspect(int sampleSize) {
+		Preconditions.checkArgument(sampleSize >= 0, "sampleSize must not be negative: %s", sampleSize);
+		sampleSize = Math.min(sampleSize, ChannelInspection.MAX_SAMPLE_SIZE);
+		List<Event> sample = new ArrayList<>(sampleSize);
+		Event head = null;
+		// 回滚的Event先于环中的Event被取走
+		for (Event stored : this.redelivered) {
+			if (head == null) {
+				head = stored;
+			}
+			if (sample.size() >= sampleSize) {
+				break;
+			}
+			sample.add(inspectionCopy(this.onInspect(stored)));
+		}
+		if (head == null || sample.size() < sampleSize) {
+			Event[] ring = new Event[Math.max(1, sampleSize - sample.size())];
+			int count = this.queue.peek(ring, ring.length);
+			if (head == null && count > 0) {
+				head = ring[0];
+			}
+			for (int i = 0; i < count && sample.size() < sampleSize; i++) {
+				sample.add(inspectionCopy(this.onInspect(ring[i])));
+			}
+		}
+		long bytes = (long) ((this.lastByteCapacity - this.bytesRemaining.available()) * byteCapacitySlotSize);
+		return new ChannelInspection(this.size(), bytes, ageOf(head, System.currentTimeMillis()), sample);
+	}
+
+	/**
+	 * @return the number of events currently stored in the channel
+	 */
+	private int size() {
+		return this.queue.size() + Math.max(0, this.redeliveredSize.get());
+	}
+
+	@Override
+	public synchronized void start() {
+		if (this.governor == null) {
+			this.governor = MemoryGovernor.getInstance();
+		}
+		// 重启时Channel中还保留的Event也计入预算
+		long held = (long) ((this.lastByteCapacity - this.bytesRemaining.available()) * byteCapacitySlotSize);
+		this.lease = this.governor.register(this.getName(), this.leaseContext, held, new Runnable() {
+			@Override
+			public void run() {
+				notFull.signalAll();
+			}
+		});
+		if (this.snapshotFile != null) {
+			this.restoreSnapshot(this.snapshotFile);
+		}
+
+		this.channelCounter.start();
+		this.channelCounter.setChannelSize(this.size());
+		this.channelCounter.setChannelCapacity(Long.valueOf(this.capacity));
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		this.channelCounter.setChannelSize(this.size());
+		this.channelCounter.stop();
+		super.stop();
+
+		if (this.snapshotFile != null) {
+			this.writeSnapshot(this.snapshotFile);
+		}
+		MemoryGovernor.Lease lease = this.lease;
+		if (lease != null) {
+			this.lease = null;
+			lease.close();
+		}
+	}
+
+	/**
+	 * <p>
+	 * Moves every queued event into the snapshot file: a magic number, then
+	 * each event as a <code>true</code> flag followed by its
+	 * {@link EventCodec} form, then <code>false</code> and the event count.
+	 * The file is written next to its final name and renamed when complete.
+	 * If writing fails the events stay in the channel.
+	 * </p>
+	 *
+	 * @param file
+	 */
+	private void writeSnapshot(File file) {
+		long start = System.nanoTime();
+		// 先全部写出再释放，写失败时原样放回
+		List<Event> drained = new ArrayList<Event>(this.size());
+		Event event;
+		while ((event = this.pollEvent()) != null) {
+			drained.add(event);
+		}
+		if (drained.isEmpty()) {
+			return;
+		}
+
+		File temp = new File(file.getPath() + ".tmp");
+		try {
+			FileOutputStream fileOut = new FileOutputStream(temp);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, SNAPSHOT_BUFFER_SIZE));
+			try {
+				out.writeInt(SNAPSHOT_MAGIC);
+				for (Event stored : drained) {
+					out.writeBoolean(true);
+					EventCodec.write(out, this.onTake(stored));
+				}
+				out.writeBoolean(false);
+				out.writeLong(drained.size());
+				// 改名前先落盘，掉电后不会留下名字正确但内容不完整的快照
+				out.flush();
+				fileOut.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOGGER.error("Channel {}: unable to write snapshot {}, keeping {} events in memory", this.getName(),
+					file, drained.size(), e);
+			temp.delete();
+			for (Event stored : drained) {
+				this.redelivered.addLast(stored);
+			}
+			this.redeliveredSize.addAndGet(drained.size());
+			return;
+		}
+
+		Event[] batch = new Event[this.transCapacity];
+		int count = 0;
+		int slots = 0;
+		for (int i = 0; i < drained.size(); i++) {
+			batch[count] = drained.get(i);
+			slots += this.estimateEventSlots(batch[count]);
+			if (++count == batch.length || i == drained.size() - 1) {
+				this.onCommitTakes(batch, count);
+				this.queueRemaining.addAndGet(count);
+				this.releaseBytes(slots);
+				Arrays.fill(batch, 0, count, null);
+				count = 0;
+				slots = 0;
+			}
+		}
+		this.channelCounter.setChannelSize(this.size());
+		LOGGER.info("Channel {}: wrote {} events to snapshot {} in {} ms", this.getName(), drained.size(), file,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * <p>
+	 * Loads the events of a snapshot written by a previous run, in batches
+	 * of <code>transactionCapacity</code> that go through the same hooks as a
+	 * commit. Events beyond the capacity of the channel are dropped. The
+	 * file is deleted once read, so its events are never loaded twice; a
+	 * file that cannot be read is renamed to <code>.bad</code>.
+	 * </p>
+	 *
+	 * @param file
+	 */
+	private void restoreSnapshot(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		long start = System.nanoTime();
+		long restored = 0;
+		long dropped = 0;
+		Event[] batch = new Event[this.transCapacity];
+		int count = 0;
+		try {
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(file), SNAPSHOT_BUFFER_SIZE));
+			try {
+				if (in.readInt() != SNAPSHOT_MAGIC) {
+					throw new IOException("Not a memory channel snapshot");
+				}
+				long read = 0;
+				while (in.readBoolean()) {
+					Event event = EventCodec.read(in);
+					batch[count++] = event;
+					read++;
+					if (count == batch.length) {
+						int stored = this.restoreBatch(batch, count);
+						restored += stored;
+						dropped += count - stored;
+						count = 0;
+					}
+				}
+				long expected = in.readLong();
+				if (expected != read) {
+					throw new IOException("Snapshot holds " + read + " events, expected " + expected);
+				}
+			} finally {
+				in.close();
+			}
+			if (!file.delete()) {
+				LOGGER.warn("Channel {}: unable to delete snapshot {}", this.getName(), file);
+			}
+		} catch (IOException e) {
+			if (e instanceof EOFException) {
+				LOGGER.error("Channel {}: snapshot {} is truncated", this.getName(), file);
+			} else {
+				LOGGER.error("Channel {}: unable to read snapshot {}", this.getName(), file, e);
+			}
+			File bad = new File(file.getPath() + ".bad");
+			if (!file.renameTo(bad)) {
+				file.delete();
+			}
+		}
+		// 已完整读出的Event照常恢复
+		if (count > 0) {
+			int stored = this.restoreBatch(batch, count);
+			restored += stored;
+			dropped += count - stored;
+		}
+		if (dropped > 0) {
+			LOGGER.warn("Channel {}: {} events of snapshot {} exceed the capacity and were dropped",
+					this.getName(), dropped, file);
+		}
+		LOGGER.info("Channel {}: restored {} events from snapshot {} in {} ms", this.getName(), restored, file,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/**
+	 * 按commit的流程放入一批快照中的Event，容量不足时不等待，直接丢弃剩余的
+	 *
+	 * @return the number of events stored
+	 */
+	private int restoreBatch(Event[] events, int count) {
+		int kept = this.onPreparePuts(events, count);
+		if (kept >= 0) {
+			count = kept;
+		}
+		// start时还没有source写入，容量只会被这里占用
+		int stored = 0;
+		int slots = 0;
+		while (stored < count && this.queueRemaining.get() > 0) {
+			int eventSlots = this.estimateEventSlots(events[stored]);
+			if (!this.tryAcquireBytes(eventSlots, true)) {
+				break;
+			}
+			this.queueRemaining.decrementAndGet();
+			slots += eventSlots;
+			stored++;
+		}
+		if (stored < count) {
+			this.onAbortPuts(Arrays.copyOfRange(events, stored, count), count - stored);
+		}
+		if (stored > 0) {
+			try {
+				this.onCommitPuts(events, stored);
+				this.onPublishPuts(events, stored);
+				this.queue.publish(events, 0, stored);
+			} catch (ChannelException e) {
+				LOGGER.warn("Channel {}: unable to restore {} snapshot events", this.getName(), stored, e);
+				this.onAbortPuts(events, stored);
+				this.queueRemaining.addAndGet(stored);
+				this.releaseBytes(slots);
+				stored = 0;
+			}
+		}
+		Arrays.fill(events, 0, events.length, null);
+		return stored;
+	}
+
+	/**
+	 * Uses the given governor instead of the agent wide one. Must be called
+	 * before the channel is started.
+	 *
+	 * @param governor
+	 */
+	void setMemoryGovernor(MemoryGovernor governor) {
+		this.governor = governor;
+	}
+
+	@Override
+	protected BasicTransactionSemantics createTransaction() {
+		return new MemoryTransaction(this.transCapacity, this.channelCounter);
+	}
 }
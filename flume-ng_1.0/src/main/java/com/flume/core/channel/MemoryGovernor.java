@@ -0,0 +1,359 @@
+package com.flume.core.channel;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * The heap budget shared by all memory-backed channels of an agent. A
+ * channel holds a {@link Lease} while it runs and charges the bytes of the
+ * events it buffers to it, on top of its own <code>byteCapacity</code>.
+ * </p>
+ * <p>
+ * Each lease may reserve a minimum that is always available to it and to no
+ * other channel. The rest of the budget is a shared pool that channels
+ * borrow from beyond their reservation as their borrow policy allows:
+ * </p>
+ * <dl>
+ * <dt>greedy</dt>
+ * <dd>Borrows whatever the shared pool has left (the default).</dd>
+ * <dt>fair</dt>
+ * <dd>Borrows at most an equal share of the shared pool among all borrowing
+ * channels.</dd>
+ * <dt>none</dt>
+ * <dd>Never exceeds the reservation.</dd>
+ * </dl>
+ * <p>
+ * A channel that cannot get the bytes for a commit within
+ * <code>keep-alive</code> fails it with a
+ * {@link com.flume.core.ChannelFullException}, so backpressure hits the
+ * channel that is over its share while the others keep their reservations.
+ * </p>
+ * <p>
+ * The budget of the agent wide instance is read from the system property
+ * <code>flume.memory.budget</code> in bytes and defaults to 80% of the
+ * maximum heap. Channels read their lease from context
+ * <li>memoryReservation = type long, bytes reserved for the channel (default
+ * 0).
+ * <li>memoryBorrowPolicy = greedy, fair or none (default greedy).
+ * </p>
+ *
+ * @Description Agent内所有内存Channel共享的堆内存预算：每个Channel可保留最小额度，超出部分按策略从共享池借用
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public class MemoryGovernor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MemoryGovernor.class);
+
+	public static final String BUDGET_PROPERTY = "flume.memory.budget";
+	public static final String CONFIG_RESERVATION = "memoryReservation";
+	public static final String CONFIG_BORROW_POLICY = "memoryBorrowPolicy";
+
+	private static final long defaultBudget = (long) (Runtime.getRuntime().maxMemory() * .80);
+
+	private static volatile MemoryGovernor instance;
+
+	/**
+	 * @Description 超出保留额度后从共享池借用的策略
+	 */
+	public enum BorrowPolicy {
+		GREEDY, FAIR, NONE
+	}
+
+	private final long budget;
+	/**
+	 * 共享池中尚未借出的字节数，强制借用时可以为负
+	 */
+	private final AtomicLong sharedFree;
+	private final List<Lease> leases = new CopyOnWriteArrayList<Lease>();
+	private long reserved = 0;
+	private volatile long sharedSize;
+	private volatile int borrowers = 0;
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param budget
+	 *            the total number of bytes shared by the channels
+	 */
+	public MemoryGovernor(long budget) {
+		Preconditions.checkArgument(budget > 0, "Memory budget must be positive: %s", budget);
+		this.budget = budget;
+		this.sharedSize = budget;
+		this.sharedFree = new AtomicLong(budget);
+	}
+
+	/**
+	 * @return the governor shared by all channels of this agent
+	 */
+	public static MemoryGovernor getInstance() {
+		MemoryGovernor governor = instance;
+		if (governor == null) {
+			synchronized (MemoryGovernor.class) {
+				governor = instance;
+				if (governor == null) {
+					governor = new MemoryGovernor(Long.getLong(BUDGET_PROPERTY, defaultBudget));
+					instance = governor;
+					LOGGER.info("Memory budget shared by the channels of this agent is {} bytes", governor.budget);
+				}
+			}
+		}
+		return governor;
+	}
+
+	/**
+	 * <p>
+	 * Registers a channel. A reservation larger than what is left of the
+	 * budget is cut down to it. The channel may already hold
+	 * <code>used</code> bytes, e.g. events kept over a restart; they are
+	 * charged even if that overdraws the shared pool.
+	 * </p>
+	 *
+	 * @param name
+	 *            the channel name, for logging
+	 * @param context
+	 *            the channel context holding the lease parameters
+	 * @param used
+	 *            the bytes the channel holds already
+	 * @param listener
+	 *            run when bytes are returned to the shared pool, so that a
+	 *            channel waiting for them can retry
+	 * @return the lease, to be closed when the channel stops
+	 */
+	public Lease register(String name, Context context, long used, Runnable listener) {
+		long reservation = context.getLong(CONFIG_RESERVATION, 0L);
+		Preconditions.checkArgument(reservation >= 0, "memoryReservation must not be negative");
+		String policyName = context.getString(CONFIG_BORROW_POLICY, BorrowPolicy.GREEDY.name());
+		BorrowPolicy policy;
+		try {
+			policy = BorrowPolicy.valueOf(policyName.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown memoryBorrowPolicy " + policyName, e);
+		}
+
+		Lease lease;
+		synchronized (this) {
+			if (reservation > this.budget - this.reserved) {
+				LOGGER.warn("Channel {}: memoryReservation of {} bytes exceeds the {} bytes left of the memory"
+						+ " budget, reserving those", name, reservation, this.budget - this.reserved);
+				reservation = this.budget - this.reserved;
+			}
+			this.reserved += reservation;
+			this.sharedSize = this.budget - this.reserved;
+			this.sharedFree.addAndGet(-reservation);
+			if (policy != BorrowPolicy.NONE) {
+				this.borrowers++;
+			}
+			lease = new Lease(name, reservation, policy, listener);
+			this.leases.add(lease);
+		}
+		lease.forceAcquire(used);
+		return lease;
+	}
+
+	/**
+	 * @return the total number of bytes governed
+	 */
+	public long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return the bytes of the shared pool not lent out, negative while it
+	 *         is overdrawn
+	 */
+	public long getSharedFree() {
+		return this.sharedFree.get();
+	}
+
+	private synchronized void unregister(Lease lease) {
+		if (!this.leases.remove(lease)) {
+			return;
+		}
+		this.reserved -= lease.reservation;
+		this.sharedSize = this.budget - this.reserved;
+		this.sharedFree.addAndGet(lease.reservation);
+		if (lease.policy != BorrowPolicy.NONE) {
+			this.borrowers--;
+		}
+	}
+
+	private boolean borrow(long bytes) {
+		for (;;) {
+			long free = this.sharedFree.get();
+			if (free < bytes) {
+				return false;
+			}
+			if (this.sharedFree.compareAndSet(free, free - bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 归还共享池后通知其它Channel，被借满而等待的Channel可以重试
+	 */
+	private void giveBack(long bytes, Lease from) {
+		this.sharedFree.addAndGet(bytes);
+		for (Lease lease : this.leases) {
+			if (lease != from && lease.listener != null) {
+				lease.listener.run();
+			}
+		}
+	}
+
+	/**
+	 * <p>
+	 * The share of the budget held by one channel. Bytes up to the
+	 * reservation come out of the reservation, bytes beyond it are borrowed
+	 * from the shared pool.
+	 * </p>
+	 */
+	public final class Lease {
+
+		private final String name;
+		private final long reservation;
+		private final BorrowPolicy policy;
+		private final Runnable listener;
+
+		private long used = 0;
+		private long borrowed = 0;
+		private boolean closed = false;
+
+		private Lease(String name, long reservation, BorrowPolicy policy, Runnable listener) {
+			this.name = name;
+			this.reservation = reservation;
+			this.policy = policy;
+			this.listener = listener;
+		}
+
+		/**
+		 * @return the most this lease may borrow under its policy right now
+		 */
+		private long borrowLimit() {
+			switch (this.policy) {
+			case NONE:
+				return 0L;
+			case FAIR:
+				return sharedSize / Math.max(1, borrowers);
+			default:
+				return Long.MAX_VALUE;
+			}
+		}
+
+		/**
+		 * Charges the bytes if the reservation and the borrow policy allow it.
+		 *
+		 * @param bytes
+		 * @return false if the channel is over its share
+		 */
+		public synchronized boolean tryAcquire(long bytes) {
+			if (bytes <= 0 || this.closed) {
+				return true;
+			}
+			long used = this.used + bytes;
+			long borrowed = Math.max(0L, used - this.reservation);
+			long extra = borrowed - this.borrowed;
+			if (extra > 0 && (borrowed > this.borrowLimit() || !borrow(extra))) {
+				return false;
+			}
+			this.used = used;
+			this.borrowed = borrowed;
+			return true;
+		}
+
+		/**
+		 * Charges the bytes unconditionally, overdrawing the shared pool if
+		 * needed.
+		 *
+		 * @param bytes
+		 */
+		public synchronized void forceAcquire(long bytes) {
+			if (bytes <= 0 || this.closed) {
+				return;
+			}
+			this.used += bytes;
+			long borrowed = Math.max(0L, this.used - this.reservation);
+			sharedFree.addAndGet(this.borrowed - borrowed);
+			this.borrowed = borrowed;
+		}
+
+		/**
+		 * @param bytes
+		 *            the bytes no longer held by the channel
+		 */
+		public void release(long bytes) {
+			long returned;
+			synchronized (this) {
+				if (bytes <= 0 || this.closed) {
+					return;
+				}
+				this.used = Math.max(0L, this.used - bytes);
+				long borrowed = Math.max(0L, this.used - this.reservation);
+				returned = this.borrowed - borrowed;
+				this.borrowed = borrowed;
+			}
+			if (returned > 0) {
+				giveBack(returned, this);
+			}
+		}
+
+		/**
+		 * Returns everything the lease holds to the governor.
+		 */
+		public void close() {
+			long returned;
+			synchronized (this) {
+				if (this.closed) {
+					return;
+				}
+				this.closed = true;
+				returned = this.borrowed;
+				this.used = 0;
+				this.borrowed = 0;
+			}
+			unregister(this);
+			if (returned > 0) {
+				giveBack(returned, this);
+			}
+		}
+
+		/**
+		 * @return the bytes currently charged to this lease
+		 */
+		public synchronized long getUsed() {
+			return this.used;
+		}
+
+		/**
+		 * @return the bytes currently borrowed from the shared pool
+		 */
+		public synchronized long getBorrowed() {
+			return this.borrowed;
+		}
+
+		public long getReservation() {
+			return this.reservation;
+		}
+
+		public BorrowPolicy getPolicy() {
+			return this.policy;
+		}
+
+		@Override
+		public String toString() {
+			return "Lease[" + this.name + ", reservation = " + this.reservation + ", policy = " + this.policy + "]";
+		}
+	}
+}
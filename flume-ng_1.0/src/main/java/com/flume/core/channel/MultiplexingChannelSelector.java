@@ -1,15 +1,22 @@
 package com.flume.core.channel;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.flume.configuration.Context;
 import com.flume.core.Channel;
+import com.flume.core.ChannelRouting;
 import com.flume.sdk.Event;
 import com.flume.sdk.FlumeException;
 
@@ -36,6 +43,36 @@ import com.flume.sdk.FlumeException;
  * agent_foo.sources.avro-AppSrv-source1.selector.default = mem-channel-1
  * <p>
  * 
+ * <p>
+ * The selector can also route on a combination of headers. <code>header</code>
+ * then lists several header names separated by spaces, and the keys of
+ * <code>mapping.</code> and <code>optional.</code> hold one value per header,
+ * separated by <code>|</code>. A value of <code>*</code> matches any value
+ * of its header, including a missing or blank one; otherwise missing and
+ * blank values match nothing. When several rules match, the one matching
+ * the first header exactly wins over the one with a wildcard there, then
+ * the second header decides, and so on. An event that matches no rule goes
+ * to the default channels. For example
+ * <p>
+ * agent_foo.sources.avro-AppSrv-source1.selector.header = State Tier
+ * <p>
+ * agent_foo.sources.avro-AppSrv-source1.selector.mapping.CA|gold =
+ * mem-channel-1
+ * <p>
+ * agent_foo.sources.avro-AppSrv-source1.selector.mapping.*|gold =
+ * file-channel-2
+ * <p>
+ * agent_foo.sources.avro-AppSrv-source1.selector.optional.CA|* =
+ * file-channel-3
+ * <p>
+ * Each rule holds its required and its optional channels; a rule with only
+ * optional channels has the default channels as required ones, as with a
+ * single header. The rules are compiled at configure time into a tree with
+ * one level per header, where every node already includes the wildcard
+ * rules that apply below it. Routing an event takes one hash lookup per
+ * header, without backtracking, and yields both channel lists at once.
+ * <p>
+ * 
  * http://blog.csdn.net/qianshangding0708/article/details/49738415
  * 
  * @author Administrator
@@ -50,37 +87,71 @@ public class MultiplexingChannelSelector extends AbstractChannelSelector {
 	public static final String CONFIG_PREFIX_MAPPING = "mapping.";
 	public static final String CONFIG_DEFAULT_CHANNEL = "default";
 	public static final String CONFIG_PREFIX_OPTIONAL = "optional";
+	/**
+	 * 多个header时，规则中各header取值的分隔符和通配符
+	 */
+	public static final String VALUE_SEPARATOR = "|";
+	public static final String WILDCARD = "*";
 
 	private static final List<Channel> EMPTY_LIST = Collections.emptyList();
 
-	private String headerName;
+	private String[] headerNames;
+
+	/**
+	 * 编译后的决策树，每层对应一个header
+	 */
+	private Node root;
+	private Route defaultRoute;
+
+	/**
+	 * 一条规则或一个Event的路由结果：required和optional channel
+	 */
+	private static final class Route {
+
+		private final List<Channel> required;
+		private final List<Channel> optional;
+
+		private Route(List<Channel> required, List<Channel> optional) {
+			this.required = required;
+			this.optional = optional;
+		}
+	}
+
+	/**
+	 * 决策树的节点：按本层header的取值找到下一层，取值不匹配时走通配节点；最后一层之下的节点持有路由结果
+	 */
+	private static final class Node {
 
-	private Map<String, List<Channel>> channelMapping;
-	private Map<String, List<Channel>> optionalChannels;
-	private List<Channel> defaultChannels;
+		private final Map<String, Node> children = new HashMap<>();
+		private Node wildcard;
+		private Route route;
+	}
 
 	@Override
 	public void configure(Context context) {
 		// TODO Auto-generated method stub
-		this.headerName = context.getString(CONFIG_MULTIPLEX_HEADER_NAME, DEFAULT_MULTIPLEX_HEADER);// 获取Header的值
+		// 获取Header的名称，多个header以空格分隔
+		this.headerNames = context.getString(CONFIG_MULTIPLEX_HEADER_NAME, DEFAULT_MULTIPLEX_HEADER).trim()
+				.split("\\s+");
 
 		Map<String, Channel> channelNameMap = this.getChannelNameMap();
 
-		this.defaultChannels = this.getChannelListFromNames(context.getString(CONFIG_DEFAULT_CHANNEL), channelNameMap);// 获取默认的Channel
+		List<Channel> defaultChannels = this.getChannelListFromNames(context.getString(CONFIG_DEFAULT_CHANNEL),
+				channelNameMap);// 获取默认的Channel
 
 		Map<String, String> mapConfig = context.getSubProperties(CONFIG_PREFIX_MAPPING);// 获取Mapping的值
-		this.channelMapping = new HashMap<>();// channelMapping变量存放了header变量中必须的Channel列表
-		// 将header对应的Channels存放到channelMapping变量中。
-		for (String headerValue : mapConfig.keySet()) {
-			List<Channel> configuredChannels = this.getChannelListFromNames(mapConfig.get(headerValue), channelNameMap);
+		// 规则的header取值（null表示通配）及其required channel
+		Map<List<String>, List<Channel>> channelMapping = new LinkedHashMap<>();
+		for (String key : mapConfig.keySet()) {
+			List<Channel> configuredChannels = this.getChannelListFromNames(mapConfig.get(key), channelNameMap);
 
 			// This should not go to default channel(s)
 			// because this seems to be a bad way to configure.
 			if (configuredChannels.size() == 0) {
-				throw new FlumeException("No channel configured for when " + "header value is: " + headerValue);
+				throw new FlumeException("No channel configured for when " + "header value is: " + key);
 			}
 
-			if (this.channelMapping.put(headerValue, configuredChannels) != null) {
+			if (channelMapping.put(this.parseKey(key), configuredChannels) != null) {
 				throw new FlumeException("Selector channel configured twice");
 			}
 		}
@@ -88,67 +159,203 @@ public class MultiplexingChannelSelector extends AbstractChannelSelector {
 		// If no mapping is configured, it is ok.
 		// All events will go to the default channel(s).
 		Map<String, String> optionalChannelsMapping = context.getSubProperties(CONFIG_PREFIX_OPTIONAL + ".");
-
-		this.optionalChannels = new HashMap<>();
-		for (String hdr : optionalChannelsMapping.keySet()) {
-			List<Channel> confChannels = this.getChannelListFromNames(optionalChannelsMapping.get(hdr), channelNameMap);
-			if (confChannels.isEmpty()) {
-				confChannels = EMPTY_LIST;
+		Map<List<String>, List<Channel>> optionalMapping = new LinkedHashMap<>();
+		for (String key : optionalChannelsMapping.keySet()) {
+			List<Channel> confChannels = this.getChannelListFromNames(optionalChannelsMapping.get(key),
+					channelNameMap);
+			if (optionalMapping.put(this.parseKey(key), confChannels) != null) {
+				throw new FlumeException("Selector channel configured twice");
 			}
+		}
 
-			// Remove channels from optional channels, which are already
-			// configured to be required channels.
-			List<Channel> reqdChannels = this.channelMapping.get(hdr);// 在必须的channelMapping中查找出optional的Channel
+		// 每条规则的required和optional channel，optional中去掉已经是required的channel
+		Map<List<String>, Route> rules = new LinkedHashMap<>();
+		for (List<String> values : channelMapping.keySet()) {
+			rules.put(values, null);
+		}
+		for (List<String> values : optionalMapping.keySet()) {
+			rules.put(values, null);
+		}
+		for (Map.Entry<List<String>, Route> rule : rules.entrySet()) {
 			// Check if there are required channels, else defaults to default
 			// channels
-			if (reqdChannels == null || reqdChannels.isEmpty()) {
+			List<Channel> reqdChannels = channelMapping.get(rule.getKey());
+			if (reqdChannels == null) {
 				reqdChannels = defaultChannels;
 			}
+			rule.setValue(new Route(reqdChannels, optionalWithout(optionalMapping.get(rule.getKey()), reqdChannels)));
+		}
 
-			//// 如果header对应的Channel是必选的，那么就在optional的列表中删除
-			for (Channel c : reqdChannels) {
-				if (confChannels.contains(c)) {
-					confChannels.remove(c);
+		Node tree = new Node();
+		for (Map.Entry<List<String>, Route> rule : rules.entrySet()) {
+			Node node = tree;
+			for (String value : rule.getKey()) {
+				Node next = value == null ? node.wildcard : node.children.get(value);
+				if (next == null) {
+					next = new Node();
+					if (value == null) {
+						node.wildcard = next;
+					} else {
+						node.children.put(value, next);
+					}
 				}
+				node = next;
 			}
+			node.route = rule.getValue();
+		}
 
-			if (optionalChannels.put(hdr, confChannels) != null) {
-				throw new FlumeException("Selector channel configured twice");
+		this.defaultRoute = new Route(defaultChannels, EMPTY_LIST);
+		this.root = compile(Collections.singletonList(tree), 0, this.headerNames.length);
+		LOG.debug("Selector {} compiled {} rules on headers {}", this.getName(), rules.size(),
+				Arrays.toString(this.headerNames));
+	}
+
+	/**
+	 * 把规则的key拆分为每个header的取值，通配符记为null
+	 */
+	private List<String> parseKey(String key) {
+		String[] values;
+		if (this.headerNames.length == 1) {
+			values = new String[] { key };
+		} else {
+			values = key.split(Pattern.quote(VALUE_SEPARATOR), -1);
+			if (values.length != this.headerNames.length) {
+				throw new FlumeException("Selector rule " + key + " must have " + this.headerNames.length
+						+ " values separated by " + VALUE_SEPARATOR);
 			}
 		}
+		List<String> parsed = new ArrayList<>(values.length);
+		for (String value : values) {
+			parsed.add(WILDCARD.equals(value) ? null : value);
+		}
+		return parsed;
 	}
 
-	@Override
-	public List<Channel> getRequiredChannels(Event event) {
-		// TODO Auto-generated method stub
-		String headerValue = event.getHeaders().get(this.headerName);
+	private static List<Channel> optionalWithout(List<Channel> optional, List<Channel> required) {
+		if (optional == null || optional.isEmpty()) {
+			return EMPTY_LIST;
+		}
+		//// 如果header对应的Channel是必选的，那么就在optional的列表中删除
+		List<Channel> channels = new ArrayList<>(optional);
+		channels.removeAll(required);
+		return channels.isEmpty() ? EMPTY_LIST : channels;
+	}
+
+	/**
+	 * <p>
+	 * Compiles the nodes that apply at a level, in order of precedence, into
+	 * one node that needs no backtracking. For a value, the candidates below
+	 * are the exact child and then the wildcard child of each node in turn;
+	 * a missing value only has the wildcard children. Below the last level
+	 * the route of the first candidate that has one wins.
+	 * </p>
+	 *
+	 * @return the compiled node, or null if no rule applies
+	 */
+	private static Node compile(List<Node> nodes, int level, int levels) {
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		Node compiled = new Node();
+		if (level == levels) {
+			for (Node node : nodes) {
+				if (node.route != null) {
+					compiled.route = node.route;
+					return compiled;
+				}
+			}
+			return null;
+		}
 
-		if (headerValue == null || headerValue.trim().length() == 0) {
-			return this.defaultChannels;
+		Set<String> values = new LinkedHashSet<>();
+		List<Node> wildcards = new ArrayList<>();
+		for (Node node : nodes) {
+			values.addAll(node.children.keySet());
+			if (node.wildcard != null) {
+				wildcards.add(node.wildcard);
+			}
+		}
+		for (String value : values) {
+			List<Node> candidates = new ArrayList<>();
+			for (Node node : nodes) {
+				Node child = node.children.get(value);
+				if (child != null) {
+					candidates.add(child);
+				}
+				if (node.wildcard != null) {
+					candidates.add(node.wildcard);
+				}
+			}
+			Node child = compile(candidates, level + 1, levels);
+			if (child != null) {
+				compiled.children.put(value, child);
+			}
+		}
+		compiled.wildcard = compile(wildcards, level + 1, levels);
+		if (compiled.children.isEmpty() && compiled.wildcard == null) {
+			return null;
 		}
+		return compiled;
+	}
 
-		List<Channel> channels = this.channelMapping.get(headerValue);
+	/**
+	 * 沿决策树每层查找一次，未匹配任何规则时返回默认路由
+	 */
+	private Route route(Event event) {
+		Map<String, String> headers = event.getHeaders();
+		String[] names = this.headerNames;
+		Node node = this.root;
+		for (int i = 0; node != null && i < names.length; i++) {
+			String value = headers.get(names[i]);
+			Node next = isBlank(value) ? null : node.children.get(value);
+			node = next != null ? next : node.wildcard;
+		}
+		return node == null ? this.defaultRoute : node.route;
+	}
 
-		// This header value does not point to anything
-		// Return default channel(s) here.
-		if (channels == null) {
-			channels = this.defaultChannels;
+	/**
+	 * 与trim().length() == 0等价，但不产生新的字符串
+	 */
+	private static boolean isBlank(String value) {
+		if (value == null) {
+			return true;
+		}
+		for (int i = 0, n = value.length(); i < n; i++) {
+			if (value.charAt(i) > ' ') {
+				return false;
+			}
 		}
+		return true;
+	}
 
-		return channels;
+	@Override
+	public List<Channel> getRequiredChannels(Event event) {
+		// TODO Auto-generated method stub
+		return this.route(event).required;
 	}
 
 	@Override
 	public List<Channel> getOptionalChannels(Event event) {
 		// TODO Auto-generated method stub
-		String hdr = event.getHeaders().get(this.headerName);
-
-		List<Channel> channels = this.optionalChannels.get(hdr);
+		return this.route(event).optional;
+	}
 
-		if (channels == null) {
-			channels = EMPTY_LIST;
+	/**
+	 * 每个Event只查找一次决策树，同时得到required和optional channel
+	 */
+	@Override
+	public void route(List<Event> events, ChannelRouting routing) {
+		for (int i = 0, n = events.size(); i < n; i++) {
+			Event event = events.get(i);
+			Route route = this.route(event);
+			List<Channel> required = route.required;
+			for (int j = 0, m = required.size(); j < m; j++) {
+				routing.addRequired(required.get(j), event);
+			}
+			List<Channel> optional = route.optional;
+			for (int j = 0, m = optional.size(); j < m; j++) {
+				routing.addOptional(optional.get(j), event);
+			}
 		}
-
-		return channels;
 	}
 }
@@ -0,0 +1,428 @@
+package com.flume.core.channel;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.event.SimpleEvent;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.core.instrumentation.OffHeapChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A {@link MemoryChannel} that keeps event bodies outside the Java heap. On
+ * commit the bodies of the batch are copied into fixed-size blocks carved out
+ * of pooled direct {@link ByteBuffer} slabs, and the queue only holds small
+ * descriptors (headers plus block indices). A take copies the body back into
+ * a heap event; the blocks are returned to the pool when the take commits.
+ * A commit that finds the off-heap space full waits up to keep-alive for
+ * takes to return blocks, as it does for the heap capacity.
+ * </p>
+ * <p>
+ * Because the queued bodies no longer live in the old generation, GC pauses
+ * do not grow with the depth of the channel. The heap byte budget of
+ * {@link MemoryChannel} still applies, but only to headers and descriptors.
+ * </p>
+ * <p>
+ * The events sampled by {@link #inspect(int)} carry their headers and an
+ * empty body: a concurrent take may release the blocks of a sampled event
+ * and they may be reused for another one while being read.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>offHeapByteCapacity = type long, the number of direct memory bytes the
+ * bodies may occupy (default 512MB). The JVM's -XX:MaxDirectMemorySize must
+ * be at least this large.
+ * <li>offHeapSlabSize = type int, the size of each direct buffer allocated
+ * from the JVM (default 4MB).
+ * <li>offHeapBlockSize = type int, the allocation unit inside a slab (default
+ * 512 bytes).
+ * </p>
+ *
+ * @Description 堆外内存的MemoryChannel，Event body存放在直接内存的slab中，队列中只保留描述符
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class OffHeapMemoryChannel extends MemoryChannel {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(OffHeapMemoryChannel.class);
+
+	private static final long defaultOffHeapByteCapacity = 512L * 1024 * 1024;
+	private static final int defaultSlabSize = 4 * 1024 * 1024;
+	private static final int defaultBlockSize = 512;
+
+	/**
+	 * 描述符对象本身（字段和对象头）在堆上的开销，单位：字节
+	 */
+	private static final int DESCRIPTOR_OVERHEAD = 48;
+
+	/**
+	 * 堆外空间不足时抛出的异常，预先分配且不带堆栈
+	 */
+	private static final ChannelFullException OFF_HEAP_FULL = new ChannelFullException(
+			"Off-heap space for commit to queue couldn't be acquired."
+					+ " Sinks are likely not keeping up with sources, or offHeapByteCapacity is too tight",
+			false);
+
+	private volatile SlabPool pool;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		long byteCapacity = context.getLong("offHeapByteCapacity", defaultOffHeapByteCapacity);
+		int slabSize = context.getInteger("offHeapSlabSize", defaultSlabSize);
+		int blockSize = context.getInteger("offHeapBlockSize", defaultBlockSize);
+
+		Preconditions.checkArgument(byteCapacity > 0, "offHeapByteCapacity must be positive");
+		Preconditions.checkArgument(blockSize > 0, "offHeapBlockSize must be positive");
+		Preconditions.checkArgument(slabSize >= blockSize && slabSize % blockSize == 0,
+				"offHeapSlabSize must be a multiple of offHeapBlockSize");
+
+		if (this.pool == null) {
+			this.pool = new SlabPool(byteCapacity, slabSize, blockSize);
+		} else {
+			if (this.pool.blockSize != blockSize || this.pool.slabSize != slabSize) {
+				LOGGER.warn("Channel {}: off-heap slab and block sizes cannot change while events are buffered,"
+						+ " keeping slab size {} and block size {}", this.getName(), this.pool.slabSize,
+						this.pool.blockSize);
+			}
+			this.pool.setByteCapacity(byteCapacity);
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		super.start();
+		this.updateCounters();
+	}
+
+	@Override
+	protected ChannelCounter createChannelCounter(String name) {
+		return new OffHeapChannelCounter(name);
+	}
+
+	/**
+	 * 只有header和描述符计入堆内的byteCapacity，body在堆外
+	 */
+	@Override
+	protected long estimateEventSize(Event event) {
+		return ChannelUtils.estimateHeaderSize(event.getHeaders()) + DESCRIPTOR_OVERHEAD;
+	}
+
+	/**
+	 * 堆外空间不足时与堆内容量一样在keep-alive内等待take提交释放块
+	 */
+	@Override
+	protected void onCommitPuts(Event[] events, int count) {
+		final SlabPool slabs = this.pool;
+		int totalBlocks = 0;
+		for (int i = 0; i < count; i++) {
+			totalBlocks += slabs.blocksFor(lengthOf(events[i].getBody()));
+		}
+
+		// 整批一次性分配，只进入一次池的锁
+		int[] blocks = slabs.allocate(totalBlocks);
+		if (blocks == null) {
+			if (!slabs.canHold(totalBlocks)) {
+				// 整个池都放不下，等待也没有用
+				throw OFF_HEAP_FULL;
+			}
+			final int needed = totalBlocks;
+			try {
+				blocks = this.awaitCapacity(new Supplier<int[]>() {
+					@Override
+					public int[] get() {
+						return slabs.allocate(needed);
+					}
+				});
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ChannelException(e.toString(), e);
+			}
+			if (blocks == null) {
+				throw OFF_HEAP_FULL;
+			}
+		}
+
+		int next = 0;
+		for (int i = 0; i < count; i++) {
+			Event event = events[i];
+			byte[] body = event.getBody();
+			int length = lengthOf(body);
+			slabs.write(blocks, next, body);
+			events[i] = new OffHeapEvent(event.getHeaders(), slabs, blocks, next, length);
+			next += slabs.blocksFor(length);
+		}
+		this.updateCounters();
+	}
+
+	/**
+	 * 已写入堆外的Event（prepare后回滚）归还其占用的块
+	 */
+	@Override
+	protected void onAbortPuts(Event[] events, int count) {
+		if (count > 0 && events[0] instanceof OffHeapEvent) {
+			this.pool.free(events, count);
+			this.updateCounters();
+			this.signalNotFull();
+		}
+	}
+
+	@Override
+	protected Event onTake(Event stored) {
+		OffHeapEvent descriptor = (OffHeapEvent) stored;
+		Event event = new SimpleEvent();
+		event.setHeaders(descriptor.getHeaders());
+		event.setBody(descriptor.getBody());
+		return event;
+	}
+
+	/**
+	 * 采样时不读取body：并发的take提交后块会被释放并分配给其它Event，读到的内容可能不完整或属于别的Event
+	 */
+	@Override
+	protected Event onInspect(Event stored) {
+		Event event = new SimpleEvent();
+		event.setHeaders(stored.getHeaders());
+		return event;
+	}
+
+	@Override
+	protected void onCommitTakes(Event[] events, int count) {
+		this.pool.free(events, count);
+		this.updateCounters();
+		this.signalNotFull();
+	}
+
+	/**
+	 * 没有body的Event按空body存储，不占用块
+	 */
+	private static int lengthOf(byte[] body) {
+		return body == null ? 0 : body.length;
+	}
+
+	private void updateCounters() {
+		OffHeapChannelCounter counter = (OffHeapChannelCounter) this.getChannelCounter();
+		SlabPool slabs = this.pool;
+		counter.setOffHeapBytesUsed(slabs.bytesUsed());
+		counter.setOffHeapBytesAllocated(slabs.bytesAllocated());
+		counter.setOffHeapByteCapacity(slabs.byteCapacity());
+	}
+
+	/**
+	 * <p>
+	 * The on-heap descriptor of an event whose body lives in a {@link SlabPool}.
+	 * The body stays readable for as long as the descriptor is held by the
+	 * channel; events handed to takers are heap copies.
+	 * </p>
+	 */
+	static final class OffHeapEvent implements Event {
+
+		private Map<String, String> headers;
+		private final SlabPool pool;
+		/**
+		 * 同一批次的Event共用一个块索引数组，每个Event占用从firstBlock开始的连续若干项
+		 */
+		private final int[] blocks;
+		private final int firstBlock;
+		private final int length;
+
+		OffHeapEvent(Map<String, String> headers, SlabPool pool, int[] blocks, int firstBlock, int length) {
+			this.headers = headers;
+			this.pool = pool;
+			this.blocks = blocks;
+			this.firstBlock = firstBlock;
+			this.length = length;
+		}
+
+		@Override
+		public Map<String, String> getHeaders() {
+			return this.headers;
+		}
+
+		@Override
+		public void setHeaders(Map<String, String> headers) {
+			this.headers = headers;
+		}
+
+		/**
+		 * @return a heap copy of the body
+		 */
+		@Override
+		public byte[] getBody() {
+			return this.pool.read(this.blocks, this.firstBlock, this.length);
+		}
+
+		@Override
+		public void setBody(byte[] body) {
+			throw new UnsupportedOperationException("The body of an off-heap event is immutable");
+		}
+
+		@Override
+		public String toString() {
+			return "[OffHeapEvent headers = " + this.headers + ", body.length = " + this.length + " ]";
+		}
+	}
+
+	/**
+	 * <p>
+	 * A pool of direct memory slabs split into fixed-size blocks. Slabs are
+	 * allocated lazily up to the byte capacity and are never given back to
+	 * the JVM; freed blocks go onto a free stack and are reused. Allocation and
+	 * release take the pool's monitor once per batch, copying happens outside
+	 * of it.
+	 * </p>
+	 */
+	static final class SlabPool {
+
+		private final int slabSize;
+		private final int blockSize;
+		private final int blocksPerSlab;
+
+		/**
+		 * 写时复制，读取body时无需加锁
+		 */
+		private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+
+		private int[] freeBlocks = new int[0];
+		private int freeCount = 0;
+		private long usedBlocks = 0;
+		private long maxBlocks;
+
+		SlabPool(long byteCapacity, int slabSize, int blockSize) {
+			this.slabSize = slabSize;
+			this.blockSize = blockSize;
+			this.blocksPerSlab = slabSize / blockSize;
+			this.maxBlocks = byteCapacity / blockSize;
+		}
+
+		int blocksFor(int length) {
+			return (length + this.blockSize - 1) / this.blockSize;
+		}
+
+		/**
+		 * @param blocks
+		 * @return false if the blocks do not fit even into the empty pool
+		 */
+		synchronized boolean canHold(int blocks) {
+			return blocks <= this.maxBlocks;
+		}
+
+		/**
+		 * @param blocks
+		 * @return the allocated block indices, or null if the pool is full
+		 */
+		synchronized int[] allocate(int blocks) {
+			if (this.usedBlocks + blocks > this.maxBlocks) {
+				return null;
+			}
+			while (this.freeCount < blocks) {
+				this.addSlab();
+			}
+			int[] result = new int[blocks];
+			this.freeCount -= blocks;
+			System.arraycopy(this.freeBlocks, this.freeCount, result, 0, blocks);
+			this.usedBlocks += blocks;
+			return result;
+		}
+
+		/**
+		 * Returns the blocks of the given {@link OffHeapEvent}s to the pool.
+		 *
+		 * @param events
+		 * @param count
+		 */
+		synchronized void free(Event[] events, int count) {
+			for (int i = 0; i < count; i++) {
+				OffHeapEvent event = (OffHeapEvent) events[i];
+				int n = this.blocksFor(event.length);
+				System.arraycopy(event.blocks, event.firstBlock, this.freeBlocks, this.freeCount, n);
+				this.freeCount += n;
+				this.usedBlocks -= n;
+			}
+		}
+
+		void write(int[] blocks, int firstBlock, byte[] body) {
+			ByteBuffer[] current = this.slabs;
+			int length = lengthOf(body);
+			int written = 0;
+			int block = firstBlock;
+			while (written < length) {
+				ByteBuffer view = this.view(current, blocks[block++]);
+				int n = Math.min(this.blockSize, length - written);
+				view.put(body, written, n);
+				written += n;
+			}
+		}
+
+		byte[] read(int[] blocks, int firstBlock, int length) {
+			ByteBuffer[] current = this.slabs;
+			byte[] body = new byte[length];
+			int read = 0;
+			int block = firstBlock;
+			while (read < length) {
+				ByteBuffer view = this.view(current, blocks[block++]);
+				int n = Math.min(this.blockSize, length - read);
+				view.get(body, read, n);
+				read += n;
+			}
+			return body;
+		}
+
+		synchronized void setByteCapacity(long byteCapacity) {
+			this.maxBlocks = byteCapacity / this.blockSize;
+		}
+
+		synchronized long byteCapacity() {
+			return this.maxBlocks * this.blockSize;
+		}
+
+		synchronized long bytesUsed() {
+			return this.usedBlocks * this.blockSize;
+		}
+
+		long bytesAllocated() {
+			return (long) this.slabs.length * this.slabSize;
+		}
+
+		/**
+		 * 返回定位到指定块起始位置的独立视图，多个线程可同时读写不同的块
+		 */
+		private ByteBuffer view(ByteBuffer[] current, int block) {
+			ByteBuffer view = current[block / this.blocksPerSlab].duplicate();
+			view.position((block % this.blocksPerSlab) * this.blockSize);
+			return view;
+		}
+
+		private void addSlab() {
+			ByteBuffer[] current = this.slabs;
+			int slabIndex = current.length;
+			ByteBuffer[] grown = Arrays.copyOf(current, slabIndex + 1);
+			grown[slabIndex] = ByteBuffer.allocateDirect(this.slabSize);
+
+			if (this.freeBlocks.length < this.freeCount + this.blocksPerSlab) {
+				this.freeBlocks = Arrays.copyOf(this.freeBlocks, grown.length * this.blocksPerSlab);
+			}
+			// 倒序入栈，使新slab的块按地址顺序被分配
+			int base = slabIndex * this.blocksPerSlab;
+			for (int i = this.blocksPerSlab - 1; i >= 0; i--) {
+				this.freeBlocks[this.freeCount++] = base + i;
+			}
+			this.slabs = grown;
+		}
+	}
+}
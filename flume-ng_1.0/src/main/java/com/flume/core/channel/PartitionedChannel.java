@@ -0,0 +1,537 @@
+package com.flume.core.channel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.configuration.conf.channel.PartitionedChannelConfiguration;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * An in-memory channel split into <code>partitions</code> sub-queues. The
+ * value of the <code>partitionHeader</code> header is hashed to pick the
+ * partition of an event, so all events of one key go through the same
+ * sub-queue in commit order; events without the header are spread over the
+ * partitions.
+ * </p>
+ * <p>
+ * A taking transaction claims one partition exclusively and only takes from
+ * it until it commits or rolls back, so at most one consumer works on a
+ * partition at any time and per key ordering holds with any number of sink
+ * threads. Each transaction prefers its own partition (transactions are
+ * recycled per thread, so this is per thread) and falls back to any other
+ * non-empty, unclaimed one; with as many sink threads as partitions every
+ * thread drains its own partition.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>partitionHeader = the header the partition is chosen by (required).
+ * <li>partitions = type int, the number of sub-queues (default 4).
+ * <li>capacity = type int, the total number of events in the channel, split
+ * evenly over the partitions (default 10000).
+ * <li>transactionCapacity = type int, the maximum number of puts or takes in
+ * one transaction (default 100). Must not exceed the capacity of one
+ * partition, since all events of a transaction may share a partition.
+ * <li>keep-alive = type int, seconds a take waits for an event or a put
+ * waits for space (default 3).
+ * <li>waitStrategy = how those waits are done, see {@link WaitStrategy}
+ * (default backoff).
+ * </p>
+ *
+ * @Description 按header哈希分区的内存Channel，同一个key的Event保持有序，分区之间可并行消费
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class PartitionedChannel extends BasicChannelSemantics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedChannel.class);
+
+	private static final int defaultCapacity = 10000;
+	private static final int defaultTransCapacity = 100;
+	private static final int defaultKeepAlive = 3;
+
+	/**
+	 * <p>
+	 * One sub-queue. Producers publish into the ring concurrently; only the
+	 * transaction holding <code>claimed</code> takes from it and touches the
+	 * redelivery deque.
+	 * </p>
+	 */
+	static final class Partition {
+		final EventRingBuffer queue;
+		final AtomicInteger remaining;
+		final AtomicBoolean claimed = new AtomicBoolean(false);
+		/**
+		 * 回滚放回的Event，只有持有claimed的事务访问
+		 */
+		final ArrayDeque<Event> redelivered = new ArrayDeque<Event>();
+		volatile int redeliveredSize = 0;
+
+		Partition(int capacity) {
+			this.queue = new EventRingBuffer(capacity);
+			this.remaining = new AtomicInteger(capacity);
+		}
+
+		int size() {
+			return this.queue.size() + this.redeliveredSize;
+		}
+
+		/**
+		 * 只能由持有claimed的事务调用
+		 */
+		Event poll() {
+			if (this.redeliveredSize > 0) {
+				this.redeliveredSize--;
+				return this.redelivered.pollFirst();
+			}
+			return this.queue.poll();
+		}
+
+		boolean reserve(int permits) {
+			for (;;) {
+				int available = this.remaining.get();
+				if (available < permits) {
+					return false;
+				}
+				if (this.remaining.compareAndSet(available, available - permits)) {
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @Description 分区Channel的事务，take时独占一个分区直到commit或rollback
+	 */
+	private class PartitionedTransaction extends BasicTransactionSemantics {
+
+		private final Partition[] partitions;
+		private final Event[] putList;
+		private final int[] putPartitions;
+		/**
+		 * commit时按分区稳定排序后的putList，每个分区一段，整段发布
+		 */
+		private final Event[] sorted;
+		private final int[] partitionCounts;
+		private final Event[] takeList;
+		private final ChannelCounter channelCounter;
+		private final int affinity;
+		private int putCount = 0;
+		private int takeCount = 0;
+		private int spread;
+		private Partition claimed;
+
+		public PartitionedTransaction(Partition[] partitions, int transCapacity, ChannelCounter counter,
+				int affinity) {
+			this.partitions = partitions;
+			this.putList = new Event[transCapacity];
+			this.putPartitions = new int[transCapacity];
+			this.sorted = new Event[transCapacity];
+			this.partitionCounts = new int[partitions.length];
+			this.takeList = new Event[transCapacity];
+			this.channelCounter = counter;
+			this.affinity = affinity;
+			this.spread = affinity;
+		}
+
+		@Override
+		protected void doPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			if (this.putCount == this.putList.length) {
+				throw new ChannelException("Put queue for PartitionedTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			this.putPartitions[this.putCount] = this.partitionFor(event);
+			this.putList[this.putCount++] = event;
+		}
+
+		@Override
+		protected void doPutAll(List<Event> events) throws InterruptedException {
+			int count = events.size();
+			this.channelCounter.addToEventPutAttemptCount(count);
+			if (this.putCount + count > this.putList.length) {
+				throw new ChannelException("Put queue for PartitionedTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			for (int i = 0; i < count; i++) {
+				Event event = events.get(i);
+				this.putPartitions[this.putCount] = this.partitionFor(event);
+				this.putList[this.putCount++] = event;
+			}
+		}
+
+		@Override
+		protected Event doTake() throws InterruptedException {
+			this.channelCounter.incrementEventTakeAttemptCount();
+			if (this.takeCount == this.takeList.length) {
+				throw new ChannelException("Take list for PartitionedTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+
+			Event event = this.awaitEvent();
+			if (event != null) {
+				this.takeList[this.takeCount++] = event;
+			}
+			return event;
+		}
+
+		/**
+		 * 只为第一个Event等待keep-alive，之后只取本分区中已有的Event
+		 */
+		@Override
+		protected int doTake(int max, List<Event> into) throws InterruptedException {
+			if (this.takeCount == this.takeList.length) {
+				this.channelCounter.incrementEventTakeAttemptCount();
+				throw new ChannelException("Take list for PartitionedTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+			int limit = Math.min(max, this.takeList.length - this.takeCount);
+
+			int taken = 0;
+			Event event = this.awaitEvent();
+			while (event != null) {
+				this.takeList[this.takeCount++] = event;
+				into.add(event);
+				if (++taken == limit) {
+					break;
+				}
+				event = this.claimed.poll();
+			}
+			this.channelCounter.addToEventTakeAttemptCount(taken < limit ? taken + 1 : taken);
+			return taken;
+		}
+
+		@Override
+		protected void doCommit() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+
+			if (puts > 0) {
+				this.reservePuts();
+				this.publishPuts();
+			}
+			if (this.claimed != null) {
+				if (takes > 0) {
+					this.claimed.remaining.addAndGet(takes);
+					notFull.signalAll();
+				}
+				this.release();
+			}
+			this.clear();
+
+			if (puts > 0) {
+				this.channelCounter.addToEventPutSuccessCount(puts);
+			}
+			if (takes > 0) {
+				this.channelCounter.addToEventTakeSuccessCount(takes);
+			}
+			this.channelCounter.setChannelSize(size());
+		}
+
+		@Override
+		protected void doRollback() throws InterruptedException {
+			if (this.claimed != null) {
+				// 按原顺序放回分区队首，释放分区之前完成，下一个事务能看到
+				for (int i = this.takeCount - 1; i >= 0; i--) {
+					this.claimed.redelivered.addFirst(this.takeList[i]);
+				}
+				this.claimed.redeliveredSize += this.takeCount;
+				this.release();
+			}
+			this.clear();
+			this.channelCounter.setChannelSize(size());
+		}
+
+		@Override
+		protected boolean doReset() {
+			if (this.partitions != PartitionedChannel.this.partitions || this.putList.length != transCapacity
+					|| this.channelCounter != PartitionedChannel.this.channelCounter) {
+				return false;
+			}
+			this.clear();
+			return true;
+		}
+
+		private int partitionFor(Event event) {
+			String key = event.getHeaders() == null ? null : event.getHeaders().get(partitionHeader);
+			if (key == null) {
+				return (this.spread++ & Integer.MAX_VALUE) % this.partitions.length;
+			}
+			int h = key.hashCode();
+			h ^= h >>> 16;
+			return (h & Integer.MAX_VALUE) % this.partitions.length;
+		}
+
+		/**
+		 * 为每个分区预留容量，任何一个分区在keep-alive内预留不到则撤销全部预留
+		 */
+		private void reservePuts() throws InterruptedException {
+			int[] counts = this.partitionCounts;
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < this.putCount; i++) {
+				counts[this.putPartitions[i]]++;
+			}
+
+			WaitStrategy strategy = notFull;
+			long deadline = 0L;
+			int attempt = 0;
+			for (int p = 0; p < counts.length; p++) {
+				if (counts[p] == 0) {
+					continue;
+				}
+				for (;;) {
+					long token = strategy.prepare();
+					if (this.partitions[p].reserve(counts[p])) {
+						break;
+					}
+					if (attempt == 0) {
+						deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keepAlive);
+					} else if (System.nanoTime() - deadline >= 0) {
+						for (int undo = 0; undo < p; undo++) {
+							if (counts[undo] > 0) {
+								this.partitions[undo].remaining.addAndGet(counts[undo]);
+							}
+						}
+						strategy.signalAll();
+						throw new ChannelFullException("Space for commit to partition " + p
+								+ " couldn't be acquired. Sinks are likely not keeping up with sources,"
+								+ " or the buffer size is too tight", false);
+					}
+					strategy.await(token, attempt++, deadline);
+				}
+			}
+		}
+
+		/**
+		 * 按分区稳定排序后，每个分区一次发布，分区内保持put的顺序
+		 */
+		private void publishPuts() {
+			int[] counts = this.partitionCounts;
+			int[] offsets = new int[counts.length];
+			for (int p = 1; p < counts.length; p++) {
+				offsets[p] = offsets[p - 1] + counts[p - 1];
+			}
+			int[] next = offsets.clone();
+			for (int i = 0; i < this.putCount; i++) {
+				this.sorted[next[this.putPartitions[i]]++] = this.putList[i];
+			}
+			for (int p = 0; p < counts.length; p++) {
+				if (counts[p] > 0) {
+					this.partitions[p].queue.publish(this.sorted, offsets[p], counts[p]);
+				}
+			}
+			Arrays.fill(this.sorted, 0, this.putCount, null);
+			notEmpty.signalAll();
+		}
+
+		/**
+		 * @return the next event of the claimed partition, claiming one first
+		 *         if needed and waiting up to keep-alive, or null
+		 */
+		private Event awaitEvent() throws InterruptedException {
+			WaitStrategy strategy = notEmpty;
+			long deadline = 0L;
+			int attempt = 0;
+			for (;;) {
+				long token = strategy.prepare();
+				if (this.claimed == null) {
+					this.claim();
+				}
+				if (this.claimed != null) {
+					Event event = this.claimed.poll();
+					if (event != null) {
+						return event;
+					}
+					if (this.takeCount == 0) {
+						// 还没有从这个分区取过Event，放开它以便换到其他有数据的分区
+						this.release();
+					}
+				}
+
+				if (attempt == 0) {
+					deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(keepAlive);
+				} else if (System.nanoTime() - deadline >= 0) {
+					return null;
+				}
+				strategy.await(token, attempt++, deadline);
+			}
+		}
+
+		/**
+		 * 从偏好的分区开始，找一个非空且未被占用的分区
+		 */
+		private void claim() {
+			int n = this.partitions.length;
+			for (int i = 0; i < n; i++) {
+				Partition partition = this.partitions[(this.affinity + i) % n];
+				if (partition.size() > 0 && partition.claimed.compareAndSet(false, true)) {
+					this.claimed = partition;
+					return;
+				}
+			}
+		}
+
+		private void release() {
+			Partition partition = this.claimed;
+			this.claimed = null;
+			partition.claimed.set(false);
+			// 分区里还有Event时，等待中的消费者可以接手
+			if (partition.size() > 0) {
+				notEmpty.signalAll();
+			}
+		}
+
+		private void clear() {
+			Arrays.fill(this.putList, 0, this.putCount, null);
+			Arrays.fill(this.takeList, 0, this.takeCount, null);
+			this.putCount = 0;
+			this.takeCount = 0;
+			if (this.claimed != null) {
+				this.release();
+			}
+		}
+	}
+
+	private volatile Partition[] partitions;
+	private volatile String partitionHeader;
+	private volatile int transCapacity;
+	private volatile int keepAlive;
+	private int capacity;
+
+	/**
+	 * take等待Event、commit等待分区容量时分别使用的等待策略
+	 */
+	private volatile WaitStrategy notEmpty;
+	private volatile WaitStrategy notFull;
+	private String waitStrategyName;
+
+	private final AtomicInteger nextAffinity = new AtomicInteger(0);
+
+	private ChannelCounter channelCounter;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		String header = context.getString(PartitionedChannelConfiguration.CONFIG_PARTITION_HEADER);
+		Preconditions.checkArgument(header != null && !header.isEmpty(), "partitionHeader must be set");
+		this.partitionHeader = header;
+
+		int partitionCount = context.getInteger(PartitionedChannelConfiguration.CONFIG_PARTITIONS,
+				PartitionedChannelConfiguration.DEFAULT_PARTITIONS);
+		Preconditions.checkArgument(partitionCount > 0, "partitions must be positive");
+
+		int capacity = context.getInteger("capacity", defaultCapacity);
+		if (capacity <= 0) {
+			capacity = defaultCapacity;
+			LOGGER.warn("Invalid capacity specified, initializing channel to default capacity of {}",
+					defaultCapacity);
+		}
+
+		int transCapacity = context.getInteger("transactionCapacity", defaultTransCapacity);
+		if (transCapacity <= 0) {
+			transCapacity = defaultTransCapacity;
+			LOGGER.warn("Invalid transation capacity specified, initializing channel to default capacity of {}",
+					defaultTransCapacity);
+		}
+
+		try {
+			this.keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+		} catch (NumberFormatException e) {
+			this.keepAlive = defaultKeepAlive;
+		}
+
+		String waitStrategyName = context.getString(WaitStrategy.WAIT_STRATEGY, WaitStrategy.DEFAULT_WAIT_STRATEGY)
+				.trim();
+		if (!waitStrategyName.equals(this.waitStrategyName)) {
+			WaitStrategy oldNotEmpty = this.notEmpty;
+			WaitStrategy oldNotFull = this.notFull;
+			this.notEmpty = WaitStrategy.create(waitStrategyName);
+			this.notFull = WaitStrategy.create(waitStrategyName);
+			this.waitStrategyName = waitStrategyName;
+			if (oldNotEmpty != null) {
+				oldNotEmpty.signalAll();
+				oldNotFull.signalAll();
+			}
+		}
+
+		if (this.partitions == null) {
+			Partition[] partitions = new Partition[partitionCount];
+			int perPartition = (capacity + partitionCount - 1) / partitionCount;
+			for (int i = 0; i < partitionCount; i++) {
+				partitions[i] = new Partition(perPartition);
+			}
+			this.partitions = partitions;
+			this.capacity = perPartition * partitionCount;
+		} else if (partitionCount != this.partitions.length || capacity != this.capacity) {
+			LOGGER.warn("Channel {}: partitions and capacity cannot change while events are buffered,"
+					+ " keeping {} partitions with a capacity of {}", this.getName(), this.partitions.length,
+					this.capacity);
+		}
+		// put按分区预留容量，一个事务的所有Event可能都落在同一个分区
+		int perPartition = this.capacity / this.partitions.length;
+		Preconditions.checkState(transCapacity <= perPartition,
+				"Transaction Capacity of Partitioned Channel cannot be higher than the capacity of a partition (%s).",
+				perPartition);
+		this.transCapacity = transCapacity;
+
+		if (this.channelCounter == null) {
+			this.channelCounter = new ChannelCounter(this.getName());
+		}
+	}
+
+	/**
+	 * @return the number of events currently stored in the channel
+	 */
+	private int size() {
+		int size = 0;
+		for (Partition partition : this.partitions) {
+			size += partition.size();
+		}
+		return size;
+	}
+
+	@Override
+	public synchronized void start() {
+		this.channelCounter.start();
+		this.channelCounter.setChannelSize(this.size());
+		this.channelCounter.setChannelCapacity(this.capacity);
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		this.channelCounter.setChannelSize(this.size());
+		this.channelCounter.stop();
+		super.stop();
+	}
+
+	@Override
+	protected ChannelCounter getChannelCounter() {
+		return this.channelCounter;
+	}
+
+	@Override
+	protected BasicTransactionSemantics createTransaction() {
+		Partition[] partitions = this.partitions;
+		return new PartitionedTransaction(partitions, this.transCapacity, this.channelCounter,
+				(this.nextAffinity.getAndIncrement() & Integer.MAX_VALUE) % partitions.length);
+	}
+}
@@ -0,0 +1,575 @@
+package com.flume.core.channel;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.instrumentation.PriorityChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A memory channel with a small set of priority lanes. The lane of an event
+ * is chosen by the value of the <code>priorityHeader</code> header, which is
+ * typically set upstream by a {@code StaticInterceptor}; the value may be
+ * the name of a lane or its index, 0 being the highest priority. Events
+ * without a known value go to <code>defaultLane</code>.
+ * </p>
+ * <p>
+ * Takes drain the highest non-empty lane first, so urgent events overtake
+ * any backlog of lower ones. To keep lower lanes from starving, a non-empty
+ * lane that has been passed over <code>starvationThreshold</code> times in a
+ * row is served once before the higher lanes. Every lane has its own
+ * capacity, so a flood of low priority events cannot block urgent ones.
+ * Within a lane events are FIFO.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>priorityHeader = the header the lane is chosen by (default priority).
+ * <li>lanes = the lane names, highest priority first (default
+ * high,normal,low).
+ * <li>defaultLane = the lane of events without a known priority (default the
+ * lowest lane).
+ * <li>capacity = type int, the default capacity of every lane (default
+ * 10000).
+ * <li>lanes.&lt;name&gt;.capacity = type int, the capacity of one lane.
+ * <li>starvationThreshold = type int, how often a non-empty lane may be
+ * passed over before it is served (default 100).
+ * <li>transactionCapacity = type int, the maximum number of puts or takes in
+ * one transaction (default 100).
+ * <li>keep-alive = type int, seconds a take waits for an event or a commit
+ * waits for lane space (default 3).
+ * </p>
+ *
+ * @Description 按优先级分道的内存Channel，优先取高优先级的Event，低优先级通道有防饥饿保护
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class PriorityChannel extends BasicChannelSemantics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(PriorityChannel.class);
+
+	private static final String defaultPriorityHeader = "priority";
+	private static final String defaultLanes = "high,normal,low";
+	private static final int defaultCapacity = 10000;
+	private static final int defaultStarvationThreshold = 100;
+	private static final int defaultTransCapacity = 100;
+	private static final int defaultKeepAlive = 3;
+
+	/**
+	 *
+	 * @Description put和take先缓存在事务内，commit时在channel锁内一次生效
+	 */
+	private class PriorityTransaction extends BasicTransactionSemantics {
+
+		private final Event[] putList;
+		private final int[] putLanes;
+		private final Event[] takeList;
+		private final int[] takeLanes;
+		/**
+		 * commit时按通道统计的put和take数量
+		 */
+		private final int[] lanePuts;
+		private final int[] laneTakes;
+		private final PriorityChannelCounter channelCounter;
+		private int putCount = 0;
+		private int takeCount = 0;
+
+		public PriorityTransaction(int transCapacity, PriorityChannelCounter counter) {
+			this.putList = new Event[transCapacity];
+			this.putLanes = new int[transCapacity];
+			this.takeList = new Event[transCapacity];
+			this.takeLanes = new int[transCapacity];
+			this.lanePuts = new int[laneNames.length];
+			this.laneTakes = new int[laneNames.length];
+			this.channelCounter = counter;
+		}
+
+		@Override
+		protected void doPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			if (this.putCount == this.putList.length) {
+				throw new ChannelException("Put queue for PriorityTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			this.putLanes[this.putCount] = laneOf(event);
+			this.putList[this.putCount++] = event;
+		}
+
+		@Override
+		protected void doPutAll(List<Event> events) throws InterruptedException {
+			int count = events.size();
+			this.channelCounter.addToEventPutAttemptCount(count);
+			if (this.putCount + count > this.putList.length) {
+				throw new ChannelException("Put queue for PriorityTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			for (int i = 0; i < count; i++) {
+				Event event = events.get(i);
+				this.putLanes[this.putCount] = laneOf(event);
+				this.putList[this.putCount++] = event;
+			}
+		}
+
+		@Override
+		protected Event doTake() throws InterruptedException {
+			this.channelCounter.incrementEventTakeAttemptCount();
+			if (this.takeCount == this.takeList.length) {
+				throw new ChannelException("Take list for PriorityTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+
+			lock.lockInterruptibly();
+			try {
+				this.awaitEvent();
+				return this.pollLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 只为第一个Event等待keep-alive，整批在一次加锁内按优先级取出
+		 */
+		@Override
+		protected int doTake(int max, List<Event> into) throws InterruptedException {
+			if (this.takeCount == this.takeList.length) {
+				this.channelCounter.incrementEventTakeAttemptCount();
+				throw new ChannelException("Take list for PriorityTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+			int limit = Math.min(max, this.takeList.length - this.takeCount);
+
+			int taken = 0;
+			lock.lockInterruptibly();
+			try {
+				this.awaitEvent();
+				Event event;
+				while (taken < limit && (event = this.pollLocked()) != null) {
+					into.add(event);
+					taken++;
+				}
+			} finally {
+				lock.unlock();
+			}
+			this.channelCounter.addToEventTakeAttemptCount(taken < limit ? taken + 1 : taken);
+			return taken;
+		}
+
+		/**
+		 * 等待任意通道中有Event，最多keep-alive秒，调用者须持有lock
+		 */
+		private void awaitEvent() throws InterruptedException {
+			long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+			while (queued == 0 && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		}
+
+		/**
+		 * 取出下一个Event放入takeList，调用者须持有lock
+		 *
+		 * @return the next event, or null if every lane is empty
+		 */
+		private Event pollLocked() {
+			int lane = nextLane();
+			if (lane < 0) {
+				return null;
+			}
+			Event event = lanes[lane].pollFirst();
+			queued--;
+			this.takeLanes[this.takeCount] = lane;
+			this.takeList[this.takeCount++] = event;
+			return event;
+		}
+
+		@Override
+		protected void doCommit() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+			int[] lanePuts = this.lanePuts;
+			int[] laneTakes = this.laneTakes;
+			Arrays.fill(lanePuts, 0);
+			Arrays.fill(laneTakes, 0);
+			for (int i = 0; i < puts; i++) {
+				lanePuts[this.putLanes[i]]++;
+			}
+			for (int i = 0; i < takes; i++) {
+				laneTakes[this.takeLanes[i]]++;
+			}
+
+			lock.lockInterruptibly();
+			try {
+				if (puts > 0) {
+					long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+					int full;
+					while ((full = this.fullLane()) >= 0) {
+						if (nanos <= 0) {
+							throw new ChannelFullException("Space for commit to lane " + laneNames[full]
+									+ " couldn't be acquired. Sinks are likely not keeping up with sources,"
+									+ " or the buffer size is too tight", false);
+						}
+						nanos = notFull.awaitNanos(nanos);
+					}
+					for (int i = 0; i < puts; i++) {
+						lanes[this.putLanes[i]].addLast(this.putList[i]);
+					}
+					queued += puts;
+					notEmpty.signalAll();
+				}
+
+				for (int lane = 0; lane < lanePuts.length; lane++) {
+					laneUsed[lane] += lanePuts[lane] - laneTakes[lane];
+				}
+				if (takes > 0) {
+					notFull.signalAll();
+				}
+				this.updateCounters();
+			} finally {
+				lock.unlock();
+			}
+			this.clear();
+
+			for (int lane = 0; lane < lanePuts.length; lane++) {
+				if (lanePuts[lane] > 0) {
+					this.channelCounter.addToLanePutSuccessCount(lane, lanePuts[lane]);
+				}
+				if (laneTakes[lane] > 0) {
+					this.channelCounter.addToLaneTakeSuccessCount(lane, laneTakes[lane]);
+				}
+			}
+			if (puts > 0) {
+				this.channelCounter.addToEventPutSuccessCount(puts);
+			}
+			if (takes > 0) {
+				this.channelCounter.addToEventTakeSuccessCount(takes);
+			}
+		}
+
+		/**
+		 * 调用者须持有lock
+		 *
+		 * @return the first lane without room for the puts of this
+		 *         transaction once its takes are released, or -1
+		 */
+		private int fullLane() {
+			for (int lane = 0; lane < this.lanePuts.length; lane++) {
+				if (this.lanePuts[lane] > 0
+						&& laneUsed[lane] - this.laneTakes[lane] + this.lanePuts[lane] > laneCapacities[lane]) {
+					return lane;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		protected void doRollback() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				// 取出的Event按原顺序放回各自通道的队首，已占用的容量不变
+				for (int i = this.takeCount - 1; i >= 0; i--) {
+					lanes[this.takeLanes[i]].addFirst(this.takeList[i]);
+				}
+				queued += this.takeCount;
+				if (this.takeCount > 0) {
+					notEmpty.signalAll();
+				}
+				this.updateCounters();
+			} finally {
+				lock.unlock();
+			}
+			this.clear();
+		}
+
+		/**
+		 * 事务容量或计数器变化（重新配置）后不能复用
+		 */
+		@Override
+		protected boolean doReset() {
+			if (this.putList.length != transCapacity || this.channelCounter != PriorityChannel.this.channelCounter) {
+				return false;
+			}
+			this.clear();
+			return true;
+		}
+
+		/**
+		 * 调用者须持有lock
+		 */
+		private void updateCounters() {
+			int size = 0;
+			for (int lane = 0; lane < laneUsed.length; lane++) {
+				this.channelCounter.setLaneSize(lane, laneUsed[lane]);
+				size += laneUsed[lane];
+			}
+			this.channelCounter.setChannelSize(size);
+		}
+
+		private void clear() {
+			Arrays.fill(this.putList, 0, this.putCount, null);
+			Arrays.fill(this.takeList, 0, this.takeCount, null);
+			this.putCount = 0;
+			this.takeCount = 0;
+		}
+	}
+
+	/**
+	 * 保护所有通道的队列、已用容量和饥饿计数
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = this.lock.newCondition();
+	private final Condition notFull = this.lock.newCondition();
+
+	private String[] laneNames;
+	private ArrayDeque<Event>[] lanes;
+	/**
+	 * 每个通道中的Event加上未提交的take所占用的容量
+	 */
+	private int[] laneUsed;
+	/**
+	 * 每个非空通道连续被跳过的次数
+	 */
+	private int[] passedOver;
+	private int queued = 0;
+
+	private volatile int[] laneCapacities;
+	private volatile String priorityHeader;
+	private volatile int defaultLane;
+	private volatile int starvationThreshold;
+	private volatile int transCapacity;
+	private volatile int keepAlive;
+
+	private PriorityChannelCounter channelCounter;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		this.priorityHeader = context.getString("priorityHeader", defaultPriorityHeader);
+
+		String[] laneNames = context.getString("lanes", defaultLanes).trim().split("\\s*,\\s*");
+		Preconditions.checkArgument(laneNames.length > 0 && !laneNames[0].isEmpty(), "lanes must not be empty");
+		if (this.laneNames == null) {
+			this.laneNames = laneNames;
+			this.lanes = newLanes(laneNames.length);
+			this.laneUsed = new int[laneNames.length];
+			this.passedOver = new int[laneNames.length];
+		} else if (!Arrays.equals(laneNames, this.laneNames)) {
+			LOGGER.warn("Channel {}: lanes cannot change while events are buffered, keeping {}", this.getName(),
+					Arrays.toString(this.laneNames));
+		}
+
+		String defaultLaneName = context.getString("defaultLane", this.laneNames[this.laneNames.length - 1]);
+		int defaultLane = this.indexOf(defaultLaneName);
+		Preconditions.checkArgument(defaultLane >= 0, "defaultLane %s is not one of the lanes", defaultLaneName);
+		this.defaultLane = defaultLane;
+
+		int capacity = context.getInteger("capacity", defaultCapacity);
+		int[] laneCapacities = new int[this.laneNames.length];
+		for (int i = 0; i < laneCapacities.length; i++) {
+			laneCapacities[i] = context.getInteger("lanes." + this.laneNames[i] + ".capacity", capacity);
+			Preconditions.checkArgument(laneCapacities[i] > 0, "capacity of lane %s must be positive",
+					this.laneNames[i]);
+		}
+
+		this.starvationThreshold = context.getInteger("starvationThreshold", defaultStarvationThreshold);
+		Preconditions.checkArgument(this.starvationThreshold > 0, "starvationThreshold must be positive");
+
+		int transCapacity = context.getInteger("transactionCapacity", defaultTransCapacity);
+		if (transCapacity <= 0) {
+			transCapacity = defaultTransCapacity;
+			LOGGER.warn("Invalid transation capacity specified, initializing channel to default capacity of {}",
+					defaultTransCapacity);
+		}
+		this.transCapacity = transCapacity;
+
+		try {
+			this.keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+		} catch (NumberFormatException e) {
+			this.keepAlive = defaultKeepAlive;
+		}
+
+		this.lock.lock();
+		try {
+			this.laneCapacities = laneCapacities;
+			// 容量调大时唤醒等待空间的commit
+			this.notFull.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+
+		if (this.channelCounter == null) {
+			this.channelCounter = new PriorityChannelCounter(this.getName(), this.laneNames);
+		} else {
+			this.updateCapacityCounters();
+		}
+	}
+
+	/**
+	 * 泛型数组不能直接创建，转换只在这里进行
+	 */
+	@SuppressWarnings("unchecked")
+	private static ArrayDeque<Event>[] newLanes(int count) {
+		ArrayDeque<Event>[] lanes = (ArrayDeque<Event>[]) new ArrayDeque<?>[count];
+		for (int i = 0; i < count; i++) {
+			lanes[i] = new ArrayDeque<Event>();
+		}
+		return lanes;
+	}
+
+	/**
+	 * @return the lane of the given name or index, or -1
+	 */
+	private int indexOf(String lane) {
+		for (int i = 0; i < this.laneNames.length; i++) {
+			if (this.laneNames[i].equals(lane)) {
+				return i;
+			}
+		}
+		try {
+			int index = Integer.parseInt(lane);
+			return index >= 0 && index < this.laneNames.length ? index : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private int laneOf(Event event) {
+		String priority = event.getHeaders() == null ? null : event.getHeaders().get(this.priorityHeader);
+		if (priority == null) {
+			return this.defaultLane;
+		}
+		int lane = this.indexOf(priority);
+		return lane < 0 ? this.defaultLane : lane;
+	}
+
+	/**
+	 * 选出下一个要取的通道：被跳过次数达到阈值的通道优先，其次是优先级最高的非空通道，调用者须持有lock
+	 *
+	 * @return the lane to take from, or -1 if every lane is empty
+	 */
+	private int nextLane() {
+		int lane = -1;
+		boolean starved = false;
+		for (int i = 0; i < this.lanes.length; i++) {
+			if (this.lanes[i].isEmpty()) {
+				continue;
+			}
+			if (lane < 0) {
+				lane = i;
+			}
+			if (this.passedOver[i] >= this.starvationThreshold) {
+				starved = i != lane;
+				lane = i;
+				break;
+			}
+		}
+		if (lane < 0) {
+			return -1;
+		}
+
+		this.passedOver[lane] = 0;
+		for (int i = lane + 1; i < this.lanes.length; i++) {
+			if (!this.lanes[i].isEmpty()) {
+				this.passedOver[i]++;
+			}
+		}
+		if (starved) {
+			this.channelCounter.incrementStarvationTakeCount();
+		}
+		return lane;
+	}
+
+	private void updateCapacityCounters() {
+		int capacity = 0;
+		for (int lane = 0; lane < this.laneCapacities.length; lane++) {
+			this.channelCounter.setLaneCapacity(lane, this.laneCapacities[lane]);
+			capacity += this.laneCapacities[lane];
+		}
+		this.channelCounter.setChannelCapacity(capacity);
+	}
+
+	@Override
+	public synchronized void start() {
+		this.channelCounter.start();
+		this.updateCapacityCounters();
+		this.lock.lock();
+		try {
+			int size = 0;
+			for (int lane = 0; lane < this.laneUsed.length; lane++) {
+				this.channelCounter.setLaneSize(lane, this.laneUsed[lane]);
+				size += this.laneUsed[lane];
+			}
+			this.channelCounter.setChannelSize(size);
+		} finally {
+			this.lock.unlock();
+		}
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		this.channelCounter.stop();
+		super.stop();
+	}
+
+	@Override
+	protected PriorityChannelCounter getChannelCounter() {
+		return this.channelCounter;
+	}
+
+	/**
+	 * 从每个通道的队首移除过期的Event
+	 */
+	@Override
+	protected int purgeExpired(EventExpiry expiry, long now) {
+		int total = 0;
+		this.lock.lock();
+		try {
+			for (int lane = 0; lane < this.lanes.length; lane++) {
+				ArrayDeque<Event> queue = this.lanes[lane];
+				int count = 0;
+				while (!queue.isEmpty() && expiry.isExpired(queue.peekFirst(), now)) {
+					queue.pollFirst();
+					count++;
+				}
+				if (count > 0) {
+					this.laneUsed[lane] -= count;
+					this.channelCounter.setLaneSize(lane, this.laneUsed[lane]);
+					total += count;
+				}
+			}
+			if (total > 0) {
+				this.queued -= total;
+				this.notFull.signalAll();
+				int size = 0;
+				for (int used : this.laneUsed) {
+					size += used;
+				}
+				this.channelCounter.setChannelSize(size);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return total;
+	}
+
+	@Override
+	protected BasicTransactionSemantics createTransaction() {
+		return new PriorityTransaction(this.transCapacity, this.channelCounter);
+	}
+}
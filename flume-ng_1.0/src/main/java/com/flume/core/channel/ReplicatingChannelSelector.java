@@ -6,6 +6,7 @@ import java.util.Map;
 
 import com.flume.configuration.Context;
 import com.flume.core.Channel;
+import com.flume.core.ChannelRouting;
 import com.flume.sdk.Event;
 
 /**
@@ -72,4 +73,19 @@ public class ReplicatingChannelSelector extends AbstractChannelSelector {
 		return this.optionalChannels;
 	}
 
+	/**
+	 * 每个Event的目标Channel都相同，整批直接交给每个Channel，不逐个Event分组
+	 */
+	@Override
+	public void route(List<Event> events, ChannelRouting routing) {
+		List<Channel> required = this.getRequiredChannels(null);
+		for (int i = 0, n = required.size(); i < n; i++) {
+			routing.routeRequired(required.get(i), events);
+		}
+		List<Channel> optional = this.optionalChannels;
+		for (int i = 0, n = optional.size(); i < n; i++) {
+			routing.routeOptional(optional.get(i), events);
+		}
+	}
+
 }
@@ -0,0 +1,261 @@
+package com.flume.core.channel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.core.event.EventCodec;
+import com.flume.sdk.Event;
+
+/**
+ * <p>
+ * A FIFO of events kept in append-only segment files, used as the overflow
+ * area of {@link SpillableMemoryChannel}. Events are appended to the newest
+ * segment and read back from the oldest; a segment is deleted as soon as
+ * every event in it has been read. Each record is the length of the
+ * serialized event followed by its {@link EventCodec} form.
+ * </p>
+ * <p>
+ * The segments only buffer events of the running channel and are not forced
+ * to disk; leftovers of a previous run are deleted on {@link #open()}.
+ * </p>
+ * <p>
+ * Not thread safe, the channel guards every call with its lock.
+ * </p>
+ *
+ * @Description 溢写区：只追加的分段文件组成的先进先出队列
+ */
+final class SpillSegmentQueue {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpillSegmentQueue.class);
+
+	private static final String PREFIX = "spill-";
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * 一个分段文件，以及写入和已读的记录数
+	 */
+	private static final class Segment {
+		final File file;
+		long written = 0;
+		long read = 0;
+
+		Segment(File file) {
+			this.file = file;
+		}
+	}
+
+	private final File spillDir;
+	private final long maxSegmentSize;
+
+	/**
+	 * 最旧的在队首，最后一个是正在写入的分段
+	 */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private int nextSegmentId = 0;
+
+	private DataOutputStream writer;
+	private long writerBytes = 0;
+
+	private Segment readSegment;
+	private DataInputStream reader;
+
+	private long events = 0;
+	private long bytes = 0;
+
+	SpillSegmentQueue(File spillDir, long maxSegmentSize) {
+		this.spillDir = spillDir;
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Creates the spill directory and removes segments left by a previous
+	 * run.
+	 *
+	 * @throws IOException
+	 */
+	void open() throws IOException {
+		if (!this.spillDir.isDirectory() && !this.spillDir.mkdirs()) {
+			throw new IOException("Unable to create spill directory " + this.spillDir);
+		}
+		File[] leftovers = this.spillDir.listFiles();
+		if (leftovers != null) {
+			for (File file : leftovers) {
+				if (file.getName().startsWith(PREFIX)) {
+					LOGGER.warn("Deleting spill segment {} left by a previous run", file);
+					deleteFile(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of events on disk
+	 */
+	long events() {
+		return this.events;
+	}
+
+	/**
+	 * @return the number of bytes on disk
+	 */
+	long bytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Appends <code>events[offset..offset+count)</code> with one write. If
+	 * the write fails nothing is appended.
+	 *
+	 * @param events
+	 * @param offset
+	 * @param count
+	 * @throws IOException
+	 */
+	void append(Event[] events, int offset, int count) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * count);
+		DataOutputStream out = new DataOutputStream(buffer);
+		ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+		DataOutputStream recordOut = new DataOutputStream(record);
+		for (int i = offset; i < offset + count; i++) {
+			record.reset();
+			EventCodec.write(recordOut, events[i]);
+			out.writeInt(record.size());
+			record.writeTo(out);
+		}
+		out.flush();
+
+		// 积压清空后也换新分段，及时删除已读完的文件
+		if (this.writer == null || this.writerBytes >= this.maxSegmentSize
+				|| (this.events == 0 && this.writerBytes > 0)) {
+			this.roll();
+		}
+		try {
+			buffer.writeTo(this.writer);
+			this.writer.flush();
+		} catch (IOException e) {
+			// 写了一半的分段不能再追加，换一个新分段
+			this.closeWriter();
+			throw e;
+		}
+		this.writerBytes += buffer.size();
+		this.segments.peekLast().written += count;
+		this.events += count;
+		this.bytes += buffer.size();
+	}
+
+	/**
+	 * @return the oldest event on disk, or null if there is none
+	 * @throws IOException
+	 */
+	Event poll() throws IOException {
+		if (this.events == 0) {
+			return null;
+		}
+		if (this.readSegment == null || this.readSegment.read == this.readSegment.written) {
+			this.advanceReader();
+		}
+
+		int length = this.reader.readInt();
+		byte[] record = new byte[length];
+		this.reader.readFully(record);
+		this.readSegment.read++;
+		this.events--;
+		this.bytes -= 4 + length;
+
+		if (this.readSegment.read == this.readSegment.written && this.readSegment != this.segments.peekLast()) {
+			this.releaseReadSegment();
+		}
+		return EventCodec.read(new DataInputStream(new ByteArrayInputStream(record)));
+	}
+
+	/**
+	 * Closes all files and deletes every segment.
+	 */
+	void close() {
+		this.closeWriter();
+		this.closeReader();
+		for (Segment segment : this.segments) {
+			deleteFile(segment.file);
+		}
+		this.segments.clear();
+		this.readSegment = null;
+		this.events = 0;
+		this.bytes = 0;
+	}
+
+	private void roll() throws IOException {
+		this.closeWriter();
+		Segment last = this.segments.peekLast();
+		if (last != null && last.read == last.written && last == this.readSegment) {
+			this.releaseReadSegment();
+		}
+		Segment segment = new Segment(new File(this.spillDir, PREFIX + this.nextSegmentId++));
+		this.writer = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(segment.file), IO_BUFFER_SIZE));
+		this.writerBytes = 0;
+		this.segments.addLast(segment);
+	}
+
+	/**
+	 * 移到下一个还有未读记录的分段，读完的分段随即删除
+	 */
+	private void advanceReader() throws IOException {
+		if (this.readSegment != null) {
+			this.releaseReadSegment();
+		}
+		while (this.segments.peekFirst().written == 0 && this.segments.size() > 1) {
+			deleteFile(this.segments.pollFirst().file);
+		}
+		this.readSegment = this.segments.peekFirst();
+		this.reader = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(this.readSegment.file), IO_BUFFER_SIZE));
+	}
+
+	private void releaseReadSegment() {
+		this.closeReader();
+		Segment segment = this.readSegment;
+		this.readSegment = null;
+		this.segments.remove(segment);
+		deleteFile(segment.file);
+	}
+
+	private void closeWriter() {
+		if (this.writer != null) {
+			try {
+				this.writer.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close spill segment", e);
+			}
+			this.writer = null;
+		}
+	}
+
+	private void closeReader() {
+		if (this.reader != null) {
+			try {
+				this.reader.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close spill segment", e);
+			}
+			this.reader = null;
+		}
+	}
+
+	private static void deleteFile(File file) {
+		if (!file.delete() && file.exists()) {
+			LOGGER.warn("Unable to delete spill segment {}", file);
+		}
+	}
+}
@@ -0,0 +1,558 @@
+package com.flume.core.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.instrumentation.SpillableChannelCounter;
+import com.flume.sdk.Event;
+import com.flume.sdk.FlumeException;
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A memory channel that overflows to local disk. Events are served from an
+ * in-memory queue until it holds <code>memoryCapacity</code> events or
+ * <code>byteCapacity</code> bytes; further events are spilled to
+ * append-only segment files. As long as anything is on disk new events are
+ * spilled too, so the channel stays FIFO. When the memory queue runs dry a
+ * take drains a batch back from disk.
+ * </p>
+ * <p>
+ * Bursts are absorbed by disk instead of heap. Like {@link MemoryChannel}
+ * this channel is not durable: the spilled segments are deleted when the
+ * channel starts.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>memoryCapacity = type int, the maximum number of events in memory
+ * (default 10000).
+ * <li>byteCapacity = type long, the maximum number of bytes, headers and
+ * bodies, in memory (default 80% of the heap).
+ * <li>overflowCapacity = type long, the maximum number of events on disk
+ * (default 100000000).
+ * <li>transactionCapacity = type int, the maximum number of puts or takes in
+ * one transaction (default 100).
+ * <li>keep-alive = type int, seconds a take waits for an event (default 3).
+ * <li>overflowDir = directory of the spill segments (default
+ * ~/.flume/spillable-channel).
+ * <li>maxSegmentSize = type long, bytes after which a new segment is started
+ * (default 64MB).
+ * <li>memoryReservation, memoryBorrowPolicy = the memory queue's share of
+ * the agent's memory budget, see {@link MemoryGovernor}. Events that do not
+ * fit the share are spilled.
+ * </p>
+ *
+ * @Description 内存放不下时溢写到本地磁盘分段文件的Channel
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class SpillableMemoryChannel extends BasicChannelSemantics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SpillableMemoryChannel.class);
+
+	private static final int defaultMemoryCapacity = 10000;
+	private static final long defaultByteCapacity = (long) (Runtime.getRuntime().maxMemory() * .80);
+	private static final long defaultOverflowCapacity = 100000000L;
+	private static final int defaultTransCapacity = 100;
+	private static final int defaultKeepAlive = 3;
+	private static final long defaultMaxSegmentSize = 64L * 1024 * 1024;
+
+	/**
+	 *
+	 * @Description put和take先缓存在事务内，commit时在channel锁内一次生效
+	 */
+	private class SpillableTransaction extends BasicTransactionSemantics {
+
+		private final Event[] putList;
+		private final long[] putSizes;
+		private final Event[] takeList;
+		private final SpillableChannelCounter channelCounter;
+		private int putCount = 0;
+		private int takeCount = 0;
+		/**
+		 * 本事务从内存队列取出的Event的数量和字节数，commit时才归还内存容量
+		 */
+		private int takeMemoryCount = 0;
+		private long takeMemoryBytes = 0;
+
+		public SpillableTransaction(int transCapacity, SpillableChannelCounter counter) {
+			this.putList = new Event[transCapacity];
+			this.putSizes = new long[transCapacity];
+			this.takeList = new Event[transCapacity];
+			this.channelCounter = counter;
+		}
+
+		@Override
+		protected void doPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			if (this.putCount == this.putList.length) {
+				throw new ChannelException("Put queue for SpillableTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			this.putSizes[this.putCount] = ChannelUtils.estimateEventSize(event);
+			this.putList[this.putCount++] = event;
+		}
+
+		@Override
+		protected void doPutAll(List<Event> events) throws InterruptedException {
+			int count = events.size();
+			this.channelCounter.addToEventPutAttemptCount(count);
+			if (this.putCount + count > this.putList.length) {
+				throw new ChannelException("Put queue for SpillableTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			for (int i = 0; i < count; i++) {
+				Event event = events.get(i);
+				this.putSizes[this.putCount] = ChannelUtils.estimateEventSize(event);
+				this.putList[this.putCount++] = event;
+			}
+		}
+
+		@Override
+		protected Event doTake() throws InterruptedException {
+			this.channelCounter.incrementEventTakeAttemptCount();
+			if (this.takeCount == this.takeList.length) {
+				throw new ChannelException("Take list for SpillableTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+
+			lock.lockInterruptibly();
+			try {
+				this.awaitEvent();
+				return this.pollLocked();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * 只为第一个Event等待keep-alive，整批在一次加锁内取出
+		 */
+		@Override
+		protected int doTake(int max, List<Event> into) throws InterruptedException {
+			if (this.takeCount == this.takeList.length) {
+				this.channelCounter.incrementEventTakeAttemptCount();
+				throw new ChannelException("Take list for SpillableTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+			int limit = Math.min(max, this.takeList.length - this.takeCount);
+
+			int taken = 0;
+			lock.lockInterruptibly();
+			try {
+				this.awaitEvent();
+				Event event;
+				while (taken < limit && (event = this.pollLocked()) != null) {
+					into.add(event);
+					taken++;
+				}
+			} finally {
+				lock.unlock();
+			}
+			this.channelCounter.addToEventTakeAttemptCount(taken < limit ? taken + 1 : taken);
+			return taken;
+		}
+
+		/**
+		 * 等待内存或磁盘中有Event，最多keep-alive秒，调用者须持有lock
+		 */
+		private void awaitEvent() throws InterruptedException {
+			long nanos = TimeUnit.SECONDS.toNanos(keepAlive);
+			while (memoryQueue.isEmpty() && overflow.events() == 0 && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+		}
+
+		/**
+		 * 取出下一个Event放入takeList，内存队列为空时先从磁盘读回一批，调用者须持有lock
+		 *
+		 * @return the next event, or null if the channel is empty
+		 */
+		private Event pollLocked() {
+			if (memoryQueue.isEmpty()) {
+				if (overflow.events() == 0) {
+					return null;
+				}
+				unspill();
+			}
+			Event event = memoryQueue.pollFirst();
+			this.takeList[this.takeCount++] = event;
+			this.takeMemoryCount++;
+			this.takeMemoryBytes += ChannelUtils.estimateEventSize(event);
+			return event;
+		}
+
+		@Override
+		protected void doCommit() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+			long spilled = 0;
+
+			lock.lockInterruptibly();
+			try {
+				// 先按归还take后的内存容量算出能放进内存的前缀，其余溢写到磁盘
+				int memoryCount = memoryUsed - this.takeMemoryCount;
+				long memoryBytes = memoryBytesUsed - this.takeMemoryBytes;
+				int toMemory = 0;
+				if (overflow.events() == 0) {
+					while (toMemory < puts && memoryCount < memoryCapacity
+							&& memoryBytes + this.putSizes[toMemory] <= byteCapacity) {
+						memoryCount++;
+						memoryBytes += this.putSizes[toMemory];
+						toMemory++;
+					}
+				}
+				// Agent的内存预算不够时少放内存、多溢写
+				long charged = 0;
+				MemoryGovernor.Lease lease = SpillableMemoryChannel.this.lease;
+				if (lease != null) {
+					while (memoryBytes > memoryBytesUsed && !lease.tryAcquire(memoryBytes - memoryBytesUsed)) {
+						toMemory--;
+						memoryCount--;
+						memoryBytes -= this.putSizes[toMemory];
+					}
+					charged = Math.max(0L, memoryBytes - memoryBytesUsed);
+				}
+				int toDisk = puts - toMemory;
+				if (toDisk > 0) {
+					if (overflow.events() + toDisk > overflowCapacity) {
+						if (lease != null) {
+							lease.release(charged);
+						}
+						throw new ChannelFullException("Space for commit to queue couldn't be acquired, the memory"
+								+ " queue is full and the overflow holds " + overflow.events() + " of "
+								+ overflowCapacity + " events. Sinks are likely not keeping up with sources", false);
+					}
+					try {
+						overflow.append(this.putList, toMemory, toDisk);
+					} catch (IOException e) {
+						if (lease != null) {
+							lease.release(charged);
+						}
+						throw new ChannelException("Unable to spill events of channel " + getName() + " to "
+								+ overflowDir, e);
+					}
+					spilled = toDisk;
+				}
+
+				for (int i = 0; i < toMemory; i++) {
+					memoryQueue.addLast(this.putList[i]);
+				}
+				if (lease != null && memoryBytes < memoryBytesUsed) {
+					lease.release(memoryBytesUsed - memoryBytes);
+				}
+				memoryUsed = memoryCount;
+				memoryBytesUsed = memoryBytes;
+				if (puts > 0) {
+					notEmpty.signalAll();
+				}
+				this.updateCounters();
+			} finally {
+				lock.unlock();
+			}
+			this.clear();
+
+			if (spilled > 0) {
+				this.channelCounter.addToSpillCount(spilled);
+			}
+			if (puts > 0) {
+				this.channelCounter.addToEventPutSuccessCount(puts);
+			}
+			if (takes > 0) {
+				this.channelCounter.addToEventTakeSuccessCount(takes);
+			}
+		}
+
+		@Override
+		protected void doRollback() throws InterruptedException {
+			lock.lockInterruptibly();
+			try {
+				// 取出的Event按原顺序放回内存队列的队首，已占用的内存容量不变
+				for (int i = this.takeCount - 1; i >= 0; i--) {
+					memoryQueue.addFirst(this.takeList[i]);
+				}
+				if (this.takeCount > 0) {
+					notEmpty.signalAll();
+				}
+				this.updateCounters();
+			} finally {
+				lock.unlock();
+			}
+			this.clear();
+		}
+
+		/**
+		 * 事务容量或计数器变化（重新配置）后不能复用
+		 */
+		@Override
+		protected boolean doReset() {
+			if (this.putList.length != transCapacity
+					|| this.channelCounter != SpillableMemoryChannel.this.channelCounter) {
+				return false;
+			}
+			this.clear();
+			return true;
+		}
+
+		/**
+		 * 调用者须持有lock
+		 */
+		private void updateCounters() {
+			this.channelCounter.setMemoryEventCount(memoryQueue.size());
+			this.channelCounter.setOverflowEventCount(overflow.events());
+			this.channelCounter.setOverflowByteCount(overflow.bytes());
+			this.channelCounter.setChannelSize(memoryUsed + overflow.events());
+		}
+
+		private void clear() {
+			for (int i = 0; i < this.putCount; i++) {
+				this.putList[i] = null;
+			}
+			for (int i = 0; i < this.takeCount; i++) {
+				this.takeList[i] = null;
+			}
+			this.putCount = 0;
+			this.takeCount = 0;
+			this.takeMemoryCount = 0;
+			this.takeMemoryBytes = 0;
+		}
+	}
+
+	/**
+	 * 保护内存队列、内存容量和溢写区
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = this.lock.newCondition();
+
+	private final ArrayDeque<Event> memoryQueue = new ArrayDeque<Event>();
+	/**
+	 * 内存队列加上未提交的take所占用的Event数量和字节数
+	 */
+	private int memoryUsed = 0;
+	private long memoryBytesUsed = 0;
+
+	private SpillSegmentQueue overflow;
+
+	private volatile int memoryCapacity;
+	private volatile long byteCapacity;
+	private volatile long overflowCapacity;
+	private volatile int transCapacity;
+	private volatile int keepAlive;
+	private File overflowDir;
+	private long maxSegmentSize;
+
+	private SpillableChannelCounter channelCounter;
+
+	/**
+	 * 运行期间内存队列向Agent内存预算登记的额度，未启动时为null
+	 */
+	private MemoryGovernor governor;
+	private volatile MemoryGovernor.Lease lease;
+	private Context leaseContext;
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		this.memoryCapacity = context.getInteger("memoryCapacity", defaultMemoryCapacity);
+		Preconditions.checkArgument(this.memoryCapacity >= 0, "memoryCapacity must not be negative");
+
+		this.byteCapacity = context.getLong("byteCapacity", defaultByteCapacity);
+		Preconditions.checkArgument(this.byteCapacity >= 0, "byteCapacity must not be negative");
+
+		this.overflowCapacity = context.getLong("overflowCapacity", defaultOverflowCapacity);
+		Preconditions.checkArgument(this.overflowCapacity >= 0, "overflowCapacity must not be negative");
+		Preconditions.checkArgument(this.memoryCapacity > 0 || this.overflowCapacity > 0,
+				"memoryCapacity and overflowCapacity cannot both be 0");
+
+		this.transCapacity = context.getInteger("transactionCapacity", defaultTransCapacity);
+		if (this.transCapacity <= 0) {
+			this.transCapacity = defaultTransCapacity;
+			LOGGER.warn("Invalid transation capacity specified, initializing channel to default capacity of {}",
+					defaultTransCapacity);
+		}
+
+		this.keepAlive = context.getInteger("keep-alive", defaultKeepAlive);
+		this.leaseContext = context;
+
+		String homePath = System.getProperty("user.home").replace('\\', '/');
+		File overflowDir = new File(context.getString("overflowDir", homePath + "/.flume/spillable-channel"));
+		long maxSegmentSize = context.getLong("maxSegmentSize", defaultMaxSegmentSize);
+		Preconditions.checkArgument(maxSegmentSize > 0, "maxSegmentSize must be positive");
+		if (this.overflow != null && (!overflowDir.equals(this.overflowDir) || maxSegmentSize != this.maxSegmentSize)) {
+			LOGGER.warn("Channel {}: overflowDir and maxSegmentSize cannot change while the channel is in use,"
+					+ " keeping {} and {}", this.getName(), this.overflowDir, this.maxSegmentSize);
+		} else {
+			this.overflowDir = overflowDir;
+			this.maxSegmentSize = maxSegmentSize;
+		}
+
+		if (this.channelCounter == null) {
+			this.channelCounter = new SpillableChannelCounter(this.getName());
+		}
+	}
+
+	/**
+	 * 内存队列为空时从磁盘读回一批Event，调用者须持有lock
+	 */
+	private void unspill() {
+		int unspilled = 0;
+		try {
+			// 至少读回一个，内存已满时也要让take能取到数据
+			do {
+				Event event = this.overflow.poll();
+				this.memoryQueue.addLast(event);
+				this.memoryUsed++;
+				long size = ChannelUtils.estimateEventSize(event);
+				this.memoryBytesUsed += size;
+				if (this.lease != null) {
+					this.lease.forceAcquire(size);
+				}
+				unspilled++;
+			} while (unspilled < this.transCapacity && this.overflow.events() > 0
+					&& this.memoryUsed < this.memoryCapacity && this.memoryBytesUsed < this.byteCapacity);
+		} catch (IOException e) {
+			throw new ChannelException("Unable to read spilled events of channel " + this.getName() + " from "
+					+ this.overflowDir, e);
+		} finally {
+			if (unspilled > 0) {
+				this.channelCounter.addToUnspillCount(unspilled);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		SpillSegmentQueue overflow = new SpillSegmentQueue(this.overflowDir, this.maxSegmentSize);
+		try {
+			overflow.open();
+		} catch (IOException e) {
+			throw new FlumeException("Unable to open the overflow of channel " + this.getName() + " in "
+					+ this.overflowDir, e);
+		}
+		if (this.governor == null) {
+			this.governor = MemoryGovernor.getInstance();
+		}
+		this.lock.lock();
+		try {
+			this.overflow = overflow;
+			this.lease = this.governor.register(this.getName(), this.leaseContext, this.memoryBytesUsed, null);
+		} finally {
+			this.lock.unlock();
+		}
+
+		this.channelCounter.start();
+		this.channelCounter.setChannelCapacity(this.memoryCapacity + this.overflowCapacity);
+		this.channelCounter.setChannelSize(this.memoryUsed);
+		this.channelCounter.setMemoryEventCount(this.memoryQueue.size());
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		this.lock.lock();
+		try {
+			if (this.overflow != null) {
+				if (this.overflow.events() > 0) {
+					LOGGER.warn("Channel {} stopped with {} events spilled to disk, they are discarded",
+							this.getName(), this.overflow.events());
+				}
+				this.overflow.close();
+			}
+			if (this.lease != null) {
+				this.lease.close();
+				this.lease = null;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.channelCounter.stop();
+		super.stop();
+	}
+
+	/**
+	 * Uses the given governor instead of the agent wide one. Must be called
+	 * before the channel is started.
+	 *
+	 * @param governor
+	 */
+	void setMemoryGovernor(MemoryGovernor governor) {
+		this.governor = governor;
+	}
+
+	@Override
+	protected SpillableChannelCounter getChannelCounter() {
+		return this.channelCounter;
+	}
+
+	/**
+	 * <p>
+	 * Removes expired events from the head of the memory queue, reading
+	 * spilled events back as the queue runs dry. The lock is released after
+	 * every <code>transactionCapacity</code> events.
+	 * </p>
+	 */
+	@Override
+	protected int purgeExpired(EventExpiry expiry, long now) {
+		int total = 0;
+		boolean more = true;
+		while (more) {
+			this.lock.lock();
+			try {
+				int count = 0;
+				while (count < this.transCapacity) {
+					if (this.memoryQueue.isEmpty()) {
+						if (this.overflow.events() == 0) {
+							break;
+						}
+						this.unspill();
+					}
+					Event head = this.memoryQueue.peekFirst();
+					if (!expiry.isExpired(head, now)) {
+						break;
+					}
+					this.memoryQueue.pollFirst();
+					this.memoryUsed--;
+					long size = ChannelUtils.estimateEventSize(head);
+					this.memoryBytesUsed -= size;
+					if (this.lease != null) {
+						this.lease.release(size);
+					}
+					count++;
+				}
+				more = count == this.transCapacity;
+				if (count > 0) {
+					total += count;
+					this.channelCounter.setMemoryEventCount(this.memoryQueue.size());
+					this.channelCounter.setOverflowEventCount(this.overflow.events());
+					this.channelCounter.setOverflowByteCount(this.overflow.bytes());
+					this.channelCounter.setChannelSize(this.memoryUsed + this.overflow.events());
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+		return total;
+	}
+
+	@Override
+	protected BasicTransactionSemantics createTransaction() {
+		Preconditions.checkState(this.overflow != null, "Channel " + this.getName() + " is not started");
+		return new SpillableTransaction(this.transCapacity, this.channelCounter);
+	}
+}
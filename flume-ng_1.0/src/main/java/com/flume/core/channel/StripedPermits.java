@@ -0,0 +1,142 @@
+package com.flume.core.channel;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ * A non-blocking permit pool split into several stripes so that threads
+ * acquiring and releasing permits at the same time mostly touch different
+ * cache lines instead of a single {@link java.util.concurrent.Semaphore}.
+ * </p>
+ * <p>
+ * Each thread acquires from and releases to its own home stripe. When the
+ * home stripe runs short, the whole surplus of the other stripes is moved
+ * into it, so a thread that keeps acquiring pays for that sweep only once in
+ * a while. The sum over all stripes is always the number of free permits;
+ * a stripe may go negative after {@link #adjust(long)} shrinks the pool.
+ * </p>
+ *
+ * @Description 分段的许可池，用来代替全局Semaphore做字节容量的计数
+ */
+final class StripedPermits {
+
+	/**
+	 * 每个分段占一个缓存行（8个long），避免伪共享
+	 */
+	private static final int PADDING = 8;
+
+	private static final int MAX_STRIPES = 64;
+
+	private final int mask;
+	private final AtomicLongArray stripes;
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param permits
+	 *            the initial number of free permits
+	 */
+	StripedPermits(long permits) {
+		Preconditions.checkArgument(permits >= 0, "Permits must not be negative: %s", permits);
+
+		int cpus = Math.min(MAX_STRIPES, Runtime.getRuntime().availableProcessors());
+		int count = cpus <= 1 ? 1 : Integer.highestOneBit(cpus - 1) << 1;
+		this.mask = count - 1;
+		this.stripes = new AtomicLongArray(count * PADDING);
+		this.stripes.set(0, permits);
+	}
+
+	/**
+	 * Acquires the given number of permits if they are available right now.
+	 *
+	 * @param permits
+	 * @return true if the permits were acquired
+	 */
+	boolean tryAcquire(long permits) {
+		if (permits <= 0) {
+			return true;
+		}
+		int home = this.homeStripe();
+		if (this.takeFrom(home, permits)) {
+			return true;
+		}
+
+		// 本分段不够，把其它分段的余量整体搬过来再试
+		for (int i = 1; i <= this.mask; i++) {
+			int victim = ((home + i) & this.mask) * PADDING;
+			long moved = this.drainSurplus(victim);
+			if (moved > 0) {
+				this.stripes.addAndGet(home, moved);
+				if (this.takeFrom(home, permits)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns permits to the calling thread's home stripe.
+	 *
+	 * @param permits
+	 */
+	void release(long permits) {
+		if (permits > 0) {
+			this.stripes.addAndGet(this.homeStripe(), permits);
+		}
+	}
+
+	/**
+	 * Grows (positive delta) or shrinks (negative delta) the pool without
+	 * waiting. A shrink may leave the pool temporarily overdrawn.
+	 *
+	 * @param delta
+	 */
+	void adjust(long delta) {
+		this.stripes.addAndGet(0, delta);
+	}
+
+	/**
+	 * @return the number of free permits, summed over all stripes
+	 */
+	long available() {
+		long sum = 0;
+		for (int i = 0; i <= this.mask; i++) {
+			sum += this.stripes.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private boolean takeFrom(int index, long permits) {
+		for (;;) {
+			long current = this.stripes.get(index);
+			if (current < permits) {
+				return false;
+			}
+			if (this.stripes.compareAndSet(index, current, current - permits)) {
+				return true;
+			}
+		}
+	}
+
+	private long drainSurplus(int index) {
+		for (;;) {
+			long current = this.stripes.get(index);
+			if (current <= 0) {
+				return 0;
+			}
+			if (this.stripes.compareAndSet(index, current, 0)) {
+				return current;
+			}
+		}
+	}
+
+	private int homeStripe() {
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & this.mask) * PADDING;
+	}
+}
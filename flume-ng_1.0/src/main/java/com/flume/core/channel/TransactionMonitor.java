@@ -0,0 +1,190 @@
+package com.flume.core.channel;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * Keeps track of the transactions of a {@link BasicChannelSemantics} channel
+ * and periodically reports the oldest open one: its age and the number of
+ * events and bytes it holds. A sink stuck in <code>process()</code> keeps
+ * its takes invisible to everybody else, this makes it show up in the
+ * channel's {@link ChannelCounter}.
+ * </p>
+ * <p>
+ * Open transactions whose thread has died are rolled back on the next check,
+ * their events go back to the channel. When <code>transactionTimeout</code>
+ * is set, transactions open for longer are rolled back as well, provided
+ * their thread is not inside a channel call at that moment; the owning thread
+ * gets a {@link com.flume.core.ChannelException} on its next put, take or
+ * commit, and its rollback becomes a no-op. Prepared transactions and
+ * transactions handed off between threads are part of a commit across
+ * several channels and are left to their owner; they are only reported.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>transactionTimeout = type long, milliseconds a transaction may stay
+ * open before it is rolled back, 0 (the default) for no limit.
+ * <li>transactionMonitorInterval = type long, milliseconds between checks, 0
+ * disables the monitor (default 10000).
+ * </p>
+ *
+ * @Description 记录Channel中打开的事务，定期上报最老事务的时长和占用的Event，回滚线程已死或超时的事务
+ */
+final class TransactionMonitor {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(TransactionMonitor.class);
+
+	static final String CONFIG_TIMEOUT = "transactionTimeout";
+	static final String CONFIG_MONITOR_INTERVAL = "transactionMonitorInterval";
+
+	private static final long defaultMonitorInterval = 10000L;
+
+	/**
+	 * 所有Channel共用一个监控线程
+	 */
+	private static ScheduledExecutorService scheduler;
+
+	/**
+	 * 每个线程的事务，事务被替换或线程结束后移除
+	 */
+	private final Set<BasicTransactionSemantics> transactions = Collections
+			.newSetFromMap(new ConcurrentHashMap<BasicTransactionSemantics, Boolean>());
+
+	private volatile long timeout = 0L;
+	private volatile long interval = defaultMonitorInterval;
+
+	/**
+	 * @return the executor shared by the monitors of all channels
+	 */
+	static synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+					new ThreadFactoryBuilder().setNameFormat("Channel-TransactionMonitor").setDaemon(true).build());
+			executor.setRemoveOnCancelPolicy(true);
+			scheduler = executor;
+		}
+		return scheduler;
+	}
+
+	void configure(Context context) {
+		long timeout = context.getLong(CONFIG_TIMEOUT, 0L);
+		Preconditions.checkArgument(timeout >= 0, "transactionTimeout must not be negative");
+		long interval = context.getLong(CONFIG_MONITOR_INTERVAL, defaultMonitorInterval);
+		Preconditions.checkArgument(interval >= 0, "transactionMonitorInterval must not be negative");
+		this.timeout = timeout;
+		this.interval = interval;
+	}
+
+	long getTimeout() {
+		return this.timeout;
+	}
+
+	long getInterval() {
+		return this.interval;
+	}
+
+	/**
+	 * Starts tracking the new transaction of a thread in place of its previous
+	 * one.
+	 *
+	 * @param previous
+	 *            the transaction replaced, or null
+	 * @param transaction
+	 */
+	void replace(BasicTransactionSemantics previous, BasicTransactionSemantics transaction) {
+		if (previous != null) {
+			this.transactions.remove(previous);
+		}
+		this.transactions.add(transaction);
+	}
+
+	/**
+	 * <p>
+	 * Checks all transactions once: rolls back the abandoned ones and
+	 * reports the oldest open one to the counter.
+	 * </p>
+	 *
+	 * @param channelName
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param counter
+	 *            may be null
+	 * @return the number of transactions rolled back
+	 */
+	int check(String channelName, long now, ChannelCounter counter) {
+		long timeout = this.timeout;
+		int open = 0;
+		int abandoned = 0;
+		BasicTransactionSemantics oldest = null;
+		long oldestOpenedAt = Long.MAX_VALUE;
+
+		for (BasicTransactionSemantics transaction : this.transactions) {
+			Thread owner = transaction.getOwner();
+			// 已交出、尚未被attach的事务没有所属线程，不算线程已死
+			boolean alive = owner == null || owner.isAlive();
+			long openedAt = transaction.getOpenedAt();
+			if (openedAt == 0L) {
+				if (!alive) {
+					this.transactions.remove(transaction);
+				}
+				continue;
+			}
+
+			long age = now - openedAt;
+			if (!alive || (timeout > 0 && age > timeout)) {
+				long events = transaction.getHeldEvents();
+				if (owner == null || transaction.getState() == BasicTransactionSemantics.State.PREPARED) {
+					// 回滚其中一个Channel的事务会造成部分提交
+					LOGGER.warn("Channel {}: a {} transaction holding {} events has been open for {} ms{}, it is not"
+							+ " rolled back as it may be committed together with other channels", channelName,
+							owner == null ? "detached" : "prepared", events, age,
+							alive ? "" : " after its thread died");
+				} else if (transaction.abandon(openedAt)) {
+					abandoned++;
+					LOGGER.warn("Channel {}: rolled back a transaction of thread {} holding {} events that was open"
+							+ " for {} ms{}", channelName, owner.getName(), events, age,
+							alive ? "" : " after its thread died");
+					if (!alive) {
+						this.transactions.remove(transaction);
+					}
+					continue;
+				}
+			}
+
+			open++;
+			if (openedAt < oldestOpenedAt) {
+				oldestOpenedAt = openedAt;
+				oldest = transaction;
+			}
+		}
+
+		if (counter != null) {
+			counter.setOpenTransactionCount(open);
+			if (oldest == null) {
+				counter.setOldestTransactionAge(0L);
+				counter.setOldestTransactionEventCount(0L);
+				counter.setOldestTransactionByteCount(0L);
+			} else {
+				counter.setOldestTransactionAge(Math.max(0L, now - oldestOpenedAt));
+				counter.setOldestTransactionEventCount(oldest.getHeldEvents());
+				counter.setOldestTransactionByteCount(oldest.getHeldBytes());
+			}
+			if (abandoned > 0) {
+				counter.addToAbandonedTransactionCount(abandoned);
+			}
+		}
+		return abandoned;
+	}
+}
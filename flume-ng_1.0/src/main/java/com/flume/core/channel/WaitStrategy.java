@@ -0,0 +1,270 @@
+package com.flume.core.channel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.sdk.FlumeException;
+
+/**
+ * <p>
+ * How a channel thread waits for a state change it cannot make progress
+ * without: a taker waiting for an event, or a committer waiting for capacity.
+ * The waiter follows the pattern
+ * </p>
+ *
+ * <pre>
+ * for (int attempt = 0;; attempt++) {
+ * 	long token = strategy.prepare();
+ * 	if (conditionHolds()) {
+ * 		break;
+ * 	}
+ * 	if (deadline passed) {
+ * 		give up;
+ * 	}
+ * 	strategy.await(token, attempt, deadline);
+ * }
+ * </pre>
+ * <p>
+ * and every thread that may make the condition true calls
+ * {@link #signalAll()} afterwards. <code>await</code> may return early, the
+ * caller always checks its condition again.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>waitStrategy = busySpin, yielding, backoff (default) or blocking, or
+ * the class name of a subclass with a public no-argument constructor.
+ * </p>
+ * <dl>
+ * <dt>busySpin</dt>
+ * <dd>Never gives up the CPU. Lowest latency, one core per waiting thread.
+ * </dd>
+ * <dt>yielding</dt>
+ * <dd>Spins for a while, then yields the CPU to other threads between
+ * checks.</dd>
+ * <dt>backoff</dt>
+ * <dd>Yields a few times, then parks with an exponentially growing pause of
+ * up to a millisecond.</dd>
+ * <dt>blocking</dt>
+ * <dd>Sleeps on a condition until signalled or the deadline passes. Idle
+ * threads use no CPU; each wake-up costs a lock handoff.</dd>
+ * </dl>
+ *
+ * @Description 通道等待策略：消费者等待Event、提交者等待容量时如何等待，可配置为自旋、让出CPU、退避park或阻塞唤醒
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+public abstract class WaitStrategy {
+
+	public static final String WAIT_STRATEGY = "waitStrategy";
+	public static final String DEFAULT_WAIT_STRATEGY = "backoff";
+
+	/**
+	 * <p>
+	 * Creates the strategy configured as <code>waitStrategy</code>. Each call
+	 * returns a new instance, a channel uses separate instances for its
+	 * takers and its committers.
+	 * </p>
+	 *
+	 * @param name
+	 *            one of the built-in names or a class name
+	 * @return a new wait strategy
+	 */
+	public static WaitStrategy create(String name) {
+		if ("busySpin".equalsIgnoreCase(name)) {
+			return new BusySpin();
+		} else if ("yielding".equalsIgnoreCase(name)) {
+			return new Yielding();
+		} else if ("backoff".equalsIgnoreCase(name)) {
+			return new Backoff();
+		} else if ("blocking".equalsIgnoreCase(name)) {
+			return new Blocking();
+		}
+		try {
+			Class<?> clazz = Class.forName(name);
+			if (!WaitStrategy.class.isAssignableFrom(clazz)) {
+				throw new FlumeException("Class " + name + " is not a WaitStrategy");
+			}
+			return (WaitStrategy) clazz.newInstance();
+		} catch (ClassNotFoundException e) {
+			throw new FlumeException("Unknown wait strategy " + name, e);
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new FlumeException("Unable to instantiate wait strategy " + name, e);
+		}
+	}
+
+	/**
+	 * <p>
+	 * Called before the waiter checks its condition. The returned token is
+	 * passed to {@link #await(long, int, long)} so that a signal arriving
+	 * between the check and the wait is not lost.
+	 * </p>
+	 *
+	 * @return
+	 */
+	public long prepare() {
+		return 0L;
+	}
+
+	/**
+	 * <p>
+	 * Waits once, at most until <code>deadlineNanos</code>.
+	 * </p>
+	 *
+	 * @param token
+	 *            the value returned by {@link #prepare()} before the check
+	 * @param attempt
+	 *            the number of waits so far for the same condition
+	 * @param deadlineNanos
+	 *            the {@link System#nanoTime()} the waiter gives up at
+	 * @throws InterruptedException
+	 */
+	public abstract void await(long token, int attempt, long deadlineNanos) throws InterruptedException;
+
+	/**
+	 * Wakes up the threads waiting on this strategy.
+	 */
+	public void signalAll() {
+	}
+
+	/**
+	 * @return the name this strategy is configured with
+	 */
+	public String getName() {
+		return this.getClass().getName();
+	}
+
+	protected static void checkInterrupted() throws InterruptedException {
+		if (Thread.interrupted()) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * 一直占用CPU检查条件，延迟最低
+	 */
+	static final class BusySpin extends WaitStrategy {
+
+		@Override
+		public void await(long token, int attempt, long deadlineNanos) throws InterruptedException {
+			checkInterrupted();
+		}
+
+		@Override
+		public String getName() {
+			return "busySpin";
+		}
+	}
+
+	/**
+	 * 先自旋若干次，之后每次检查前让出CPU
+	 */
+	static final class Yielding extends WaitStrategy {
+
+		private static final int SPIN_TRIES = 100;
+
+		@Override
+		public void await(long token, int attempt, long deadlineNanos) throws InterruptedException {
+			checkInterrupted();
+			if (attempt >= SPIN_TRIES) {
+				Thread.yield();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "yielding";
+		}
+	}
+
+	/**
+	 * 前几次只让出CPU，之后park并指数退避，最长1毫秒
+	 */
+	static final class Backoff extends WaitStrategy {
+
+		private static final int SPIN_TRIES = 16;
+		private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+		private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+		@Override
+		public void await(long token, int attempt, long deadlineNanos) throws InterruptedException {
+			checkInterrupted();
+			if (attempt < SPIN_TRIES) {
+				Thread.yield();
+			} else {
+				LockSupport.parkNanos(
+						Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(attempt - SPIN_TRIES, 10)));
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "backoff";
+		}
+	}
+
+	/**
+	 * <p>
+	 * Sleeps on a condition. Every signal advances a sequence; a waiter only
+	 * sleeps while the sequence still has the value it read before checking
+	 * its condition. Signalling takes the lock only when a thread is waiting.
+	 * </p>
+	 */
+	static final class Blocking extends WaitStrategy {
+
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition changed = this.lock.newCondition();
+		private final AtomicLong sequence = new AtomicLong(0L);
+		private final AtomicInteger waiters = new AtomicInteger(0);
+
+		@Override
+		public long prepare() {
+			return this.sequence.get();
+		}
+
+		@Override
+		public void await(long token, int attempt, long deadlineNanos) throws InterruptedException {
+			// 先登记等待者再检查序号，与signalAll先推进序号再检查等待者配对，不会丢失唤醒
+			this.waiters.incrementAndGet();
+			try {
+				this.lock.lockInterruptibly();
+				try {
+					while (this.sequence.get() == token) {
+						long nanos = deadlineNanos - System.nanoTime();
+						if (nanos <= 0) {
+							return;
+						}
+						this.changed.awaitNanos(nanos);
+					}
+				} finally {
+					this.lock.unlock();
+				}
+			} finally {
+				this.waiters.decrementAndGet();
+			}
+		}
+
+		@Override
+		public void signalAll() {
+			this.sequence.incrementAndGet();
+			if (this.waiters.get() > 0) {
+				this.lock.lock();
+				try {
+					this.changed.signalAll();
+				} finally {
+					this.lock.unlock();
+				}
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "blocking";
+		}
+	}
+}
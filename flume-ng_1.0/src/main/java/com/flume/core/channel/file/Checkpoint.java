@@ -0,0 +1,184 @@
+package com.flume.core.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * The memory-mapped checkpoint of a {@link FileChannel}. Two files,
+ * <code>checkpoint-0</code> and <code>checkpoint-1</code>, are written in
+ * turn, so a crash while writing one leaves the other intact. Each holds the
+ * log position the checkpoint was cut at and the pointers that were queued at
+ * that moment; on start the newest complete one is loaded and only the log
+ * after the cut is replayed.
+ * </p>
+ * <p>
+ * Layout: magic (long), complete flag (int), sequence (long), cut file id
+ * (int), cut offset (int), next transaction id (long), pointer count (int),
+ * followed by the pointers (long each). The complete flag is cleared and
+ * forced before the body is written and set again after it has been forced.
+ * </p>
+ *
+ * @Description FileChannel的检查点，两个内存映射文件交替写入
+ */
+final class Checkpoint {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Checkpoint.class);
+
+	private static final String PREFIX = "checkpoint-";
+	private static final long MAGIC = 0x464C554D45434B50L;
+
+	private static final int OFFSET_MAGIC = 0;
+	private static final int OFFSET_COMPLETE = 8;
+	private static final int OFFSET_SEQUENCE = 12;
+	private static final int OFFSET_CUT_FILE = 20;
+	private static final int OFFSET_CUT_OFFSET = 24;
+	private static final int OFFSET_NEXT_TXN = 28;
+	private static final int OFFSET_COUNT = 36;
+	private static final int HEADER_SIZE = 40;
+
+	/**
+	 * The state recorded by one checkpoint.
+	 */
+	static final class State {
+		final long sequence;
+		final int cutFileId;
+		final int cutOffset;
+		final long nextTxnId;
+		final long[] pointers;
+
+		State(long sequence, int cutFileId, int cutOffset, long nextTxnId, long[] pointers) {
+			this.sequence = sequence;
+			this.cutFileId = cutFileId;
+			this.cutOffset = cutOffset;
+			this.nextTxnId = nextTxnId;
+			this.pointers = pointers;
+		}
+	}
+
+	private final File checkpointDir;
+	/**
+	 * 两个检查点文件的映射，文件需要变大时重新映射
+	 */
+	private final MappedByteBuffer[] mapped = new MappedByteBuffer[2];
+	private long sequence = 0L;
+
+	Checkpoint(File checkpointDir) {
+		this.checkpointDir = checkpointDir;
+	}
+
+	/**
+	 * @return the newest complete checkpoint, or null if there is none
+	 * @throws IOException
+	 */
+	synchronized State load() throws IOException {
+		State newest = null;
+		for (int slot = 0; slot < 2; slot++) {
+			File file = this.file(slot);
+			if (!file.exists() || file.length() < HEADER_SIZE) {
+				continue;
+			}
+			MappedByteBuffer buffer = this.map(slot, file.length());
+			if (buffer.getLong(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_COMPLETE) != 1) {
+				LOGGER.warn("Ignoring incomplete checkpoint {}", file);
+				continue;
+			}
+			int count = buffer.getInt(OFFSET_COUNT);
+			if (count < 0 || HEADER_SIZE + 8L * count > file.length()) {
+				LOGGER.warn("Ignoring corrupt checkpoint {}, pointer count {}", file, count);
+				continue;
+			}
+			long sequence = buffer.getLong(OFFSET_SEQUENCE);
+			if (newest != null && newest.sequence >= sequence) {
+				continue;
+			}
+			long[] pointers = new long[count];
+			ByteBuffer body = buffer.duplicate();
+			body.position(HEADER_SIZE);
+			body.asLongBuffer().get(pointers);
+			newest = new State(sequence, buffer.getInt(OFFSET_CUT_FILE), buffer.getInt(OFFSET_CUT_OFFSET),
+					buffer.getLong(OFFSET_NEXT_TXN), pointers);
+		}
+		if (newest != null) {
+			this.sequence = newest.sequence;
+		}
+		return newest;
+	}
+
+	/**
+	 * Writes a checkpoint into the slot not holding the newest one.
+	 *
+	 * @param cutFileId
+	 * @param cutOffset
+	 * @param nextTxnId
+	 * @param pointers
+	 * @throws IOException
+	 */
+	synchronized void write(int cutFileId, int cutOffset, long nextTxnId, long[] pointers) throws IOException {
+		long sequence = this.sequence + 1;
+		int slot = (int) (sequence & 1);
+		MappedByteBuffer buffer = this.map(slot, HEADER_SIZE + 8L * pointers.length);
+
+		buffer.putInt(OFFSET_COMPLETE, 0);
+		buffer.force();
+
+		buffer.putLong(OFFSET_MAGIC, MAGIC);
+		buffer.putLong(OFFSET_SEQUENCE, sequence);
+		buffer.putInt(OFFSET_CUT_FILE, cutFileId);
+		buffer.putInt(OFFSET_CUT_OFFSET, cutOffset);
+		buffer.putLong(OFFSET_NEXT_TXN, nextTxnId);
+		buffer.putInt(OFFSET_COUNT, pointers.length);
+		ByteBuffer body = buffer.duplicate();
+		body.position(HEADER_SIZE);
+		body.asLongBuffer().put(pointers);
+		buffer.force();
+
+		buffer.putInt(OFFSET_COMPLETE, 1);
+		buffer.force();
+		this.sequence = sequence;
+	}
+
+	/**
+	 * 释放映射，之后不能再读写
+	 */
+	synchronized void close() {
+		this.mapped[0] = null;
+		this.mapped[1] = null;
+	}
+
+	private File file(int slot) {
+		return new File(this.checkpointDir, PREFIX + slot);
+	}
+
+	/**
+	 * 返回至少size字节的映射，不足时扩大文件并重新映射；文件只增不减
+	 */
+	private MappedByteBuffer map(int slot, long size) throws IOException {
+		MappedByteBuffer buffer = this.mapped[slot];
+		if (buffer != null && buffer.capacity() >= size) {
+			return buffer;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Checkpoint of " + size + " bytes is too large to be mapped");
+		}
+		RandomAccessFile file = new RandomAccessFile(this.file(slot), "rw");
+		try {
+			long length = Math.max(size, file.length());
+			if (file.length() < length) {
+				file.setLength(length);
+			}
+			buffer = file.getChannel().map(MapMode.READ_WRITE, 0, length);
+		} finally {
+			file.close();
+		}
+		this.mapped[slot] = buffer;
+		return buffer;
+	}
+}
@@ -0,0 +1,170 @@
+package com.flume.core.channel.file;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <p>
+ * The in-memory FIFO of committed event pointers of a {@link FileChannel}.
+ * A pointer packs the log file id into the high and the record offset into
+ * the low 32 bits; 0 is never a valid pointer. Pointers that have been taken
+ * by an open transaction are kept aside in an in-flight set so a checkpoint
+ * still sees them.
+ * </p>
+ * <p>
+ * Not thread safe: {@link Log} guards every call with the queue's monitor.
+ * </p>
+ *
+ * @Description FileChannel内存中的事件指针队列
+ */
+final class EventQueue {
+
+	private long[] elements;
+	private int head = 0;
+	private int size = 0;
+
+	private final Set<Long> inflightTakes = new HashSet<Long>();
+
+	EventQueue(int initialCapacity) {
+		this.elements = new long[Math.max(16, initialCapacity)];
+	}
+
+	static long pointer(int fileId, int offset) {
+		return ((long) fileId << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	static int fileId(long pointer) {
+		return (int) (pointer >>> 32);
+	}
+
+	static int offset(long pointer) {
+		return (int) pointer;
+	}
+
+	void addLast(long pointer) {
+		this.ensureCapacity();
+		this.elements[(this.head + this.size) % this.elements.length] = pointer;
+		this.size++;
+	}
+
+	void addFirst(long pointer) {
+		this.ensureCapacity();
+		this.head = (this.head - 1 + this.elements.length) % this.elements.length;
+		this.elements[this.head] = pointer;
+		this.size++;
+	}
+
+	/**
+	 * Moves the head pointer into the in-flight set.
+	 *
+	 * @return the pointer, or 0 if the queue is empty
+	 */
+	long take() {
+		if (this.size == 0) {
+			return 0L;
+		}
+		long pointer = this.elements[this.head];
+		this.head = (this.head + 1) % this.elements.length;
+		this.size--;
+		this.inflightTakes.add(pointer);
+		return pointer;
+	}
+
+	/**
+	 * Forgets a pointer whose take has been committed.
+	 *
+	 * @param pointer
+	 */
+	void completeTake(long pointer) {
+		this.inflightTakes.remove(pointer);
+	}
+
+	/**
+	 * Puts a pointer whose take has been rolled back back at the head.
+	 *
+	 * @param pointer
+	 */
+	void rollbackTake(long pointer) {
+		if (this.inflightTakes.remove(pointer)) {
+			this.addFirst(pointer);
+		}
+	}
+
+	/**
+	 * Removes the first occurrence of the pointer; used while replaying
+	 * committed takes, which almost always hit the head.
+	 *
+	 * @param pointer
+	 * @return true if the pointer was found
+	 */
+	boolean remove(long pointer) {
+		for (int i = 0; i < this.size; i++) {
+			int index = (this.head + i) % this.elements.length;
+			if (this.elements[index] == pointer) {
+				for (int j = i; j > 0; j--) {
+					this.elements[(this.head + j) % this.elements.length] = this.elements[(this.head + j - 1)
+							% this.elements.length];
+				}
+				this.head = (this.head + 1) % this.elements.length;
+				this.size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Copies up to <code>max</code> pointers from the head without taking
+	 * them.
+	 *
+	 * @param into
+	 * @param max
+	 * @return the number of pointers copied
+	 */
+	int peek(long[] into, int max) {
+		int count = Math.min(max, this.size);
+		for (int i = 0; i < count; i++) {
+			into[i] = this.elements[(this.head + i) % this.elements.length];
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of pointers in the queue plus those in flight
+	 */
+	int size() {
+		return this.size + this.inflightTakes.size();
+	}
+
+	/**
+	 * @return in-flight pointers (in log order) followed by the queue, i.e.
+	 *         the queue as it would be if every open take rolled back
+	 */
+	long[] snapshot() {
+		long[] inflight = new long[this.inflightTakes.size()];
+		int i = 0;
+		for (Long pointer : this.inflightTakes) {
+			inflight[i++] = pointer;
+		}
+		Arrays.sort(inflight);
+
+		long[] snapshot = Arrays.copyOf(inflight, inflight.length + this.size);
+		for (int j = 0; j < this.size; j++) {
+			snapshot[inflight.length + j] = this.elements[(this.head + j) % this.elements.length];
+		}
+		return snapshot;
+	}
+
+	private void ensureCapacity() {
+		if (this.size < this.elements.length) {
+			return;
+		}
+		long[] grown = new long[this.elements.length * 2];
+		for (int i = 0; i < this.size; i++) {
+			grown[i] = this.elements[(this.head + i) % this.elements.length];
+		}
+		this.elements = grown;
+		this.head = 0;
+	}
+}
@@ -0,0 +1,466 @@
+package com.flume.core.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelInspection;
+import com.flume.core.annotations.InterfaceAudience;
+import com.flume.core.annotations.InterfaceStability;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.channel.BasicChannelSemantics;
+import com.flume.core.channel.BasicTransactionSemantics;
+import com.flume.core.instrumentation.ChannelCounter;
+import com.flume.core.instrumentation.FileChannelCounter;
+import com.flume.sdk.Event;
+import com.flume.sdk.FlumeException;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * A durable channel. Every committed transaction is appended to a segmented
+ * write-ahead log in <code>dataDir</code> before the commit returns, so
+ * events survive a crash of the agent. Concurrent commits share their fsyncs
+ * (group commit): throughput is not limited to one disk flush per
+ * transaction.
+ * </p>
+ * <p>
+ * Transactions can be {@linkplain com.flume.core.Transaction#prepare()
+ * prepared}: the prepare appends the records, reserves the capacity and
+ * forces them to disk, the commit then only appends a commit marker. A
+ * transaction rolled back after its prepare leaves records without a marker
+ * that are ignored on replay, so a batch replicated to several file channels
+ * does not survive in any of them if one of them fails to prepare it.
+ * </p>
+ * <p>
+ * The queue itself only holds pointers into the log. A background thread
+ * periodically writes them to a memory-mapped checkpoint in
+ * <code>checkpointDir</code>; on start the checkpoint is loaded and only the
+ * log written after it is replayed. Log files no longer referenced by the
+ * checkpoint are deleted.
+ * </p>
+ * <p>
+ * Read parameters from context
+ * <li>dataDir = directory of the log files (default
+ * ~/.flume/file-channel/data).
+ * <li>checkpointDir = directory of the checkpoint files (default
+ * ~/.flume/file-channel/checkpoint).
+ * <li>capacity = type int, the maximum number of events in the channel
+ * (default 1000000).
+ * <li>transactionCapacity = type int, the maximum number of puts or takes in
+ * one transaction (default 10000).
+ * <li>maxFileSize = type long, the size in bytes at which a log file is
+ * rolled (default just under 2GB).
+ * <li>checkpointInterval = type long, milliseconds between checkpoints
+ * (default 30000).
+ * <li>recoveryThreads = type int, the number of log files replayed in
+ * parallel on start (default the number of processors). The progress of the
+ * replay and its estimated remaining time are reported by the channel's
+ * {@link FileChannelCounter}.
+ * </p>
+ *
+ * @Description 基于预写日志和内存映射检查点的持久化Channel
+ */
+@InterfaceAudience.Public
+@InterfaceStability.Evolving
+@Recyclable
+public class FileChannel extends BasicChannelSemantics {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileChannel.class);
+
+	private int capacity;
+	private int transactionCapacity;
+	private long maxFileSize;
+	private long checkpointInterval;
+	private int recoveryThreads;
+	private File dataDir;
+	private File checkpointDir;
+
+	private volatile Log log;
+	private ScheduledExecutorService checkpointExecutor;
+	private FileChannelCounter channelCounter;
+
+	/**
+	 *
+	 * @Description FileChannel的事务，put和take先缓存在事务内，commit时一次写入日志；
+	 *              两阶段提交时prepare写入记录并fsync，commit只写commit标记
+	 */
+	private class FileBackedTransaction extends BasicTransactionSemantics {
+
+		private final Log log;
+		private long transactionId;
+		private final Event[] putList;
+		/**
+		 * 已取出Event在日志中的指针，回滚时放回队首
+		 */
+		private final long[] takeList;
+		/**
+		 * put在日志中的指针，fsync成功后才放入队列
+		 */
+		private final long[] putPointers;
+		/**
+		 * 记录已写入日志，put占用着容量；提交失败后回滚时释放
+		 */
+		private boolean reserved = false;
+		/**
+		 * prepare成功后记录追加时的写入序号，提交时只需追加commit标记
+		 */
+		private boolean prepared = false;
+		private long preparedSeq;
+		private final ChannelCounter channelCounter;
+		private int putCount = 0;
+		private int takeCount = 0;
+
+		public FileBackedTransaction(Log log, int transCapacity, ChannelCounter counter) {
+			this.log = log;
+			this.transactionId = log.nextTransactionId();
+			this.putList = new Event[transCapacity];
+			this.takeList = new long[transCapacity];
+			this.putPointers = new long[transCapacity];
+			this.channelCounter = counter;
+		}
+
+		@Override
+		protected void doPut(Event event) throws InterruptedException {
+			this.channelCounter.incrementEventPutAttemptCount();
+			if (this.putCount == this.putList.length) {
+				throw new ChannelException("Put queue for FileBackedTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			this.putList[this.putCount++] = event;
+		}
+
+		@Override
+		protected void doPutAll(List<Event> events) throws InterruptedException {
+			int count = events.size();
+			this.channelCounter.addToEventPutAttemptCount(count);
+			if (this.putCount + count > this.putList.length) {
+				throw new ChannelException("Put queue for FileBackedTransaction of capacity " + this.putList.length
+						+ " full, consider committing more frequently, increasing capacity or increasing thread count");
+			}
+			for (int i = 0; i < count; i++) {
+				this.putList[this.putCount++] = events.get(i);
+			}
+		}
+
+		@Override
+		protected Event doTake() throws InterruptedException {
+			this.channelCounter.incrementEventTakeAttemptCount();
+			if (this.takeCount == this.takeList.length) {
+				throw new ChannelException("Take list for FileBackedTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+
+			long pointer = this.log.take();
+			if (pointer == 0L) {
+				return null;
+			}
+			this.takeList[this.takeCount++] = pointer;
+			try {
+				return this.log.read(pointer);
+			} catch (IOException e) {
+				throw new ChannelException("Unable to read event " + pointer + " from the log of channel "
+						+ getName(), e);
+			}
+		}
+
+		/**
+		 * 一次从队列取出整批指针，再逐个从日志读取
+		 */
+		@Override
+		protected int doTake(int max, List<Event> into) throws InterruptedException {
+			if (this.takeCount == this.takeList.length) {
+				this.channelCounter.incrementEventTakeAttemptCount();
+				throw new ChannelException("Take list for FileBackedTransaction, capacity " + this.takeList.length
+						+ " full, consider committing more frequently, increasing capacity, or increasing thread count");
+			}
+			int limit = Math.min(max, this.takeList.length - this.takeCount);
+			int taken = this.log.take(this.takeList, this.takeCount, limit);
+			this.channelCounter.addToEventTakeAttemptCount(taken < limit ? taken + 1 : taken);
+
+			int first = this.takeCount;
+			this.takeCount += taken;
+			for (int i = first; i < first + taken; i++) {
+				try {
+					into.add(this.log.read(this.takeList[i]));
+				} catch (IOException e) {
+					throw new ChannelException("Unable to read event " + this.takeList[i]
+							+ " from the log of channel " + getName(), e);
+				}
+			}
+			return taken;
+		}
+
+		@Override
+		public boolean supportsPrepare() {
+			return true;
+		}
+
+		/**
+		 * 记录和容量检查在prepare中完成并fsync，在ChannelProcessor的线程池中执行时多个Channel的fsync可以重叠
+		 */
+		@Override
+		protected void doPrepare() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+			if (puts == 0 && takes == 0) {
+				return;
+			}
+
+			try {
+				this.preparedSeq = this.log.prepare(this.transactionId, this.putList, puts, this.takeList, takes,
+						capacity, this.putPointers);
+				this.reserved = true;
+				this.log.sync(this.preparedSeq);
+			} catch (IOException e) {
+				// 没有commit标记的记录在回放时被忽略，只需释放容量
+				if (this.reserved) {
+					this.log.release(this.putPointers, puts);
+					this.reserved = false;
+				}
+				throw new ChannelException("Prepare failed due to IO error on channel " + getName(), e);
+			}
+			this.prepared = true;
+		}
+
+		@Override
+		protected void doCommit() throws InterruptedException {
+			int puts = this.putCount;
+			int takes = this.takeCount;
+			if (puts == 0 && takes == 0) {
+				return;
+			}
+
+			try {
+				long seq = this.prepared
+						? this.log.commitPrepared(this.transactionId, this.preparedSeq, this.putList, puts,
+								this.takeList, takes, this.putPointers)
+						: this.log.commit(this.transactionId, this.putList, puts, this.takeList, takes, capacity,
+								this.putPointers);
+				this.reserved = true;
+				this.log.sync(seq);
+			} catch (IOException e) {
+				throw new ChannelException("Commit failed due to IO error on channel " + getName(), e);
+			}
+			// 落盘之后才对take可见，fsync失败时回滚不会留下重复的Event
+			this.log.publish(this.putPointers, puts, this.takeList, takes);
+			this.reserved = false;
+			this.clear();
+
+			if (puts > 0) {
+				this.channelCounter.addToEventPutSuccessCount(puts);
+			}
+			if (takes > 0) {
+				this.channelCounter.addToEventTakeSuccessCount(takes);
+			}
+			this.channelCounter.setChannelSize(this.log.size());
+		}
+
+		@Override
+		protected void doRollback() throws InterruptedException {
+			if (this.reserved) {
+				this.log.release(this.putPointers, this.putCount);
+				this.reserved = false;
+			}
+			this.log.rollbackTakes(this.takeList, this.takeCount);
+			this.clear();
+			this.channelCounter.setChannelSize(this.log.size());
+		}
+
+		/**
+		 * 复用时换一个新的事务id；日志重新打开或事务容量变化后不能复用
+		 */
+		@Override
+		protected boolean doReset() {
+			if (this.log != FileChannel.this.log || !this.log.isOpen()
+					|| this.putList.length != transactionCapacity) {
+				return false;
+			}
+			this.clear();
+			this.transactionId = this.log.nextTransactionId();
+			return true;
+		}
+
+		private void clear() {
+			for (int i = 0; i < this.putCount; i++) {
+				this.putList[i] = null;
+			}
+			this.putCount = 0;
+			this.takeCount = 0;
+			this.reserved = false;
+			this.prepared = false;
+		}
+	}
+
+	@Override
+	public void configure(Context context) {
+		super.configure(context);
+
+		String homePath = System.getProperty("user.home").replace('\\', '/');
+
+		this.dataDir = new File(context.getString(FileChannelConfigurationConstants.DATA_DIR,
+				homePath + "/.flume/file-channel/data"));
+		this.checkpointDir = new File(context.getString(FileChannelConfigurationConstants.CHECKPOINT_DIR,
+				homePath + "/.flume/file-channel/checkpoint"));
+
+		this.capacity = context.getInteger(FileChannelConfigurationConstants.CAPACITY,
+				FileChannelConfigurationConstants.DEFAULT_CAPACITY);
+		if (this.capacity <= 0) {
+			this.capacity = FileChannelConfigurationConstants.DEFAULT_CAPACITY;
+			LOGGER.warn("Invalid capacity specified, initializing channel to default capacity of {}",
+					this.capacity);
+		}
+
+		this.transactionCapacity = context.getInteger(FileChannelConfigurationConstants.TRANSACTION_CAPACITY,
+				FileChannelConfigurationConstants.DEFAULT_TRANSACTION_CAPACITY);
+		if (this.transactionCapacity <= 0) {
+			this.transactionCapacity = FileChannelConfigurationConstants.DEFAULT_TRANSACTION_CAPACITY;
+			LOGGER.warn("Invalid transaction capacity specified, initializing channel to default capacity of {}",
+					this.transactionCapacity);
+		}
+		Preconditions.checkState(this.transactionCapacity <= this.capacity,
+				"File Channel transaction capacity cannot be greater than the capacity of the channel.");
+
+		this.maxFileSize = Math.min(context.getLong(FileChannelConfigurationConstants.MAX_FILE_SIZE,
+				FileChannelConfigurationConstants.DEFAULT_MAX_FILE_SIZE),
+				FileChannelConfigurationConstants.DEFAULT_MAX_FILE_SIZE);
+		Preconditions.checkArgument(this.maxFileSize > 0, "maxFileSize must be positive");
+
+		this.checkpointInterval = context.getLong(FileChannelConfigurationConstants.CHECKPOINT_INTERVAL,
+				FileChannelConfigurationConstants.DEFAULT_CHECKPOINT_INTERVAL);
+		Preconditions.checkArgument(this.checkpointInterval > 0, "checkpointInterval must be positive");
+
+		this.recoveryThreads = context.getInteger(FileChannelConfigurationConstants.RECOVERY_THREADS,
+				FileChannelConfigurationConstants.DEFAULT_RECOVERY_THREADS);
+		Preconditions.checkArgument(this.recoveryThreads > 0, "recoveryThreads must be positive");
+
+		if (this.channelCounter == null) {
+			this.channelCounter = new FileChannelCounter(this.getName());
+		}
+	}
+
+	@Override
+	public synchronized void start() {
+		LOGGER.info("Starting {}...", this);
+		// 先启动计数器，回放过程中即可通过JMX查看进度
+		this.channelCounter.start();
+		Log log = new Log(this.dataDir, this.checkpointDir, this.maxFileSize, Math.min(this.capacity, 1 << 16),
+				this.recoveryThreads, this.channelCounter);
+		try {
+			log.open();
+		} catch (IOException e) {
+			LOGGER.error("Failed to start the file channel " + this.getName(), e);
+			this.channelCounter.stop();
+			throw new FlumeException("Unable to open the log of channel " + this.getName() + " in " + this.dataDir
+					+ " with checkpoints in " + this.checkpointDir, e);
+		}
+		this.log = log;
+
+		this.checkpointExecutor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("Log-BackgroundWorker-" + this.getName()).build());
+		this.checkpointExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					log.checkpoint();
+				} catch (Throwable t) {
+					LOGGER.error("Error while writing checkpoint of channel " + getName(), t);
+				}
+			}
+		}, this.checkpointInterval, this.checkpointInterval, TimeUnit.MILLISECONDS);
+
+		this.channelCounter.setChannelSize(log.size());
+		this.channelCounter.setChannelCapacity(this.capacity);
+		super.start();
+	}
+
+	@Override
+	public synchronized void stop() {
+		LOGGER.info("Stopping {}...", this);
+		if (this.checkpointExecutor != null) {
+			this.checkpointExecutor.shutdown();
+			try {
+				if (!this.checkpointExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+					this.checkpointExecutor.shutdownNow();
+				}
+			} catch (InterruptedException e) {
+				this.checkpointExecutor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			this.checkpointExecutor = null;
+		}
+		Log log = this.log;
+		if (log != null) {
+			this.channelCounter.setChannelSize(log.size());
+			log.close();
+		}
+		this.channelCounter.stop();
+		super.stop();
+	}
+
+	/**
+	 * <p>
+	 * Copies the head pointers under the queue's monitor and reads their
+	 * events from the log afterwards, so puts and takes wait at most for the
+	 * copy. The byte count is not tracked and reported as unknown.
+	 * </p>
+	 */
+	@Override
+	public ChannelInspection inspect(int sampleSize) {
+		Preconditions.checkArgument(sampleSize >= 0, "sampleSize must not be negative: %s", sampleSize);
+		Log log = this.log;
+		if (log == null || !log.isOpen()) {
+			return super.inspect(sampleSize);
+		}
+		long[] pointers = new long[Math.max(1, Math.min(sampleSize, ChannelInspection.MAX_SAMPLE_SIZE))];
+		int count = log.peek(pointers, pointers.length);
+		List<Event> sample = new ArrayList<Event>(count);
+		Event head = null;
+		for (int i = 0; i < count; i++) {
+			try {
+				Event event = log.read(pointers[i]);
+				if (i == 0) {
+					head = event;
+				}
+				if (sample.size() < sampleSize) {
+					sample.add(event);
+				}
+			} catch (IOException e) {
+				// 读取前已被取走且日志文件已删除
+				LOGGER.debug("Unable to read event {} for inspection of channel {}", pointers[i], this.getName());
+			}
+		}
+		long headAge = count > 0 && head == null ? ChannelInspection.UNKNOWN
+				: ageOf(head, System.currentTimeMillis());
+		return new ChannelInspection(log.size(), ChannelInspection.UNKNOWN, headAge, sample);
+	}
+
+	@Override
+	protected FileChannelCounter getChannelCounter() {
+		return this.channelCounter;
+	}
+
+	@Override
+	protected BasicTransactionSemantics createTransaction() {
+		Log log = this.log;
+		if (log == null || !log.isOpen()) {
+			throw new ChannelException("Channel " + this.getName() + " is not open");
+		}
+		return new FileBackedTransaction(log, this.transactionCapacity, this.channelCounter);
+	}
+
+	@Override
+	public String toString() {
+		return "FileChannel " + this.getName() + " { dataDir: " + this.dataDir + " }";
+	}
+}
@@ -0,0 +1,53 @@
+package com.flume.core.channel.file;
+
+/**
+ * FileChannel的配置项名称及默认值
+ *
+ * @author Administrator
+ *
+ */
+public class FileChannelConfigurationConstants {
+
+	/**
+	 * Directory the memory-mapped checkpoint files are written to.
+	 */
+	public static final String CHECKPOINT_DIR = "checkpointDir";
+
+	/**
+	 * Directory the segmented write-ahead log is written to.
+	 */
+	public static final String DATA_DIR = "dataDir";
+
+	/**
+	 * Maximum number of events the channel holds.
+	 */
+	public static final String CAPACITY = "capacity";
+	public static final int DEFAULT_CAPACITY = 1000000;
+
+	/**
+	 * Maximum number of puts, or takes, in one transaction.
+	 */
+	public static final String TRANSACTION_CAPACITY = "transactionCapacity";
+	public static final int DEFAULT_TRANSACTION_CAPACITY = 10000;
+
+	/**
+	 * Size at which a log segment is closed and a new one started.
+	 */
+	public static final String MAX_FILE_SIZE = "maxFileSize";
+	public static final long DEFAULT_MAX_FILE_SIZE = Integer.MAX_VALUE - (500L * 1024L);
+
+	/**
+	 * Milliseconds between two checkpoints.
+	 */
+	public static final String CHECKPOINT_INTERVAL = "checkpointInterval";
+	public static final long DEFAULT_CHECKPOINT_INTERVAL = 30 * 1000L;
+
+	/**
+	 * Number of threads replaying log files in parallel on start.
+	 */
+	public static final String RECOVERY_THREADS = "recoveryThreads";
+	public static final int DEFAULT_RECOVERY_THREADS = Runtime.getRuntime().availableProcessors();
+
+	private FileChannelConfigurationConstants() {
+	}
+}
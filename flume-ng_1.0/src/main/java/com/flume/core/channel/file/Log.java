@@ -0,0 +1,1088 @@
+package com.flume.core.channel.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.flume.core.ChannelFullException;
+import com.flume.core.event.EventCodec;
+import com.flume.core.instrumentation.FileChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>
+ * The segmented write-ahead log behind a {@link FileChannel}. A committing
+ * transaction appends all of its records, its puts and takes followed by a
+ * commit marker, with one contiguous write. Forcing the data to disk happens
+ * afterwards in {@link #sync(long)}: one committer forces the file on behalf
+ * of every transaction appended before it, the others wait for that force
+ * instead of issuing their own.
+ * </p>
+ * <p>
+ * Only once the force succeeded the transaction is applied to the
+ * {@link EventQueue} with {@link #publish(long[], int, long[], int)}; if it
+ * fails the puts are dropped with {@link #release(long[], int)} and never
+ * become visible to takers, so a source retrying the batch does not cause
+ * duplicates. Until then the puts count against the capacity and a
+ * checkpoint treats them as queued, since their commit marker lies before
+ * the checkpoint's cut. Transactions committing concurrently may therefore
+ * enter the queue in a different order than they were appended.
+ * </p>
+ * <p>
+ * A transaction can also commit in two phases: {@link #prepare} appends and
+ * reserves like a commit but leaves out the marker, which
+ * {@link #commitPrepared} appends later. Replay only applies transactions
+ * whose marker it finds, so a prepared transaction that is rolled back or
+ * interrupted by a crash needs no further record.
+ * </p>
+ * <p>
+ * Record layout: length (int), CRC32 of the payload (int), payload. The
+ * payload is the record type (byte) and the transaction id (long), followed
+ * by the serialized event for a put or by the pointer of the taken put record
+ * for a take. A pointer is the log file id and the offset of the put record.
+ * </p>
+ * <p>
+ * Lock order: write lock, then the queue's monitor, then the sync lock.
+ * </p>
+ *
+ * @Description FileChannel的预写日志，分段写入，多个事务合并fsync
+ */
+final class Log {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Log.class);
+
+	static final byte TYPE_PUT = 1;
+	static final byte TYPE_TAKE = 2;
+	static final byte TYPE_COMMIT = 3;
+
+	private static final String PREFIX = "log-";
+	private static final int RECORD_HEADER_SIZE = 8;
+	/**
+	 * type + transaction id
+	 */
+	private static final int PAYLOAD_HEADER_SIZE = 9;
+	/**
+	 * 回放时每读过这么多字节更新一次进度
+	 */
+	private static final long PROGRESS_INTERVAL = 1024 * 1024;
+
+	/**
+	 * 一个日志分段文件
+	 */
+	private static final class LogFile {
+		final int id;
+		final File file;
+		final RandomAccessFile raf;
+
+		LogFile(int id, File file, String mode) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, mode);
+		}
+
+		void close() {
+			try {
+				this.raf.close();
+			} catch (IOException e) {
+				LOGGER.warn("Unable to close " + this.file, e);
+			}
+		}
+	}
+
+	/**
+	 * 回放时按事务收集尚未提交的记录
+	 */
+	private static final class PendingTransaction {
+		final List<Long> puts = new ArrayList<Long>();
+		final List<Long> takes = new ArrayList<Long>();
+	}
+
+	/**
+	 * 一个日志文件的回放结果：按提交顺序排列的已提交操作，take的指针取负数
+	 */
+	private static final class SegmentScan {
+		final File file;
+		final long length;
+		long[] ops = new long[64];
+		int opCount = 0;
+		/**
+		 * 第一个未回放字节的偏移量
+		 */
+		long end;
+		long maxTxnId = 0L;
+		int records = 0;
+		int discarded = 0;
+
+		SegmentScan(File file, long length) {
+			this.file = file;
+			this.length = length;
+		}
+
+		void add(long op) {
+			if (this.opCount == this.ops.length) {
+				this.ops = Arrays.copyOf(this.ops, this.opCount * 2);
+			}
+			this.ops[this.opCount++] = op;
+		}
+	}
+
+	private final File dataDir;
+	private final File checkpointDir;
+	private final long maxFileSize;
+	private final Checkpoint checkpoint;
+	private final EventQueue queue;
+	private final int recoveryThreads;
+	private final FileChannelCounter counter;
+
+	/**
+	 * 读取时按文件id查找，写入线程滚动文件时加入新分段
+	 */
+	private final Map<Integer, LogFile> files = new ConcurrentHashMap<Integer, LogFile>();
+	private final AtomicLong nextTxnId = new AtomicLong(1L);
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * guarded by writeLock
+	 */
+	private LogFile current;
+	private long writeOffset;
+	private long writeSeq;
+	/**
+	 * 日志滚动或截取检查点时的writeSeq：在此之前准备的事务提交时须重写记录
+	 */
+	private long barrierSeq;
+
+	/**
+	 * guarded by the queue's monitor: puts written to the log but not yet
+	 * published, and the pointers of those among them that are already
+	 * committed
+	 */
+	private int reserved = 0;
+	private final Set<Long> unpublished = new LinkedHashSet<Long>();
+
+	/**
+	 * 组提交：syncing为true时已有线程在force，其余线程等待synced
+	 */
+	private final ReentrantLock syncLock = new ReentrantLock();
+	private final Condition synced = this.syncLock.newCondition();
+	private boolean syncing = false;
+	private long syncedSeq = 0L;
+
+	private volatile boolean open = false;
+
+	Log(File dataDir, File checkpointDir, long maxFileSize, int initialQueueCapacity, int recoveryThreads,
+			FileChannelCounter counter) {
+		this.dataDir = dataDir;
+		this.checkpointDir = checkpointDir;
+		this.maxFileSize = maxFileSize;
+		this.checkpoint = new Checkpoint(checkpointDir);
+		this.queue = new EventQueue(initialQueueCapacity);
+		this.recoveryThreads = recoveryThreads;
+		this.counter = counter;
+	}
+
+	/**
+	 * Loads the newest checkpoint, replays the log written after it and
+	 * starts a new log file for writing.
+	 *
+	 * @throws IOException
+	 */
+	void open() throws IOException {
+		if (!this.dataDir.isDirectory() && !this.dataDir.mkdirs()) {
+			throw new IOException("Unable to create data directory " + this.dataDir);
+		}
+		// 检查点目录不存在时无法写检查点，日志永远不会被截断
+		if (!this.checkpointDir.isDirectory() && !this.checkpointDir.mkdirs()) {
+			throw new IOException("Unable to create checkpoint directory " + this.checkpointDir);
+		}
+
+		List<Integer> ids = this.listLogFiles();
+		for (Integer id : ids) {
+			this.files.put(id, new LogFile(id, this.logFile(id), "r"));
+		}
+
+		long start = System.currentTimeMillis();
+		Checkpoint.State state = this.checkpoint.load();
+		int replayed = this.replay(state, ids);
+		LOGGER.info("Replayed {} records from {} in {} ms, {} events queued", replayed, this.dataDir,
+				System.currentTimeMillis() - start, this.queue.size());
+
+		int nextId = ids.isEmpty() ? 1 : ids.get(ids.size() - 1) + 1;
+		this.writeLock.lock();
+		try {
+			this.roll(nextId);
+		} finally {
+			this.writeLock.unlock();
+		}
+		this.open = true;
+	}
+
+	boolean isOpen() {
+		return this.open;
+	}
+
+	long nextTransactionId() {
+		return this.nextTxnId.getAndIncrement();
+	}
+
+	int size() {
+		synchronized (this.queue) {
+			return this.queue.size();
+		}
+	}
+
+	/**
+	 * @return the pointer of the oldest queued event, moved in flight, or 0
+	 *         if the queue is empty
+	 */
+	long take() {
+		synchronized (this.queue) {
+			return this.queue.take();
+		}
+	}
+
+	/**
+	 * Moves up to <code>max</code> queued pointers in flight with one
+	 * acquisition of the queue's monitor.
+	 *
+	 * @param into
+	 * @param offset
+	 * @param max
+	 * @return the number of pointers taken
+	 */
+	int take(long[] into, int offset, int max) {
+		synchronized (this.queue) {
+			int taken = 0;
+			while (taken < max) {
+				long pointer = this.queue.take();
+				if (pointer == 0L) {
+					break;
+				}
+				into[offset + taken++] = pointer;
+			}
+			return taken;
+		}
+	}
+
+	/**
+	 * Copies up to <code>max</code> pointers from the head of the queue
+	 * without taking them; holds the queue's monitor only for the copy.
+	 *
+	 * @param into
+	 * @param max
+	 * @return the number of pointers copied
+	 */
+	int peek(long[] into, int max) {
+		synchronized (this.queue) {
+			return this.queue.peek(into, max);
+		}
+	}
+
+	/**
+	 * Puts taken pointers back at the head of the queue in their original
+	 * order.
+	 *
+	 * @param pointers
+	 * @param count
+	 */
+	void rollbackTakes(long[] pointers, int count) {
+		synchronized (this.queue) {
+			for (int i = count - 1; i >= 0; i--) {
+				this.queue.rollbackTake(pointers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Appends the records of a committing transaction and reserves room for
+	 * its puts. The records are not necessarily on disk yet: the caller must
+	 * {@link #sync(long)} the returned sequence and then either
+	 * {@link #publish(long[], int, long[], int)} or
+	 * {@link #release(long[], int)} the puts.
+	 *
+	 * @param txnId
+	 * @param puts
+	 * @param putCount
+	 * @param takes
+	 * @param takeCount
+	 * @param capacity
+	 * @param putPointers
+	 *            receives the pointers of the appended puts
+	 * @return the write sequence to sync
+	 * @throws IOException
+	 * @throws ChannelFullException
+	 *             if the puts would exceed <code>capacity</code>
+	 */
+	long commit(long txnId, Event[] puts, int putCount, long[] takes, int takeCount, int capacity,
+			long[] putPointers) throws IOException {
+		// 序列化在锁外完成，锁内只有一次写入
+		int[] putOffsets = new int[putCount];
+		byte[] records = serialize(txnId, puts, putCount, takes, takeCount, true, putOffsets);
+
+		this.writeLock.lock();
+		try {
+			this.checkOpen();
+			this.checkCapacity(putCount, takeCount, capacity);
+			this.pointers(this.append(records), putOffsets, putPointers);
+			this.appended(putPointers, putCount, putCount, true);
+			return this.writeSeq;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * The first phase of a two-phase commit: appends the puts and takes of a
+	 * transaction without a commit marker and reserves room for its puts.
+	 * Replay ignores the records until {@link #commitPrepared} appends the
+	 * marker; the caller must {@link #sync(long)} the returned sequence before
+	 * reporting the transaction as prepared.
+	 *
+	 * @param txnId
+	 * @param puts
+	 * @param putCount
+	 * @param takes
+	 * @param takeCount
+	 * @param capacity
+	 * @param putPointers
+	 *            receives the pointers of the appended puts
+	 * @return the write sequence to sync, to be passed to
+	 *         {@link #commitPrepared}
+	 * @throws IOException
+	 * @throws ChannelFullException
+	 *             if the puts would exceed <code>capacity</code>
+	 */
+	long prepare(long txnId, Event[] puts, int putCount, long[] takes, int takeCount, int capacity,
+			long[] putPointers) throws IOException {
+		int[] putOffsets = new int[putCount];
+		byte[] records = serialize(txnId, puts, putCount, takes, takeCount, false, putOffsets);
+
+		this.writeLock.lock();
+		try {
+			this.checkOpen();
+			this.checkCapacity(putCount, takeCount, capacity);
+			this.pointers(this.append(records), putOffsets, putPointers);
+			this.appended(putPointers, putCount, putCount, false);
+			return this.writeSeq;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * <p>
+	 * The second phase of a two-phase commit: appends the commit marker of a
+	 * transaction prepared at <code>preparedSeq</code>. Like
+	 * {@link #commit}, the caller must sync the returned sequence and then
+	 * publish or release the puts.
+	 * </p>
+	 * <p>
+	 * Replay reads every log file on its own and starts at the cut of the
+	 * checkpoint, so the marker must follow the prepared records in the same
+	 * file and after the cut. If the log has rolled or a checkpoint has been
+	 * cut since the prepare, the records are written again under a new
+	 * transaction id together with the marker, and <code>putPointers</code> is
+	 * updated; the prepared records are then never committed. The room
+	 * reserved by the prepare is kept.
+	 * </p>
+	 *
+	 * @param txnId
+	 * @param preparedSeq
+	 * @param puts
+	 * @param putCount
+	 * @param takes
+	 * @param takeCount
+	 * @param putPointers
+	 *            the pointers returned by the prepare, updated if the records
+	 *            are written again
+	 * @return the write sequence to sync
+	 * @throws IOException
+	 */
+	long commitPrepared(long txnId, long preparedSeq, Event[] puts, int putCount, long[] takes, int takeCount,
+			long[] putPointers) throws IOException {
+		byte[] marker = serialize(txnId, null, 0, null, 0, true, null);
+
+		this.writeLock.lock();
+		try {
+			this.checkOpen();
+			if (this.writeOffset > 0 && this.writeOffset + marker.length > this.maxFileSize) {
+				this.roll(this.current.id + 1);
+			}
+			if (preparedSeq > this.barrierSeq) {
+				this.append(marker);
+			} else {
+				// 很少发生：准备之后日志滚动或检查点已截断，在锁内重新序列化
+				int[] putOffsets = new int[putCount];
+				byte[] records = serialize(this.nextTxnId.getAndIncrement(), puts, putCount, takes, takeCount,
+						true, putOffsets);
+				this.pointers(this.append(records), putOffsets, putPointers);
+			}
+			this.appended(putPointers, putCount, 0, true);
+			return this.writeSeq;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Applies a committed transaction whose records have been synced to the
+	 * queue: its takes are forgotten and its puts become visible.
+	 *
+	 * @param putPointers
+	 * @param putCount
+	 * @param takes
+	 * @param takeCount
+	 */
+	void publish(long[] putPointers, int putCount, long[] takes, int takeCount) {
+		synchronized (this.queue) {
+			for (int i = 0; i < takeCount; i++) {
+				this.queue.completeTake(takes[i]);
+			}
+			for (int i = 0; i < putCount; i++) {
+				this.unpublished.remove(putPointers[i]);
+				this.queue.addLast(putPointers[i]);
+			}
+			this.reserved -= putCount;
+		}
+	}
+
+	/**
+	 * Drops the reserved puts of a transaction that failed after its records
+	 * were appended. Its takes are rolled back separately.
+	 *
+	 * @param putPointers
+	 * @param putCount
+	 */
+	void release(long[] putPointers, int putCount) {
+		synchronized (this.queue) {
+			for (int i = 0; i < putCount; i++) {
+				this.unpublished.remove(putPointers[i]);
+			}
+			this.reserved -= putCount;
+		}
+	}
+
+	/**
+	 * Blocks until every record appended up to <code>seq</code> has been
+	 * forced to disk. If no force is in progress the caller forces the current
+	 * file for everybody, otherwise it waits for the running one and checks
+	 * again.
+	 *
+	 * @param seq
+	 * @throws IOException
+	 */
+	void sync(long seq) throws IOException {
+		this.syncLock.lock();
+		try {
+			while (this.syncedSeq < seq) {
+				if (!this.syncing) {
+					break;
+				}
+				this.synced.awaitUninterruptibly();
+			}
+			if (this.syncedSeq >= seq) {
+				return;
+			}
+			this.syncing = true;
+		} finally {
+			this.syncLock.unlock();
+		}
+
+		long target = 0L;
+		IOException failure = null;
+		try {
+			LogFile file;
+			this.writeLock.lock();
+			try {
+				target = this.writeSeq;
+				file = this.current;
+			} finally {
+				this.writeLock.unlock();
+			}
+			if (file == null) {
+				throw new IOException("Log " + this.dataDir + " is closed");
+			}
+			// 滚动文件时旧文件已被force，这里只需force当前文件
+			file.raf.getChannel().force(false);
+		} catch (IOException e) {
+			failure = e;
+		}
+
+		this.syncLock.lock();
+		try {
+			this.syncing = false;
+			if (failure == null) {
+				this.syncedSeq = Math.max(this.syncedSeq, target);
+			}
+			this.synced.signalAll();
+		} finally {
+			this.syncLock.unlock();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Reads the event of a put record.
+	 *
+	 * @param pointer
+	 * @return
+	 * @throws IOException
+	 *             if the record cannot be read or fails its checksum
+	 */
+	Event read(long pointer) throws IOException {
+		int fileId = EventQueue.fileId(pointer);
+		LogFile file = this.files.get(fileId);
+		if (file == null) {
+			throw new IOException("Log file " + fileId + " referenced by " + pointer + " does not exist");
+		}
+		long position = EventQueue.offset(pointer) & 0xFFFFFFFFL;
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		readFully(file, header, position);
+		int length = header.getInt(0);
+		int crc = header.getInt(4);
+		if (length < PAYLOAD_HEADER_SIZE) {
+			throw new IOException("Corrupt record at " + position + " in " + file.file + ", length " + length);
+		}
+		ByteBuffer payload = ByteBuffer.allocate(length);
+		readFully(file, payload, position + RECORD_HEADER_SIZE);
+		byte[] data = payload.array();
+		if (checksum(data, length) != crc) {
+			throw new IOException("Checksum mismatch for record at " + position + " in " + file.file);
+		}
+		if (data[0] != TYPE_PUT) {
+			throw new IOException("Record at " + position + " in " + file.file + " is not a put but " + data[0]);
+		}
+		return EventCodec.read(new DataInputStream(
+				new ByteArrayInputStream(data, PAYLOAD_HEADER_SIZE, length - PAYLOAD_HEADER_SIZE)));
+	}
+
+	/**
+	 * Writes a checkpoint and deletes the log files no longer needed. The
+	 * log up to the cut is forced first so the checkpoint never refers to
+	 * records that could still be lost.
+	 *
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException {
+		long[] pointers;
+		int cutFileId;
+		int cutOffset;
+		long nextTxn;
+		long seq;
+		this.writeLock.lock();
+		try {
+			if (!this.open) {
+				return;
+			}
+			synchronized (this.queue) {
+				// 已提交但仍在等待fsync的put排在队列之后
+				long[] queued = this.queue.snapshot();
+				pointers = Arrays.copyOf(queued, queued.length + this.unpublished.size());
+				int i = queued.length;
+				for (Long pointer : this.unpublished) {
+					pointers[i++] = pointer;
+				}
+			}
+			cutFileId = this.current.id;
+			cutOffset = (int) this.writeOffset;
+			nextTxn = this.nextTxnId.get();
+			seq = this.writeSeq;
+			this.barrierSeq = seq;
+		} finally {
+			this.writeLock.unlock();
+		}
+
+		this.sync(seq);
+		this.checkpoint.write(cutFileId, cutOffset, nextTxn, pointers);
+
+		int oldestNeeded = cutFileId;
+		for (long pointer : pointers) {
+			oldestNeeded = Math.min(oldestNeeded, EventQueue.fileId(pointer));
+		}
+		for (Integer id : new ArrayList<Integer>(this.files.keySet())) {
+			if (id < oldestNeeded) {
+				LogFile file = this.files.remove(id);
+				file.close();
+				if (!file.file.delete()) {
+					LOGGER.warn("Unable to delete log file {}", file.file);
+				} else {
+					LOGGER.debug("Deleted log file {}", file.file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a final checkpoint and closes all files.
+	 */
+	void close() {
+		try {
+			this.checkpoint();
+		} catch (IOException e) {
+			LOGGER.error("Unable to write checkpoint of " + this.dataDir + " on close, the log will be replayed"
+					+ " on the next start", e);
+		}
+		this.writeLock.lock();
+		try {
+			this.open = false;
+			for (LogFile file : this.files.values()) {
+				file.close();
+			}
+			this.files.clear();
+			this.current = null;
+			this.checkpoint.close();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * 切换到新的日志文件，旧文件先force，保证之后的组提交只需force当前文件。调用者须持有writeLock
+	 */
+	private void roll(int id) throws IOException {
+		if (this.current != null) {
+			this.current.raf.getChannel().force(false);
+			// 旧文件之后只读，仍保留在files中
+		}
+		File file = this.logFile(id);
+		LogFile logFile = new LogFile(id, file, "rw");
+		logFile.raf.setLength(0);
+		this.files.put(id, logFile);
+		this.current = logFile;
+		this.writeOffset = 0;
+		this.barrierSeq = this.writeSeq;
+
+		this.syncLock.lock();
+		try {
+			// 旧文件已落盘，之前的所有写入都已持久
+			this.syncedSeq = Math.max(this.syncedSeq, this.writeSeq);
+		} finally {
+			this.syncLock.unlock();
+		}
+		LOGGER.info("Rolled to log file {}", file);
+	}
+
+	/**
+	 * <p>
+	 * 从检查点开始回放日志，只有遇到commit记录的事务才会生效。
+	 * </p>
+	 * <p>
+	 * A transaction is appended with a single write to the current log file,
+	 * and the commit marker of a prepared one follows in the same file (see
+	 * {@link #commitPrepared}), so all records of a transaction are in the
+	 * same file. Every file is
+	 * therefore scanned on its own, in parallel, collecting the records of
+	 * each transaction id until its commit record and verifying the checksum
+	 * of every record as it is read. The committed transactions of the files
+	 * are then applied to the queue file by file in log order, which is the
+	 * order they were committed in.
+	 * </p>
+	 *
+	 * @return the number of records replayed
+	 */
+	private int replay(Checkpoint.State state, List<Integer> ids) throws IOException {
+		int startFile = 0;
+		long startOffset = 0;
+		if (state != null) {
+			for (long pointer : state.pointers) {
+				this.queue.addLast(pointer);
+			}
+			startFile = state.cutFileId;
+			startOffset = state.cutOffset & 0xFFFFFFFFL;
+			this.nextTxnId.set(state.nextTxnId);
+			LOGGER.info("Loaded checkpoint {} of {} with {} events, replaying from log file {} offset {}",
+					state.sequence, this.dataDir, state.pointers.length, startFile, startOffset);
+		}
+
+		List<Integer> segments = new ArrayList<Integer>();
+		long totalBytes = 0L;
+		for (Integer id : ids) {
+			if (id >= startFile) {
+				segments.add(id);
+				totalBytes += Math.max(0L, this.logFile(id).length() - (id == startFile ? startOffset : 0L));
+			}
+		}
+		this.counter.startRecovery(totalBytes);
+
+		int threads = Math.min(this.recoveryThreads, segments.size());
+		ExecutorService executor = null;
+		List<Future<SegmentScan>> scans = new ArrayList<Future<SegmentScan>>(segments.size());
+		if (threads > 1) {
+			LOGGER.info("Replaying {} log files of {} ({} bytes) with {} threads", segments.size(), this.dataDir,
+					totalBytes, threads);
+			executor = Executors.newFixedThreadPool(threads,
+					new ThreadFactoryBuilder().setNameFormat("Log-Recovery-%d").setDaemon(true).build());
+			for (Integer id : segments) {
+				final int segment = id;
+				final long offset = segment == startFile ? startOffset : 0L;
+				scans.add(executor.submit(new Callable<SegmentScan>() {
+					@Override
+					public SegmentScan call() throws IOException {
+						return scan(segment, offset);
+					}
+				}));
+			}
+		}
+
+		int records = 0;
+		int discarded = 0;
+		try {
+			for (int index = 0; index < segments.size(); index++) {
+				int id = segments.get(index);
+				SegmentScan scan = executor == null ? this.scan(id, id == startFile ? startOffset : 0L)
+						: await(scans.get(index));
+				this.apply(scan, index == segments.size() - 1);
+				records += scan.records;
+				discarded += scan.discarded;
+				if (segments.size() > 1) {
+					LOGGER.info("Replayed log file {} of {}, {}% done, about {} ms left", index + 1, segments.size(),
+							this.counter.getRecoveryProgress(), Math.max(0L, this.counter.getRecoveryEtaMillis()));
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+		this.counter.finishRecovery();
+		if (discarded > 0) {
+			LOGGER.info("Discarded {} transactions without a commit record", discarded);
+		}
+		return records;
+	}
+
+	/**
+	 * Reads one log file from <code>offset</code> up to its end or the first
+	 * record that is torn or fails its checksum, and collects the records of
+	 * the transactions committed in it. Only touches the file and the
+	 * recovery counter, so files can be scanned concurrently.
+	 */
+	private SegmentScan scan(int id, long offset) throws IOException {
+		File file = this.logFile(id);
+		SegmentScan scan = new SegmentScan(file, file.length());
+		long length = scan.length;
+		long reported = offset;
+
+		Map<Long, PendingTransaction> pending = new HashMap<Long, PendingTransaction>();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			skipFully(in, offset);
+			byte[] data = new byte[256];
+			while (offset < length) {
+				if (offset + RECORD_HEADER_SIZE > length) {
+					break;
+				}
+				int recordLength = in.readInt();
+				int crc = in.readInt();
+				if (recordLength < PAYLOAD_HEADER_SIZE || offset + RECORD_HEADER_SIZE + recordLength > length) {
+					break;
+				}
+				if (data.length < recordLength) {
+					data = new byte[Math.max(recordLength, data.length * 2)];
+				}
+				in.readFully(data, 0, recordLength);
+				if (checksum(data, recordLength) != crc) {
+					break;
+				}
+
+				ByteBuffer payload = ByteBuffer.wrap(data, 0, recordLength);
+				byte type = payload.get();
+				long txnId = payload.getLong();
+				scan.maxTxnId = Math.max(scan.maxTxnId, txnId);
+				if (type == TYPE_PUT) {
+					pendingFor(pending, txnId).puts.add(EventQueue.pointer(id, (int) offset));
+				} else if (type == TYPE_TAKE) {
+					pendingFor(pending, txnId).takes.add(payload.getLong());
+				} else if (type == TYPE_COMMIT) {
+					PendingTransaction txn = pending.remove(txnId);
+					if (txn != null) {
+						for (Long pointer : txn.takes) {
+							scan.add(-pointer);
+						}
+						for (Long pointer : txn.puts) {
+							scan.add(pointer);
+						}
+					}
+				} else {
+					throw new IOException("Unknown record type " + type + " at " + offset + " in " + file);
+				}
+				offset += RECORD_HEADER_SIZE + recordLength;
+				scan.records++;
+				if (offset - reported >= PROGRESS_INTERVAL) {
+					this.counter.addToRecoveryBytesReplayed(offset - reported);
+					reported = offset;
+				}
+			}
+		} catch (EOFException e) {
+			// 按torn tail处理
+		} finally {
+			in.close();
+		}
+		// 损坏记录之后的部分不再读取，同样计入进度
+		this.counter.addToRecoveryBytesReplayed(Math.max(0L, length - reported));
+		scan.end = offset;
+		scan.discarded = pending.size();
+		return scan;
+	}
+
+	/**
+	 * 在打开日志的线程中按日志顺序应用一个文件里已提交的事务，并处理文件尾部的损坏
+	 */
+	private void apply(SegmentScan scan, boolean last) throws IOException {
+		for (int i = 0; i < scan.opCount; i++) {
+			long op = scan.ops[i];
+			if (op < 0) {
+				if (!this.queue.remove(-op)) {
+					LOGGER.warn("Replayed take of {} that is not queued", -op);
+				}
+			} else {
+				this.queue.addLast(op);
+			}
+		}
+		if (scan.maxTxnId >= this.nextTxnId.get()) {
+			this.nextTxnId.set(scan.maxTxnId + 1);
+		}
+
+		if (scan.end < scan.length) {
+			if (last) {
+				LOGGER.warn("Truncating torn tail of {} at offset {}, file length was {}", scan.file, scan.end,
+						scan.length);
+				RandomAccessFile raf = new RandomAccessFile(scan.file, "rw");
+				try {
+					raf.setLength(scan.end);
+					raf.getChannel().force(false);
+				} finally {
+					raf.close();
+				}
+			} else {
+				this.counter.incrementRecoveryCorruptSegmentCount();
+				LOGGER.error("Corrupt record in {} at offset {}, the rest of this file is skipped", scan.file,
+						scan.end);
+			}
+		}
+	}
+
+	private static SegmentScan await(Future<SegmentScan> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while replaying the log", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Unable to replay the log", e.getCause());
+		}
+	}
+
+	private List<Integer> listLogFiles() {
+		List<Integer> ids = new ArrayList<Integer>();
+		String[] names = this.dataDir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.startsWith(PREFIX)) {
+					continue;
+				}
+				try {
+					ids.add(Integer.parseInt(name.substring(PREFIX.length())));
+				} catch (NumberFormatException e) {
+					LOGGER.warn("Ignoring unexpected file {} in {}", name, this.dataDir);
+				}
+			}
+		}
+		Integer[] sorted = ids.toArray(new Integer[ids.size()]);
+		Arrays.sort(sorted);
+		return Arrays.asList(sorted);
+	}
+
+	private File logFile(int id) {
+		return new File(this.dataDir, PREFIX + id);
+	}
+
+	private static PendingTransaction pendingFor(Map<Long, PendingTransaction> pending, long txnId) {
+		PendingTransaction txn = pending.get(txnId);
+		if (txn == null) {
+			txn = new PendingTransaction();
+			pending.put(txnId, txn);
+		}
+		return txn;
+	}
+
+	/**
+	 * Serializes the records of a transaction, followed by its commit marker
+	 * if <code>commit</code> is set.
+	 *
+	 * @param putOffsets
+	 *            receives the offset of every put record in the result
+	 */
+	private static byte[] serialize(long txnId, Event[] puts, int putCount, long[] takes, int takeCount,
+			boolean commit, int[] putOffsets) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256 * (putCount + 1) + 32 * takeCount);
+		DataOutputStream out = new DataOutputStream(bytes);
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+		DataOutputStream payloadOut = new DataOutputStream(payload);
+		for (int i = 0; i < putCount; i++) {
+			putOffsets[i] = out.size();
+			payload.reset();
+			payloadOut.writeByte(TYPE_PUT);
+			payloadOut.writeLong(txnId);
+			EventCodec.write(payloadOut, puts[i]);
+			writeRecord(out, payload);
+		}
+		for (int i = 0; i < takeCount; i++) {
+			payload.reset();
+			payloadOut.writeByte(TYPE_TAKE);
+			payloadOut.writeLong(txnId);
+			payloadOut.writeLong(takes[i]);
+			writeRecord(out, payload);
+		}
+		if (commit) {
+			payload.reset();
+			payloadOut.writeByte(TYPE_COMMIT);
+			payloadOut.writeLong(txnId);
+			writeRecord(out, payload);
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * 调用者须持有writeLock
+	 */
+	private void checkOpen() throws IOException {
+		if (!this.open) {
+			throw new IOException("Log " + this.dataDir + " is closed");
+		}
+	}
+
+	/**
+	 * 已预留但尚未放入队列的put同样占用容量。调用者须持有writeLock
+	 */
+	private void checkCapacity(int putCount, int takeCount, int capacity) {
+		if (putCount <= takeCount) {
+			return;
+		}
+		synchronized (this.queue) {
+			if (this.queue.size() + this.reserved - takeCount + putCount > capacity) {
+				throw new ChannelFullException("The channel has reached it's capacity of " + capacity
+						+ ". This might be the result of a sink on the channel having too low of batch size,"
+						+ " a downstream system running slower than normal, or that the channel capacity"
+						+ " is just too low.", false);
+			}
+		}
+	}
+
+	/**
+	 * 以一次写入追加到当前日志文件，放不下时先滚动。调用者须持有writeLock
+	 *
+	 * @return the offset the records were written at in the current file
+	 */
+	private long append(byte[] records) throws IOException {
+		if (this.writeOffset > 0 && this.writeOffset + records.length > this.maxFileSize) {
+			this.roll(this.current.id + 1);
+		}
+		if (this.writeOffset + records.length > Integer.MAX_VALUE) {
+			throw new IOException("Commit of " + records.length + " bytes does not fit into a log file");
+		}
+
+		LogFile file = this.current;
+		long base = this.writeOffset;
+		ByteBuffer buffer = ByteBuffer.wrap(records);
+		long position = base;
+		while (buffer.hasRemaining()) {
+			position += file.raf.getChannel().write(buffer, position);
+		}
+		this.writeOffset = position;
+		this.writeSeq++;
+		return base;
+	}
+
+	/**
+	 * 把刚追加的put记录的偏移量转换为当前文件中的指针。调用者须持有writeLock
+	 */
+	private void pointers(long base, int[] putOffsets, long[] putPointers) {
+		for (int i = 0; i < putOffsets.length; i++) {
+			putPointers[i] = EventQueue.pointer(this.current.id, (int) (base + putOffsets[i]));
+		}
+	}
+
+	/**
+	 * 追加成功后为put预留容量；已提交的put在fsync之前记入unpublished，检查点把它们视为已入队
+	 */
+	private void appended(long[] putPointers, int putCount, int reserve, boolean committed) {
+		synchronized (this.queue) {
+			this.reserved += reserve;
+			if (committed) {
+				for (int i = 0; i < putCount; i++) {
+					this.unpublished.add(putPointers[i]);
+				}
+			}
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, ByteArrayOutputStream payload) throws IOException {
+		byte[] data = payload.toByteArray();
+		out.writeInt(data.length);
+		out.writeInt(checksum(data, data.length));
+		out.write(data);
+	}
+
+	private static int checksum(byte[] data, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		return (int) crc.getValue();
+	}
+
+	private static void readFully(LogFile file, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = file.raf.getChannel().read(buffer, position + buffer.position());
+			if (n < 0) {
+				throw new EOFException("Unexpected end of " + file.file + " at " + (position + buffer.position()));
+			}
+		}
+	}
+
+	private static void skipFully(DataInputStream in, long bytes) throws IOException {
+		long remaining = bytes;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				throw new EOFException();
+			}
+			remaining -= skipped;
+		}
+	}
+}
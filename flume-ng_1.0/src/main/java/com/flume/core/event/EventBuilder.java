@@ -0,0 +1,58 @@
+package com.flume.core.event;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flume.sdk.Event;
+
+/**
+ * 构建Event的工具类
+ *
+ * @author Administrator
+ *
+ */
+public class EventBuilder {
+
+	/**
+	 *
+	 * 构造函数 private类型，不允许实例化
+	 */
+	private EventBuilder() {
+	}
+
+	/**
+	 * Instantiate an Event instance based on the provided body and headers.
+	 * If <code>headers</code> is <code>null</code>, then it is ignored.
+	 *
+	 * @param body
+	 * @param headers
+	 * @return
+	 */
+	public static Event withBody(byte[] body, Map<String, String> headers) {
+		Event event = new SimpleEvent();
+
+		if (body == null) {
+			body = new byte[0];
+		}
+		event.setBody(body);
+
+		if (headers != null) {
+			event.setHeaders(new HashMap<String, String>(headers));
+		}
+
+		return event;
+	}
+
+	public static Event withBody(byte[] body) {
+		return withBody(body, null);
+	}
+
+	public static Event withBody(String body, Charset charset, Map<String, String> headers) {
+		return withBody(body.getBytes(charset), headers);
+	}
+
+	public static Event withBody(String body, Charset charset) {
+		return withBody(body, charset, null);
+	}
+}
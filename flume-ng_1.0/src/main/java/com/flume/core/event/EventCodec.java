@@ -0,0 +1,113 @@
+package com.flume.core.event;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flume.sdk.Event;
+
+/**
+ * <p>
+ * Compact binary form of an {@link Event}, used wherever events are written
+ * to local disk. Layout: header count, then each key and value as a
+ * length-prefixed UTF-8 string (length -1 for a null value), then the body as
+ * a length-prefixed byte array.
+ * </p>
+ * 将Event序列化为紧凑的二进制格式，用于写入本地磁盘
+ *
+ * @author Administrator
+ *
+ */
+public final class EventCodec {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 *
+	 * 构造函数 private类型，不允许实例化
+	 */
+	private EventCodec() {
+	}
+
+	/**
+	 * Writes the event to <code>out</code>.
+	 *
+	 * @param out
+	 * @param event
+	 * @throws IOException
+	 */
+	public static void write(DataOutput out, Event event) throws IOException {
+		Map<String, String> headers = event.getHeaders();
+		if (headers == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(headers.size());
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				writeString(out, header.getKey());
+				writeString(out, header.getValue());
+			}
+		}
+
+		byte[] body = event.getBody();
+		if (body == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(body.length);
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Reads an event written by {@link #write(DataOutput, Event)}.
+	 *
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static Event read(DataInput in) throws IOException {
+		int headerCount = in.readInt();
+		if (headerCount < 0) {
+			throw new IOException("Corrupt event, negative header count: " + headerCount);
+		}
+		Map<String, String> headers = new HashMap<String, String>(Math.max(4, headerCount * 2));
+		for (int i = 0; i < headerCount; i++) {
+			String key = readString(in);
+			headers.put(key, readString(in));
+		}
+
+		int length = in.readInt();
+		if (length < 0) {
+			throw new IOException("Corrupt event, negative body length: " + length);
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+
+		Event event = new SimpleEvent();
+		event.setHeaders(headers);
+		event.setBody(body);
+		return event;
+	}
+
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+}
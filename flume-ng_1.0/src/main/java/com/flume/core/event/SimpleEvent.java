@@ -0,0 +1,59 @@
+package com.flume.core.event;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.flume.sdk.Event;
+
+/**
+ * 最简单的Event实现，header为HashMap，body为字节数组
+ *
+ * @author Administrator
+ *
+ */
+public class SimpleEvent implements Event {
+
+	private Map<String, String> headers;
+	private byte[] body;
+
+	/**
+	 *
+	 * 构造函数
+	 */
+	public SimpleEvent() {
+		this.headers = new HashMap<String, String>();
+		this.body = new byte[0];
+	}
+
+	@Override
+	public Map<String, String> getHeaders() {
+		return this.headers;
+	}
+
+	@Override
+	public void setHeaders(Map<String, String> headers) {
+		this.headers = headers;
+	}
+
+	@Override
+	public byte[] getBody() {
+		return this.body;
+	}
+
+	@Override
+	public void setBody(byte[] body) {
+		if (body == null) {
+			body = new byte[0];
+		}
+		this.body = body;
+	}
+
+	@Override
+	public String toString() {
+		Integer bodyLen = null;
+		if (this.body != null) {
+			bodyLen = this.body.length;
+		}
+		return "[Event headers = " + this.headers + ", body.length = " + bodyLen + " ]";
+	}
+}
@@ -1,5 +1,189 @@
 package com.flume.core.instrumentation;
 
-public class ChannelCounter {
+import org.apache.commons.lang.ArrayUtils;
 
+/**
+ * Channel的监控计数器，记录了Channel的容量、已用大小以及put/take的尝试和成功次数
+ *
+ * @Description
+ * @author Administrator
+ * @date 2017年8月8日 下午9:30:12
+ *
+ */
+public class ChannelCounter extends MonitoredCounterGroup implements ChannelCounterMBean {
+
+	private static final String COUNTER_CHANNEL_SIZE = "channel.current.size";
+
+	private static final String COUNTER_EVENT_PUT_ATTEMPT = "channel.event.put.attempt";
+
+	private static final String COUNTER_EVENT_TAKE_ATTEMPT = "channel.event.take.attempt";
+
+	private static final String COUNTER_EVENT_PUT_SUCCESS = "channel.event.put.success";
+
+	private static final String COUNTER_EVENT_TAKE_SUCCESS = "channel.event.take.success";
+
+	private static final String COUNTER_EVENT_EXPIRED = "channel.event.expired";
+
+	private static final String COUNTER_CHANNEL_CAPACITY = "channel.capacity";
+
+	private static final String COUNTER_TRANSACTION_OPEN = "channel.transaction.open.count";
+
+	private static final String COUNTER_TRANSACTION_OLDEST_AGE = "channel.transaction.oldest.age";
+
+	private static final String COUNTER_TRANSACTION_OLDEST_EVENTS = "channel.transaction.oldest.event.count";
+
+	private static final String COUNTER_TRANSACTION_OLDEST_BYTES = "channel.transaction.oldest.byte.count";
+
+	private static final String COUNTER_TRANSACTION_ABANDONED = "channel.transaction.abandoned.count";
+
+	private static final String[] ATTRIBUTES = { COUNTER_CHANNEL_SIZE, COUNTER_EVENT_PUT_ATTEMPT,
+			COUNTER_EVENT_TAKE_ATTEMPT, COUNTER_EVENT_PUT_SUCCESS, COUNTER_EVENT_TAKE_SUCCESS,
+			COUNTER_EVENT_EXPIRED, COUNTER_CHANNEL_CAPACITY, COUNTER_TRANSACTION_OPEN, COUNTER_TRANSACTION_OLDEST_AGE,
+			COUNTER_TRANSACTION_OLDEST_EVENTS, COUNTER_TRANSACTION_OLDEST_BYTES, COUNTER_TRANSACTION_ABANDONED };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public ChannelCounter(String name) {
+		super(MonitoredCounterGroup.Type.CHANNEL, name, ATTRIBUTES);
+	}
+
+	/**
+	 *
+	 * 构造函数，供具体Channel追加自己的监控指标
+	 *
+	 * @param name
+	 * @param attributes
+	 */
+	public ChannelCounter(String name, String[] attributes) {
+		super(MonitoredCounterGroup.Type.CHANNEL, name, (String[]) ArrayUtils.addAll(attributes, ATTRIBUTES));
+	}
+
+	@Override
+	public long getChannelSize() {
+		return this.get(COUNTER_CHANNEL_SIZE);
+	}
+
+	public void setChannelSize(long newSize) {
+		this.set(COUNTER_CHANNEL_SIZE, newSize);
+	}
+
+	@Override
+	public long getEventPutAttemptCount() {
+		return this.get(COUNTER_EVENT_PUT_ATTEMPT);
+	}
+
+	public long incrementEventPutAttemptCount() {
+		return this.increment(COUNTER_EVENT_PUT_ATTEMPT);
+	}
+
+	public long addToEventPutAttemptCount(long delta) {
+		return this.addAndGet(COUNTER_EVENT_PUT_ATTEMPT, delta);
+	}
+
+	@Override
+	public long getEventTakeAttemptCount() {
+		return this.get(COUNTER_EVENT_TAKE_ATTEMPT);
+	}
+
+	public long incrementEventTakeAttemptCount() {
+		return this.increment(COUNTER_EVENT_TAKE_ATTEMPT);
+	}
+
+	public long addToEventTakeAttemptCount(long delta) {
+		return this.addAndGet(COUNTER_EVENT_TAKE_ATTEMPT, delta);
+	}
+
+	@Override
+	public long getEventPutSuccessCount() {
+		return this.get(COUNTER_EVENT_PUT_SUCCESS);
+	}
+
+	public long addToEventPutSuccessCount(long delta) {
+		return this.addAndGet(COUNTER_EVENT_PUT_SUCCESS, delta);
+	}
+
+	@Override
+	public long getEventTakeSuccessCount() {
+		return this.get(COUNTER_EVENT_TAKE_SUCCESS);
+	}
+
+	public long addToEventTakeSuccessCount(long delta) {
+		return this.addAndGet(COUNTER_EVENT_TAKE_SUCCESS, delta);
+	}
+
+	@Override
+	public long getEventExpiredCount() {
+		return this.get(COUNTER_EVENT_EXPIRED);
+	}
+
+	public long addToEventExpiredCount(long delta) {
+		return this.addAndGet(COUNTER_EVENT_EXPIRED, delta);
+	}
+
+	@Override
+	public long getChannelCapacity() {
+		return this.get(COUNTER_CHANNEL_CAPACITY);
+	}
+
+	public void setChannelCapacity(long capacity) {
+		this.set(COUNTER_CHANNEL_CAPACITY, capacity);
+	}
+
+	@Override
+	public long getOpenTransactionCount() {
+		return this.get(COUNTER_TRANSACTION_OPEN);
+	}
+
+	public void setOpenTransactionCount(long count) {
+		this.set(COUNTER_TRANSACTION_OPEN, count);
+	}
+
+	@Override
+	public long getOldestTransactionAge() {
+		return this.get(COUNTER_TRANSACTION_OLDEST_AGE);
+	}
+
+	public void setOldestTransactionAge(long millis) {
+		this.set(COUNTER_TRANSACTION_OLDEST_AGE, millis);
+	}
+
+	@Override
+	public long getOldestTransactionEventCount() {
+		return this.get(COUNTER_TRANSACTION_OLDEST_EVENTS);
+	}
+
+	public void setOldestTransactionEventCount(long count) {
+		this.set(COUNTER_TRANSACTION_OLDEST_EVENTS, count);
+	}
+
+	@Override
+	public long getOldestTransactionByteCount() {
+		return this.get(COUNTER_TRANSACTION_OLDEST_BYTES);
+	}
+
+	public void setOldestTransactionByteCount(long bytes) {
+		this.set(COUNTER_TRANSACTION_OLDEST_BYTES, bytes);
+	}
+
+	@Override
+	public long getAbandonedTransactionCount() {
+		return this.get(COUNTER_TRANSACTION_ABANDONED);
+	}
+
+	public long addToAbandonedTransactionCount(long delta) {
+		return this.addAndGet(COUNTER_TRANSACTION_ABANDONED, delta);
+	}
+
+	@Override
+	public double getChannelFillPercentage() {
+		long capacity = this.getChannelCapacity();
+		if (capacity != 0L) {
+			return (this.getChannelSize() / (double) capacity) * 100;
+		}
+		return Double.MAX_VALUE;
+	}
 }
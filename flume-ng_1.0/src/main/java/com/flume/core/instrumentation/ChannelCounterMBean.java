@@ -48,6 +48,13 @@ public interface ChannelCounterMBean {
 	 */
 	long getEventTakeSuccessCount();
 
+	/**
+	 * 
+	 * @Description 超过TTL被丢弃、没有交给sink的数据
+	 * @return
+	 */
+	long getEventExpiredCount();
+
 	long getStartTime();
 
 	long getStopTime();
@@ -72,4 +79,39 @@ public interface ChannelCounterMBean {
 	 * @return
 	 */
 	double getChannelFillPercentage();
+
+	/**
+	 * 
+	 * @Description 最近一次检查时打开的事务数量
+	 * @return
+	 */
+	long getOpenTransactionCount();
+
+	/**
+	 * 
+	 * @Description 最老的打开事务已打开的毫秒数，没有打开的事务时为0
+	 * @return
+	 */
+	long getOldestTransactionAge();
+
+	/**
+	 * 
+	 * @Description 最老的打开事务中put和take的Event数量
+	 * @return
+	 */
+	long getOldestTransactionEventCount();
+
+	/**
+	 * 
+	 * @Description 最老的打开事务中put和take的Event body字节数
+	 * @return
+	 */
+	long getOldestTransactionByteCount();
+
+	/**
+	 * 
+	 * @Description 因线程结束或超时被强制回滚的事务数量
+	 * @return
+	 */
+	long getAbandonedTransactionCount();
 }
@@ -0,0 +1,67 @@
+package com.flume.core.instrumentation;
+
+/**
+ * ChannelProcessor的监控计数器，记录异步写入optional channel的排队、成功、丢弃和失败的Event数量
+ *
+ * @Description
+ *
+ */
+public class ChannelProcessorCounter extends MonitoredCounterGroup implements ChannelProcessorCounterMBean {
+
+	private static final String COUNTER_OPTIONAL_QUEUE_SIZE = "channel.processor.optional.queue.size";
+
+	private static final String COUNTER_OPTIONAL_EVENT_DELIVERED = "channel.processor.optional.event.delivered";
+
+	private static final String COUNTER_OPTIONAL_EVENT_DROPPED = "channel.processor.optional.event.dropped";
+
+	private static final String COUNTER_OPTIONAL_EVENT_FAILED = "channel.processor.optional.event.failed";
+
+	private static final String[] ATTRIBUTES = { COUNTER_OPTIONAL_QUEUE_SIZE, COUNTER_OPTIONAL_EVENT_DELIVERED,
+			COUNTER_OPTIONAL_EVENT_DROPPED, COUNTER_OPTIONAL_EVENT_FAILED };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public ChannelProcessorCounter(String name) {
+		super(MonitoredCounterGroup.Type.CHANNEL_PROCESSOR, name, ATTRIBUTES);
+	}
+
+	@Override
+	public long getOptionalQueueSize() {
+		return this.get(COUNTER_OPTIONAL_QUEUE_SIZE);
+	}
+
+	public long addToOptionalQueueSize(long delta) {
+		return this.addAndGet(COUNTER_OPTIONAL_QUEUE_SIZE, delta);
+	}
+
+	@Override
+	public long getOptionalEventDeliveredCount() {
+		return this.get(COUNTER_OPTIONAL_EVENT_DELIVERED);
+	}
+
+	public long addToOptionalEventDeliveredCount(long delta) {
+		return this.addAndGet(COUNTER_OPTIONAL_EVENT_DELIVERED, delta);
+	}
+
+	@Override
+	public long getOptionalEventDroppedCount() {
+		return this.get(COUNTER_OPTIONAL_EVENT_DROPPED);
+	}
+
+	public long addToOptionalEventDroppedCount(long delta) {
+		return this.addAndGet(COUNTER_OPTIONAL_EVENT_DROPPED, delta);
+	}
+
+	@Override
+	public long getOptionalEventFailedCount() {
+		return this.get(COUNTER_OPTIONAL_EVENT_FAILED);
+	}
+
+	public long addToOptionalEventFailedCount(long delta) {
+		return this.addAndGet(COUNTER_OPTIONAL_EVENT_FAILED, delta);
+	}
+}
@@ -0,0 +1,47 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a channel processor that
+ * hands events for optional channels to background workers. Any class
+ * implementing this interface must sub-class
+ * {@linkplain com.flume.core.instrumentation.MonitoredCounterGroup}.
+ *
+ * @Description ChannelProcessor异步写入optional channel的监控接口
+ *
+ */
+public interface ChannelProcessorCounterMBean {
+
+	/**
+	 *
+	 * @Description 等待后台线程写入optional channel的Event数量
+	 * @return
+	 */
+	long getOptionalQueueSize();
+
+	/**
+	 *
+	 * @Description 后台线程成功写入optional channel的Event数量
+	 * @return
+	 */
+	long getOptionalEventDeliveredCount();
+
+	/**
+	 *
+	 * @Description 交接队列已满，按丢弃策略丢弃的Event数量
+	 * @return
+	 */
+	long getOptionalEventDroppedCount();
+
+	/**
+	 *
+	 * @Description 写入optional channel失败而丢失的Event数量
+	 * @return
+	 */
+	long getOptionalEventFailedCount();
+
+	long getStartTime();
+
+	long getStopTime();
+
+	String getType();
+}
@@ -0,0 +1,92 @@
+package com.flume.core.instrumentation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 压缩body的内存Channel的监控计数器
+ *
+ * @Description
+ *
+ */
+public class CompressingChannelCounter extends ChannelCounter implements CompressingChannelCounterMBean {
+
+	private static final String COUNTER_COMPRESSED_EVENT_COUNT = "channel.compressed.event.count";
+
+	private static final String COUNTER_UNCOMPRESSED_BYTE_COUNT = "channel.compression.bytes.in";
+
+	private static final String COUNTER_COMPRESSED_BYTE_COUNT = "channel.compression.bytes.out";
+
+	private static final String COUNTER_COMPRESSION_TIME = "channel.compression.time.nanos";
+
+	private static final String COUNTER_DECOMPRESSION_TIME = "channel.decompression.time.nanos";
+
+	private static final String[] ATTRIBUTES = { COUNTER_COMPRESSED_EVENT_COUNT, COUNTER_UNCOMPRESSED_BYTE_COUNT,
+			COUNTER_COMPRESSED_BYTE_COUNT, COUNTER_COMPRESSION_TIME, COUNTER_DECOMPRESSION_TIME };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public CompressingChannelCounter(String name) {
+		super(name, ATTRIBUTES);
+	}
+
+	/**
+	 * 记录一批压缩的结果
+	 *
+	 * @param events
+	 *            the number of events stored compressed
+	 * @param bytesIn
+	 *            their body bytes before compression
+	 * @param bytesOut
+	 *            their body bytes after compression
+	 * @param nanos
+	 *            the time spent compressing the batch
+	 */
+	public void addCompression(long events, long bytesIn, long bytesOut, long nanos) {
+		this.addAndGet(COUNTER_COMPRESSED_EVENT_COUNT, events);
+		this.addAndGet(COUNTER_UNCOMPRESSED_BYTE_COUNT, bytesIn);
+		this.addAndGet(COUNTER_COMPRESSED_BYTE_COUNT, bytesOut);
+		this.addAndGet(COUNTER_COMPRESSION_TIME, nanos);
+	}
+
+	public long addToDecompressionTime(long nanos) {
+		return this.addAndGet(COUNTER_DECOMPRESSION_TIME, nanos);
+	}
+
+	@Override
+	public long getCompressedEventCount() {
+		return this.get(COUNTER_COMPRESSED_EVENT_COUNT);
+	}
+
+	@Override
+	public long getUncompressedByteCount() {
+		return this.get(COUNTER_UNCOMPRESSED_BYTE_COUNT);
+	}
+
+	@Override
+	public long getCompressedByteCount() {
+		return this.get(COUNTER_COMPRESSED_BYTE_COUNT);
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		long compressed = this.getCompressedByteCount();
+		if (compressed != 0L) {
+			return this.getUncompressedByteCount() / (double) compressed;
+		}
+		return 1.0;
+	}
+
+	@Override
+	public long getCompressionTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.get(COUNTER_COMPRESSION_TIME));
+	}
+
+	@Override
+	public long getDecompressionTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.get(COUNTER_DECOMPRESSION_TIME));
+	}
+}
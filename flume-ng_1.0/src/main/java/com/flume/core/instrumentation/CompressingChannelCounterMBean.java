@@ -0,0 +1,55 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a memory channel that
+ * compresses event bodies. It adds the compression ratio and the time spent
+ * compressing and decompressing to the attributes of
+ * {@link ChannelCounterMBean}.
+ *
+ * @Description 压缩body的内存Channel的监控接口，在ChannelCounterMBean的基础上增加压缩率和压缩/解压耗时
+ *
+ */
+public interface CompressingChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 累计被压缩存放的Event数量
+	 * @return
+	 */
+	long getCompressedEventCount();
+
+	/**
+	 *
+	 * @Description 被压缩的body压缩前的累计字节数
+	 * @return
+	 */
+	long getUncompressedByteCount();
+
+	/**
+	 *
+	 * @Description 被压缩的body压缩后的累计字节数
+	 * @return
+	 */
+	long getCompressedByteCount();
+
+	/**
+	 *
+	 * @Description 压缩率，压缩前字节数/压缩后字节数
+	 * @return
+	 */
+	double getCompressionRatio();
+
+	/**
+	 *
+	 * @Description 累计压缩耗时（毫秒）
+	 * @return
+	 */
+	long getCompressionTimeMillis();
+
+	/**
+	 *
+	 * @Description 累计解压耗时（毫秒）
+	 * @return
+	 */
+	long getDecompressionTimeMillis();
+}
@@ -0,0 +1,44 @@
+package com.flume.core.instrumentation;
+
+/**
+ * 去重Channel的监控计数器
+ *
+ * @Description
+ *
+ */
+public class DedupChannelCounter extends ChannelCounter implements DedupChannelCounterMBean {
+
+	private static final String COUNTER_DUPLICATE_EVENT_COUNT = "channel.duplicate.event.count";
+
+	private static final String COUNTER_FINGERPRINT_COUNT = "channel.fingerprint.count";
+
+	private static final String[] ATTRIBUTES = { COUNTER_DUPLICATE_EVENT_COUNT, COUNTER_FINGERPRINT_COUNT };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public DedupChannelCounter(String name) {
+		super(name, ATTRIBUTES);
+	}
+
+	@Override
+	public long getDuplicateEventCount() {
+		return this.get(COUNTER_DUPLICATE_EVENT_COUNT);
+	}
+
+	public long addToDuplicateEventCount(long delta) {
+		return this.addAndGet(COUNTER_DUPLICATE_EVENT_COUNT, delta);
+	}
+
+	@Override
+	public long getFingerprintCount() {
+		return this.get(COUNTER_FINGERPRINT_COUNT);
+	}
+
+	public void setFingerprintCount(long count) {
+		this.set(COUNTER_FINGERPRINT_COUNT, count);
+	}
+}
@@ -0,0 +1,26 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a channel that drops
+ * duplicate events. It adds the number of dropped duplicates and the size of
+ * the fingerprint window to the attributes of {@link ChannelCounterMBean}.
+ *
+ * @Description 去重Channel的监控接口，在ChannelCounterMBean的基础上增加丢弃的重复Event数量和指纹窗口大小
+ *
+ */
+public interface DedupChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 累计被判定为重复而丢弃的Event数量
+	 * @return
+	 */
+	long getDuplicateEventCount();
+
+	/**
+	 *
+	 * @Description 当前窗口内记录的指纹数量
+	 * @return
+	 */
+	long getFingerprintCount();
+}
@@ -0,0 +1,106 @@
+package com.flume.core.instrumentation;
+
+/**
+ * 持久化Channel的监控计数器，增加了日志回放的进度和预计剩余时间
+ *
+ * @Description
+ *
+ */
+public class FileChannelCounter extends ChannelCounter implements FileChannelCounterMBean {
+
+	private static final String COUNTER_RECOVERY_BYTES_TOTAL = "channel.recovery.bytes.total";
+
+	private static final String COUNTER_RECOVERY_BYTES_REPLAYED = "channel.recovery.bytes.replayed";
+
+	private static final String COUNTER_RECOVERY_START_TIME = "channel.recovery.start.time";
+
+	private static final String COUNTER_RECOVERY_END_TIME = "channel.recovery.end.time";
+
+	private static final String COUNTER_RECOVERY_CORRUPT_SEGMENTS = "channel.recovery.corrupt.segment.count";
+
+	private static final String[] ATTRIBUTES = { COUNTER_RECOVERY_BYTES_TOTAL, COUNTER_RECOVERY_BYTES_REPLAYED,
+			COUNTER_RECOVERY_START_TIME, COUNTER_RECOVERY_END_TIME, COUNTER_RECOVERY_CORRUPT_SEGMENTS };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public FileChannelCounter(String name) {
+		super(name, ATTRIBUTES);
+	}
+
+	/**
+	 * 开始回放，记录需要回放的字节数和开始时间
+	 *
+	 * @param totalBytes
+	 */
+	public void startRecovery(long totalBytes) {
+		this.set(COUNTER_RECOVERY_BYTES_TOTAL, totalBytes);
+		this.set(COUNTER_RECOVERY_BYTES_REPLAYED, 0L);
+		this.set(COUNTER_RECOVERY_END_TIME, 0L);
+		this.set(COUNTER_RECOVERY_START_TIME, System.currentTimeMillis());
+	}
+
+	public long addToRecoveryBytesReplayed(long delta) {
+		return this.addAndGet(COUNTER_RECOVERY_BYTES_REPLAYED, delta);
+	}
+
+	public long incrementRecoveryCorruptSegmentCount() {
+		return this.increment(COUNTER_RECOVERY_CORRUPT_SEGMENTS);
+	}
+
+	public void finishRecovery() {
+		this.set(COUNTER_RECOVERY_END_TIME, System.currentTimeMillis());
+	}
+
+	@Override
+	public long getRecoveryByteCount() {
+		return this.get(COUNTER_RECOVERY_BYTES_TOTAL);
+	}
+
+	@Override
+	public long getRecoveryBytesReplayed() {
+		return this.get(COUNTER_RECOVERY_BYTES_REPLAYED);
+	}
+
+	@Override
+	public long getRecoveryProgress() {
+		long total = this.getRecoveryByteCount();
+		if (total <= 0 || this.get(COUNTER_RECOVERY_END_TIME) > 0) {
+			return 100L;
+		}
+		return Math.min(100L, this.getRecoveryBytesReplayed() * 100L / total);
+	}
+
+	@Override
+	public long getRecoveryEtaMillis() {
+		if (this.get(COUNTER_RECOVERY_END_TIME) > 0) {
+			return 0L;
+		}
+		long start = this.get(COUNTER_RECOVERY_START_TIME);
+		long replayed = this.getRecoveryBytesReplayed();
+		if (start == 0 || replayed <= 0) {
+			return -1L;
+		}
+		long remaining = Math.max(0L, this.getRecoveryByteCount() - replayed);
+		long elapsed = Math.max(1L, System.currentTimeMillis() - start);
+		return (long) ((double) elapsed * remaining / replayed);
+	}
+
+	@Override
+	public long getRecoveryDuration() {
+		long start = this.get(COUNTER_RECOVERY_START_TIME);
+		if (start == 0) {
+			return 0L;
+		}
+		long end = this.get(COUNTER_RECOVERY_END_TIME);
+		return (end > 0 ? end : System.currentTimeMillis()) - start;
+	}
+
+	@Override
+	public long getRecoveryCorruptSegmentCount() {
+		return this.get(COUNTER_RECOVERY_CORRUPT_SEGMENTS);
+	}
+}
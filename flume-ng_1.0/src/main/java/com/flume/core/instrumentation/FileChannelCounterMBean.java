@@ -0,0 +1,55 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a durable channel. It adds
+ * the progress of the log replay after a restart to the attributes of
+ * {@link ChannelCounterMBean}, so that monitoring can tell how long a
+ * recovering agent will stay offline.
+ *
+ * @Description 持久化Channel的监控接口，在ChannelCounterMBean的基础上增加重启后日志回放的进度
+ *
+ */
+public interface FileChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 需要回放的日志字节数
+	 * @return
+	 */
+	long getRecoveryByteCount();
+
+	/**
+	 *
+	 * @Description 已回放的日志字节数
+	 * @return
+	 */
+	long getRecoveryBytesReplayed();
+
+	/**
+	 *
+	 * @Description 回放进度百分比，没有回放时为100
+	 * @return
+	 */
+	long getRecoveryProgress();
+
+	/**
+	 *
+	 * @Description 按目前的回放速度估计的剩余毫秒数，回放结束后为0，尚无法估计时为-1
+	 * @return
+	 */
+	long getRecoveryEtaMillis();
+
+	/**
+	 *
+	 * @Description 回放耗时的毫秒数，回放中为已经过的时间
+	 * @return
+	 */
+	long getRecoveryDuration();
+
+	/**
+	 *
+	 * @Description 因校验失败而未能完整回放的日志文件数量
+	 * @return
+	 */
+	long getRecoveryCorruptSegmentCount();
+}
@@ -4,6 +4,7 @@ import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -176,15 +177,114 @@ public abstract class MonitoredCounterGroup {
 		final List<String> mapKeys = new ArrayList<>(this.counterMap.keySet());
 		Collections.sort(mapKeys);// 排序
 		
-		for(final String conterMapKey : mapKeys){
-			final long counterMapValue = this.
+		for (final String counterMapKey : mapKeys) {
+			// Print out the key and value
+			final long counterMapValue = this.get(counterMapKey);
+			LOGGER.info("Shutdown Metric for type: " + this.type + ", " + "name: " + this.name + ". " + counterMapKey
+					+ " == " + counterMapValue);
 		}
+	}
+
+	/**
+	 * Returns when this component was first started
+	 *
+	 * @return
+	 */
+	public long getStartTime() {
+		return this.startTime.get();
+	}
+
+	/**
+	 * Returns when this component was stopped
+	 *
+	 * @return
+	 */
+	public long getStopTime() {
+		return this.stopTime.get();
+	}
+
+	@Override
+	public final String toString() {
+		StringBuilder sb = new StringBuilder(this.type.name()).append(":");
+		sb.append(this.name).append("{");
+		boolean first = true;
+		Iterator<String> counterIterator = this.counterMap.keySet().iterator();
+		while (counterIterator.hasNext()) {
+			if (first) {
+				first = false;
+			} else {
+				sb.append(", ");
+			}
+			String counterName = counterIterator.next();
+			sb.append(counterName).append("=").append(this.get(counterName));
+		}
+		sb.append("}");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Retrieves the current value for this key
+	 *
+	 * @param counter
+	 *            The key for this metric
+	 * @return The current value for this key
+	 */
+	protected long get(String counter) {
+		return this.counterMap.get(counter).get();
+	}
 
+	/**
+	 * Sets the value for this key to the given value
+	 *
+	 * @param counter
+	 *            The key for this metric
+	 * @param value
+	 *            The new value for this key
+	 */
+	protected void set(String counter, long value) {
+		this.counterMap.get(counter).set(value);
 	}
 
+	/**
+	 * Atomically adds the delta to the current value for this key
+	 *
+	 * @param counter
+	 *            The key for this metric
+	 * @param delta
+	 * @return The updated value for this key
+	 */
+	protected long addAndGet(String counter, long delta) {
+		return this.counterMap.get(counter).addAndGet(delta);
+	}
+
+	/**
+	 * Atomically increments the current value for this key by one
+	 *
+	 * @param counter
+	 *            The key for this metric
+	 * @return The updated value for this key
+	 */
+	protected long increment(String counter) {
+		return this.counterMap.get(counter).incrementAndGet();
+	}
+
+	/**
+	 * Component Enum Constants
+	 * <p>
+	 * Used by each component's constructor to distinguish which type the
+	 * component is.
+	 */
 	public static enum Type {
 		SOURCE, CHANNEL_PROCESSOR, CHANNEL, SINK_PROCESSOR, SINK, INTERCEPTOR, SERIALIZER, OTHER
 	}
-	
-	/***
+
+	/**
+	 * 
+	 * @Description 组件类型
+	 * @return
+	 */
+	public String getType() {
+		return this.type.name();
+	}
 }
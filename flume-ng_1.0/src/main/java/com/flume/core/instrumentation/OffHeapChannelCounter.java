@@ -0,0 +1,65 @@
+package com.flume.core.instrumentation;
+
+/**
+ * 堆外内存Channel的监控计数器
+ *
+ * @Description
+ *
+ */
+public class OffHeapChannelCounter extends ChannelCounter implements OffHeapChannelCounterMBean {
+
+	private static final String COUNTER_OFFHEAP_BYTES_USED = "channel.offheap.bytes.used";
+
+	private static final String COUNTER_OFFHEAP_BYTES_ALLOCATED = "channel.offheap.bytes.allocated";
+
+	private static final String COUNTER_OFFHEAP_BYTE_CAPACITY = "channel.offheap.byte.capacity";
+
+	private static final String[] ATTRIBUTES = { COUNTER_OFFHEAP_BYTES_USED, COUNTER_OFFHEAP_BYTES_ALLOCATED,
+			COUNTER_OFFHEAP_BYTE_CAPACITY };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public OffHeapChannelCounter(String name) {
+		super(name, ATTRIBUTES);
+	}
+
+	@Override
+	public long getOffHeapBytesUsed() {
+		return this.get(COUNTER_OFFHEAP_BYTES_USED);
+	}
+
+	public void setOffHeapBytesUsed(long bytes) {
+		this.set(COUNTER_OFFHEAP_BYTES_USED, bytes);
+	}
+
+	@Override
+	public long getOffHeapBytesAllocated() {
+		return this.get(COUNTER_OFFHEAP_BYTES_ALLOCATED);
+	}
+
+	public void setOffHeapBytesAllocated(long bytes) {
+		this.set(COUNTER_OFFHEAP_BYTES_ALLOCATED, bytes);
+	}
+
+	@Override
+	public long getOffHeapByteCapacity() {
+		return this.get(COUNTER_OFFHEAP_BYTE_CAPACITY);
+	}
+
+	public void setOffHeapByteCapacity(long capacity) {
+		this.set(COUNTER_OFFHEAP_BYTE_CAPACITY, capacity);
+	}
+
+	@Override
+	public double getOffHeapFillPercentage() {
+		long capacity = this.getOffHeapByteCapacity();
+		if (capacity != 0L) {
+			return (this.getOffHeapBytesUsed() / (double) capacity) * 100;
+		}
+		return Double.MAX_VALUE;
+	}
+}
@@ -0,0 +1,40 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a channel that keeps event
+ * bodies in direct memory. It adds the off-heap usage to the attributes of
+ * {@link ChannelCounterMBean}.
+ *
+ * @Description 堆外内存Channel的监控接口，在ChannelCounterMBean的基础上增加堆外内存的使用情况
+ *
+ */
+public interface OffHeapChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 已经被Event body占用的堆外内存字节数
+	 * @return
+	 */
+	long getOffHeapBytesUsed();
+
+	/**
+	 *
+	 * @Description 已经分配（含空闲块）的堆外内存字节数
+	 * @return
+	 */
+	long getOffHeapBytesAllocated();
+
+	/**
+	 *
+	 * @Description 堆外内存的总容量（字节）
+	 * @return
+	 */
+	long getOffHeapByteCapacity();
+
+	/**
+	 *
+	 * @Description 堆外内存的使用比例
+	 * @return
+	 */
+	double getOffHeapFillPercentage();
+}
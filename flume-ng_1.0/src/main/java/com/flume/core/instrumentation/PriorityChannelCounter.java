@@ -0,0 +1,126 @@
+package com.flume.core.instrumentation;
+
+/**
+ * 按优先级分道的Channel的监控计数器，每个通道有自己的容量、大小和put/take成功次数
+ *
+ * @Description
+ *
+ */
+public class PriorityChannelCounter extends ChannelCounter implements PriorityChannelCounterMBean {
+
+	private static final String COUNTER_STARVATION_TAKE_COUNT = "channel.starvation.take.count";
+
+	private static final String LANE_PREFIX = "channel.lane.";
+
+	private final String[] laneNames;
+	private final String[] sizeKeys;
+	private final String[] capacityKeys;
+	private final String[] putSuccessKeys;
+	private final String[] takeSuccessKeys;
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 * @param laneNames
+	 *            the lanes, highest priority first
+	 */
+	public PriorityChannelCounter(String name, String[] laneNames) {
+		super(name, attributes(laneNames));
+		this.laneNames = laneNames.clone();
+		this.sizeKeys = keys(laneNames, ".size");
+		this.capacityKeys = keys(laneNames, ".capacity");
+		this.putSuccessKeys = keys(laneNames, ".put.success");
+		this.takeSuccessKeys = keys(laneNames, ".take.success");
+	}
+
+	private static String[] keys(String[] laneNames, String suffix) {
+		String[] keys = new String[laneNames.length];
+		for (int i = 0; i < laneNames.length; i++) {
+			keys[i] = LANE_PREFIX + laneNames[i] + suffix;
+		}
+		return keys;
+	}
+
+	private static String[] attributes(String[] laneNames) {
+		String[] attributes = new String[laneNames.length * 4 + 1];
+		int i = 0;
+		for (String suffix : new String[] { ".size", ".capacity", ".put.success", ".take.success" }) {
+			for (String key : keys(laneNames, suffix)) {
+				attributes[i++] = key;
+			}
+		}
+		attributes[i] = COUNTER_STARVATION_TAKE_COUNT;
+		return attributes;
+	}
+
+	private long[] getAll(String[] keys) {
+		long[] values = new long[keys.length];
+		for (int i = 0; i < keys.length; i++) {
+			values[i] = this.get(keys[i]);
+		}
+		return values;
+	}
+
+	@Override
+	public String[] getLaneNames() {
+		return this.laneNames.clone();
+	}
+
+	@Override
+	public long[] getLaneSizes() {
+		return this.getAll(this.sizeKeys);
+	}
+
+	public void setLaneSize(int lane, long size) {
+		this.set(this.sizeKeys[lane], size);
+	}
+
+	@Override
+	public long[] getLaneCapacities() {
+		return this.getAll(this.capacityKeys);
+	}
+
+	public void setLaneCapacity(int lane, long capacity) {
+		this.set(this.capacityKeys[lane], capacity);
+	}
+
+	@Override
+	public double[] getLaneFillPercentages() {
+		double[] percentages = new double[this.laneNames.length];
+		for (int i = 0; i < percentages.length; i++) {
+			long capacity = this.get(this.capacityKeys[i]);
+			percentages[i] = capacity != 0L ? (this.get(this.sizeKeys[i]) / (double) capacity) * 100
+					: Double.MAX_VALUE;
+		}
+		return percentages;
+	}
+
+	@Override
+	public long[] getLanePutSuccessCounts() {
+		return this.getAll(this.putSuccessKeys);
+	}
+
+	public long addToLanePutSuccessCount(int lane, long delta) {
+		return this.addAndGet(this.putSuccessKeys[lane], delta);
+	}
+
+	@Override
+	public long[] getLaneTakeSuccessCounts() {
+		return this.getAll(this.takeSuccessKeys);
+	}
+
+	public long addToLaneTakeSuccessCount(int lane, long delta) {
+		return this.addAndGet(this.takeSuccessKeys[lane], delta);
+	}
+
+	@Override
+	public long getStarvationTakeCount() {
+		return this.get(COUNTER_STARVATION_TAKE_COUNT);
+	}
+
+	public long incrementStarvationTakeCount() {
+		return this.increment(COUNTER_STARVATION_TAKE_COUNT);
+	}
+}
@@ -0,0 +1,61 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a channel that keeps its
+ * events in priority lanes. Every array attribute has one entry per lane,
+ * highest priority first, in the order of {@link #getLaneNames()}.
+ *
+ * @Description 按优先级分道的Channel的监控接口，在ChannelCounterMBean的基础上增加每个通道的容量和使用情况
+ *
+ */
+public interface PriorityChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 通道名称，优先级从高到低
+	 * @return
+	 */
+	String[] getLaneNames();
+
+	/**
+	 *
+	 * @Description 每个通道中的Event数量
+	 * @return
+	 */
+	long[] getLaneSizes();
+
+	/**
+	 *
+	 * @Description 每个通道的容量
+	 * @return
+	 */
+	long[] getLaneCapacities();
+
+	/**
+	 *
+	 * @Description 每个通道的使用百分比
+	 * @return
+	 */
+	double[] getLaneFillPercentages();
+
+	/**
+	 *
+	 * @Description 每个通道累计成功put的Event数量
+	 * @return
+	 */
+	long[] getLanePutSuccessCounts();
+
+	/**
+	 *
+	 * @Description 每个通道累计成功take的Event数量
+	 * @return
+	 */
+	long[] getLaneTakeSuccessCounts();
+
+	/**
+	 *
+	 * @Description 为防止低优先级通道饥饿而插队取出的Event数量
+	 * @return
+	 */
+	long getStarvationTakeCount();
+}
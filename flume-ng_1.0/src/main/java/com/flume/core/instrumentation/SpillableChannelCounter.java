@@ -0,0 +1,78 @@
+package com.flume.core.instrumentation;
+
+/**
+ * 可溢写到磁盘的Channel的监控计数器
+ *
+ * @Description
+ *
+ */
+public class SpillableChannelCounter extends ChannelCounter implements SpillableChannelCounterMBean {
+
+	private static final String COUNTER_MEMORY_EVENT_COUNT = "channel.memory.event.count";
+
+	private static final String COUNTER_SPILL_COUNT = "channel.spill.count";
+
+	private static final String COUNTER_UNSPILL_COUNT = "channel.unspill.count";
+
+	private static final String COUNTER_OVERFLOW_EVENT_COUNT = "channel.overflow.event.count";
+
+	private static final String COUNTER_OVERFLOW_BYTE_COUNT = "channel.overflow.byte.count";
+
+	private static final String[] ATTRIBUTES = { COUNTER_MEMORY_EVENT_COUNT, COUNTER_SPILL_COUNT,
+			COUNTER_UNSPILL_COUNT, COUNTER_OVERFLOW_EVENT_COUNT, COUNTER_OVERFLOW_BYTE_COUNT };
+
+	/**
+	 *
+	 * 构造函数
+	 *
+	 * @param name
+	 */
+	public SpillableChannelCounter(String name) {
+		super(name, ATTRIBUTES);
+	}
+
+	@Override
+	public long getMemoryEventCount() {
+		return this.get(COUNTER_MEMORY_EVENT_COUNT);
+	}
+
+	public void setMemoryEventCount(long count) {
+		this.set(COUNTER_MEMORY_EVENT_COUNT, count);
+	}
+
+	@Override
+	public long getSpillCount() {
+		return this.get(COUNTER_SPILL_COUNT);
+	}
+
+	public long addToSpillCount(long delta) {
+		return this.addAndGet(COUNTER_SPILL_COUNT, delta);
+	}
+
+	@Override
+	public long getUnspillCount() {
+		return this.get(COUNTER_UNSPILL_COUNT);
+	}
+
+	public long addToUnspillCount(long delta) {
+		return this.addAndGet(COUNTER_UNSPILL_COUNT, delta);
+	}
+
+	@Override
+	public long getOverflowEventCount() {
+		return this.get(COUNTER_OVERFLOW_EVENT_COUNT);
+	}
+
+	public void setOverflowEventCount(long count) {
+		this.set(COUNTER_OVERFLOW_EVENT_COUNT, count);
+	}
+
+	@Override
+	public long getOverflowByteCount() {
+		return this.get(COUNTER_OVERFLOW_BYTE_COUNT);
+	}
+
+	public void setOverflowByteCount(long bytes) {
+		this.set(COUNTER_OVERFLOW_BYTE_COUNT, bytes);
+	}
+}
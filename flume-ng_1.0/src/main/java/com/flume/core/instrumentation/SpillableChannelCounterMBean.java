@@ -0,0 +1,47 @@
+package com.flume.core.instrumentation;
+
+/**
+ * This interface represents the counter mbean of a channel that spills to
+ * local disk when its memory queue is full. It adds the spill traffic and
+ * the on-disk backlog to the attributes of {@link ChannelCounterMBean}.
+ *
+ * @Description 可溢写到磁盘的Channel的监控接口，在ChannelCounterMBean的基础上增加溢写和磁盘积压的情况
+ *
+ */
+public interface SpillableChannelCounterMBean extends ChannelCounterMBean {
+
+	/**
+	 *
+	 * @Description 内存队列中的Event数量
+	 * @return
+	 */
+	long getMemoryEventCount();
+
+	/**
+	 *
+	 * @Description 累计溢写到磁盘的Event数量，按时间求差即为溢写速率
+	 * @return
+	 */
+	long getSpillCount();
+
+	/**
+	 *
+	 * @Description 累计从磁盘读回的Event数量，按时间求差即为回读速率
+	 * @return
+	 */
+	long getUnspillCount();
+
+	/**
+	 *
+	 * @Description 磁盘上积压的Event数量
+	 * @return
+	 */
+	long getOverflowEventCount();
+
+	/**
+	 *
+	 * @Description 磁盘上积压的字节数
+	 * @return
+	 */
+	long getOverflowByteCount();
+}
@@ -0,0 +1,611 @@
+package com.flume.core.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.Channel;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.ChannelRouting;
+import com.flume.core.Transaction;
+import com.flume.core.annotations.Recyclable;
+import com.flume.core.channel.file.FileChannel;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.ChannelProcessorCounter;
+import com.flume.sdk.Event;
+
+public class TestChannelProcessor {
+
+	private List<MemoryChannel> channels = new ArrayList<>();
+	private ChannelProcessor processor;
+
+	@Before
+	public void setUp() {
+		List<Channel> all = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			Context context = new Context();
+			// 第二个channel放不下一批
+			context.put("capacity", i == 1 ? "2" : "10");
+			context.put("transactionCapacity", i == 1 ? "2" : "10");
+			context.put("keep-alive", "0");
+			MemoryChannel channel = new MemoryChannel();
+			channel.setName("c" + i);
+			channel.configure(context);
+			channel.start();
+			this.channels.add(channel);
+			all.add(channel);
+		}
+
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(all);
+		selector.configure(new Context());
+
+		Context context = new Context();
+		context.put("requiredChannelThreads", "2");
+		this.processor = new ChannelProcessor(selector);
+		this.processor.configure(context);
+		this.processor.initialize();
+	}
+
+	@After
+	public void tearDown() {
+		this.processor.close();
+		for (MemoryChannel channel : this.channels) {
+			channel.stop();
+		}
+	}
+
+	private static List<Event> batch(int size) {
+		List<Event> events = new ArrayList<>();
+		for (int i = 0; i < size; i++) {
+			events.add(EventBuilder.withBody("e" + i, Charset.forName("UTF-8")));
+		}
+		return events;
+	}
+
+	/**
+	 * 每个事务最多取2个，不超过c1的transactionCapacity
+	 */
+	private static int drain(Channel channel) {
+		int taken = 0;
+		for (int inTx = 2; inTx == 2;) {
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			for (inTx = 0; inTx < 2 && channel.take() != null; inTx++) {
+				taken++;
+			}
+			tx.commit();
+			tx.close();
+		}
+		return taken;
+	}
+
+	@Test
+	public void testParallelFanOutWritesEveryRequiredChannel() {
+		this.processor.processEventBatch(batch(2));
+		for (MemoryChannel channel : this.channels) {
+			Assert.assertEquals(2, drain(channel));
+		}
+	}
+
+	private void assertFailedChannelRollsBackAll() {
+		try {
+			this.processor.processEventBatch(batch(3));
+			Assert.fail("Batch larger than c1 should fail");
+		} catch (ChannelException e) {
+			// 只有c1的transactionCapacity是2
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("capacity 2"));
+		}
+		for (MemoryChannel channel : this.channels) {
+			Assert.assertEquals(0, drain(channel));
+		}
+
+		// 回滚后prepare预留的容量已归还
+		this.processor.processEventBatch(batch(2));
+		for (MemoryChannel channel : this.channels) {
+			Assert.assertEquals(2, drain(channel));
+		}
+	}
+
+	@Test
+	public void testParallelFanOutRollsBackAllRequiredChannels() {
+		this.assertFailedChannelRollsBackAll();
+	}
+
+	@Test
+	public void testSequentialWriteRollsBackAllRequiredChannels() {
+		this.processor.configure(new Context());
+		this.assertFailedChannelRollsBackAll();
+	}
+
+	@Test
+	public void testSingleEventCommittedToAllRequiredChannels() {
+		this.processor.processEvent(EventBuilder.withBody("e", Charset.forName("UTF-8")));
+		for (MemoryChannel channel : this.channels) {
+			Assert.assertEquals(1, drain(channel));
+		}
+	}
+
+	@Test
+	public void testSlowOptionalChannelDoesNotBlockSource() throws Exception {
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Context channelContext = new Context();
+		channelContext.put("keep-alive", "0");
+		MemoryChannel slow = new MemoryChannel() {
+			@Override
+			public void putAll(List<Event> events) {
+				writing.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				super.putAll(events);
+			}
+		};
+		slow.setName("slow");
+		slow.configure(channelContext);
+		slow.start();
+		this.channels.add(slow);
+
+		List<Channel> all = new ArrayList<>();
+		all.add(this.channels.get(0));
+		all.add(slow);
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(all);
+		Context selectorContext = new Context();
+		selectorContext.put("optional", "slow");
+		selector.configure(selectorContext);
+
+		Context context = new Context();
+		context.put("optionalChannelQueueSize", "2");
+		ChannelProcessor processor = new ChannelProcessor(selector);
+		processor.configure(context);
+		try {
+			processor.processEventBatch(batch(1));
+			Assert.assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+			// 后台线程阻塞在第一批上，队列只放得下2个，最新的1个被丢弃
+			processor.processEventBatch(batch(3));
+			Assert.assertEquals(4, drain(this.channels.get(0)));
+			ChannelProcessorCounter counter = processor.getCounter();
+			Assert.assertEquals(1, counter.getOptionalEventDroppedCount());
+			Assert.assertEquals(2, counter.getOptionalQueueSize());
+
+			release.countDown();
+			long deadline = System.currentTimeMillis() + 5000;
+			while (counter.getOptionalEventDeliveredCount() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(3, counter.getOptionalEventDeliveredCount());
+			Assert.assertEquals(3, drain(slow));
+		} finally {
+			release.countDown();
+			processor.close();
+		}
+	}
+
+	@Test
+	public void testRoutingReusesBucketsAndKeepsWholeBatches() {
+		ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+		selector.setChannels(new ArrayList<Channel>(this.channels));
+		selector.configure(new Context());
+		List<Event> events = batch(3);
+
+		ChannelRouting routing = new ChannelRouting();
+		selector.route(events, routing);
+		// 复制selector把整批原样交给每个channel
+		Assert.assertEquals(3, routing.getRequired().size());
+		Assert.assertSame(events, routing.getRequired().get(this.channels.get(0)));
+		Assert.assertTrue(routing.getOptional().isEmpty());
+
+		// 在整批之后逐个追加时复制到本对象的列表，不修改调用者的列表
+		routing.addRequired(this.channels.get(0), events.get(0));
+		List<Event> bucket = routing.getRequired().get(this.channels.get(0));
+		Assert.assertEquals(4, bucket.size());
+		Assert.assertEquals(3, events.size());
+
+		routing.clear();
+		Assert.assertTrue(routing.getRequired().isEmpty());
+		routing.addRequired(this.channels.get(0), events.get(1));
+		Assert.assertSame(bucket, routing.getRequired().get(this.channels.get(0)));
+		Assert.assertEquals(1, bucket.size());
+	}
+
+	private static FileChannel fileChannel(File baseDir, String name, int capacity) {
+		return start(new FileChannel(), baseDir, name, capacity);
+	}
+
+	private static <T extends FileChannel> T start(T channel, File baseDir, String name, int capacity) {
+		Context context = new Context();
+		context.put("dataDir", new File(baseDir, name + "/data").getAbsolutePath());
+		context.put("checkpointDir", new File(baseDir, name + "/checkpoint").getAbsolutePath());
+		context.put("capacity", String.valueOf(capacity));
+		context.put("transactionCapacity", String.valueOf(Math.min(capacity, 10)));
+		channel.setName(name);
+		channel.configure(context);
+		channel.start();
+		return channel;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	@Test
+	public void testFileChannelFailingToPrepareLeavesNoEventsInOtherFileChannels() throws IOException {
+		File baseDir = Files.createTempDirectory("channel-processor").toFile();
+		List<FileChannel> files = new ArrayList<>();
+		ChannelProcessor processor = null;
+		try {
+			for (int i = 0; i < 3; i++) {
+				files.add(fileChannel(baseDir, "f" + i, i == 1 ? 4 : 100));
+			}
+			// f1只剩一个空位，放不下一批
+			Transaction tx = files.get(1).getTransaction();
+			tx.begin();
+			files.get(1).putAll(batch(3));
+			tx.commit();
+			tx.close();
+
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(new ArrayList<Channel>(files));
+			selector.configure(new Context());
+			Context context = new Context();
+			context.put("requiredChannelThreads", "2");
+			processor = new ChannelProcessor(selector);
+			processor.configure(context);
+
+			try {
+				processor.processEventBatch(batch(2));
+				Assert.fail("Batch larger than the room left in f1 should fail");
+			} catch (ChannelException e) {
+				Assert.assertTrue(e.getMessage(), e.getMessage().contains("capacity of 4"));
+			}
+			Assert.assertEquals(0, drain(files.get(0)));
+			Assert.assertEquals(0, drain(files.get(2)));
+
+			// 不stop直接重新打开，模拟崩溃：已prepare但没有commit标记的记录不被回放
+			for (int i = 0; i < 3; i += 2) {
+				FileChannel reopened = fileChannel(baseDir, "f" + i, 100);
+				files.add(reopened);
+				Assert.assertEquals(0, drain(reopened));
+			}
+
+			// 回滚后f1的预留已释放，腾出空间后整批写入所有channel
+			Assert.assertEquals(3, drain(files.get(1)));
+			processor.processEventBatch(batch(2));
+			for (int i = 0; i < 3; i++) {
+				Assert.assertEquals(2, drain(files.get(i)));
+			}
+		} finally {
+			if (processor != null) {
+				processor.close();
+			}
+			for (FileChannel channel : files) {
+				channel.stop();
+			}
+			delete(baseDir);
+		}
+	}
+
+	/**
+	 * prepare追加记录并fsync之后等待其余channel的prepare也完成，只有各channel的prepare同时进行时才都能通过；commit同样
+	 */
+	private static class OverlappingFileChannel extends FileChannel {
+
+		private final CountDownLatch prepared;
+		private final CountDownLatch committed;
+		private final Set<String> threads;
+
+		OverlappingFileChannel(CountDownLatch prepared, CountDownLatch committed, Set<String> threads) {
+			this.prepared = prepared;
+			this.committed = committed;
+			this.threads = threads;
+		}
+
+		@Override
+		protected BasicTransactionSemantics createTransaction() {
+			final BasicTransactionSemantics delegate = super.createTransaction();
+			return new BasicTransactionSemantics() {
+				@Override
+				protected void doPut(Event event) throws InterruptedException {
+					delegate.doPut(event);
+				}
+
+				@Override
+				protected void doPutAll(List<Event> events) throws InterruptedException {
+					delegate.doPutAll(events);
+				}
+
+				@Override
+				protected Event doTake() throws InterruptedException {
+					return delegate.doTake();
+				}
+
+				@Override
+				public boolean supportsPrepare() {
+					return delegate.supportsPrepare();
+				}
+
+				@Override
+				protected void doPrepare() throws InterruptedException {
+					delegate.doPrepare();
+					threads.add(Thread.currentThread().getName());
+					prepared.countDown();
+					if (!prepared.await(5, TimeUnit.SECONDS)) {
+						throw new ChannelException("Prepares of the file channels did not overlap");
+					}
+				}
+
+				@Override
+				protected void doCommit() throws InterruptedException {
+					delegate.doCommit();
+					committed.countDown();
+					if (!committed.await(5, TimeUnit.SECONDS)) {
+						throw new ChannelException("Commits of the file channels did not overlap");
+					}
+				}
+
+				@Override
+				protected void doRollback() throws InterruptedException {
+					delegate.doRollback();
+				}
+			};
+		}
+	}
+
+	@Test
+	public void testFileChannelsAppendAndSyncInParallel() throws IOException {
+		File baseDir = Files.createTempDirectory("channel-processor").toFile();
+		CountDownLatch prepared = new CountDownLatch(3);
+		CountDownLatch committed = new CountDownLatch(3);
+		Set<String> threads = ConcurrentHashMap.newKeySet();
+		List<FileChannel> files = new ArrayList<>();
+		ChannelProcessor processor = null;
+		try {
+			for (int i = 0; i < 3; i++) {
+				files.add(start(new OverlappingFileChannel(prepared, committed, threads), baseDir, "f" + i, 100));
+			}
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(new ArrayList<Channel>(files));
+			selector.configure(new Context());
+			Context context = new Context();
+			context.put("requiredChannelThreads", "2");
+			processor = new ChannelProcessor(selector);
+			processor.configure(context);
+
+			// 三个channel的prepare和commit都各自fsync，调用线程和线程池中的两个线程同时进行
+			processor.processEventBatch(batch(2));
+			Assert.assertEquals(0L, prepared.getCount());
+			Assert.assertEquals(0L, committed.getCount());
+			Assert.assertEquals(threads.toString(), 3, threads.size());
+			for (FileChannel channel : files) {
+				Assert.assertEquals(2, drain(channel));
+			}
+		} finally {
+			if (processor != null) {
+				processor.close();
+			}
+			for (FileChannel channel : files) {
+				channel.stop();
+			}
+			delete(baseDir);
+		}
+	}
+
+	/**
+	 * 记录prepare次数的MemoryChannel
+	 */
+	private static class PrepareCountingChannel extends MemoryChannel {
+
+		private final AtomicInteger prepares = new AtomicInteger();
+
+		@Override
+		protected BasicTransactionSemantics createTransaction() {
+			final BasicTransactionSemantics delegate = super.createTransaction();
+			return new BasicTransactionSemantics() {
+				@Override
+				protected void doPut(Event event) throws InterruptedException {
+					delegate.doPut(event);
+				}
+
+				@Override
+				protected void doPutAll(List<Event> events) throws InterruptedException {
+					delegate.doPutAll(events);
+				}
+
+				@Override
+				protected Event doTake() throws InterruptedException {
+					return delegate.doTake();
+				}
+
+				@Override
+				public boolean supportsPrepare() {
+					return true;
+				}
+
+				@Override
+				protected void doPrepare() throws InterruptedException {
+					prepares.incrementAndGet();
+					delegate.doPrepare();
+				}
+
+				@Override
+				protected void doCommit() throws InterruptedException {
+					delegate.doCommit();
+				}
+
+				@Override
+				protected void doRollback() throws InterruptedException {
+					delegate.doRollback();
+				}
+			};
+		}
+	}
+
+	@Test
+	public void testSingleRequiredChannelIsCommittedWithoutPrepare() {
+		PrepareCountingChannel single = new PrepareCountingChannel();
+		single.setName("single");
+		Context context = new Context();
+		context.put("keep-alive", "0");
+		single.configure(context);
+		single.start();
+		ChannelProcessor singleProcessor = null;
+		try {
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(Collections.<Channel>singletonList(single));
+			selector.configure(new Context());
+			singleProcessor = new ChannelProcessor(selector);
+			singleProcessor.configure(new Context());
+
+			singleProcessor.processEventBatch(batch(2));
+			Assert.assertEquals(0, single.prepares.get());
+			Assert.assertEquals(2, drain(single));
+		} finally {
+			if (singleProcessor != null) {
+				singleProcessor.close();
+			}
+			single.stop();
+		}
+	}
+
+	@Test
+	public void testFullChannelWaitsForRoomUnlessFailingFast() throws InterruptedException {
+		Context channelContext = new Context();
+		channelContext.put("capacity", "2");
+		channelContext.put("transactionCapacity", "2");
+		channelContext.put("keep-alive", "1");
+		final MemoryChannel full = new MemoryChannel();
+		full.setName("full");
+		full.configure(channelContext);
+		full.start();
+		ChannelProcessor fullProcessor = null;
+		try {
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(Collections.<Channel>singletonList(full));
+			selector.configure(new Context());
+			fullProcessor = new ChannelProcessor(selector);
+			Context context = new Context();
+			context.put("failFastWhenFull", "true");
+			fullProcessor.configure(context);
+			fullProcessor.processEventBatch(batch(2));
+
+			long start = System.nanoTime();
+			try {
+				fullProcessor.processEventBatch(batch(2));
+				Assert.fail("Batch for a full channel should fail");
+			} catch (ChannelFullException e) {
+				Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+			}
+
+			// 默认等待keep-alive，期间被取走的容量可以使用
+			fullProcessor.configure(new Context());
+			Thread drainer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(200);
+					} catch (InterruptedException e) {
+						return;
+					}
+					Transaction tx = full.getTransaction();
+					tx.begin();
+					full.take();
+					full.take();
+					tx.commit();
+					tx.close();
+				}
+			});
+			drainer.start();
+			fullProcessor.processEventBatch(batch(2));
+			drainer.join();
+			Assert.assertEquals(2, drain(full));
+		} finally {
+			if (fullProcessor != null) {
+				fullProcessor.close();
+			}
+			full.stop();
+		}
+	}
+
+	/**
+	 * 记录创建的事务数
+	 */
+	@Recyclable
+	private static class CountingChannel extends MemoryChannel {
+
+		private final AtomicInteger created = new AtomicInteger();
+
+		@Override
+		protected BasicTransactionSemantics createTransaction() {
+			this.created.incrementAndGet();
+			return super.createTransaction();
+		}
+	}
+
+	@Test
+	public void testParallelFanOutReusesTransactionsOfPoolThreads() {
+		List<CountingChannel> counted = new ArrayList<>();
+		ChannelProcessor countedProcessor = null;
+		try {
+			for (int i = 0; i < 3; i++) {
+				CountingChannel channel = new CountingChannel();
+				channel.setName("counted" + i);
+				Context context = new Context();
+				context.put("keep-alive", "0");
+				channel.configure(context);
+				channel.start();
+				counted.add(channel);
+			}
+			ReplicatingChannelSelector selector = new ReplicatingChannelSelector();
+			selector.setChannels(new ArrayList<Channel>(counted));
+			selector.configure(new Context());
+			Context context = new Context();
+			context.put("requiredChannelThreads", "2");
+			countedProcessor = new ChannelProcessor(selector);
+			countedProcessor.configure(context);
+
+			for (int i = 0; i < 20; i++) {
+				countedProcessor.processEventBatch(batch(2));
+			}
+			for (CountingChannel channel : counted) {
+				// 事务只在写入它的线程中提交，调用线程和两个线程池线程各自复用自己的事务
+				Assert.assertTrue(channel.getName() + " created " + channel.created.get() + " transactions",
+						channel.created.get() <= 3);
+				Assert.assertEquals(40, drain(channel));
+			}
+		} finally {
+			if (countedProcessor != null) {
+				countedProcessor.close();
+			}
+			for (CountingChannel channel : counted) {
+				channel.stop();
+			}
+		}
+	}
+}
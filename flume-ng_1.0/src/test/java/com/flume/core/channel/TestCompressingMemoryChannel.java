@@ -0,0 +1,88 @@
+package com.flume.core.channel;
+
+import java.nio.charset.Charset;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.CompressingChannelCounter;
+import com.flume.sdk.Event;
+import com.google.common.base.Strings;
+
+public class TestCompressingMemoryChannel {
+
+	private CompressingMemoryChannel channel;
+
+	@Before
+	public void setUp() {
+		Context context = new Context();
+		context.put("keep-alive", "0");
+		context.put("byteCapacity", "10000");
+		context.put("compressionThreshold", "256");
+		this.channel = new CompressingMemoryChannel();
+		this.channel.setName("compressing-test");
+		this.channel.configure(context);
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+	}
+
+	private static String logLine(int i) {
+		return Strings.repeat("2017-08-08 21:30:12 INFO  [main] request served in 12ms id=" + i + "\n", 60);
+	}
+
+	@Test
+	public void testCompressedBacklogExceedsRawByteCapacity() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 4; i++) {
+			this.channel.put(EventBuilder.withBody(logLine(i), Charset.forName("UTF-8")));
+		}
+		this.channel.put(EventBuilder.withBody("short", Charset.forName("UTF-8")));
+		tx.commit();
+		tx.close();
+
+		CompressingChannelCounter counter = (CompressingChannelCounter) this.channel.getChannelCounter();
+		Assert.assertEquals(4, counter.getCompressedEventCount());
+		Assert.assertTrue(counter.getCompressionRatio() > 5);
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 4; i++) {
+			Event event = this.channel.take();
+			Assert.assertEquals(logLine(i), new String(event.getBody(), Charset.forName("UTF-8")));
+		}
+		Assert.assertEquals("short", new String(this.channel.take().getBody(), Charset.forName("UTF-8")));
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testRolledBackTakeStaysCompressed() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody(logLine(0), Charset.forName("UTF-8")));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.take().setBody(new byte[0]);
+		tx.rollback();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals(logLine(0), new String(this.channel.take().getBody(), Charset.forName("UTF-8")));
+		tx.commit();
+		tx.close();
+	}
+}
@@ -0,0 +1,166 @@
+package com.flume.core.channel;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelFullException;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.DedupChannelCounter;
+import com.flume.sdk.Event;
+
+public class TestDeduplicatingMemoryChannel {
+
+	private DeduplicatingMemoryChannel channel;
+
+	@Before
+	public void setUp() {
+		Context context = new Context();
+		context.put("capacity", "4");
+		context.put("transactionCapacity", "4");
+		context.put("keep-alive", "0");
+		context.put("dedupHeaders", "host");
+		context.put("dedupMaxEntries", "3");
+		this.channel = new DeduplicatingMemoryChannel();
+		this.channel.setName("dedup-test");
+		this.channel.configure(context);
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+	}
+
+	private static Event event(String body, String host) {
+		Map<String, String> headers = new HashMap<>();
+		headers.put("host", host);
+		return EventBuilder.withBody(body, Charset.forName("UTF-8"), headers);
+	}
+
+	private void put(Event... events) {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (Event event : events) {
+			this.channel.put(event);
+		}
+		tx.commit();
+		tx.close();
+	}
+
+	private int drain() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		int taken = 0;
+		while (this.channel.take() != null) {
+			taken++;
+		}
+		tx.commit();
+		tx.close();
+		return taken;
+	}
+
+	@Test
+	public void testDuplicatesDropped() {
+		this.put(event("a", "h1"), event("a", "h1"), event("a", "h2"));
+		this.put(event("a", "h2"), event("b", "h1"));
+		Assert.assertEquals(3, this.drain());
+		Assert.assertEquals(2, ((DedupChannelCounter) this.channel.getChannelCounter()).getDuplicateEventCount());
+	}
+
+	@Test
+	public void testOldFingerprintsFallOutOfTheWindow() {
+		this.put(event("a", "h"), event("b", "h"), event("c", "h"));
+		Assert.assertEquals(3, this.drain());
+		this.put(event("d", "h"));
+		Assert.assertEquals(1, this.drain());
+		// 窗口只保留最近3个指纹，a已经被淘汰
+		this.put(event("a", "h"), event("d", "h"));
+		Assert.assertEquals(1, this.drain());
+	}
+
+	@Test
+	public void testFailedCommitIsNotRememberedAsSeen() {
+		this.put(event("a", "h"), event("b", "h"), event("c", "h"));
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event("d", "h"));
+		this.channel.put(event("e", "h"));
+		try {
+			tx.commit();
+			Assert.fail("Commit beyond capacity should fail");
+		} catch (ChannelFullException e) {
+			tx.rollback();
+		} finally {
+			tx.close();
+		}
+
+		Assert.assertEquals(3, this.drain());
+		this.put(event("d", "h"), event("e", "h"));
+		Assert.assertEquals(2, this.drain());
+	}
+
+	@Test
+	public void testConcurrentPutIsNotLostWhenTheFirstOneAborts() {
+		Transaction first = this.channel.getTransaction();
+		first.begin();
+		this.channel.put(event("a", "h"));
+		first.prepare();
+		first.detach();
+
+		// 第一个事务还没有提交，相同的Event不能被当作重复丢弃
+		this.put(event("a", "h"));
+		first.attach();
+		first.rollback();
+		first.close();
+		Assert.assertEquals(1, this.drain());
+
+		// 已有put提交，指纹在回滚后仍然保留
+		this.put(event("a", "h"));
+		Assert.assertEquals(0, this.drain());
+		Assert.assertEquals(1, ((DedupChannelCounter) this.channel.getChannelCounter()).getDuplicateEventCount());
+
+		// 两个事务都还未提交时先回滚的一方不会让另一方的指纹被忘掉
+		first = this.channel.getTransaction();
+		first.begin();
+		this.channel.put(event("b", "h"));
+		first.prepare();
+		first.detach();
+		Transaction second = this.channel.getTransaction();
+		second.begin();
+		this.channel.put(event("b", "h"));
+		second.prepare();
+		second.detach();
+		first.attach();
+		first.rollback();
+		first.close();
+		second.attach();
+		second.commit();
+		second.close();
+		Assert.assertEquals(1, this.drain());
+		this.put(event("b", "h"));
+		Assert.assertEquals(0, this.drain());
+	}
+
+	@Test
+	public void testTakersGetTheEventsThatWerePut() {
+		Event event = event("a", "h");
+		this.put(event);
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Event taken = this.channel.take();
+		tx.commit();
+		tx.close();
+		Assert.assertFalse(taken instanceof DeduplicatingMemoryChannel.FingerprintedEvent);
+		Assert.assertEquals("a", new String(taken.getBody(), Charset.forName("UTF-8")));
+		Assert.assertEquals("h", taken.getHeaders().get("host"));
+	}
+}
@@ -0,0 +1,902 @@
+package com.flume.core.channel;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelException;
+import com.flume.core.ChannelFullException;
+import com.flume.core.ChannelInspection;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+import com.google.common.base.Strings;
+
+public class TestMemoryChannel {
+
+	private MemoryChannel channel;
+
+	@Before
+	public void setUp() {
+		this.channel = new MemoryChannel();
+		this.channel.setName("memory-test");
+		this.channel.configure(new Context());
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+	}
+
+	private static Event event(String body) {
+		return EventBuilder.withBody(body, Charset.forName("UTF-8"));
+	}
+
+	private static String body(Event event) {
+		return new String(event.getBody(), Charset.forName("UTF-8"));
+	}
+
+	@Test
+	public void testBatchPutTake() {
+		List<Event> batch = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			batch.add(event(String.valueOf(i)));
+		}
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.putAll(batch);
+		tx.commit();
+		tx.close();
+
+		List<Event> taken = new ArrayList<>();
+		tx = this.channel.getTransaction();
+		tx.begin();
+		long start = System.nanoTime();
+		// 只为第一个Event等待，取到的比max少时立即返回，而不是再等keep-alive
+		Assert.assertEquals(3, this.channel.take(5, taken));
+		Assert.assertTrue(System.nanoTime() - start < 1000000000L);
+		tx.rollback();
+		tx.close();
+		Assert.assertEquals("0", body(taken.get(0)));
+		Assert.assertEquals("2", body(taken.get(2)));
+
+		taken.clear();
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals(2, this.channel.take(2, taken));
+		Assert.assertEquals(1, this.channel.take(2, taken));
+		tx.commit();
+		tx.close();
+		Assert.assertEquals("0", body(taken.get(0)));
+		Assert.assertEquals("2", body(taken.get(2)));
+	}
+
+	@Test
+	public void testTransactionIsRecycled() {
+		Transaction first = this.channel.getTransaction();
+		first.begin();
+		this.channel.put(event("a"));
+		first.commit();
+		first.close();
+
+		Transaction second = this.channel.getTransaction();
+		Assert.assertSame(first, second);
+		second.begin();
+		Assert.assertEquals("a", body(this.channel.take()));
+		second.commit();
+		second.close();
+
+		Context context = new Context();
+		context.put("transactionCapacity", "50");
+		this.channel.configure(context);
+		Transaction third = this.channel.getTransaction();
+		Assert.assertNotSame(second, third);
+		third.begin();
+		third.rollback();
+		third.close();
+	}
+
+	@Test
+	public void testPutTake() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event("a"));
+		this.channel.put(event("b"));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("a", body(this.channel.take()));
+		Assert.assertEquals("b", body(this.channel.take()));
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testRollbackKeepsOrder() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			this.channel.put(event(String.valueOf(i)));
+		}
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.take();
+		this.channel.take();
+		tx.rollback();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(String.valueOf(i), body(this.channel.take()));
+		}
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testUncommittedPutIsInvisible() {
+		Context context = new Context();
+		context.put("keep-alive", "0");
+		this.channel.configure(context);
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event("a"));
+		tx.rollback();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertNull(this.channel.take());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test(expected = ChannelFullException.class)
+	public void testCapacityEnforcedOnCommit() {
+		Context context = new Context();
+		context.put("capacity", "5");
+		context.put("transactionCapacity", "5");
+		context.put("keep-alive", "0");
+		MemoryChannel small = new MemoryChannel();
+		small.configure(context);
+
+		for (int round = 0; round < 2; round++) {
+			Transaction tx = small.getTransaction();
+			tx.begin();
+			try {
+				for (int i = 0; i < 3; i++) {
+					small.put(event(String.valueOf(i)));
+				}
+				tx.commit();
+			} catch (ChannelException e) {
+				tx.rollback();
+				throw e;
+			} finally {
+				tx.close();
+			}
+		}
+	}
+
+	@Test
+	public void testTryPutReportsFullChannelWithoutException() {
+		Context context = new Context();
+		context.put("capacity", "3");
+		context.put("transactionCapacity", "3");
+		context.put("keep-alive", "0");
+		MemoryChannel small = new MemoryChannel();
+		small.configure(context);
+		Assert.assertEquals(3, small.remainingCapacity());
+
+		Transaction tx = small.getTransaction();
+		tx.begin();
+		Assert.assertTrue(small.tryPut(event("0")));
+		Assert.assertTrue(small.tryPut(event("1")));
+		tx.commit();
+		tx.close();
+		Assert.assertEquals(1, small.remainingCapacity());
+
+		tx = small.getTransaction();
+		tx.begin();
+		Assert.assertTrue(small.tryPut(event("2")));
+		Assert.assertFalse(small.tryPut(event("3")));
+		tx.rollback();
+		tx.close();
+
+		// 本事务take归还的容量也计入
+		tx = small.getTransaction();
+		tx.begin();
+		Assert.assertNotNull(small.take());
+		Assert.assertTrue(small.tryPut(event("2")));
+		Assert.assertTrue(small.tryPut(event("3")));
+		tx.commit();
+		tx.close();
+		Assert.assertEquals(0, small.remainingCapacity());
+
+		tx = small.getTransaction();
+		tx.begin();
+		small.put(event("4"));
+		try {
+			tx.commit();
+			Assert.fail("Commit beyond capacity should fail");
+		} catch (ChannelFullException e) {
+			Assert.assertEquals(0, e.getStackTrace().length);
+			tx.rollback();
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Test
+	public void testByteCapacityReleasedOnTakeCommit() {
+		Context context = new Context();
+		context.put("byteCapacity", "1000");
+		context.put("byteCapacityBufferPercentage", "0");
+		context.put("keep-alive", "0");
+		MemoryChannel small = new MemoryChannel();
+		small.configure(context);
+
+		Assert.assertTrue(this.tryPut(small, EventBuilder.withBody(new byte[700])));
+		Assert.assertFalse(this.tryPut(small, EventBuilder.withBody(new byte[700])));
+
+		Transaction tx = small.getTransaction();
+		tx.begin();
+		Assert.assertNotNull(small.take());
+		tx.commit();
+		tx.close();
+
+		Assert.assertTrue(this.tryPut(small, EventBuilder.withBody(new byte[700])));
+	}
+
+	@Test
+	public void testMemoryBudgetSharedBetweenChannels() {
+		MemoryGovernor governor = new MemoryGovernor(10000);
+
+		Context reservedContext = new Context();
+		reservedContext.put("keep-alive", "0");
+		reservedContext.put("memoryReservation", "3000");
+		reservedContext.put("memoryBorrowPolicy", "none");
+		MemoryChannel reserved = new MemoryChannel();
+		reserved.setName("reserved");
+		reserved.setMemoryGovernor(governor);
+		reserved.configure(reservedContext);
+		reserved.start();
+
+		Context greedyContext = new Context();
+		greedyContext.put("keep-alive", "0");
+		MemoryChannel greedy = new MemoryChannel();
+		greedy.setName("greedy");
+		greedy.setMemoryGovernor(governor);
+		greedy.configure(greedyContext);
+		greedy.start();
+		try {
+			// 贪婪的Channel只能借到共享池的7000字节，超出后被背压
+			int accepted = 0;
+			while (this.tryPut(greedy, EventBuilder.withBody(new byte[1000]))) {
+				accepted++;
+			}
+			Assert.assertEquals(7, accepted);
+			Assert.assertEquals(0, governor.getSharedFree());
+
+			// 保留的额度不受影响，但不能借用
+			for (int i = 0; i < 3; i++) {
+				Assert.assertTrue(this.tryPut(reserved, EventBuilder.withBody(new byte[1000])));
+			}
+			Assert.assertFalse(this.tryPut(reserved, EventBuilder.withBody(new byte[1000])));
+
+			Transaction tx = greedy.getTransaction();
+			tx.begin();
+			Assert.assertNotNull(greedy.take());
+			tx.commit();
+			tx.close();
+			Assert.assertTrue(this.tryPut(greedy, EventBuilder.withBody(new byte[1000])));
+		} finally {
+			greedy.stop();
+			reserved.stop();
+		}
+		Assert.assertEquals(10000, governor.getSharedFree());
+	}
+
+	@Test
+	public void testSnapshotRestoredAfterRestart() throws Exception {
+		File snapshot = new File(Files.createTempDirectory("memory-snapshot").toFile(), "snapshot");
+		Context context = new Context();
+		context.put("snapshotFile", snapshot.getPath());
+		context.put("keep-alive", "0");
+		MemoryChannel first = new MemoryChannel();
+		first.setName("snapshot-test");
+		first.configure(context);
+		first.start();
+
+		Transaction tx = first.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			first.put(timestamped(String.valueOf(i), i));
+		}
+		tx.commit();
+		tx.close();
+		// 回滚放回的Event在快照中仍排在最前
+		tx = first.getTransaction();
+		tx.begin();
+		Assert.assertEquals("0", body(first.take()));
+		tx.rollback();
+		tx.close();
+		first.stop();
+		Assert.assertTrue(snapshot.exists());
+
+		MemoryChannel second = new MemoryChannel();
+		second.setName("snapshot-test");
+		second.configure(context);
+		second.start();
+		try {
+			Assert.assertFalse(snapshot.exists());
+			tx = second.getTransaction();
+			tx.begin();
+			for (int i = 0; i < 5; i++) {
+				Event event = second.take();
+				Assert.assertEquals(String.valueOf(i), body(event));
+				Assert.assertEquals(String.valueOf(i), event.getHeaders().get("timestamp"));
+			}
+			Assert.assertNull(second.take());
+			tx.commit();
+			tx.close();
+		} finally {
+			second.stop();
+		}
+		Assert.assertFalse(snapshot.exists());
+	}
+
+	@Test
+	public void testByteCapacityCountsHeaders() {
+		Context context = new Context();
+		context.put("byteCapacity", "1000");
+		context.put("byteCapacityBufferPercentage", "0");
+		context.put("keep-alive", "0");
+		MemoryChannel small = new MemoryChannel();
+		small.configure(context);
+
+		Map<String, String> headers = new HashMap<>();
+		for (int i = 0; i < 5; i++) {
+			headers.put("header-" + i, Strings.repeat("v", 100));
+		}
+		Assert.assertFalse(this.tryPut(small, EventBuilder.withBody(new byte[10], headers)));
+		Assert.assertTrue(this.tryPut(small, EventBuilder.withBody(new byte[10])));
+	}
+
+	private boolean tryPut(MemoryChannel target, Event event) {
+		Transaction tx = target.getTransaction();
+		tx.begin();
+		try {
+			target.put(event);
+			tx.commit();
+			return true;
+		} catch (ChannelFullException e) {
+			tx.rollback();
+			return false;
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Test(expected = ChannelException.class)
+	public void testTransactionCapacity() {
+		Context context = new Context();
+		context.put("transactionCapacity", "2");
+		this.channel.configure(context);
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		try {
+			for (int i = 0; i < 3; i++) {
+				this.channel.put(event(String.valueOf(i)));
+			}
+		} finally {
+			tx.rollback();
+			tx.close();
+		}
+	}
+
+	@Test
+	public void testConcurrentProducersAndConsumers() throws Exception {
+		Context context = new Context();
+		context.put("capacity", "1000");
+		context.put("transactionCapacity", "50");
+		this.channel.configure(context);
+
+		final int producers = 4;
+		final int batches = 200;
+		final int batchSize = 50;
+		final int total = producers * batches * batchSize;
+		final AtomicInteger taken = new AtomicInteger(0);
+		final Set<String> seen = new HashSet<>();
+		final CountDownLatch done = new CountDownLatch(producers + 2);
+
+		List<Thread> threads = new ArrayList<>();
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int b = 0; b < batches; b++) {
+						Transaction tx = channel.getTransaction();
+						tx.begin();
+						for (int i = 0; i < batchSize; i++) {
+							channel.put(event(producer + "-" + b + "-" + i));
+						}
+						tx.commit();
+						tx.close();
+					}
+					done.countDown();
+				}
+			}));
+		}
+		for (int c = 0; c < 2; c++) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (taken.get() < total) {
+						List<String> bodies = new ArrayList<>();
+						Transaction tx = channel.getTransaction();
+						tx.begin();
+						for (int i = 0; i < batchSize; i++) {
+							Event event = channel.take();
+							if (event == null) {
+								break;
+							}
+							bodies.add(body(event));
+						}
+						tx.commit();
+						tx.close();
+						synchronized (seen) {
+							seen.addAll(bodies);
+						}
+						taken.addAndGet(bodies.size());
+					}
+					done.countDown();
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		done.await();
+
+		Assert.assertEquals(total, taken.get());
+		Assert.assertEquals(total, seen.size());
+	}
+
+	@Test
+	public void testBlockingWaitStrategyWakesWaiters() throws Exception {
+		Context context = new Context();
+		context.put("capacity", "1");
+		context.put("transactionCapacity", "1");
+		context.put("waitStrategy", "blocking");
+		final MemoryChannel blocking = new MemoryChannel();
+		blocking.configure(context);
+
+		final List<String> taken = new ArrayList<>();
+		Thread taker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Transaction tx = blocking.getTransaction();
+				tx.begin();
+				taken.add(body(blocking.take()));
+				tx.commit();
+				tx.close();
+			}
+		});
+		long start = System.nanoTime();
+		taker.start();
+		Thread.sleep(50);
+		Assert.assertTrue(this.tryPut(blocking, event("0")));
+		taker.join();
+		Assert.assertEquals("0", taken.get(0));
+
+		Assert.assertTrue(this.tryPut(blocking, event("1")));
+		Thread committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Transaction tx = blocking.getTransaction();
+				tx.begin();
+				blocking.put(event("2"));
+				tx.commit();
+				tx.close();
+			}
+		});
+		committer.start();
+		Thread.sleep(50);
+		Transaction tx = blocking.getTransaction();
+		tx.begin();
+		Assert.assertEquals("1", body(blocking.take()));
+		tx.commit();
+		tx.close();
+		committer.join();
+
+		tx = blocking.getTransaction();
+		tx.begin();
+		Assert.assertEquals("2", body(blocking.take()));
+		tx.commit();
+		tx.close();
+		// 两次等待都被唤醒，而不是等满keep-alive
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+	}
+
+	private static Event timestamped(String body, long timestamp) {
+		Map<String, String> headers = new HashMap<>();
+		headers.put("timestamp", String.valueOf(timestamp));
+		return EventBuilder.withBody(body, Charset.forName("UTF-8"), headers);
+	}
+
+	@Test
+	public void testExpiredEventsDroppedAtTake() {
+		Context context = new Context();
+		context.put("ttl", "60000");
+		context.put("ttlTimestampHeader", "timestamp");
+		context.put("ttlSweepInterval", "0");
+		context.put("keep-alive", "0");
+		MemoryChannel channel = new MemoryChannel();
+		channel.setName("memory-ttl-test");
+		channel.configure(context);
+		channel.start();
+		try {
+			long now = System.currentTimeMillis();
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			channel.put(timestamped("old-0", now - 120000));
+			channel.put(timestamped("old-1", now - 120000));
+			channel.put(timestamped("new-0", now));
+			channel.put(event("new-1"));
+			channel.put(timestamped("old-2", now - 120000));
+			channel.put(timestamped("new-2", now));
+			tx.commit();
+			tx.close();
+
+			tx = channel.getTransaction();
+			tx.begin();
+			Assert.assertEquals("new-0", body(channel.take()));
+			List<Event> taken = new ArrayList<>();
+			Assert.assertEquals(2, channel.take(10, taken));
+			Assert.assertEquals("new-1", body(taken.get(0)));
+			Assert.assertEquals("new-2", body(taken.get(1)));
+			tx.commit();
+			tx.close();
+
+			Assert.assertEquals(3, channel.getChannelCounter().getEventExpiredCount());
+			Assert.assertEquals(0, channel.getChannelCounter().getChannelSize());
+		} finally {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void testEnqueueTimeStaysInsideTheChannel() {
+		Context context = new Context();
+		context.put("ttl", "60000");
+		context.put("ttlSweepInterval", "0");
+		context.put("keep-alive", "0");
+		MemoryChannel channel = new MemoryChannel();
+		channel.setName("memory-ttl-stamp-test");
+		channel.configure(context);
+		channel.start();
+		try {
+			Event event = event("e");
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			channel.put(event);
+			channel.putAll(Collections.singletonList(event));
+			tx.commit();
+			tx.close();
+			// 同一个Event还可能写入其它channel，不能被修改
+			Assert.assertFalse(event.getHeaders().containsKey(EventExpiry.ENQUEUE_TIME_HEADER));
+
+			// 回滚后Event仍带有入队时间，再次取出时同样去掉
+			for (int i = 0; i < 2; i++) {
+				tx = channel.getTransaction();
+				tx.begin();
+				Assert.assertFalse(channel.take().getHeaders().containsKey(EventExpiry.ENQUEUE_TIME_HEADER));
+				List<Event> taken = new ArrayList<>();
+				Assert.assertEquals(1, channel.take(10, taken));
+				Assert.assertFalse(taken.get(0).getHeaders().containsKey(EventExpiry.ENQUEUE_TIME_HEADER));
+				if (i == 0) {
+					tx.rollback();
+				} else {
+					tx.commit();
+				}
+				tx.close();
+			}
+			// put和take按同一个存储的Event计算字节容量
+			Assert.assertEquals(0L, channel.inspect(1).getByteCount());
+		} finally {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void testExpiredEventsSweptInBackground() throws InterruptedException {
+		Context context = new Context();
+		context.put("ttl", "60000");
+		context.put("ttlTimestampHeader", "timestamp");
+		context.put("ttlSweepInterval", "20");
+		MemoryChannel channel = new MemoryChannel();
+		channel.setName("memory-ttl-sweep-test");
+		channel.configure(context);
+		channel.start();
+		try {
+			long now = System.currentTimeMillis();
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			for (int i = 0; i < 5; i++) {
+				channel.put(timestamped("old-" + i, now - 120000));
+			}
+			channel.put(timestamped("new", now));
+			tx.commit();
+			tx.close();
+
+			for (int i = 0; i < 100 && channel.getChannelCounter().getEventExpiredCount() < 5; i++) {
+				Thread.sleep(20);
+			}
+			Assert.assertEquals(5, channel.getChannelCounter().getEventExpiredCount());
+			Assert.assertEquals(1, channel.getChannelCounter().getChannelSize());
+		} finally {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void testAbandonedTransactionsRolledBack() throws Exception {
+		Context context = new Context();
+		context.put("transactionTimeout", "50");
+		context.put("transactionMonitorInterval", "0");
+		final MemoryChannel channel = new MemoryChannel();
+		channel.setName("memory-txn-monitor-test");
+		channel.configure(context);
+		channel.start();
+		try {
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			for (int i = 0; i < 4; i++) {
+				channel.put(event("event-" + i));
+			}
+			tx.commit();
+			tx.close();
+
+			// 取走Event后线程结束，没有提交也没有回滚
+			Thread dead = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Transaction tx = channel.getTransaction();
+					tx.begin();
+					channel.take();
+					channel.take();
+				}
+			});
+			dead.start();
+			dead.join();
+			Assert.assertEquals(1, channel.checkTransactions());
+			Assert.assertEquals(1, channel.getChannelCounter().getAbandonedTransactionCount());
+
+			tx = channel.getTransaction();
+			tx.begin();
+			Assert.assertEquals("event-0", body(channel.take()));
+			channel.checkTransactions();
+			Assert.assertEquals(1, channel.getChannelCounter().getOpenTransactionCount());
+			Assert.assertEquals(1, channel.getChannelCounter().getOldestTransactionEventCount());
+			Assert.assertEquals(7, channel.getChannelCounter().getOldestTransactionByteCount());
+
+			Thread.sleep(100);
+			Assert.assertEquals(1, channel.checkTransactions());
+			Assert.assertEquals(0, channel.getChannelCounter().getOpenTransactionCount());
+			try {
+				tx.commit();
+				Assert.fail("Commit of a timed out transaction should fail");
+			} catch (ChannelException e) {
+				tx.rollback();
+			} finally {
+				tx.close();
+			}
+
+			tx = channel.getTransaction();
+			tx.begin();
+			for (int i = 0; i < 4; i++) {
+				Assert.assertEquals("event-" + i, body(channel.take()));
+			}
+			tx.commit();
+			tx.close();
+		} finally {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void testPreparedAndDetachedTransactionsNotRolledBack() throws Exception {
+		Context context = new Context();
+		context.put("transactionTimeout", "50");
+		context.put("transactionMonitorInterval", "0");
+		MemoryChannel channel = new MemoryChannel();
+		channel.setName("memory-txn-monitor-prepared-test");
+		channel.configure(context);
+		channel.start();
+		try {
+			Transaction prepared = channel.getTransaction();
+			prepared.begin();
+			channel.put(event("prepared"));
+			prepared.prepare();
+			prepared.detach();
+
+			Transaction detached = channel.getTransaction();
+			detached.begin();
+			channel.put(event("detached"));
+			detached.detach();
+
+			// 超时也不回滚：它们可能正与其它Channel的事务一起提交
+			Thread.sleep(100);
+			Assert.assertEquals(0, channel.checkTransactions());
+			Assert.assertEquals(2, channel.getChannelCounter().getOpenTransactionCount());
+
+			detached.attach();
+			detached.commit();
+			detached.close();
+			prepared.attach();
+			prepared.commit();
+			prepared.close();
+
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			Assert.assertEquals("detached", body(channel.take()));
+			Assert.assertEquals("prepared", body(channel.take()));
+			tx.commit();
+			tx.close();
+		} finally {
+			channel.stop();
+		}
+	}
+
+	@Test
+	public void testTransactionHandedOffToAnotherThread() throws Exception {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 4; i++) {
+			this.channel.put(event("event-" + i));
+		}
+		tx.commit();
+		tx.close();
+
+		final Transaction first = this.channel.getTransaction();
+		first.begin();
+		List<Event> batch = new ArrayList<>();
+		Assert.assertEquals(2, this.channel.take(2, batch));
+		first.detach();
+		try {
+			first.commit();
+			Assert.fail("A detached transaction must not be usable");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// 交出后当前线程可以开始下一批
+		Transaction second = this.channel.getTransaction();
+		Assert.assertNotSame(first, second);
+		second.begin();
+		Assert.assertEquals("event-2", body(this.channel.take()));
+
+		final AtomicInteger committed = new AtomicInteger();
+		Thread completion = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				first.attach();
+				first.commit();
+				first.close();
+				committed.incrementAndGet();
+			}
+		});
+		completion.start();
+		completion.join();
+		Assert.assertEquals(1, committed.get());
+
+		second.rollback();
+		second.close();
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("event-2", body(this.channel.take()));
+		Assert.assertEquals("event-3", body(this.channel.take()));
+		Assert.assertNull(this.channel.take());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testInspectLeavesEventsInPlace() {
+		long now = System.currentTimeMillis();
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 3; i++) {
+			this.channel.put(timestamped("event-" + i, now - 5000));
+		}
+		tx.commit();
+		tx.close();
+
+		// 回滚的Event排在最前面
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("event-0", body(this.channel.take()));
+		tx.rollback();
+		tx.close();
+
+		ChannelInspection inspection = this.channel.inspect(2);
+		Assert.assertEquals(3, inspection.getEventCount());
+		Assert.assertTrue(inspection.getByteCount() > 0);
+		Assert.assertTrue(inspection.getHeadAge() >= 5000);
+		Assert.assertEquals(2, inspection.getHeadEvents().size());
+		Assert.assertEquals("event-0", body(inspection.getHeadEvents().get(0)));
+		Assert.assertEquals("event-1", body(inspection.getHeadEvents().get(1)));
+		inspection.getHeadEvents().get(0).getHeaders().put("timestamp", "0");
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Event head = this.channel.take();
+		Assert.assertEquals("event-0", body(head));
+		Assert.assertEquals(String.valueOf(now - 5000), head.getHeaders().get("timestamp"));
+		tx.commit();
+		tx.close();
+		Assert.assertEquals(2, this.channel.inspect(0).getEventCount());
+		// 采样数量有上限，不按请求的数量分配
+		Assert.assertEquals(2, this.channel.inspect(Integer.MAX_VALUE).getHeadEvents().size());
+	}
+
+	@Test
+	public void testPrepareReservesCapacityUntilCommitOrRollback() {
+		Context context = new Context();
+		context.put("capacity", "5");
+		context.put("transactionCapacity", "5");
+		context.put("keep-alive", "0");
+		MemoryChannel small = new MemoryChannel();
+		small.configure(context);
+
+		Transaction tx = small.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 3; i++) {
+			small.put(event(String.valueOf(i)));
+		}
+		tx.prepare();
+		// 预留的容量对其它事务不可用，但Event在commit前仍不可见
+		Assert.assertEquals(2, small.remainingCapacity());
+		Assert.assertEquals(0, small.inspect(0).getEventCount());
+		tx.rollback();
+		tx.close();
+		Assert.assertEquals(5, small.remainingCapacity());
+
+		tx = small.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			small.put(event(String.valueOf(i)));
+		}
+		tx.prepare();
+		tx.commit();
+		tx.close();
+		Assert.assertEquals(0, small.remainingCapacity());
+		Assert.assertEquals(5, small.inspect(0).getEventCount());
+	}
+}
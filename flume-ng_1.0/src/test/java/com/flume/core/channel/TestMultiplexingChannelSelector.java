@@ -0,0 +1,103 @@
+package com.flume.core.channel;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.Channel;
+import com.flume.core.ChannelRouting;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+
+public class TestMultiplexingChannelSelector {
+
+	private List<Channel> channels = new ArrayList<>();
+	private MultiplexingChannelSelector selector;
+
+	@Before
+	public void setUp() {
+		for (int i = 0; i < 4; i++) {
+			MemoryChannel channel = new MemoryChannel();
+			channel.setName("c" + i);
+			this.channels.add(channel);
+		}
+		this.selector = new MultiplexingChannelSelector();
+		this.selector.setChannels(this.channels);
+	}
+
+	private static Event event(String... headerPairs) {
+		Map<String, String> headers = new HashMap<>();
+		for (int i = 0; i < headerPairs.length; i += 2) {
+			headers.put(headerPairs[i], headerPairs[i + 1]);
+		}
+		return EventBuilder.withBody("e", Charset.forName("UTF-8"), headers);
+	}
+
+	private List<Channel> channels(int... indexes) {
+		List<Channel> list = new ArrayList<>();
+		for (int index : indexes) {
+			list.add(this.channels.get(index));
+		}
+		return list;
+	}
+
+	@Test
+	public void testSingleHeader() {
+		Context context = new Context();
+		context.put("header", "State");
+		context.put("mapping.CA", "c0");
+		context.put("mapping.NY", "c0 c1");
+		context.put("optional.NY", "c1 c2");
+		context.put("optional.AZ", "c3");
+		context.put("default", "c1");
+		this.selector.configure(context);
+
+		Assert.assertEquals(this.channels(0), this.selector.getRequiredChannels(event("State", "CA")));
+		Assert.assertEquals(this.channels(0, 1), this.selector.getRequiredChannels(event("State", "NY")));
+		Assert.assertEquals(this.channels(2), this.selector.getOptionalChannels(event("State", "NY")));
+		// 只配置了optional的值，required为默认channel
+		Assert.assertEquals(this.channels(1), this.selector.getRequiredChannels(event("State", "AZ")));
+		Assert.assertEquals(this.channels(3), this.selector.getOptionalChannels(event("State", "AZ")));
+		Assert.assertEquals(this.channels(1), this.selector.getRequiredChannels(event("State", "TX")));
+		Assert.assertEquals(this.channels(1), this.selector.getRequiredChannels(event("State", " ")));
+		Assert.assertTrue(this.selector.getOptionalChannels(event()).isEmpty());
+	}
+
+	@Test
+	public void testHeaderCombinationsWithWildcards() {
+		Context context = new Context();
+		context.put("header", "State Tier");
+		context.put("mapping.CA|gold", "c0");
+		context.put("mapping.*|gold", "c1");
+		context.put("mapping.CA|*", "c2");
+		context.put("optional.*|*", "c3");
+		context.put("default", "c3");
+		this.selector.configure(context);
+
+		Assert.assertEquals(this.channels(0), this.selector.getRequiredChannels(event("State", "CA", "Tier", "gold")));
+		// 第一个header精确匹配的规则优先于通配的规则
+		Assert.assertEquals(this.channels(2), this.selector.getRequiredChannels(event("State", "CA", "Tier", "iron")));
+		Assert.assertEquals(this.channels(2), this.selector.getRequiredChannels(event("State", "CA")));
+		Assert.assertEquals(this.channels(1), this.selector.getRequiredChannels(event("State", "NY", "Tier", "gold")));
+		Assert.assertEquals(this.channels(1), this.selector.getRequiredChannels(event("Tier", "gold")));
+		// 只匹配optional通配规则：required为默认channel，optional中去掉了required
+		Assert.assertEquals(this.channels(3), this.selector.getRequiredChannels(event("State", "NY", "Tier", "iron")));
+		Assert.assertTrue(this.selector.getOptionalChannels(event("State", "NY", "Tier", "iron")).isEmpty());
+		Assert.assertTrue(this.selector.getOptionalChannels(event("State", "CA", "Tier", "gold")).isEmpty());
+
+		ChannelRouting routing = new ChannelRouting();
+		this.selector.route(Arrays.asList(event("State", "CA", "Tier", "gold"), event("State", "NY", "Tier", "gold"),
+				event("State", "CA", "Tier", "gold")), routing);
+		Assert.assertEquals(2, routing.getRequired().get(this.channels.get(0)).size());
+		Assert.assertEquals(1, routing.getRequired().get(this.channels.get(1)).size());
+		Assert.assertTrue(routing.getOptional().isEmpty());
+	}
+}
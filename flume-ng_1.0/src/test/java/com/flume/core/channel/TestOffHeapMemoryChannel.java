@@ -0,0 +1,176 @@
+package com.flume.core.channel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelFullException;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.event.SimpleEvent;
+import com.flume.sdk.Event;
+
+public class TestOffHeapMemoryChannel {
+
+	private OffHeapMemoryChannel channel;
+
+	@Before
+	public void setUp() {
+		Context context = new Context();
+		context.put("keep-alive", "0");
+		context.put("offHeapByteCapacity", "4096");
+		context.put("offHeapSlabSize", "1024");
+		context.put("offHeapBlockSize", "128");
+		this.channel = new OffHeapMemoryChannel();
+		this.channel.setName("offheap-test");
+		this.channel.configure(context);
+	}
+
+	private static byte[] body(int length, int seed) {
+		byte[] body = new byte[length];
+		for (int i = 0; i < length; i++) {
+			body[i] = (byte) (seed + i);
+		}
+		return body;
+	}
+
+	@Test
+	public void testBodiesSurviveRoundTrip() {
+		Map<String, String> headers = new HashMap<>();
+		headers.put("host", "a");
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody(body(300, 1), headers));
+		this.channel.put(EventBuilder.withBody(new byte[0]));
+		this.channel.put(EventBuilder.withBody(body(128, 7)));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Event first = this.channel.take();
+		Assert.assertArrayEquals(body(300, 1), first.getBody());
+		Assert.assertEquals("a", first.getHeaders().get("host"));
+		Assert.assertEquals(0, this.channel.take().getBody().length);
+		Assert.assertArrayEquals(body(128, 7), this.channel.take().getBody());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testOffHeapCapacityReleasedOnTakeCommit() {
+		Assert.assertTrue(this.tryPut(body(3000, 0)));
+		Assert.assertFalse(this.tryPut(body(2000, 0)));
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertNotNull(this.channel.take());
+		tx.rollback();
+		tx.close();
+		Assert.assertFalse(this.tryPut(body(2000, 0)));
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertArrayEquals(body(3000, 0), this.channel.take().getBody());
+		tx.commit();
+		tx.close();
+		Assert.assertTrue(this.tryPut(body(2000, 0)));
+	}
+
+	private boolean tryPut(byte[] body) {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		try {
+			this.channel.put(EventBuilder.withBody(body));
+			tx.commit();
+			return true;
+		} catch (ChannelFullException e) {
+			tx.rollback();
+			return false;
+		} finally {
+			tx.close();
+		}
+	}
+
+	@Test
+	public void testNullBodyStoredAsEmpty() {
+		Event event = new SimpleEvent();
+		event.setBody(null);
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event);
+		this.channel.put(EventBuilder.withBody(body(10, 3)));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals(0, this.channel.take().getBody().length);
+		Assert.assertArrayEquals(body(10, 3), this.channel.take().getBody());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testInspectionSamplesHeadersWithoutBodies() {
+		Map<String, String> headers = new HashMap<>();
+		headers.put("host", "a");
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody(body(300, 1), headers));
+		tx.commit();
+		tx.close();
+
+		// 块可能被并发提交的take释放并重用，采样不读取body
+		List<Event> sample = this.channel.inspect(Integer.MAX_VALUE).getHeadEvents();
+		Assert.assertEquals(1, sample.size());
+		Assert.assertEquals("a", sample.get(0).getHeaders().get("host"));
+		Assert.assertEquals(0, sample.get(0).getBody().length);
+	}
+
+	@Test
+	public void testCommitWaitsForOffHeapSpace() throws InterruptedException {
+		Context context = new Context();
+		context.put("keep-alive", "3");
+		context.put("offHeapByteCapacity", "4096");
+		context.put("offHeapSlabSize", "1024");
+		context.put("offHeapBlockSize", "128");
+		this.channel.configure(context);
+		Assert.assertTrue(this.tryPut(body(3000, 0)));
+
+		Thread taker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				Transaction tx = channel.getTransaction();
+				tx.begin();
+				channel.take();
+				tx.commit();
+				tx.close();
+			}
+		});
+		long start = System.nanoTime();
+		taker.start();
+		// take提交释放块后被唤醒，而不是立即失败或等满keep-alive
+		Assert.assertTrue(this.tryPut(body(2000, 0)));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+		taker.join();
+
+		// 比整个堆外空间还大的批次不等待
+		start = System.nanoTime();
+		Assert.assertFalse(this.tryPut(body(5000, 0)));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+	}
+}
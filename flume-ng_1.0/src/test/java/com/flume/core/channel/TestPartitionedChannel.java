@@ -0,0 +1,173 @@
+package com.flume.core.channel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+
+public class TestPartitionedChannel {
+
+	private PartitionedChannel channel;
+
+	@Before
+	public void setUp() {
+		Context context = new Context();
+		context.put("partitionHeader", "key");
+		context.put("partitions", "4");
+		context.put("capacity", "1000");
+		context.put("transactionCapacity", "100");
+		context.put("keep-alive", "0");
+		this.channel = new PartitionedChannel();
+		this.channel.setName("partitioned-test");
+		this.channel.configure(context);
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+	}
+
+	private static Event event(String key, int seq) {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("key", key);
+		return EventBuilder.withBody(String.valueOf(seq).getBytes(), headers);
+	}
+
+	@Test
+	public void testPerKeyOrdering() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 60; i++) {
+			this.channel.put(event("k" + (i % 6), i));
+		}
+		tx.commit();
+		tx.close();
+
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		int taken = 0;
+		for (;;) {
+			List<Event> events = new ArrayList<Event>();
+			tx = this.channel.getTransaction();
+			tx.begin();
+			this.channel.take(7, events);
+			tx.commit();
+			tx.close();
+			if (events.isEmpty()) {
+				break;
+			}
+			for (Event event : events) {
+				String key = event.getHeaders().get("key");
+				int seq = Integer.parseInt(new String(event.getBody()));
+				Integer previous = last.put(key, seq);
+				Assert.assertTrue(previous == null || previous < seq);
+				taken++;
+			}
+		}
+		Assert.assertEquals(60, taken);
+	}
+
+	@Test
+	public void testConsumersDoNotShareAPartition() throws InterruptedException {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event("a", 0));
+		this.channel.put(event("a", 1));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("0", new String(this.channel.take().getBody()));
+
+		// 唯一有数据的分区被占用，另一个线程取不到
+		final Event[] other = new Event[1];
+		Thread consumer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Transaction otherTx = channel.getTransaction();
+				otherTx.begin();
+				other[0] = channel.take();
+				otherTx.commit();
+				otherTx.close();
+			}
+		});
+		consumer.start();
+		consumer.join();
+		Assert.assertNull(other[0]);
+
+		Assert.assertEquals("1", new String(this.channel.take().getBody()));
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testRolledBackTakeIsRedeliveredFirst() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			this.channel.put(event("a", i));
+		}
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("0", new String(this.channel.take().getBody()));
+		Assert.assertEquals("1", new String(this.channel.take().getBody()));
+		tx.rollback();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals(String.valueOf(i), new String(this.channel.take().getBody()));
+		}
+		Assert.assertNull(this.channel.take());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testTransactionCapacityIsLimitedByOnePartition() {
+		Context context = new Context();
+		context.put("partitionHeader", "key");
+		context.put("partitions", "4");
+		context.put("capacity", "100");
+		context.put("transactionCapacity", "50");
+		PartitionedChannel channel = new PartitionedChannel();
+		channel.setName("partitioned-small");
+		try {
+			channel.configure(context);
+			Assert.fail("Transaction capacity above the capacity of a partition should be rejected");
+		} catch (IllegalStateException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("(25)"));
+		}
+
+		// 一个分区放得下整个事务，即使所有Event的key相同也能提交
+		context.put("transactionCapacity", "25");
+		channel.configure(context);
+		channel.start();
+		try {
+			Transaction tx = channel.getTransaction();
+			tx.begin();
+			for (int i = 0; i < 25; i++) {
+				channel.put(event("same", i));
+			}
+			tx.commit();
+			tx.close();
+		} finally {
+			channel.stop();
+		}
+	}
+}
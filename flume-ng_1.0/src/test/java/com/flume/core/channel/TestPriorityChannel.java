@@ -0,0 +1,122 @@
+package com.flume.core.channel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelFullException;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+
+public class TestPriorityChannel {
+
+	private PriorityChannel channel;
+
+	@Before
+	public void setUp() {
+		Context context = new Context();
+		context.put("lanes", "high,normal,low");
+		context.put("capacity", "20");
+		context.put("lanes.low.capacity", "5");
+		context.put("starvationThreshold", "3");
+		context.put("transactionCapacity", "20");
+		context.put("keep-alive", "0");
+		this.channel = new PriorityChannel();
+		this.channel.setName("priority-test");
+		this.channel.configure(context);
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+	}
+
+	private static Event event(String priority, String body) {
+		Map<String, String> headers = new HashMap<String, String>();
+		if (priority != null) {
+			headers.put("priority", priority);
+		}
+		return EventBuilder.withBody(body.getBytes(), headers);
+	}
+
+	private void put(Event... events) {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (Event event : events) {
+			this.channel.put(event);
+		}
+		tx.commit();
+		tx.close();
+	}
+
+	private List<String> takeAll() {
+		List<Event> events = new ArrayList<Event>();
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.take(20, events);
+		tx.commit();
+		tx.close();
+		List<String> bodies = new ArrayList<String>();
+		for (Event event : events) {
+			bodies.add(new String(event.getBody()));
+		}
+		return bodies;
+	}
+
+	@Test
+	public void testHigherLanesServedFirst() {
+		this.put(event("low", "l1"), event(null, "l2"), event("normal", "n1"), event("0", "h1"), event("high", "h2"));
+		Assert.assertEquals(Arrays.asList("h1", "h2", "n1", "l1", "l2"), this.takeAll());
+	}
+
+	@Test
+	public void testLowerLaneIsNotStarved() {
+		this.put(event("low", "l1"), event("high", "h1"), event("high", "h2"), event("high", "h3"),
+				event("high", "h4"), event("high", "h5"));
+		Assert.assertEquals(Arrays.asList("h1", "h2", "h3", "l1", "h4", "h5"), this.takeAll());
+	}
+
+	@Test
+	public void testFullLaneDoesNotBlockOtherLanes() {
+		this.put(event("low", "l1"), event("low", "l2"), event("low", "l3"), event("low", "l4"), event("low", "l5"));
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(event("low", "l6"));
+		try {
+			tx.commit();
+			Assert.fail("Commit beyond the capacity of the lane should fail");
+		} catch (ChannelFullException e) {
+			tx.rollback();
+		} finally {
+			tx.close();
+		}
+
+		this.put(event("high", "h1"));
+		Assert.assertEquals("h1", this.takeAll().get(0));
+	}
+
+	@Test
+	public void testRolledBackTakeReturnsToItsLane() {
+		this.put(event("normal", "n1"), event("high", "h1"));
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("h1", new String(this.channel.take().getBody()));
+		Assert.assertEquals("n1", new String(this.channel.take().getBody()));
+		tx.rollback();
+		tx.close();
+
+		Assert.assertEquals(Arrays.asList("h1", "n1"), this.takeAll());
+	}
+}
@@ -0,0 +1,142 @@
+package com.flume.core.channel;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelFullException;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.sdk.Event;
+
+public class TestSpillableMemoryChannel {
+
+	private File overflowDir;
+	private SpillableMemoryChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		this.overflowDir = Files.createTempDirectory("spillable-channel").toFile();
+		Context context = new Context();
+		context.put("memoryCapacity", "5");
+		context.put("overflowCapacity", "20");
+		context.put("transactionCapacity", "10");
+		context.put("keep-alive", "0");
+		context.put("maxSegmentSize", "100");
+		context.put("overflowDir", this.overflowDir.getAbsolutePath());
+		this.channel = new SpillableMemoryChannel();
+		this.channel.setName("spillable-test");
+		this.channel.configure(context);
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		this.channel.stop();
+		Assert.assertEquals(0, this.overflowDir.list().length);
+		this.overflowDir.delete();
+	}
+
+	private void put(int from, int to) {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = from; i < to; i++) {
+			this.channel.put(EventBuilder.withBody(String.valueOf(i).getBytes()));
+		}
+		tx.commit();
+		tx.close();
+	}
+
+	private String takeOne() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Event event = this.channel.take();
+		tx.commit();
+		tx.close();
+		return event == null ? null : new String(event.getBody());
+	}
+
+	@Test
+	public void testSpillsAndDrainsInOrder() {
+		this.put(0, 8);
+		Assert.assertTrue(this.overflowDir.list().length > 0);
+
+		Assert.assertEquals("0", this.takeOne());
+		// 磁盘上还有积压时，新Event也要溢写，保证先进先出
+		this.put(8, 12);
+		for (int i = 1; i < 12; i++) {
+			Assert.assertEquals(String.valueOf(i), this.takeOne());
+		}
+		Assert.assertNull(this.takeOne());
+
+		this.put(12, 14);
+		Assert.assertEquals("12", this.takeOne());
+		Assert.assertEquals("13", this.takeOne());
+	}
+
+	@Test
+	public void testBatchTakeAcrossMemoryAndDisk() {
+		this.put(0, 8);
+
+		List<Event> taken = new ArrayList<Event>();
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals(8, this.channel.take(10, taken));
+		tx.commit();
+		tx.close();
+		for (int i = 0; i < 8; i++) {
+			Assert.assertEquals(String.valueOf(i), new String(taken.get(i).getBody()));
+		}
+	}
+
+	@Test
+	public void testRolledBackTakeIsRedelivered() {
+		this.put(0, 8);
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (int i = 0; i < 7; i++) {
+			Assert.assertEquals(String.valueOf(i), new String(this.channel.take().getBody()));
+		}
+		tx.rollback();
+		tx.close();
+
+		for (int i = 0; i < 8; i++) {
+			Assert.assertEquals(String.valueOf(i), this.takeOne());
+		}
+		Assert.assertNull(this.takeOne());
+	}
+
+	@Test
+	public void testOverflowCapacity() {
+		this.put(0, 10);
+		this.put(10, 20);
+		this.put(20, 25);
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody("full".getBytes()));
+		try {
+			tx.commit();
+			Assert.fail("Commit beyond overflowCapacity should fail");
+		} catch (ChannelFullException e) {
+			tx.rollback();
+		} finally {
+			tx.close();
+		}
+
+		// 内存取空后才会从磁盘读回，溢写区腾出空间
+		for (int i = 0; i < 6; i++) {
+			Assert.assertEquals(String.valueOf(i), this.takeOne());
+		}
+		this.put(25, 26);
+	}
+}
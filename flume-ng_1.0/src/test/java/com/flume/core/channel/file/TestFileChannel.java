@@ -0,0 +1,372 @@
+package com.flume.core.channel.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.flume.configuration.Context;
+import com.flume.core.ChannelFullException;
+import com.flume.core.Transaction;
+import com.flume.core.event.EventBuilder;
+import com.flume.core.instrumentation.FileChannelCounter;
+import com.flume.sdk.Event;
+
+public class TestFileChannel {
+
+	private File baseDir;
+	private FileChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		this.baseDir = Files.createTempDirectory("file-channel").toFile();
+		this.channel = this.createChannel(new HashMap<String, String>());
+		this.channel.start();
+	}
+
+	@After
+	public void tearDown() {
+		if (this.channel != null) {
+			this.channel.stop();
+		}
+		delete(this.baseDir);
+	}
+
+	private FileChannel createChannel(Map<String, String> overrides) {
+		Context context = new Context();
+		context.put("dataDir", new File(this.baseDir, "data").getAbsolutePath());
+		context.put("checkpointDir", new File(this.baseDir, "checkpoint").getAbsolutePath());
+		context.put("capacity", "100");
+		context.put("transactionCapacity", "10");
+		context.putAll(overrides);
+		FileChannel channel = new FileChannel();
+		channel.setName("file-test");
+		channel.configure(context);
+		return channel;
+	}
+
+	private void restart() {
+		this.channel.stop();
+		this.channel = this.createChannel(new HashMap<String, String>());
+		this.channel.start();
+	}
+
+	private void put(String... bodies) {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		for (String body : bodies) {
+			this.channel.put(EventBuilder.withBody(body.getBytes()));
+		}
+		tx.commit();
+		tx.close();
+	}
+
+	private String takeOne() {
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Event event = this.channel.take();
+		tx.commit();
+		tx.close();
+		return event == null ? null : new String(event.getBody());
+	}
+
+	@Test
+	public void testPutTakeInOrder() {
+		Map<String, String> headers = new HashMap<String, String>();
+		headers.put("host", "a");
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody("first".getBytes(), headers));
+		this.channel.put(EventBuilder.withBody("second".getBytes()));
+		tx.commit();
+		tx.close();
+
+		tx = this.channel.getTransaction();
+		tx.begin();
+		Event first = this.channel.take();
+		Assert.assertEquals("first", new String(first.getBody()));
+		Assert.assertEquals("a", first.getHeaders().get("host"));
+		Assert.assertEquals("second", new String(this.channel.take().getBody()));
+		Assert.assertNull(this.channel.take());
+		tx.commit();
+		tx.close();
+	}
+
+	@Test
+	public void testRolledBackTakeIsRedelivered() {
+		this.put("a", "b");
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		Assert.assertEquals("a", new String(this.channel.take().getBody()));
+		tx.rollback();
+		tx.close();
+
+		Assert.assertEquals("a", this.takeOne());
+		Assert.assertEquals("b", this.takeOne());
+		Assert.assertNull(this.takeOne());
+	}
+
+	@Test
+	public void testEventsSurviveRestart() {
+		this.put("a", "b", "c");
+		Assert.assertEquals("a", this.takeOne());
+
+		this.restart();
+		Assert.assertEquals("b", this.takeOne());
+
+		this.put("d");
+		this.restart();
+		Assert.assertEquals("c", this.takeOne());
+		Assert.assertEquals("d", this.takeOne());
+		Assert.assertNull(this.takeOne());
+	}
+
+	@Test
+	public void testUncommittedAndTornRecordsAreNotReplayed() throws IOException {
+		this.put("a");
+
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody("uncommitted".getBytes()));
+		tx.rollback();
+		tx.close();
+
+		// 模拟崩溃时写了一半的记录留在日志末尾
+		File dataDir = new File(this.baseDir, "data");
+		File[] logs = dataDir.listFiles();
+		File last = logs[0];
+		for (File log : logs) {
+			if (log.getName().compareTo(last.getName()) > 0) {
+				last = log;
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		try {
+			raf.seek(raf.length());
+			raf.writeInt(1000);
+			raf.writeInt(0);
+			raf.write(new byte[10]);
+		} finally {
+			raf.close();
+		}
+
+		this.restart();
+		Assert.assertEquals("a", this.takeOne());
+		Assert.assertNull(this.takeOne());
+		this.put("b");
+		Assert.assertEquals("b", this.takeOne());
+	}
+
+	@Test
+	public void testCapacity() {
+		for (int i = 0; i < 10; i++) {
+			this.put("0", "1", "2", "3", "4", "5", "6", "7", "8", "9");
+		}
+		Transaction tx = this.channel.getTransaction();
+		tx.begin();
+		this.channel.put(EventBuilder.withBody("full".getBytes()));
+		try {
+			tx.commit();
+			Assert.fail("Commit beyond capacity should fail");
+		} catch (ChannelFullException e) {
+			tx.rollback();
+		} finally {
+			tx.close();
+		}
+		Assert.assertEquals("0", this.takeOne());
+		this.put("fits");
+	}
+
+	@Test
+	public void testReplayAcrossRolledFiles() {
+		this.channel.stop();
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put("maxFileSize", "200");
+		this.channel = this.createChannel(overrides);
+		this.channel.start();
+
+		for (int i = 0; i < 20; i++) {
+			this.put("event-" + i);
+		}
+		for (int i = 0; i < 5; i++) {
+			Assert.assertEquals("event-" + i, this.takeOne());
+		}
+		Assert.assertTrue(new File(this.baseDir, "data").list().length > 1);
+
+		// 没有检查点时从头回放全部日志
+		this.channel.stop();
+		delete(new File(this.baseDir, "checkpoint"));
+		this.channel = this.createChannel(new HashMap<String, String>());
+		this.channel.start();
+		for (int i = 5; i < 20; i++) {
+			Assert.assertEquals("event-" + i, this.takeOne());
+		}
+		Assert.assertNull(this.takeOne());
+	}
+
+	@Test
+	public void testParallelReplayKeepsCommitOrderAndReportsProgress() {
+		this.channel.stop();
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put("maxFileSize", "200");
+		this.channel = this.createChannel(overrides);
+		this.channel.start();
+
+		for (int i = 0; i < 30; i++) {
+			this.put("event-" + i);
+			if (i % 3 == 2) {
+				Assert.assertEquals("event-" + (i / 3), this.takeOne());
+			}
+		}
+		File dataDir = new File(this.baseDir, "data");
+		Assert.assertTrue(dataDir.list().length > 4);
+
+		this.channel.stop();
+		delete(new File(this.baseDir, "checkpoint"));
+		overrides.put("recoveryThreads", "4");
+		this.channel = this.createChannel(overrides);
+		this.channel.start();
+
+		FileChannelCounter counter = this.channel.getChannelCounter();
+		Assert.assertTrue(counter.getRecoveryByteCount() > 0);
+		Assert.assertEquals(counter.getRecoveryByteCount(), counter.getRecoveryBytesReplayed());
+		Assert.assertEquals(100L, counter.getRecoveryProgress());
+		Assert.assertEquals(0L, counter.getRecoveryEtaMillis());
+		Assert.assertEquals(0L, counter.getRecoveryCorruptSegmentCount());
+		for (int i = 10; i < 30; i++) {
+			Assert.assertEquals("event-" + i, this.takeOne());
+		}
+		Assert.assertNull(this.takeOne());
+	}
+
+	@Test
+	public void testCheckpointTruncatesLogAndLimitsReplay() {
+		File checkpointDir = new File(this.baseDir, "checkpoint");
+		File dataDir = new File(this.baseDir, "data");
+		this.channel.stop();
+		delete(checkpointDir);
+		Assert.assertFalse(checkpointDir.exists());
+
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put("maxFileSize", "200");
+		this.channel = this.createChannel(overrides);
+		this.channel.start();
+		Assert.assertTrue(checkpointDir.isDirectory());
+
+		for (int i = 0; i < 20; i++) {
+			this.put("event-" + i);
+		}
+		for (int i = 0; i < 15; i++) {
+			Assert.assertEquals("event-" + i, this.takeOne());
+		}
+		int logsBefore = dataDir.list().length;
+		Assert.assertTrue(new File(dataDir, "log-1").exists());
+
+		// stop时写检查点，之前已被取走的事件所在的日志文件被删除
+		this.channel.stop();
+		Assert.assertTrue(new File(checkpointDir, "checkpoint-1").exists());
+		Assert.assertFalse(new File(dataDir, "log-1").exists());
+		Assert.assertTrue(dataDir.list().length < logsBefore);
+
+		this.channel = this.createChannel(new HashMap<String, String>());
+		this.channel.start();
+		this.put("tail-0", "tail-1");
+		File tail = newestLog(dataDir);
+
+		// 不stop直接在同样的目录上启动，模拟崩溃后重启：只回放检查点之后的日志
+		FileChannel crashed = this.channel;
+		try {
+			this.channel = this.createChannel(new HashMap<String, String>());
+			this.channel.start();
+			Assert.assertEquals(tail.length(), this.channel.getChannelCounter().getRecoveryByteCount());
+			for (int i = 15; i < 20; i++) {
+				Assert.assertEquals("event-" + i, this.takeOne());
+			}
+			Assert.assertEquals("tail-0", this.takeOne());
+			Assert.assertEquals("tail-1", this.takeOne());
+			Assert.assertNull(this.takeOne());
+		} finally {
+			crashed.stop();
+		}
+	}
+
+	@Test
+	public void testPreparedTransactionCommittedAfterRollIsReplayedOnce() {
+		this.channel.stop();
+		Map<String, String> overrides = new HashMap<String, String>();
+		overrides.put("maxFileSize", "200");
+		this.channel = this.createChannel(overrides);
+		this.channel.start();
+
+		Transaction prepared = this.channel.getTransaction();
+		prepared.begin();
+		this.channel.put(EventBuilder.withBody("prepared-0".getBytes()));
+		this.channel.put(EventBuilder.withBody("prepared-1".getBytes()));
+		prepared.prepare();
+		prepared.detach();
+
+		// 准备之后日志滚动，commit标记不能写到另一个文件
+		File dataDir = new File(this.baseDir, "data");
+		int logs = dataDir.list().length;
+		int count = 0;
+		while (dataDir.list().length == logs) {
+			this.put("event-" + count++);
+		}
+		prepared.attach();
+		prepared.commit();
+		prepared.close();
+
+		Transaction orphan = this.channel.getTransaction();
+		orphan.begin();
+		this.channel.put(EventBuilder.withBody("orphan".getBytes()));
+		orphan.prepare();
+
+		// 不stop直接重新打开，模拟崩溃：没有commit标记的记录被忽略
+		FileChannel crashed = this.channel;
+		orphan.detach();
+		try {
+			this.channel = this.createChannel(new HashMap<String, String>());
+			this.channel.start();
+			for (int i = 0; i < count; i++) {
+				Assert.assertEquals("event-" + i, this.takeOne());
+			}
+			Assert.assertEquals("prepared-0", this.takeOne());
+			Assert.assertEquals("prepared-1", this.takeOne());
+			Assert.assertNull(this.takeOne());
+		} finally {
+			orphan.attach();
+			orphan.rollback();
+			orphan.close();
+			crashed.stop();
+		}
+	}
+
+	private static File newestLog(File dataDir) {
+		File newest = null;
+		for (File log : dataDir.listFiles()) {
+			int id = Integer.parseInt(log.getName().substring("log-".length()));
+			if (newest == null || id > Integer.parseInt(newest.getName().substring("log-".length()))) {
+				newest = log;
+			}
+		}
+		return newest;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}